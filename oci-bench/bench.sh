@@ -0,0 +1,47 @@
+#!/usr/bin/env bash
+# 构建并运行创建实例热路径的JMH基准,结果与 baseline/jmh-baseline.json 对比
+#
+#   ./oci-bench/bench.sh              运行并与基线对比,有超过阈值的退化时返回1
+#   ./oci-bench/bench.sh --record     运行并把本次结果保存为新的基线
+#
+# 可选环境变量: BENCH_THRESHOLD(退化阈值百分比,默认10) BENCH_INCLUDE(只运行匹配的基准,正则)
+set -euo pipefail
+
+cd "$(dirname "$0")/.."
+
+RECORD=false
+if [ "${1:-}" = "--record" ]; then
+    RECORD=true
+fi
+
+BASELINE=oci-bench/baseline/jmh-baseline.json
+ENVIRONMENT=oci-bench/baseline/environment.txt
+RESULT=oci-bench/target/jmh-result.json
+JAR=oci-bench/target/benchmarks.jar
+
+mvn -B -Pbench -pl oci-bench -am package -DskipTests
+
+java -jar "$JAR" -rf json -rff "$RESULT" ${BENCH_INCLUDE:+"$BENCH_INCLUDE"}
+
+if [ "$RECORD" = true ]; then
+    mkdir -p "$(dirname "$BASELINE")"
+    cp "$RESULT" "$BASELINE"
+    {
+        echo "recorded: $(date -u +%Y-%m-%dT%H:%M:%SZ)"
+        echo "commit: $(git rev-parse --short HEAD 2>/dev/null || echo unknown)"
+        echo "os: $(uname -srm)"
+        echo "cpu: $(grep -m1 'model name' /proc/cpuinfo 2>/dev/null | cut -d: -f2- | sed 's/^ //' || echo unknown)"
+        echo "cores: $(getconf _NPROCESSORS_ONLN 2>/dev/null || echo unknown)"
+        java -version 2>&1 | sed 's/^/jdk: /'
+    } > "$ENVIRONMENT"
+    echo "已保存基线: $BASELINE 和运行环境: $ENVIRONMENT,两个文件一起提交"
+    exit 0
+fi
+
+# 没有基线时无法判断是否退化,按失败处理,避免对比步骤被悄悄跳过
+if [ ! -f "$BASELINE" ]; then
+    echo "缺少基线 $BASELINE,先在参考机器上运行: $0 --record" >&2
+    exit 2
+fi
+
+java -cp "$JAR" com.doubledimple.ocibench.BaselineComparator "$BASELINE" "$RESULT" "${BENCH_THRESHOLD:-10}"
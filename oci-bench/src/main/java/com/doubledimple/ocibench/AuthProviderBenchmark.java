@@ -0,0 +1,45 @@
+package com.doubledimple.ocibench;
+
+import com.doubledimple.ociserver.config.MultiUserAuthenticationDetailsProvider;
+import com.doubledimple.ociserver.config.OracleUsersConfig;
+import com.doubledimple.ociserver.domain.User;
+import com.oracle.bmc.auth.SimpleAuthenticationDetailsProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 鉴权信息: 缓存命中 与 每次尝试都重新读取私钥构建 的开销对比
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 20:40
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthProviderBenchmark {
+
+    private MultiUserAuthenticationDetailsProvider providers;
+    private User user;
+
+    @Setup
+    public void setUp() {
+        user = BenchFixtures.user(BenchFixtures.writeKeyFile());
+        providers = new MultiUserAuthenticationDetailsProvider(new OracleUsersConfig());
+        providers.getProvider(user);
+    }
+
+    @Benchmark
+    public SimpleAuthenticationDetailsProvider cached() {
+        return providers.getProvider(user);
+    }
+
+    @Benchmark
+    public SimpleAuthenticationDetailsProvider reload() {
+        providers.invalidate(user.getUserName());
+        return providers.getProvider(user);
+    }
+}
@@ -0,0 +1,100 @@
+package com.doubledimple.ocibench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 对比两次JMH运行结果(-rf json 输出),任一基准比基线差超过阈值时以状态码1退出.
+ * <p>
+ * 用法: java -cp target/benchmarks.jar com.doubledimple.ocibench.BaselineComparator 基线.json 本次.json [阈值百分比,默认10]
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 21:20
+ */
+public final class BaselineComparator {
+
+    private BaselineComparator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("用法: BaselineComparator <baseline.json> <current.json> [threshold%]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        Map<String, Result> baseline = read(new File(args[0]));
+        Map<String, Result> current = read(new File(args[1]));
+
+        int regressions = 0;
+        System.out.printf("%-75s %14s %14s %9s%n", "benchmark", "baseline", "current", "change");
+        for (Map.Entry<String, Result> entry : current.entrySet()) {
+            Result now = entry.getValue();
+            Result before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-75s %14s %14.3f %9s  %s%n", entry.getKey(), "-", now.score, "-", now.unit);
+                continue;
+            }
+            double change = (now.score - before.score) / before.score * 100;
+            // 平均耗时越大越差,吞吐量越小越差
+            double worse = now.higherIsBetter() ? -change : change;
+            boolean regressed = worse > threshold;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf("%-75s %14.3f %14.3f %+8.1f%%  %s%s%n", entry.getKey(), before.score, now.score, change,
+                    now.unit, regressed ? "  <== 退化" : "");
+        }
+        for (String missing : baseline.keySet()) {
+            if (!current.containsKey(missing)) {
+                System.out.printf("%-75s 本次未运行%n", missing);
+            }
+        }
+        if (regressions > 0) {
+            System.out.printf("%d 个基准比基线差超过 %.1f%%%n", regressions, threshold);
+            System.exit(1);
+        }
+        System.out.printf("没有超过 %.1f%% 的退化%n", threshold);
+    }
+
+    private static Map<String, Result> read(File file) throws IOException {
+        Map<String, Result> results = new TreeMap<>();
+        for (JsonNode node : new ObjectMapper().readTree(file)) {
+            String name = node.path("benchmark").asText().replace("com.doubledimple.", "");
+            Map<String, String> params = new LinkedHashMap<>();
+            Iterator<Map.Entry<String, JsonNode>> fields = node.path("params").fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                params.put(field.getKey(), field.getValue().asText());
+            }
+            String key = params.isEmpty() ? name : name + params;
+            JsonNode metric = node.path("primaryMetric");
+            results.put(key, new Result(node.path("mode").asText(), metric.path("score").asDouble(),
+                    metric.path("scoreUnit").asText()));
+        }
+        return results;
+    }
+
+    private static final class Result {
+
+        private final String mode;
+        private final double score;
+        private final String unit;
+
+        private Result(String mode, double score, String unit) {
+            this.mode = mode;
+            this.score = score;
+            this.unit = unit;
+        }
+
+        private boolean higherIsBetter() {
+            return "thrpt".equals(mode);
+        }
+    }
+}
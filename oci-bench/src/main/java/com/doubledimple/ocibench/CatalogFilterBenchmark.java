@@ -0,0 +1,64 @@
+package com.doubledimple.ocibench;
+
+import com.doubledimple.ociserver.cache.ComputeCatalog;
+import com.doubledimple.ociserver.domain.User;
+import com.doubledimple.ociserver.metrics.OciMetrics;
+import com.oracle.bmc.core.ComputeClient;
+import com.oracle.bmc.core.model.Image;
+import com.oracle.bmc.core.model.Shape;
+import com.oracle.bmc.identity.model.AvailabilityDomain;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 规格和镜像的筛选: 目录已经缓存时,每次尝试在可用域的规格列表中找目标规格、按规格取镜像的开销
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 20:55
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatalogFilterBenchmark {
+
+    private AnnotationConfigApplicationContext context;
+    private ComputeCatalog computeCatalog;
+    private ComputeClient computeClient;
+    private User user;
+    private AvailabilityDomain availabilityDomain;
+    private Shape shape;
+
+    @Setup
+    public void setUp() {
+        context = new AnnotationConfigApplicationContext(OciMetrics.class, ComputeCatalog.class);
+        computeCatalog = context.getBean(ComputeCatalog.class);
+        user = BenchFixtures.user(BenchFixtures.writeKeyFile());
+        computeClient = StubClients.compute(BenchFixtures.provider(user), StubClients.Launch.CAPACITY);
+        availabilityDomain = BenchFixtures.availabilityDomains().get(0);
+        shape = BenchFixtures.shape("VM.Standard.A1.Flex");
+        computeCatalog.getShapes(user, computeClient, BenchFixtures.TENANCY, availabilityDomain);
+        computeCatalog.getImage(user, computeClient, BenchFixtures.TENANCY, shape);
+    }
+
+    @TearDown
+    public void tearDown() {
+        computeClient.close();
+        context.close();
+    }
+
+    @Benchmark
+    public List<Shape> shapes() {
+        return computeCatalog.getShapes(user, computeClient, BenchFixtures.TENANCY, availabilityDomain);
+    }
+
+    @Benchmark
+    public Image image() {
+        return computeCatalog.getImage(user, computeClient, BenchFixtures.TENANCY, shape);
+    }
+}
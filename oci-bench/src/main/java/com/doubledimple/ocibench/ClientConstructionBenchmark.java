@@ -0,0 +1,51 @@
+package com.doubledimple.ocibench;
+
+import com.doubledimple.ociserver.client.OciClientRegistry;
+import com.doubledimple.ociserver.client.OciClients;
+import com.doubledimple.ociserver.domain.User;
+import com.oracle.bmc.auth.AuthenticationDetailsProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OCI客户端: 每次尝试新建并关闭一组客户端 与 从注册中心复用 的开销对比
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 20:45
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientConstructionBenchmark {
+
+    private OciClientRegistry registry;
+    private User user;
+    private AuthenticationDetailsProvider provider;
+
+    @Setup
+    public void setUp() {
+        user = BenchFixtures.user(BenchFixtures.writeKeyFile());
+        provider = BenchFixtures.provider(user);
+        registry = new OciClientRegistry();
+        registry.get(user, provider);
+    }
+
+    @TearDown
+    public void tearDown() {
+        registry.closeAll();
+    }
+
+    @Benchmark
+    public void buildPerAttempt() {
+        new OciClients(user, provider).close();
+    }
+
+    @Benchmark
+    public OciClients registryReuse() {
+        return registry.get(user, provider);
+    }
+}
@@ -0,0 +1,59 @@
+package com.doubledimple.ocibench;
+
+import com.doubledimple.ociserver.exception.ErrorClassifier;
+import com.doubledimple.ociserver.exception.ErrorCode;
+import com.doubledimple.ociserver.exception.OciException;
+import com.oracle.bmc.model.BmcException;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 失败原因分类: 每次尝试结束都要对异常分类一次,容量不足是最常见的情况
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 21:00
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ErrorClassifierBenchmark {
+
+    @Param({"capacity", "throttled", "limitExceeded", "internalError", "network", "ociException"})
+    private String error;
+
+    private Throwable throwable;
+
+    @Setup
+    public void setUp() {
+        switch (error) {
+            case "capacity":
+                throwable = new BmcException(500, "InternalError", "Out of host capacity.", "bench");
+                break;
+            case "throttled":
+                throwable = new BmcException(429, "TooManyRequests", "Too many requests for the user", "bench");
+                break;
+            case "limitExceeded":
+                throwable = new BmcException(400, "LimitExceeded", "The following service limits were exceeded: standard-a1-core-count", "bench");
+                break;
+            case "internalError":
+                throwable = new BmcException(500, "InternalError", "Internal error occurred", "bench");
+                break;
+            case "network":
+                throwable = new RuntimeException(new SocketTimeoutException("Read timed out"));
+                break;
+            default:
+                throwable = new OciException(ErrorCode.LIMIT_EXCEEDED);
+                break;
+        }
+    }
+
+    @Benchmark
+    public ErrorCode classify() {
+        return ErrorClassifier.classify(throwable);
+    }
+}
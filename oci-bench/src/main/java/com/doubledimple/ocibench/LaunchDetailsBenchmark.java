@@ -0,0 +1,58 @@
+package com.doubledimple.ocibench;
+
+import com.doubledimple.ociserver.constant.SystemScriptShell;
+import com.doubledimple.ociserver.domain.User;
+import com.doubledimple.ociserver.service.OracleCloudService;
+import com.oracle.bmc.core.model.Image;
+import com.oracle.bmc.core.model.LaunchInstanceDetails;
+import com.oracle.bmc.core.model.NetworkSecurityGroup;
+import com.oracle.bmc.core.model.Shape;
+import com.oracle.bmc.core.model.Subnet;
+import com.oracle.bmc.identity.model.AvailabilityDomain;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 创建实例请求体: cloud-init脚本拼接+Base64编码,以及完整的 LaunchInstanceDetails 构建
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 20:50
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LaunchDetailsBenchmark {
+
+    private User user;
+    private AvailabilityDomain availabilityDomain;
+    private Shape shape;
+    private Image image;
+    private Subnet subnet;
+    private NetworkSecurityGroup networkSecurityGroup;
+
+    @Setup
+    public void setUp() {
+        user = BenchFixtures.user(BenchFixtures.writeKeyFile());
+        availabilityDomain = BenchFixtures.availabilityDomains().get(0);
+        shape = BenchFixtures.shape("VM.Standard.A1.Flex");
+        image = BenchFixtures.image();
+        subnet = BenchFixtures.subnet(availabilityDomain.getName());
+        networkSecurityGroup = BenchFixtures.networkSecurityGroup();
+    }
+
+    @Benchmark
+    public String cloudInit() {
+        return Base64.getEncoder().encodeToString(SystemScriptShell.getShell(user.getRootPassword()).getBytes());
+    }
+
+    @Benchmark
+    public LaunchInstanceDetails launchDetails() {
+        return OracleCloudService.createLaunchInstanceDetails(BenchFixtures.TENANCY, availabilityDomain, shape, image,
+                subnet, networkSecurityGroup, SystemScriptShell.getShell(user.getRootPassword()), user, 1L);
+    }
+}
@@ -0,0 +1,98 @@
+package com.doubledimple.ocibench;
+
+import com.doubledimple.ociserver.cache.ComputeCatalog;
+import com.doubledimple.ociserver.cache.TenancyTopologyCache;
+import com.doubledimple.ociserver.client.OciClientRegistry;
+import com.doubledimple.ociserver.client.RegionRateLimiter;
+import com.doubledimple.ociserver.cluster.ClusterCoordinator;
+import com.doubledimple.ociserver.config.MultiUserAuthenticationDetailsProvider;
+import com.doubledimple.ociserver.config.OracleUsersConfig;
+import com.doubledimple.ociserver.config.RateLimitProperties;
+import com.doubledimple.ociserver.domain.OracleInstanceDetail;
+import com.doubledimple.ociserver.domain.User;
+import com.doubledimple.ociserver.engine.LaunchReconciler;
+import com.doubledimple.ociserver.metrics.AvailabilityDomainMetrics;
+import com.doubledimple.ociserver.metrics.OciMetrics;
+import com.doubledimple.ociserver.network.NetworkScaffoldingResolver;
+import com.doubledimple.ociserver.network.NetworkSecurityGroupReconciler;
+import com.doubledimple.ociserver.schedule.CapacityBoard;
+import com.doubledimple.ociserver.schedule.CapacityHeatmap;
+import com.doubledimple.ociserver.service.OracleCloudService;
+import com.doubledimple.ociserver.state.AttemptStateStore;
+import com.oracle.bmc.auth.SimpleAuthenticationDetailsProvider;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一次完整的创建尝试: 拓扑、目录、网络校验都命中缓存,三个可用域并发发起创建,
+ * 桩客户端直接返回容量不足或创建成功,测到的是应用自身在一次尝试中的开销
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 21:10
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ProvisioningAttemptBenchmark {
+
+    @Param({"CAPACITY", "ACCEPTED"})
+    private StubClients.Launch launch;
+
+    private AnnotationConfigApplicationContext context;
+    private OracleCloudService oracleCloudService;
+    private User user;
+
+    @Setup
+    public void setUp() throws Exception {
+        Path dataDir;
+        try {
+            dataDir = Files.createTempDirectory("oci-bench");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Map<String, Object> properties = new HashMap<>();
+        // 容量看板不跳过任何可用域,每次尝试都真正走到创建请求
+        properties.put("oci.capacity.decay-seconds", "0");
+        properties.put("oci.heatmap.file", dataDir.resolve("capacity-heatmap.bin").toString());
+        properties.put("oci.state.file", dataDir.resolve("attempt-state.log").toString());
+
+        context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("bench", properties));
+        context.register(OracleUsersConfig.class, MultiUserAuthenticationDetailsProvider.class,
+                RateLimitProperties.class, RegionRateLimiter.class, OciClientRegistry.class, OciMetrics.class,
+                TenancyTopologyCache.class, ComputeCatalog.class, NetworkSecurityGroupReconciler.class,
+                NetworkScaffoldingResolver.class, AvailabilityDomainMetrics.class, CapacityHeatmap.class,
+                CapacityBoard.class, AttemptStateStore.class, ClusterCoordinator.class, LaunchReconciler.class,
+                OracleCloudService.class);
+        context.refresh();
+
+        user = BenchFixtures.user(BenchFixtures.writeKeyFile());
+        SimpleAuthenticationDetailsProvider provider = context.getBean(MultiUserAuthenticationDetailsProvider.class).getProvider(user);
+        context.getBean(OciClientRegistry.class).register(user, StubClients.create(user, provider, launch));
+        oracleCloudService = context.getBean(OracleCloudService.class);
+        // 第一次尝试填充拓扑、目录和网络缓存
+        oracleCloudService.createInstanceData(user);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public OracleInstanceDetail attempt() throws Exception {
+        return oracleCloudService.createInstanceData(user);
+    }
+}
@@ -0,0 +1,151 @@
+package com.doubledimple.ocibench;
+
+import com.doubledimple.ociserver.client.OciClients;
+import com.doubledimple.ociserver.domain.User;
+import com.oracle.bmc.auth.AuthenticationDetailsProvider;
+import com.oracle.bmc.core.BlockstorageClient;
+import com.oracle.bmc.core.ComputeClient;
+import com.oracle.bmc.core.VirtualNetworkClient;
+import com.oracle.bmc.core.model.Image;
+import com.oracle.bmc.core.model.Instance;
+import com.oracle.bmc.core.requests.*;
+import com.oracle.bmc.core.responses.*;
+import com.oracle.bmc.identity.IdentityClient;
+import com.oracle.bmc.identity.requests.ListAvailabilityDomainsRequest;
+import com.oracle.bmc.identity.requests.ListCompartmentsRequest;
+import com.oracle.bmc.identity.responses.ListAvailabilityDomainsResponse;
+import com.oracle.bmc.identity.responses.ListCompartmentsResponse;
+import com.oracle.bmc.model.BmcException;
+import com.oracle.bmc.workrequests.WorkRequestClient;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 不发网络请求的桩客户端: 覆盖创建实例路径上用到的接口,直接返回 {@link BenchFixtures} 中的数据.
+ * 客户端本身仍按正常方式构建,只有被覆盖的方法不走HTTP
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 20:30
+ */
+@SuppressWarnings("deprecation")
+public final class StubClients {
+
+    /**
+     * 桩客户端对创建实例请求的响应
+     */
+    public enum Launch {
+        /**
+         * 返回500 Out of host capacity,绝大多数尝试的结果
+         */
+        CAPACITY,
+        /**
+         * 创建请求被接受
+         */
+        ACCEPTED
+    }
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private StubClients() {
+    }
+
+    public static OciClients create(User user, AuthenticationDetailsProvider provider, Launch launch) {
+        return new OciClients(user.getRegion(), provider, identity(provider), compute(provider, launch),
+                new WorkRequestClient(provider), virtualNetwork(provider), new BlockstorageClient(provider));
+    }
+
+    public static IdentityClient identity(AuthenticationDetailsProvider provider) {
+        return new IdentityClient(provider) {
+            @Override
+            public ListCompartmentsResponse listCompartments(ListCompartmentsRequest request) {
+                return ListCompartmentsResponse.builder().items(Collections.emptyList()).build();
+            }
+
+            @Override
+            public ListAvailabilityDomainsResponse listAvailabilityDomains(ListAvailabilityDomainsRequest request) {
+                return ListAvailabilityDomainsResponse.builder().items(BenchFixtures.availabilityDomains()).build();
+            }
+        };
+    }
+
+    public static ComputeClient compute(AuthenticationDetailsProvider provider, Launch launch) {
+        return new ComputeClient(provider) {
+            @Override
+            public ListShapesResponse listShapes(ListShapesRequest request) {
+                return ListShapesResponse.builder().items(BenchFixtures.shapes()).build();
+            }
+
+            @Override
+            public ListImagesResponse listImages(ListImagesRequest request) {
+                Image image = BenchFixtures.image();
+                return ListImagesResponse.builder().items(Collections.singletonList(image)).build();
+            }
+
+            @Override
+            public LaunchInstanceResponse launchInstance(LaunchInstanceRequest request) {
+                if (launch == Launch.CAPACITY) {
+                    throw new BmcException(500, "InternalError", "Out of host capacity.", "bench");
+                }
+                long id = SEQUENCE.incrementAndGet();
+                return LaunchInstanceResponse.builder()
+                        .instance(Instance.builder()
+                                .id("ocid1.instance.oc1.ap-tokyo-1.bench" + id)
+                                .availabilityDomain(request.getLaunchInstanceDetails().getAvailabilityDomain())
+                                .lifecycleState(Instance.LifecycleState.Provisioning)
+                                .build())
+                        .opcWorkRequestId("ocid1.coreservicesworkrequest.oc1.ap-tokyo-1.bench" + id)
+                        .build();
+            }
+        };
+    }
+
+    /**
+     * 网络资源都已经存在,校验时只有查询没有创建
+     */
+    public static VirtualNetworkClient virtualNetwork(AuthenticationDetailsProvider provider) {
+        return new VirtualNetworkClient(provider) {
+            @Override
+            public ListVcnsResponse listVcns(ListVcnsRequest request) {
+                String displayName = request.getDisplayName() == null ? "vcn-default" : request.getDisplayName();
+                return ListVcnsResponse.builder().items(Collections.singletonList(BenchFixtures.vcn(displayName))).build();
+            }
+
+            @Override
+            public ListInternetGatewaysResponse listInternetGateways(ListInternetGatewaysRequest request) {
+                return ListInternetGatewaysResponse.builder()
+                        .items(Collections.singletonList(BenchFixtures.internetGateway()))
+                        .build();
+            }
+
+            @Override
+            public GetRouteTableResponse getRouteTable(GetRouteTableRequest request) {
+                return GetRouteTableResponse.builder().routeTable(BenchFixtures.routeTable()).build();
+            }
+
+            @Override
+            public ListNetworkSecurityGroupsResponse listNetworkSecurityGroups(ListNetworkSecurityGroupsRequest request) {
+                return ListNetworkSecurityGroupsResponse.builder()
+                        .items(Collections.singletonList(BenchFixtures.networkSecurityGroup()))
+                        .build();
+            }
+
+            @Override
+            public ListNetworkSecurityGroupSecurityRulesResponse listNetworkSecurityGroupSecurityRules(
+                    ListNetworkSecurityGroupSecurityRulesRequest request) {
+                return ListNetworkSecurityGroupSecurityRulesResponse.builder().items(Collections.emptyList()).build();
+            }
+
+            @Override
+            public AddNetworkSecurityGroupSecurityRulesResponse addNetworkSecurityGroupSecurityRules(
+                    AddNetworkSecurityGroupSecurityRulesRequest request) {
+                return AddNetworkSecurityGroupSecurityRulesResponse.builder().build();
+            }
+
+            @Override
+            public ListSubnetsResponse listSubnets(ListSubnetsRequest request) {
+                return ListSubnetsResponse.builder().items(BenchFixtures.subnets()).build();
+            }
+        };
+    }
+}
@@ -0,0 +1,223 @@
+package com.doubledimple.ociserver.cache;
+
+import com.doubledimple.ociserver.domain.User;
+import com.doubledimple.ociserver.enums.ArchitectureEnum;
+import com.doubledimple.ociserver.enums.OperationSystemEnum;
+import com.doubledimple.ociserver.metrics.OciMetrics;
+import com.doubledimple.ociserver.metrics.OciOperation;
+import com.doubledimple.ociserver.util.DaemonThreads;
+import com.oracle.bmc.core.ComputeClient;
+import com.oracle.bmc.core.model.Image;
+import com.oracle.bmc.core.model.Shape;
+import com.oracle.bmc.core.requests.ListImagesRequest;
+import com.oracle.bmc.core.requests.ListShapesRequest;
+import com.oracle.bmc.core.responses.ListImagesResponse;
+import com.oracle.bmc.core.responses.ListShapesResponse;
+import com.oracle.bmc.identity.model.AvailabilityDomain;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 规格与镜像目录: 定时在后台刷新,热路径上只做内存查询.
+ * <p>
+ * 规格按 (区域, 区间, 可用域) 缓存; 公共镜像按 (区域, 规格, 系统, 版本) 缓存,同一区域的租户共享
+ *
+ * @author doubleDimple
+ * @date 2024:10:13日 15:20
+ */
+@Component
+@Slf4j
+public class ComputeCatalog {
+
+    private final Map<String, Snapshot<List<Shape>>> shapes = new ConcurrentHashMap<>();
+    private final Map<String, Snapshot<Image>> images = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("catalog-refresher"));
+
+    @Autowired
+    private OciMetrics ociMetrics;
+
+    @Value("${oci.cache.catalog-refresh-minutes:360}")
+    private long refreshMinutes = 360;
+
+    @PostConstruct
+    public void start() {
+        refresher.scheduleWithFixedDelay(this::refreshAll, refreshMinutes, refreshMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * 获取可用域下符合用户架构的VM规格
+     */
+    public List<Shape> getShapes(User user, ComputeClient computeClient, String compartmentId, AvailabilityDomain availabilityDomain) {
+        String key = user.getRegion() + "|" + compartmentId + "|" + availabilityDomain.getName();
+        List<Shape> vmShapes = shapes.computeIfAbsent(key, k -> new Snapshot<>(
+                client -> loadShapes(client, compartmentId, availabilityDomain.getName()))).get(computeClient);
+        ArchitectureEnum type = ArchitectureEnum.getType(user.getArchitecture());
+        if (type == null) {
+            type = ArchitectureEnum.ARM;
+        }
+        List<Shape> shapesNewList = new ArrayList<>();
+        for (Shape vmShape : vmShapes) {
+            if (type.getShapeDetail().equals(vmShape.getShape())) {
+                shapesNewList.add(vmShape);
+            }
+        }
+        return shapesNewList;
+    }
+
+    /**
+     * 获取规格对应的最新系统镜像,没有匹配镜像时返回null
+     */
+    public Image getImage(User user, ComputeClient computeClient, String compartmentId, Shape shape) {
+        OperationSystemEnum systemType = OperationSystemEnum.getSystemType(user.getOperationSystem());
+        String key = user.getRegion() + "|" + shape.getShape() + "|" + systemType.getType() + "|" + systemType.getVersion();
+        return images.computeIfAbsent(key, k -> new Snapshot<>(
+                client -> loadImage(client, compartmentId, shape.getShape(), systemType))).get(computeClient);
+    }
+
+    public void invalidate(String region) {
+        shapes.keySet().removeIf(key -> key.startsWith(region + "|"));
+        images.keySet().removeIf(key -> key.startsWith(region + "|"));
+    }
+
+    private void refreshAll() {
+        refresh(shapes);
+        refresh(images);
+    }
+
+    private static <T> void refresh(Map<String, Snapshot<T>> snapshots) {
+        for (Map.Entry<String, Snapshot<T>> entry : snapshots.entrySet()) {
+            try {
+                entry.getValue().reload();
+            } catch (Exception e) {
+                log.warn("刷新目录:[{}] 失败,继续使用旧数据,原因为:[{}]", entry.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    private List<Shape> loadShapes(ComputeClient computeClient, String compartmentId, String availabilityDomain) {
+        ListShapesRequest listShapesRequest =
+                ListShapesRequest.builder()
+                        .availabilityDomain(availabilityDomain)
+                        .compartmentId(compartmentId)
+                        .build();
+        long start = ociMetrics.startOperation();
+        Throwable error = null;
+        ListShapesResponse listShapesResponse;
+        try {
+            listShapesResponse = computeClient.listShapes(listShapesRequest);
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            ociMetrics.endOperation(OciOperation.LIST_SHAPES, start, error);
+        }
+        List<Shape> shapes = listShapesResponse.getItems();
+        if (shapes.isEmpty()) {
+            throw new IllegalStateException("No available shape was found.");
+        }
+        List<Shape> vmShapes =
+                shapes.stream()
+                        .filter(shape -> shape.getShape().startsWith("VM"))
+                        .collect(Collectors.toList());
+        if (vmShapes.isEmpty()) {
+            throw new IllegalStateException("No available VM shape was found.");
+        }
+        if (log.isDebugEnabled()) {
+            for (Shape vmShape : vmShapes) {
+                log.info("Found Shape: " + vmShape.getShape());
+                log.info("Billing Type: " + vmShape.getBillingType());
+                log.info("<====================================>");
+            }
+        }
+        return Collections.unmodifiableList(vmShapes);
+    }
+
+    private Image loadImage(ComputeClient computeClient, String compartmentId, String shape, OperationSystemEnum systemType) {
+        ListImagesRequest listImagesRequest =
+                ListImagesRequest.builder()
+                        .shape(shape)
+                        .compartmentId(compartmentId)
+                        .operatingSystem(systemType.getType())
+                        .operatingSystemVersion(systemType.getVersion())
+                        .build();
+        long start = ociMetrics.startOperation();
+        Throwable error = null;
+        ListImagesResponse response;
+        try {
+            response = computeClient.listImages(listImagesRequest);
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            ociMetrics.endOperation(OciOperation.LIST_IMAGES, start, error);
+        }
+        // 同一系统的镜像按版本倒序返回,第一个即为最新镜像; 只取公共镜像(compartmentId为空),这样才能在租户之间共享
+        for (Image image : response.getItems()) {
+            if (image.getCompartmentId() == null) {
+                return image;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 不可变快照,刷新时整体替换value引用; 刷新使用最近一次访问时的客户端,避免使用已被注册中心关闭的客户端.
+     * <p>
+     * 快照先放入缓存再加载,同一个key的并发请求(例如同时尝试多个可用域)只有一个线程调用OCI,其余线程等待它的结果;
+     * 加载失败时不标记为已加载,下次访问重新加载
+     */
+    private static final class Snapshot<T> {
+
+        private final Loader<T> loader;
+        private volatile ComputeClient computeClient;
+        private volatile boolean loaded;
+        private volatile T value;
+
+        private Snapshot(Loader<T> loader) {
+            this.loader = loader;
+        }
+
+        private T get(ComputeClient client) {
+            computeClient = client;
+            if (!loaded) {
+                synchronized (this) {
+                    if (!loaded) {
+                        value = loader.load(client);
+                        loaded = true;
+                    }
+                }
+            }
+            return value;
+        }
+
+        private void reload() {
+            if (loaded) {
+                value = loader.load(computeClient);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Loader<T> {
+        T load(ComputeClient computeClient);
+    }
+}
@@ -0,0 +1,27 @@
+package com.doubledimple.ociserver.cache;
+
+import com.oracle.bmc.identity.model.AvailabilityDomain;
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 租户的拓扑信息: 根区间与可用域,基本不会变化
+ *
+ * @author doubleDimple
+ * @date 2024:10:13日 10:05
+ */
+@Getter
+public class TenancyTopology {
+
+    private final String rootCompartmentId;
+    private final List<AvailabilityDomain> availabilityDomains;
+    private final long loadedAt;
+
+    public TenancyTopology(String rootCompartmentId, List<AvailabilityDomain> availabilityDomains, long loadedAt) {
+        this.rootCompartmentId = rootCompartmentId;
+        this.availabilityDomains = Collections.unmodifiableList(availabilityDomains);
+        this.loadedAt = loadedAt;
+    }
+}
@@ -0,0 +1,158 @@
+package com.doubledimple.ociserver.cache;
+
+import com.doubledimple.ociserver.domain.User;
+import com.doubledimple.ociserver.util.DaemonThreads;
+import com.oracle.bmc.identity.IdentityClient;
+import com.oracle.bmc.identity.model.AvailabilityDomain;
+import com.oracle.bmc.identity.model.Compartment;
+import com.oracle.bmc.identity.requests.ListAvailabilityDomainsRequest;
+import com.oracle.bmc.identity.requests.ListCompartmentsRequest;
+import com.oracle.bmc.identity.responses.ListAvailabilityDomainsResponse;
+import com.oracle.bmc.identity.responses.ListCompartmentsResponse;
+import com.oracle.bmc.model.BmcException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 租户拓扑缓存: 根区间和可用域按租户缓存,过期前在后台提前刷新,
+ * 重试循环只需要把API调用花在创建实例上
+ *
+ * @author doubleDimple
+ * @date 2024:10:13日 10:12
+ */
+@Component
+@Slf4j
+public class TenancyTopologyCache {
+
+    private static final String NOT_AUTHORIZED_OR_NOT_FOUND = "NotAuthorizedOrNotFound";
+
+    private final Map<String, TenancyTopology> topologies = new ConcurrentHashMap<>();
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(DaemonThreads.named("topology-refresher"));
+
+    @Value("${oci.cache.topology-ttl-minutes:1440}")
+    private long ttlMinutes = 1440;
+
+    /**
+     * 缓存年龄超过 TTL*该比例 后,继续返回旧数据并在后台刷新
+     */
+    @Value("${oci.cache.topology-refresh-ahead-ratio:0.8}")
+    private double refreshAheadRatio = 0.8;
+
+    public TenancyTopology get(User user, IdentityClient identityClient) {
+        String key = user.getUserName();
+        TenancyTopology topology = topologies.get(key);
+        long ttl = TimeUnit.MINUTES.toMillis(ttlMinutes);
+        long age = topology == null ? Long.MAX_VALUE : System.currentTimeMillis() - topology.getLoadedAt();
+        if (age >= ttl) {
+            topology = load(user, identityClient);
+            topologies.put(key, topology);
+        } else if (age >= ttl * refreshAheadRatio && refreshing.add(key)) {
+            refresher.execute(() -> {
+                try {
+                    topologies.put(key, load(user, identityClient));
+                } catch (Exception e) {
+                    log.warn("租户:[{}] 后台刷新拓扑信息失败,继续使用旧数据,原因为:[{}]", key, e.getMessage());
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        }
+        return topology;
+    }
+
+    /**
+     * 只读取未过期的缓存,不触发加载; 供异步引擎使用,未命中时由调用方用异步客户端加载后 {@link #put}
+     */
+    public TenancyTopology peek(User user) {
+        TenancyTopology topology = topologies.get(user.getUserName());
+        if (topology == null || System.currentTimeMillis() - topology.getLoadedAt() >= TimeUnit.MINUTES.toMillis(ttlMinutes)) {
+            return null;
+        }
+        return topology;
+    }
+
+    public void put(User user, TenancyTopology topology) {
+        topologies.put(user.getUserName(), topology);
+        log.info("租户:[{}] 加载拓扑信息,根区间:[{}],可用域数量:[{}]", user.getUserName(),
+                topology.getRootCompartmentId(), topology.getAvailabilityDomains().size());
+    }
+
+    /**
+     * 出现 404/NotAuthorizedOrNotFound 时,缓存的区间或可用域可能已经失效,强制下次重新加载
+     *
+     * @return 是否清除了缓存
+     */
+    public boolean invalidateIfStale(User user, Throwable e) {
+        if (e instanceof BmcException) {
+            BmcException error = (BmcException) e;
+            if (error.getStatusCode() == 404 || NOT_AUTHORIZED_OR_NOT_FOUND.equals(error.getServiceCode())) {
+                invalidate(user.getUserName());
+                log.info("租户:[{}] 拓扑信息可能已失效,清除缓存,原因为:[{}]", user.getUserName(), error.getServiceCode());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void invalidate(String userName) {
+        topologies.remove(userName);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    private static TenancyTopology load(User user, IdentityClient identityClient) {
+        String compartmentId = findRootCompartment(identityClient, user.getTenancy());
+        List<AvailabilityDomain> availabilityDomains = getAvailabilityDomains(identityClient, compartmentId);
+        log.info("租户:[{}] 加载拓扑信息,根区间:[{}],可用域数量:[{}]", user.getUserName(), compartmentId, availabilityDomains.size());
+        return new TenancyTopology(compartmentId, availabilityDomains, System.currentTimeMillis());
+    }
+
+    private static List<AvailabilityDomain> getAvailabilityDomains(
+            IdentityClient identityClient, String compartmentId) {
+        ListAvailabilityDomainsResponse listAvailabilityDomainsResponse =
+                identityClient.listAvailabilityDomains(ListAvailabilityDomainsRequest.builder()
+                        .compartmentId(compartmentId)
+                        .build());
+        return listAvailabilityDomainsResponse.getItems();
+    }
+
+    public static String findRootCompartment(IdentityClient identityClient, String tenantId) {
+        ListCompartmentsResponse response = identityClient.listCompartments(listCompartmentsRequest(tenantId));
+        return rootCompartmentOf(response.getItems(), tenantId);
+    }
+
+    public static ListCompartmentsRequest listCompartmentsRequest(String tenantId) {
+        // 使用`compartmentIdInSubtree`参数来获取所有子区间
+        return ListCompartmentsRequest.builder()
+                .compartmentId(tenantId)
+                .compartmentIdInSubtree(true)
+                .accessLevel(ListCompartmentsRequest.AccessLevel.Accessible)
+                .build();
+    }
+
+    public static String rootCompartmentOf(List<Compartment> compartments, String tenantId) {
+        // 根区间是没有parentCompartmentId的区间
+        for (Compartment compartment : compartments) {
+            if (compartment.getCompartmentId().equals(tenantId) && compartment.getId().equals(compartment.getCompartmentId())) {
+                return compartment.getId(); // 返回根区间ID
+            }
+        }
+
+        // 如果没有找到根区间，返回租户ID作为默认值
+        return tenantId;
+    }
+}
@@ -0,0 +1,326 @@
+package com.doubledimple.ociserver.cleanup;
+
+import com.doubledimple.ociserver.cache.TenancyTopologyCache;
+import com.doubledimple.ociserver.client.OciClientRegistry;
+import com.doubledimple.ociserver.client.OciClients;
+import com.doubledimple.ociserver.cluster.ClusterCoordinator;
+import com.doubledimple.ociserver.config.MultiUserAuthenticationDetailsProvider;
+import com.doubledimple.ociserver.config.OracleUsersConfig;
+import com.doubledimple.ociserver.domain.OracleInstanceDetail;
+import com.doubledimple.ociserver.domain.User;
+import com.doubledimple.ociserver.engine.LaunchReconciler;
+import com.doubledimple.ociserver.metrics.OciMetrics;
+import com.doubledimple.ociserver.metrics.OciOperation;
+import com.doubledimple.ociserver.state.AttemptStateStore;
+import com.doubledimple.ociserver.util.DaemonThreads;
+import com.oracle.bmc.core.ComputeClient;
+import com.oracle.bmc.core.model.*;
+import com.oracle.bmc.core.requests.*;
+import com.oracle.bmc.model.BmcException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 遗留实例清理: 定期分批检查租户下由本工具创建、但已经被放弃的实例并删除. 默认关闭,通过 oci.reaper.enabled 开启.
+ * 只删除带本工具租户标签、从未运行(仍在创建中或者没有网卡)的实例,并且尝试次数早于租户已接受的实例,
+ * 或者早于租户当前的尝试、也不在等待重发或核对的尝试中; 运行中的实例不删除.
+ * 只处理实例: 子网、网关和安全组由解析器按租户复用,不会随尝试重复创建,这里不处理.
+ * <p>
+ * 只删除创建时间早于宽限期的实例,避免和正在进行的尝试冲突. 删除请求只发出不等待完成. 每轮最多检查 batch-size 个租户,
+ * 检查和删除都在固定大小的线程池中并发执行. 集群模式下只清理本节点负责的租户
+ *
+ * @author doubleDimple
+ * @date 2024:10:19日 20:10
+ */
+@Component
+@Slf4j
+public class OrphanReaper {
+
+    @Value("${oci.reaper.enabled:false}")
+    private boolean enabled = false;
+
+    @Value("${oci.reaper.interval-seconds:1800}")
+    private long intervalSeconds = 1800;
+
+    /**
+     * 每轮检查的租户数,租户按名称轮流检查
+     */
+    @Value("${oci.reaper.batch-size:20}")
+    private int batchSize = 20;
+
+    /**
+     * 同时执行的检查和删除请求数
+     */
+    @Value("${oci.reaper.parallelism:4}")
+    private int parallelism = 4;
+
+    /**
+     * 创建时间在宽限期内的资源不清理
+     */
+    @Value("${oci.reaper.grace-seconds:3600}")
+    private long graceSeconds = 3600;
+
+    @Autowired
+    private OracleUsersConfig oracleUsersConfig;
+
+    @Autowired
+    private MultiUserAuthenticationDetailsProvider multiUserAuthenticationDetailsProvider;
+
+    @Autowired
+    private OciClientRegistry ociClientRegistry;
+
+    @Autowired
+    private TenancyTopologyCache tenancyTopologyCache;
+
+    @Autowired
+    private AttemptStateStore attemptStateStore;
+
+    @Autowired
+    private ClusterCoordinator clusterCoordinator;
+
+    @Autowired
+    private LaunchReconciler launchReconciler;
+
+    @Autowired
+    private OciMetrics ociMetrics;
+
+    private ScheduledExecutorService timer;
+    private ExecutorService workers;
+
+    /**
+     * 下一轮从第几个租户开始,只在定时线程中访问
+     */
+    private int cursor;
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("orphan-reaper-timer"));
+        workers = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), DaemonThreads.named("orphan-reaper"));
+        timer.scheduleWithFixedDelay(this::sweep, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        log.info("遗留资源清理已启动,间隔:[{}]秒,每轮租户数:[{}],并发数:[{}]", intervalSeconds, batchSize, parallelism);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (timer != null) {
+            timer.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * 检查下一批租户并删除发现的遗留资源
+     */
+    void sweep() {
+        try {
+            List<User> batch = nextBatch();
+            if (batch.isEmpty()) {
+                return;
+            }
+            List<CompletableFuture<List<Orphan>>> scans = new ArrayList<>();
+            for (User user : batch) {
+                scans.add(CompletableFuture.supplyAsync(() -> scan(user), workers));
+            }
+            List<CompletableFuture<Boolean>> teardowns = new ArrayList<>();
+            for (CompletableFuture<List<Orphan>> scan : scans) {
+                for (Orphan orphan : scan.join()) {
+                    teardowns.add(CompletableFuture.supplyAsync(() -> teardown(orphan), workers));
+                }
+            }
+            int reaped = 0;
+            for (CompletableFuture<Boolean> teardown : teardowns) {
+                if (teardown.join()) {
+                    reaped++;
+                }
+            }
+            if (!teardowns.isEmpty()) {
+                log.info("本轮检查租户:[{}]个,发现遗留资源:[{}]个,已发起删除:[{}]个", batch.size(), teardowns.size(), reaped);
+            }
+        } catch (RuntimeException e) {
+            log.error("遗留资源清理失败,原因为:[{}]", e.getMessage(), e);
+        }
+    }
+
+    private List<User> nextBatch() {
+        List<User> users = new ArrayList<>();
+        for (User user : oracleUsersConfig.getUsers().values()) {
+            if (clusterCoordinator.owns(user.getUserName())) {
+                users.add(user);
+            }
+        }
+        users.sort(Comparator.comparing(User::getUserName));
+        if (users.size() <= batchSize) {
+            return users;
+        }
+        List<User> batch = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(users.get((cursor + i) % users.size()));
+        }
+        cursor = (cursor + batchSize) % users.size();
+        return batch;
+    }
+
+    private List<Orphan> scan(User user) {
+        List<Orphan> orphans = new ArrayList<>();
+        try {
+            OciClients ociClients = ociClientRegistry.get(user, multiUserAuthenticationDetailsProvider.getProvider(user));
+            String compartmentId = tenancyTopologyCache.get(user, ociClients.getIdentityClient()).getRootCompartmentId();
+            long cutoff = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(graceSeconds);
+            scanInstances(user, ociClients.getComputeClient(), compartmentId, cutoff, orphans);
+        } catch (Exception e) {
+            log.warn("租户:[{}] 检查遗留资源失败,原因为:[{}]", user.getUserName(), e.getMessage());
+        }
+        return orphans;
+    }
+
+    /**
+     * 只清理能确认已被放弃的实例,并且从未运行(仍在创建中或者没有网卡). 尝试次数早于以下任一界限的实例已被放弃:
+     * 租户已接受的那次尝试; 租户当前的尝试,但结果未知(等待重发或核对)的尝试及之后的尝试除外.
+     * 运行中的实例、已完成和正在跟踪的实例一律不删除
+     */
+    private void scanInstances(User user, ComputeClient computeClient, String compartmentId, long cutoff,
+                               List<Orphan> orphans) throws Exception {
+        Set<String> referenced = referencedInstances(user.getUserName());
+        // 当前这次尝试可能还在进行中,它创建的实例还没有记录
+        long retrying = Math.min(attemptStateStore.getAttempts(user.getUserName()),
+                launchReconciler.uncertainSince(user.getUserName()));
+        if (referenced.isEmpty() && retrying <= 1) {
+            return;
+        }
+        List<Instance> instances = ociMetrics.timed(OciOperation.LIST_INSTANCES, () -> {
+            List<Instance> items = new ArrayList<>();
+            for (Instance instance : computeClient.getPaginators().listInstancesRecordIterator(
+                    ListInstancesRequest.builder().compartmentId(compartmentId).build())) {
+                items.add(instance);
+            }
+            return items;
+        });
+        long accepted = -1;
+        for (Instance instance : instances) {
+            if (referenced.contains(instance.getId()) && LaunchReconciler.isTenantInstance(user, instance)) {
+                accepted = Math.max(accepted, LaunchReconciler.attemptOf(instance));
+            }
+        }
+        long abandonedBefore = Math.max(accepted, retrying);
+        for (Instance instance : instances) {
+            long attempt = LaunchReconciler.attemptOf(instance);
+            Instance.LifecycleState state = instance.getLifecycleState();
+            if (!LaunchReconciler.isTenantInstance(user, instance)
+                    || referenced.contains(instance.getId())
+                    || attempt < 0 || attempt >= abandonedBefore
+                    || state == Instance.LifecycleState.Running
+                    || state == Instance.LifecycleState.Terminating
+                    || state == Instance.LifecycleState.Terminated
+                    || !olderThan(instance.getTimeCreated(), cutoff)) {
+                continue;
+            }
+            if (state != Instance.LifecycleState.Provisioning && hasVnic(computeClient, compartmentId, instance.getId())) {
+                continue;
+            }
+            String instanceId = instance.getId();
+            orphans.add(new Orphan(user.getUserName(), "实例:" + instanceId + "(第" + attempt + "次尝试)",
+                    () -> terminateIfNotRunning(computeClient, instanceId)));
+        }
+    }
+
+    /**
+     * 租户已完成的实例、正在跟踪的实例,以及集群租约中记录的已完成实例
+     */
+    private Set<String> referencedInstances(String userName) {
+        Set<String> referenced = new HashSet<>();
+        OracleInstanceDetail completed = attemptStateStore.getCompleted(userName);
+        if (completed != null) {
+            referenced.add(completed.getInstanceId());
+        }
+        for (OracleInstanceDetail inFlight : attemptStateStore.getInFlight(userName)) {
+            referenced.add(inFlight.getInstanceId());
+        }
+        String leaseCompleted = clusterCoordinator.completedInstance(userName);
+        if (leaseCompleted != null) {
+            referenced.add(leaseCompleted);
+        }
+        return referenced;
+    }
+
+    private boolean hasVnic(ComputeClient computeClient, String compartmentId, String instanceId) throws Exception {
+        return ociMetrics.timed(OciOperation.LIST_VNIC_ATTACHMENTS, () -> {
+            for (VnicAttachment attachment : computeClient.listVnicAttachments(ListVnicAttachmentsRequest.builder()
+                    .compartmentId(compartmentId).instanceId(instanceId).build()).getItems()) {
+                if (attachment.getLifecycleState() != VnicAttachment.LifecycleState.Detached) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    /**
+     * 检查到删除之间实例可能已经启动,删除前再确认一次状态
+     */
+    private void terminateIfNotRunning(ComputeClient computeClient, String instanceId) throws Exception {
+        Instance current = ociMetrics.timed(OciOperation.GET_INSTANCE, () -> computeClient.getInstance(
+                GetInstanceRequest.builder().instanceId(instanceId).build()).getInstance());
+        if (current.getLifecycleState() == Instance.LifecycleState.Running) {
+            throw new IllegalStateException("实例已运行,不再删除");
+        }
+        ociMetrics.timed(OciOperation.TERMINATE_INSTANCE, () -> computeClient.terminateInstance(
+                TerminateInstanceRequest.builder().instanceId(instanceId).preserveBootVolume(false).build()));
+    }
+
+    private boolean teardown(Orphan orphan) {
+        try {
+            orphan.teardown.run();
+            log.info("租户:[{}] 删除遗留资源:[{}]", orphan.userName, orphan.description);
+            return true;
+        } catch (BmcException e) {
+            log.info("租户:[{}] 遗留资源:[{}] 暂时无法删除(可能仍在使用),下一轮再试,原因为:[{}]",
+                    orphan.userName, orphan.description, e.getServiceCode());
+        } catch (Exception e) {
+            log.warn("租户:[{}] 删除遗留资源:[{}]失败,原因为:[{}]", orphan.userName, orphan.description, e.getMessage());
+        }
+        return false;
+    }
+
+    private static boolean olderThan(Date timeCreated, long cutoff) {
+        return timeCreated != null && timeCreated.getTime() < cutoff;
+    }
+
+    private interface Teardown {
+        void run() throws Exception;
+    }
+
+    private static final class Orphan {
+        private final String userName;
+        private final String description;
+        private final Teardown teardown;
+
+        private Orphan(String userName, String description, Teardown teardown) {
+            this.userName = userName;
+            this.description = description;
+            this.teardown = teardown;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.doubledimple.ociserver.client;
+
+import com.oracle.bmc.http.client.Method;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * OCI接口分组,每组在每个区域有独立的令牌桶
+ *
+ * @author doubleDimple
+ * @date 2024:10:16日 14:10
+ */
+public enum ApiFamily {
+
+    IDENTITY(5, 5, true),
+    COMPUTE_READ(10, 10, true),
+    COMPUTE_WRITE(5, 5, false),
+    /**
+     * 创建实例,在区域令牌桶上优先于读接口
+     */
+    LAUNCH(2, 4, false),
+    NETWORK_READ(10, 10, true),
+    NETWORK_WRITE(2, 4, false),
+    ;
+
+    private static final Set<String> NETWORK_RESOURCES = new HashSet<>(Arrays.asList(
+            "vcns", "subnets", "internetGateways", "routeTables", "networkSecurityGroups",
+            "securityLists", "vnics", "privateIps", "publicIps"));
+
+    private final double permitsPerSecond;
+    private final int burst;
+    private final boolean read;
+
+    ApiFamily(double permitsPerSecond, int burst, boolean read) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.read = read;
+    }
+
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public boolean isRead() {
+        return read;
+    }
+
+    /**
+     * 根据请求的域名和路径判断接口分组,例如 POST iaas.{region}/20160918/instances 为创建实例
+     */
+    public static ApiFamily of(Method method, URI uri) {
+        boolean read = method == Method.GET || method == Method.HEAD;
+        String host = String.valueOf(uri.getHost()).toLowerCase(Locale.ROOT);
+        if (host.startsWith("identity")) {
+            return IDENTITY;
+        }
+        String[] segments = String.valueOf(uri.getPath()).split("/");
+        // segments: "", 版本号, 资源, [资源ID, ...]
+        String resource = segments.length > 2 ? segments[2] : "";
+        if (NETWORK_RESOURCES.contains(resource)) {
+            return read ? NETWORK_READ : NETWORK_WRITE;
+        }
+        if (method == Method.POST && "instances".equals(resource) && segments.length <= 3) {
+            return LAUNCH;
+        }
+        return read ? COMPUTE_READ : COMPUTE_WRITE;
+    }
+}
@@ -0,0 +1,57 @@
+package com.doubledimple.ociserver.client;
+
+import com.oracle.bmc.responses.AsyncHandler;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+
+/**
+ * 把OCI异步客户端的回调风格转换为CompletableFuture
+ *
+ * @author doubleDimple
+ * @date 2024:10:15日 21:18
+ */
+public final class OciAsync {
+
+    private OciAsync() {
+    }
+
+    /**
+     * 异步客户端方法的统一形式,例如 {@code computeAsyncClient::launchInstance}
+     */
+    @FunctionalInterface
+    public interface Call<REQUEST, RESPONSE> {
+        Future<RESPONSE> invoke(REQUEST request, AsyncHandler<REQUEST, RESPONSE> handler);
+    }
+
+    public static <REQUEST, RESPONSE> CompletableFuture<RESPONSE> call(Call<REQUEST, RESPONSE> call, REQUEST request) {
+        CompletableFuture<RESPONSE> future = new CompletableFuture<>();
+        try {
+            call.invoke(request, new AsyncHandler<REQUEST, RESPONSE>() {
+                @Override
+                public void onSuccess(REQUEST req, RESPONSE response) {
+                    future.complete(response);
+                }
+
+                @Override
+                public void onError(REQUEST req, Throwable error) {
+                    future.completeExceptionally(error);
+                }
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 去掉CompletableFuture包装的CompletionException,得到OCI返回的原始异常
+     */
+    public static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+}
@@ -0,0 +1,69 @@
+package com.doubledimple.ociserver.client;
+
+import com.doubledimple.ociserver.domain.User;
+import com.oracle.bmc.ClientConfiguration;
+import com.oracle.bmc.auth.AuthenticationDetailsProvider;
+import com.oracle.bmc.core.ComputeAsyncClient;
+import com.oracle.bmc.core.VirtualNetworkAsyncClient;
+import com.oracle.bmc.identity.IdentityAsyncClient;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 单个租户+区域下长期复用的一组OCI异步客户端,供异步创建引擎使用
+ *
+ * @author doubleDimple
+ * @date 2024:10:15日 21:10
+ */
+@Getter
+@Slf4j
+public class OciAsyncClients implements AutoCloseable {
+
+    private final String region;
+    private final AuthenticationDetailsProvider provider;
+    private final IdentityAsyncClient identityClient;
+    private final ComputeAsyncClient computeClient;
+    private final VirtualNetworkAsyncClient virtualNetworkClient;
+
+    OciAsyncClients(User user, AuthenticationDetailsProvider provider) {
+        this(user, provider, null, null);
+    }
+
+    /**
+     * @param configuration 超时等客户端配置,为null时使用SDK默认值
+     * @param endpoint      替代区域默认地址的服务地址,为空时按区域访问OCI
+     */
+    OciAsyncClients(User user, AuthenticationDetailsProvider provider, ClientConfiguration configuration, String endpoint) {
+        this.region = user.getRegion();
+        this.provider = provider;
+        this.identityClient = OciClients.configure(IdentityAsyncClient.builder(), configuration, null).build(provider);
+        this.identityClient.setRegion(region);
+        this.computeClient = OciClients.configure(ComputeAsyncClient.builder(), configuration, null).build(provider);
+        this.computeClient.setRegion(region);
+        this.virtualNetworkClient = OciClients.configure(VirtualNetworkAsyncClient.builder(), configuration, null).build(provider);
+        this.virtualNetworkClient.setRegion(region);
+        if (endpoint != null && !endpoint.isEmpty()) {
+            OciClients.overrideEndpoint(endpoint, identityClient::setEndpoint, computeClient::setEndpoint,
+                    virtualNetworkClient::setEndpoint);
+        }
+    }
+
+    boolean matches(User user, AuthenticationDetailsProvider provider) {
+        return region.equals(user.getRegion()) && this.provider == provider;
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(identityClient);
+        closeQuietly(computeClient);
+        closeQuietly(virtualNetworkClient);
+    }
+
+    private static void closeQuietly(AutoCloseable client) {
+        try {
+            client.close();
+        } catch (Exception e) {
+            log.warn("关闭OCI异步客户端失败,原因为:[{}]", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.doubledimple.ociserver.client;
+
+import com.doubledimple.ociserver.domain.User;
+import com.oracle.bmc.ClientConfiguration;
+import com.oracle.bmc.auth.AuthenticationDetailsProvider;
+import com.oracle.bmc.model.BmcException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * OCI客户端注册中心,按 租户+区域 缓存客户端,避免每次重试都重新构建和关闭五个客户端
+ *
+ * @author doubleDimple
+ * @date 2024:10:12日 20:55
+ */
+@Component
+@Slf4j
+public class OciClientRegistry {
+
+    private final Map<String, OciClients> clients = new ConcurrentHashMap<>();
+    private final Map<String, OciAsyncClients> asyncClients = new ConcurrentHashMap<>();
+
+    @Autowired(required = false)
+    private RegionRateLimiter regionRateLimiter;
+
+    /**
+     * 连续出现多少次传输层失败后剔除客户端
+     */
+    @Value("${oci.client.max-consecutive-failures:3}")
+    private int maxConsecutiveFailures = 3;
+
+    /**
+     * 统一替换所有OCI服务地址,只用于对接本地模拟器做离线压测,正常使用时留空
+     */
+    @Value("${oci.client.endpoint:}")
+    private String endpoint = "";
+
+    /**
+     * 创建请求带有幂等token,超时后重试不会重复创建,超时可以比SDK默认值(连接10秒,读取60秒)短得多
+     */
+    @Value("${oci.client.connect-timeout-millis:5000}")
+    private int connectTimeoutMillis = 5000;
+
+    @Value("${oci.client.read-timeout-millis:20000}")
+    private int readTimeoutMillis = 20000;
+
+    /**
+     * 获取租户的客户端,不存在或者鉴权/区域配置变化时才会(重新)创建
+     */
+    public OciClients get(User user, AuthenticationDetailsProvider provider) {
+        return clients.compute(key(user), (key, existing) -> {
+            if (existing != null) {
+                if (existing.matches(user, provider)) {
+                    return existing;
+                }
+                log.info("租户:[{}] 鉴权或区域配置发生变化,重建OCI客户端", user.getUserName());
+                existing.close();
+            }
+            log.info("租户:[{}] 区域:[{}] 创建OCI客户端", user.getUserName(), user.getRegion());
+            return new OciClients(user, provider, clientConfiguration(),
+                    regionRateLimiter == null ? null : regionRateLimiter.configurator(user.getRegion()), endpoint);
+        });
+    }
+
+    /**
+     * 获取租户的异步客户端,规则与 {@link #get(User, AuthenticationDetailsProvider)} 一致
+     */
+    public OciAsyncClients getAsync(User user, AuthenticationDetailsProvider provider) {
+        return asyncClients.compute(key(user), (key, existing) -> {
+            if (existing != null) {
+                if (existing.matches(user, provider)) {
+                    return existing;
+                }
+                log.info("租户:[{}] 鉴权或区域配置发生变化,重建OCI异步客户端", user.getUserName());
+                existing.close();
+            }
+            log.info("租户:[{}] 区域:[{}] 创建OCI异步客户端", user.getUserName(), user.getRegion());
+            return new OciAsyncClients(user, provider, clientConfiguration(), endpoint);
+        });
+    }
+
+    private ClientConfiguration clientConfiguration() {
+        return ClientConfiguration.builder()
+                .connectionTimeoutMillis(connectTimeoutMillis)
+                .readTimeoutMillis(readTimeoutMillis)
+                .build();
+    }
+
+    /**
+     * 直接放入一组客户端,鉴权信息一致时 {@link #get(User, AuthenticationDetailsProvider)} 会复用它; 供测试和基准测试注入桩客户端
+     */
+    public void register(User user, OciClients ociClients) {
+        OciClients previous = clients.put(key(user), ociClients);
+        if (previous != null && previous != ociClients) {
+            previous.close();
+        }
+    }
+
+    public void reportSuccess(User user) {
+        OciClients existing = clients.get(key(user));
+        if (existing != null) {
+            existing.getConsecutiveFailures().set(0);
+        }
+    }
+
+    /**
+     * 根据失败类型决定是否剔除客户端: 鉴权失败(401)立即剔除,客户端侧/超时失败连续达到阈值后剔除,
+     * 业务错误(容量不足、配额等)不影响客户端健康
+     *
+     * @return 该失败是否计入客户端健康状况
+     */
+    public boolean reportFailure(User user, Throwable e) {
+        if (!(e instanceof BmcException)) {
+            return false;
+        }
+        String key = key(user);
+        OciClients existing = clients.get(key);
+        if (existing == null) {
+            return reportAsyncFailure(user, (BmcException) e);
+        }
+        BmcException error = (BmcException) e;
+        boolean evict;
+        if (error.getStatusCode() == 401) {
+            evict = true;
+        } else if (error.isClientSide() || error.isTimeout()) {
+            evict = existing.getConsecutiveFailures().incrementAndGet() >= maxConsecutiveFailures;
+        } else {
+            return false;
+        }
+        if (evict && clients.remove(key, existing)) {
+            log.warn("租户:[{}] OCI客户端不健康,剔除后下次重建,原因为:[{}]", user.getUserName(), e.getMessage());
+            existing.close();
+            closeAsync(key);
+        }
+        return true;
+    }
+
+    /**
+     * 异步引擎只持有异步客户端,没有同步客户端可以计数,鉴权失败时直接剔除
+     */
+    private boolean reportAsyncFailure(User user, BmcException error) {
+        if (error.getStatusCode() != 401) {
+            return error.isClientSide() || error.isTimeout();
+        }
+        if (closeAsync(key(user))) {
+            log.warn("租户:[{}] OCI异步客户端鉴权失败,剔除后下次重建,原因为:[{}]", user.getUserName(), error.getMessage());
+        }
+        return true;
+    }
+
+    private boolean closeAsync(String key) {
+        OciAsyncClients existing = asyncClients.remove(key);
+        if (existing != null) {
+            existing.close();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 关闭租户在所有区域下的客户端
+     */
+    public void close(String userName) {
+        Iterator<Map.Entry<String, OciClients>> iterator = clients.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, OciClients> entry = iterator.next();
+            if (entry.getKey().startsWith(userName + "@")) {
+                iterator.remove();
+                entry.getValue().close();
+                log.info("关闭租户:[{}] 的OCI客户端", entry.getKey());
+            }
+        }
+        for (String key : asyncClients.keySet()) {
+            if (key.startsWith(userName + "@")) {
+                closeAsync(key);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void closeAll() {
+        clients.values().forEach(OciClients::close);
+        clients.clear();
+        asyncClients.values().forEach(OciAsyncClients::close);
+        asyncClients.clear();
+    }
+
+    private static String key(User user) {
+        return user.getUserName() + "@" + user.getRegion();
+    }
+}
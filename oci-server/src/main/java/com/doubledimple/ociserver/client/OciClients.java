@@ -0,0 +1,135 @@
+package com.doubledimple.ociserver.client;
+
+import com.doubledimple.ociserver.domain.User;
+import com.oracle.bmc.ClientConfiguration;
+import com.oracle.bmc.auth.AuthenticationDetailsProvider;
+import com.oracle.bmc.common.ClientBuilderBase;
+import com.oracle.bmc.core.BlockstorageClient;
+import com.oracle.bmc.core.ComputeClient;
+import com.oracle.bmc.core.ComputeWaiters;
+import com.oracle.bmc.core.VirtualNetworkClient;
+import com.oracle.bmc.http.ClientConfigurator;
+import com.oracle.bmc.identity.IdentityClient;
+import com.oracle.bmc.workrequests.WorkRequestClient;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 单个租户+区域下长期复用的一组OCI客户端
+ *
+ * @author doubleDimple
+ * @date 2024:10:12日 20:41
+ */
+@Getter
+@Slf4j
+public class OciClients implements AutoCloseable {
+
+    private final String region;
+    private final AuthenticationDetailsProvider provider;
+    private final IdentityClient identityClient;
+    private final ComputeClient computeClient;
+    private final WorkRequestClient workRequestClient;
+    private final ComputeWaiters computeWaiters;
+    private final VirtualNetworkClient virtualNetworkClient;
+    private final BlockstorageClient blockstorageClient;
+    private final long createdAt = System.currentTimeMillis();
+
+    /**
+     * 连续的传输层/鉴权失败次数,达到阈值后由注册中心剔除并重建
+     */
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    /**
+     * 按SDK默认配置新建一组客户端,不经过注册中心,例如基准测试中对比每次新建的开销
+     */
+    public OciClients(User user, AuthenticationDetailsProvider provider) {
+        this(user, provider, null, null, null);
+    }
+
+    /**
+     * @param configuration 超时等客户端配置,为null时使用SDK默认值
+     * @param configurator  附加到每个客户端上的配置,例如区域限流拦截器,可以为null
+     * @param endpoint      替代区域默认地址的服务地址,例如本地模拟器 http://127.0.0.1:8080,为空时按区域访问OCI
+     */
+    OciClients(User user, AuthenticationDetailsProvider provider, ClientConfiguration configuration,
+               ClientConfigurator configurator, String endpoint) {
+        this.region = user.getRegion();
+        this.provider = provider;
+        this.identityClient = configure(IdentityClient.builder(), configuration, configurator).build(provider);
+        this.identityClient.setRegion(region);
+        this.computeClient = configure(ComputeClient.builder(), configuration, configurator).build(provider);
+        this.computeClient.setRegion(region);
+        this.workRequestClient = configure(WorkRequestClient.builder(), configuration, configurator).build(provider);
+        this.workRequestClient.setRegion(region);
+        this.computeWaiters = computeClient.newWaiters(workRequestClient);
+        this.virtualNetworkClient = configure(VirtualNetworkClient.builder(), configuration, configurator).build(provider);
+        this.virtualNetworkClient.setRegion(region);
+        this.blockstorageClient = configure(BlockstorageClient.builder(), configuration, configurator).build(provider);
+        this.blockstorageClient.setRegion(region);
+        if (endpoint != null && !endpoint.isEmpty()) {
+            overrideEndpoint(endpoint, identityClient::setEndpoint, computeClient::setEndpoint, workRequestClient::setEndpoint,
+                    virtualNetworkClient::setEndpoint, blockstorageClient::setEndpoint);
+        }
+    }
+
+    /**
+     * 使用现成的客户端,供测试和基准测试注入桩客户端; 通过 {@link OciClientRegistry#register} 放入注册中心
+     */
+    public OciClients(String region, AuthenticationDetailsProvider provider, IdentityClient identityClient,
+               ComputeClient computeClient, WorkRequestClient workRequestClient,
+               VirtualNetworkClient virtualNetworkClient, BlockstorageClient blockstorageClient) {
+        this.region = region;
+        this.provider = provider;
+        this.identityClient = identityClient;
+        this.computeClient = computeClient;
+        this.workRequestClient = workRequestClient;
+        this.computeWaiters = computeClient.newWaiters(workRequestClient);
+        this.virtualNetworkClient = virtualNetworkClient;
+        this.blockstorageClient = blockstorageClient;
+    }
+
+    static <B extends ClientBuilderBase<B, ?>> B configure(B builder, ClientConfiguration configuration,
+                                                                    ClientConfigurator configurator) {
+        if (configuration != null) {
+            builder.configuration(configuration);
+        }
+        return configurator == null ? builder : builder.additionalClientConfigurator(configurator);
+    }
+
+    /**
+     * 所有服务共用同一个地址,请求路径中已经带有各自的API版本
+     */
+    @SafeVarargs
+    static void overrideEndpoint(String endpoint, Consumer<String>... setters) {
+        for (Consumer<String> setter : setters) {
+            setter.accept(endpoint);
+        }
+    }
+
+    /**
+     * 鉴权信息由缓存统一管理,私钥或鉴权配置变化时会得到新的实例,此时需要重建客户端
+     */
+    boolean matches(User user, AuthenticationDetailsProvider provider) {
+        return region.equals(user.getRegion()) && this.provider == provider;
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(identityClient);
+        closeQuietly(computeClient);
+        closeQuietly(workRequestClient);
+        closeQuietly(virtualNetworkClient);
+        closeQuietly(blockstorageClient);
+    }
+
+    private static void closeQuietly(AutoCloseable client) {
+        try {
+            client.close();
+        } catch (Exception e) {
+            log.warn("关闭OCI客户端失败,原因为:[{}]", e.getMessage());
+        }
+    }
+}
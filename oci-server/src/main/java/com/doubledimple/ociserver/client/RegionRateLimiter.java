@@ -0,0 +1,327 @@
+package com.doubledimple.ociserver.client;
+
+import com.doubledimple.ociserver.config.RateLimitProperties;
+import com.doubledimple.ociserver.util.DaemonThreads;
+import com.oracle.bmc.http.ClientConfigurator;
+import com.oracle.bmc.model.BmcException;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 区域级限流: 同一区域的所有租户共享令牌桶,每个 (区域, 接口分组) 一个桶,另有一个区域总桶.
+ * 拿不到令牌时排队等待,超过最长等待时间才按429失败; 有创建实例的请求在排队时,读接口让出区域总桶的令牌
+ *
+ * @author doubleDimple
+ * @date 2024:10:16日 14:40
+ */
+@Component
+@Slf4j
+public class RegionRateLimiter {
+
+    /**
+     * 在签名拦截器之前执行,排队时间不会消耗签名的有效期
+     */
+    private static final int INTERCEPTOR_PRIORITY = 0;
+
+    /**
+     * 本地排队超时的429使用的serviceCode,与OCI返回的429区分开
+     */
+    private static final String LOCAL_REJECTION = "LocalRateLimitExceeded";
+
+    private final RateLimitProperties rateLimitProperties;
+    private final Map<String, Region> regions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("rate-limiter"));
+
+    @Autowired
+    public RegionRateLimiter(RateLimitProperties rateLimitProperties) {
+        this.rateLimitProperties = rateLimitProperties;
+    }
+
+    @PostConstruct
+    public void start() {
+        long reportMinutes = rateLimitProperties.getReportMinutes();
+        if (rateLimitProperties.isEnabled() && reportMinutes > 0) {
+            timer.scheduleWithFixedDelay(this::report, reportMinutes, reportMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * 给同步客户端注册请求拦截器,客户端发出的每个HTTP请求(包括waiter轮询和分页)都先取令牌
+     */
+    public ClientConfigurator configurator(String region) {
+        return builder -> builder.registerRequestInterceptor(INTERCEPTOR_PRIORITY,
+                request -> acquire(region, ApiFamily.of(request.method(), request.uri())));
+    }
+
+    /**
+     * 阻塞等待令牌,超过最长等待时间抛出429
+     */
+    public void acquire(String region, ApiFamily family) {
+        if (!rateLimitProperties.isEnabled()) {
+            return;
+        }
+        Waiter waiter = new Waiter(region(region), family);
+        try {
+            while (true) {
+                long wait = waiter.region.tryAcquire(family);
+                if (wait == 0) {
+                    waiter.acquired();
+                    return;
+                }
+                long remaining = waiter.remainingNanos();
+                if (remaining <= 0) {
+                    throw waiter.rejected(region);
+                }
+                LockSupport.parkNanos(Math.min(wait, remaining));
+                if (Thread.currentThread().isInterrupted()) {
+                    throw waiter.rejected(region);
+                }
+            }
+        } finally {
+            waiter.done();
+        }
+    }
+
+    /**
+     * 异步等待令牌,等待期间不占用线程,供异步引擎在发起请求前调用
+     */
+    public CompletableFuture<Void> acquireAsync(String region, ApiFamily family) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (!rateLimitProperties.isEnabled()) {
+            future.complete(null);
+            return future;
+        }
+        tryAcquireAsync(new Waiter(region(region), family), region, future);
+        return future;
+    }
+
+    /**
+     * 收到OCI返回的429时清空区域总桶,整个区域等待令牌重新积累; 本地排队超时不处理
+     */
+    public void onThrottled(String region, Throwable cause) {
+        if (cause instanceof BmcException && LOCAL_REJECTION.equals(((BmcException) cause).getServiceCode())) {
+            return;
+        }
+        if (rateLimitProperties.isEnabled()) {
+            region(region).drain();
+            log.warn("区域:[{}] 收到429,清空区域令牌桶", region);
+        }
+    }
+
+    /**
+     * @return 区域|接口分组 -> 限流统计
+     */
+    public Map<String, Stats> snapshot() {
+        Map<String, Stats> snapshot = new TreeMap<>();
+        for (Map.Entry<String, Region> entry : regions.entrySet()) {
+            for (Map.Entry<ApiFamily, Stats> stats : entry.getValue().stats.entrySet()) {
+                snapshot.put(entry.getKey() + "|" + stats.getKey(), stats.getValue());
+            }
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    private void tryAcquireAsync(Waiter waiter, String region, CompletableFuture<Void> future) {
+        try {
+            long wait = waiter.region.tryAcquire(waiter.family);
+            if (wait == 0) {
+                waiter.acquired();
+                waiter.done();
+                future.complete(null);
+                return;
+            }
+            long remaining = waiter.remainingNanos();
+            if (remaining <= 0) {
+                waiter.done();
+                future.completeExceptionally(waiter.rejected(region));
+                return;
+            }
+            timer.schedule(() -> tryAcquireAsync(waiter, region, future), Math.min(wait, remaining), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            waiter.done();
+            future.completeExceptionally(e);
+        }
+    }
+
+    private void report() {
+        for (Map.Entry<String, Stats> entry : snapshot().entrySet()) {
+            Stats stats = entry.getValue();
+            if (stats.getDelayed().sum() > 0 || stats.getRejected().sum() > 0) {
+                log.info("限流:[{}] 通过:[{}] 排队:[{}] 超时:[{}] 平均等待:[{}]ms 最长等待:[{}]ms",
+                        entry.getKey(), stats.getAcquired().sum(), stats.getDelayed().sum(), stats.getRejected().sum(),
+                        stats.averageWaitMillis(), TimeUnit.NANOSECONDS.toMillis(stats.getMaxWaitNanos().get()));
+            }
+        }
+    }
+
+    private Region region(String region) {
+        return regions.computeIfAbsent(region, key -> new Region());
+    }
+
+    private Bucket newBucket(ApiFamily family) {
+        RateLimitProperties.Bucket configured = rateLimitProperties.getFamilies().get(family);
+        double permitsPerSecond = configured != null && configured.getPermitsPerSecond() != null
+                ? configured.getPermitsPerSecond() : family.getPermitsPerSecond();
+        int burst = configured != null && configured.getBurst() != null ? configured.getBurst() : family.getBurst();
+        return new Bucket(permitsPerSecond, burst);
+    }
+
+    /**
+     * 一次排队: 统计等待时间并维护排队中的请求数
+     */
+    private final class Waiter {
+        private final Region region;
+        private final ApiFamily family;
+        private final Stats stats;
+        private final long start = System.nanoTime();
+        private final long deadline = start + TimeUnit.MILLISECONDS.toNanos(rateLimitProperties.getMaxWaitMillis());
+
+        private Waiter(Region region, ApiFamily family) {
+            this.region = region;
+            this.family = family;
+            this.stats = region.stats.get(family);
+            stats.waiting.incrementAndGet();
+            if (family == ApiFamily.LAUNCH) {
+                region.launchesWaiting.incrementAndGet();
+            }
+        }
+
+        private long remainingNanos() {
+            return deadline - System.nanoTime();
+        }
+
+        private void acquired() {
+            long waited = System.nanoTime() - start;
+            stats.acquired.increment();
+            if (waited > TimeUnit.MILLISECONDS.toNanos(1)) {
+                stats.delayed.increment();
+                stats.waitNanos.add(waited);
+                stats.maxWaitNanos.accumulate(waited);
+            }
+        }
+
+        private BmcException rejected(String regionName) {
+            stats.rejected.increment();
+            return new BmcException(429, LOCAL_REJECTION,
+                    "区域:[" + regionName + "] 接口分组:[" + family + "] 排队等待令牌超时", null);
+        }
+
+        private void done() {
+            stats.waiting.decrementAndGet();
+            if (family == ApiFamily.LAUNCH) {
+                region.launchesWaiting.decrementAndGet();
+            }
+        }
+    }
+
+    private final class Region {
+        private final Bucket total = new Bucket(rateLimitProperties.getRegionPermitsPerSecond(), rateLimitProperties.getRegionBurst());
+        private final Map<ApiFamily, Bucket> buckets = new EnumMap<>(ApiFamily.class);
+        private final Map<ApiFamily, Stats> stats = new EnumMap<>(ApiFamily.class);
+        private final AtomicInteger launchesWaiting = new AtomicInteger();
+
+        private Region() {
+            for (ApiFamily family : ApiFamily.values()) {
+                buckets.put(family, newBucket(family));
+                stats.put(family, new Stats());
+            }
+        }
+
+        /**
+         * @return 0 表示已取得令牌,否则为建议的等待纳秒数
+         */
+        private synchronized long tryAcquire(ApiFamily family) {
+            long now = System.nanoTime();
+            Bucket bucket = buckets.get(family);
+            bucket.refill(now);
+            total.refill(now);
+            int reserved = family.isRead() ? launchesReady(now) : 0;
+            if (bucket.tokens >= 1 && total.tokens >= 1 + reserved) {
+                bucket.tokens -= 1;
+                total.tokens -= 1;
+                return 0;
+            }
+            return Math.max(bucket.nanosUntil(1), total.nanosUntil(1 + reserved));
+        }
+
+        /**
+         * 只为已经能从创建实例桶取到令牌的排队请求预留区域总桶,还在等待自身桶的请求不预留;
+         * 预留数最多为总桶容量减1,大量创建请求排队时读接口仍然可以通过
+         */
+        private int launchesReady(long now) {
+            Bucket launch = buckets.get(ApiFamily.LAUNCH);
+            launch.refill(now);
+            int ready = Math.min(launchesWaiting.get(), (int) launch.tokens);
+            return Math.min(ready, (int) total.capacity - 1);
+        }
+
+        private synchronized void drain() {
+            total.refill(System.nanoTime());
+            total.tokens = 0;
+        }
+    }
+
+    private static final class Bucket {
+        private final double capacity;
+        private final double nanosPerToken;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        private Bucket(double permitsPerSecond, int burst) {
+            this.capacity = Math.max(1, burst);
+            this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / Math.max(permitsPerSecond, 0.001);
+            this.tokens = capacity;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) / nanosPerToken);
+            lastRefill = now;
+        }
+
+        private long nanosUntil(double required) {
+            if (tokens >= required) {
+                return 0;
+            }
+            double deficit = Math.min(required, capacity) - tokens;
+            // 需要的令牌超过桶容量时(大量创建请求在排队),等待一个令牌的时间后再检查
+            return (long) ((deficit > 0 ? deficit : 1) * nanosPerToken);
+        }
+    }
+
+    /**
+     * 单个 (区域, 接口分组) 的限流统计
+     */
+    @Getter
+    public static final class Stats {
+        private final LongAdder acquired = new LongAdder();
+        private final LongAdder delayed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+        private final AtomicInteger waiting = new AtomicInteger();
+
+        public long averageWaitMillis() {
+            long delayedCount = delayed.sum();
+            return delayedCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitNanos.sum() / delayedCount);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.doubledimple.ociserver.cluster;
+
+import com.doubledimple.ociserver.util.DaemonThreads;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 集群模式: 多个节点读取同一份租户配置,通过共享目录中的租约保证每个租户同一时刻只由一个节点尝试.
+ * <p>
+ * 每个心跳周期: 写入本节点心跳,按在线节点构建一致性哈希环,为归属本节点的租户获取或续期租约;
+ * 不再归属本节点的租户先停止新的尝试,进行中的尝试和跟踪结束后才释放租约,新节点在此之前拿不到租约.
+ * 节点异常退出时租约在 oci.cluster.lease-millis 后到期,由哈希环上的下一个节点接手.
+ * 本节点只在租约到期前一个心跳周期内认为自己持有租约,续期延迟时先暂停尝试
+ *
+ * @author doubleDimple
+ * @date 2024:10:19日 16:30
+ */
+@Component
+@Slf4j
+public class ClusterCoordinator {
+
+    @Value("${oci.cluster.enabled:false}")
+    private boolean enabled = false;
+
+    /**
+     * 所有节点共享的目录,例如NFS挂载点; 同一台机器上的多个节点直接使用同一个本地目录
+     */
+    @Value("${oci.cluster.dir:data/cluster}")
+    private String dir = "data/cluster";
+
+    /**
+     * 节点标识,默认使用 主机名:工作目录; 重启后保持不变才能直接接回自己的租户.
+     * 同一标识的心跳还在被另一个进程更新时拒绝启动,同一目录下启动多个节点时需要分别配置
+     */
+    @Value("${oci.cluster.node-id:}")
+    private String nodeId = "";
+
+    @Value("${oci.cluster.heartbeat-millis:2000}")
+    private long heartbeatMillis = 2000;
+
+    @Value("${oci.cluster.lease-millis:15000}")
+    private long leaseMillis = 15000;
+
+    @Value("${oci.cluster.virtual-nodes:128}")
+    private int virtualNodes = 128;
+
+    private FileLeaseStore leaseStore;
+    private ScheduledExecutorService timer;
+    private volatile Collection<String> tenants = Collections.emptyList();
+    private volatile TenantLeaseListener listener;
+    private volatile HashRing ring;
+
+    /**
+     * 本节点持有的租约 -> 本地认为租约有效的截止时间
+     */
+    private final Map<String, Long> held = new ConcurrentHashMap<>();
+
+    /**
+     * 正在移交给其他节点的租户,仍然持有租约但不再发起新的尝试
+     */
+    private final Set<String> draining = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 本进程的标识,随心跳写入共享目录,用来发现另一个进程在使用同一个节点标识
+     */
+    private final String processToken = UUID.randomUUID().toString();
+
+    /**
+     * 运行中发现节点标识被另一个进程使用,本进程已经退出集群
+     */
+    private volatile boolean conflicted;
+
+    @PostConstruct
+    public void init() {
+        if (nodeId.isEmpty()) {
+            nodeId = defaultNodeId();
+        }
+        if (enabled) {
+            leaseStore = new FileLeaseStore(Paths.get(dir).toAbsolutePath());
+            awaitNodeIdFree();
+            log.info("集群模式已开启,节点:[{}] 共享目录:[{}] 租约时长:[{}]ms", nodeId, Paths.get(dir).toAbsolutePath(), leaseMillis);
+        }
+    }
+
+    /**
+     * 开始按租约分配租户,之后租户的启动和停止都通过回调通知
+     */
+    public void join(Collection<String> tenants, TenantLeaseListener listener) {
+        this.tenants = new ArrayList<>(tenants);
+        this.listener = listener;
+        timer = Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("cluster-lease"));
+        timer.scheduleWithFixedDelay(this::tick, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 正常退出: 空闲租户的租约立即释放,其他节点下一个心跳周期就能接手; 仍有进行中请求的租户等租约自然到期
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (timer == null) {
+            return;
+        }
+        timer.shutdownNow();
+        timer.awaitTermination(heartbeatMillis, TimeUnit.MILLISECONDS);
+        if (conflicted) {
+            // 租约和心跳文件现在属于另一个进程,不能释放或删除
+            return;
+        }
+        for (String userName : new ArrayList<>(held.keySet())) {
+            draining.add(userName);
+            try {
+                if (listener.onReleasing(userName)) {
+                    leaseStore.release(userName, nodeId);
+                }
+            } catch (RuntimeException e) {
+                log.warn("租户:[{}] 释放租约失败,原因为:[{}]", userName, e.getMessage());
+            }
+        }
+        held.clear();
+        leaseStore.leave(nodeId);
+        log.info("节点:[{}] 已离开集群", nodeId);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public long getHeartbeatMillis() {
+        return heartbeatMillis;
+    }
+
+    /**
+     * 本节点当前是否负责该租户; 未开启集群模式时所有租户都由本节点负责
+     */
+    public boolean owns(String userName) {
+        if (!enabled) {
+            return true;
+        }
+        Long validUntil = held.get(userName);
+        return validUntil != null && !draining.contains(userName) && System.currentTimeMillis() < validUntil;
+    }
+
+    /**
+     * 把租户已创建好的实例写进租约,以后接手的节点不再为它创建
+     */
+    public void completed(String userName, String instanceId) {
+        if (enabled && held.containsKey(userName)) {
+            leaseStore.complete(userName, nodeId, instanceId);
+        }
+    }
+
+    /**
+     * @return 租约中记录的该租户已创建好的实例(包括其他节点创建的); 未开启集群模式或者没有时返回null
+     */
+    public String completedInstance(String userName) {
+        return enabled ? leaseStore.read(userName).getCompleted() : null;
+    }
+
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            long expiresAt = now + leaseMillis;
+            // 留出一个心跳周期的余量,其他节点认为租约到期之前本节点已经停止尝试
+            long validUntil = expiresAt - heartbeatMillis;
+            String token = leaseStore.liveToken(nodeId, now);
+            if (token != null && !token.equals(processToken)) {
+                onNodeIdConflict();
+                return;
+            }
+            leaseStore.heartbeat(nodeId, processToken, expiresAt);
+            Set<String> members = leaseStore.liveMembers(now);
+            members.add(nodeId);
+            if (ring == null || !ring.getNodes().equals(members)) {
+                ring = new HashRing(members, virtualNodes);
+                log.info("集群在线节点:{}", ring.getNodes());
+            }
+            for (String userName : tenants) {
+                try {
+                    balance(userName, now, expiresAt, validUntil);
+                } catch (RuntimeException e) {
+                    log.warn("租户:[{}] 处理租约失败,原因为:[{}]", userName, e.getMessage());
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("集群心跳失败,原因为:[{}]", e.getMessage(), e);
+        }
+    }
+
+    private void balance(String userName, long now, long expiresAt, long validUntil) {
+        boolean mine = nodeId.equals(ring.owner(userName));
+        if (held.containsKey(userName)) {
+            if (!leaseStore.renew(userName, nodeId, expiresAt)) {
+                // 续期间隔超过了租约时长,租户已经被其他节点接手,立即停止
+                held.remove(userName);
+                draining.remove(userName);
+                listener.onReleasing(userName);
+                log.warn("租户:[{}] 的租约已被其他节点接手,本节点停止尝试", userName);
+                return;
+            }
+            held.put(userName, validUntil);
+            if (mine && !draining.contains(userName)) {
+                return;
+            }
+            if (draining.add(userName)) {
+                log.info("租户:[{}] 改由节点:[{}]负责,等待进行中的请求结束后移交", userName, ring.owner(userName));
+            }
+            if (listener.onReleasing(userName)) {
+                leaseStore.release(userName, nodeId);
+                held.remove(userName);
+                draining.remove(userName);
+                log.info("租户:[{}] 已移交", userName);
+            }
+            return;
+        }
+        if (!mine) {
+            return;
+        }
+        Lease previous = leaseStore.tryAcquire(userName, nodeId, expiresAt, now);
+        if (previous == null) {
+            // 上一任节点还在结束进行中的请求
+            return;
+        }
+        held.put(userName, validUntil);
+        log.info("节点:[{}] 接手租户:[{}],上一任节点:[{}]", nodeId, userName,
+                previous.getOwner().isEmpty() ? "无" : previous.getOwner());
+        listener.onAcquired(userName, previous);
+    }
+
+    /**
+     * 启动时该节点标识的心跳还在更新,说明另一个进程正在使用这个标识(例如在同一工作目录下使用默认标识),拒绝启动;
+     * 本节点上次异常退出留下的心跳最多等一个租约时长就会到期
+     */
+    private void awaitNodeIdFree() {
+        long deadline = System.currentTimeMillis() + leaseMillis + heartbeatMillis;
+        while (leaseStore.liveToken(nodeId, System.currentTimeMillis()) != null) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("节点标识:[" + nodeId
+                        + "] 正在被另一个进程使用,请通过 oci.cluster.node-id 为每个节点配置不同的标识");
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(heartbeatMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待节点标识:[" + nodeId + "] 的心跳到期时被中断", e);
+            }
+        }
+    }
+
+    /**
+     * 两个进程同时启动时都可能通过启动检查,心跳被另一个进程改写的一方停止所有租户并退出集群
+     */
+    private void onNodeIdConflict() {
+        conflicted = true;
+        log.error("节点标识:[{}] 正在被另一个进程使用,本进程退出集群,请通过 oci.cluster.node-id 为每个节点配置不同的标识", nodeId);
+        for (String userName : new ArrayList<>(held.keySet())) {
+            draining.add(userName);
+            listener.onReleasing(userName);
+        }
+        held.clear();
+        draining.clear();
+        timer.shutdown();
+    }
+
+    private static String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        return host + ":" + Paths.get("").toAbsolutePath();
+    }
+}
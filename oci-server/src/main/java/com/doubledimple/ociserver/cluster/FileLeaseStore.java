@@ -0,0 +1,251 @@
+package com.doubledimple.ociserver.cluster;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * 放在共享目录里的租约和成员信息,多个节点(可以在同一台机器上)通过同一个目录协调.
+ * <pre>
+ * members/&lt;节点&gt;.member   节点心跳,内容为 到期时间/进程标识 两行
+ * leases/&lt;租户&gt;.lease     租户租约,内容为 持有节点/到期时间/已创建的实例 三行
+ * </pre>
+ * 租约的读取和修改都在该文件的文件锁内完成,同一时刻只有一个节点能改写某个租户的租约.
+ * 到期时间使用各节点的本地时钟,跨机器部署时需要同步时钟
+ *
+ * @author doubleDimple
+ * @date 2024:10:19日 16:20
+ */
+@Slf4j
+public class FileLeaseStore {
+
+    private static final String MEMBER_SUFFIX = ".member";
+    private static final String LEASE_SUFFIX = ".lease";
+
+    /**
+     * 文件锁属于整个进程,同一进程内的多个节点(测试中)再用这个锁互斥
+     */
+    private static final Object LOCAL_LOCK = new Object();
+
+    private final Path members;
+    private final Path leases;
+
+    public FileLeaseStore(Path directory) {
+        this.members = directory.resolve("members");
+        this.leases = directory.resolve("leases");
+        try {
+            Files.createDirectories(members);
+            Files.createDirectories(leases);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 写入节点心跳,先写临时文件再原子替换,其他节点不会读到写了一半的内容
+     *
+     * @param token 写入心跳的进程的标识,用来发现另一个进程在使用同一个节点标识
+     */
+    public void heartbeat(String nodeId, String token, long expiresAt) {
+        Path file = members.resolve(encode(nodeId) + MEMBER_SUFFIX);
+        Path temp = members.resolve(encode(nodeId) + ".tmp");
+        try {
+            Files.write(temp, (expiresAt + "\n" + token).getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void leave(String nodeId) {
+        try {
+            Files.deleteIfExists(members.resolve(encode(nodeId) + MEMBER_SUFFIX));
+        } catch (IOException e) {
+            log.warn("删除节点心跳文件失败,原因为:[{}]", e.getMessage());
+        }
+    }
+
+    /**
+     * @return 心跳还没有到期的节点
+     */
+    public Set<String> liveMembers(long now) {
+        Set<String> live = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(members, "*" + MEMBER_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (readLiveMember(file, now) != null) {
+                    live.add(decode(name.substring(0, name.length() - MEMBER_SUFFIX.length())));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return live;
+    }
+
+    /**
+     * @return 该节点心跳还没有到期时返回写入心跳的进程标识,否则返回null
+     */
+    public String liveToken(String nodeId, long now) {
+        return readLiveMember(members.resolve(encode(nodeId) + MEMBER_SUFFIX), now);
+    }
+
+    /**
+     * 租约空闲、已经到期或者本来就属于本节点时拿到租约
+     *
+     * @return 拿到之前的租约内容; 租约被其他节点持有时返回null
+     */
+    public Lease tryAcquire(String userName, String nodeId, long expiresAt, long now) {
+        return update(userName, lease -> {
+            if (lease.isHeld(now) && !lease.getOwner().equals(nodeId)) {
+                return null;
+            }
+            Lease previous = lease.copy();
+            lease.setOwner(nodeId);
+            lease.setExpiresAt(expiresAt);
+            return previous;
+        });
+    }
+
+    /**
+     * @return 租约仍属于本节点并已续期; 租约已经被其他节点接手时返回false
+     */
+    public boolean renew(String userName, String nodeId, long expiresAt) {
+        return update(userName, lease -> {
+            if (!lease.getOwner().equals(nodeId)) {
+                return false;
+            }
+            lease.setExpiresAt(expiresAt);
+            return true;
+        });
+    }
+
+    /**
+     * 释放租约,保留持有者和已创建的实例
+     */
+    public void release(String userName, String nodeId) {
+        update(userName, lease -> {
+            if (lease.getOwner().equals(nodeId)) {
+                lease.setExpiresAt(0);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 记录租户已经创建好的实例,之后接手的节点不再为该租户创建
+     */
+    public void complete(String userName, String nodeId, String instanceId) {
+        update(userName, lease -> {
+            if (lease.getOwner().equals(nodeId)) {
+                lease.setCompleted(instanceId);
+            }
+            return null;
+        });
+    }
+
+    public Lease read(String userName) {
+        return update(userName, Lease::copy);
+    }
+
+    private <T> T update(String userName, Function<Lease, T> update) {
+        Path file = leases.resolve(encode(userName) + LEASE_SUFFIX);
+        synchronized (LOCAL_LOCK) {
+            try (FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileLock ignored = channel.lock()) {
+                Lease current = read(channel);
+                Lease lease = current.copy();
+                T result = update.apply(lease);
+                if (!lease.equals(current)) {
+                    write(channel, lease);
+                }
+                return result;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * @return 心跳没有到期时返回进程标识(旧格式没有时为空字符串); 文件不存在、已到期或者损坏时返回null
+     */
+    private static String readLiveMember(Path file, long now) {
+        try {
+            String[] lines = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).split("\n", 2);
+            if (Long.parseLong(lines[0].trim()) <= now) {
+                return null;
+            }
+            return lines.length > 1 ? lines[1].trim() : "";
+        } catch (IOException | NumberFormatException e) {
+            // 节点刚好离开或者文件损坏,按不在线处理
+            return null;
+        }
+    }
+
+    /**
+     * 文件为空或者内容不完整(持有者写到一半时退出)时按空闲租约处理
+     */
+    private static Lease read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+            // 读满为止
+        }
+        String[] lines = new String(buffer.array(), StandardCharsets.UTF_8).split("\n", -1);
+        Lease lease = new Lease();
+        if (lines.length < 3) {
+            return lease;
+        }
+        try {
+            lease.setExpiresAt(Long.parseLong(lines[1]));
+        } catch (NumberFormatException e) {
+            return new Lease();
+        }
+        lease.setOwner(lines[0]);
+        lease.setCompleted(lines[2].isEmpty() ? null : lines[2]);
+        return lease;
+    }
+
+    private static void write(FileChannel channel, Lease lease) throws IOException {
+        String content = lease.getOwner() + "\n" + lease.getExpiresAt() + "\n"
+                + (lease.getCompleted() == null ? "" : lease.getCompleted()) + "\n";
+        ByteBuffer buffer = ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+        channel.truncate(0);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, buffer.position());
+        }
+        channel.force(false);
+    }
+
+    private static String encode(String name) {
+        try {
+            return URLEncoder.encode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String name) {
+        try {
+            return URLDecoder.decode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.doubledimple.ociserver.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * 一致性哈希环: 每个节点在环上放若干个虚拟节点,租户归属顺时针方向的第一个虚拟节点.
+ * 节点加入或离开时只有落在它附近的租户换主,其余租户不动
+ *
+ * @author doubleDimple
+ * @date 2024:10:19日 16:10
+ */
+public final class HashRing {
+
+    private final Set<String> nodes;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        this.nodes = Collections.unmodifiableSet(new TreeSet<>(nodes));
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * @return 负责该租户的节点,环为空时返回null
+     */
+    public String owner(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return (entry == null ? ring.firstEntry() : entry).getValue();
+    }
+
+    public Set<String> getNodes() {
+        return nodes;
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.doubledimple.ociserver.cluster;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 租户租约: 当前(或最后一任)持有节点、到期时间,以及该租户已经创建好的实例
+ *
+ * @author doubleDimple
+ * @date 2024:10:19日 16:00
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class Lease {
+
+    /**
+     * 持有节点,释放后保留最后一任持有者,接手的节点据此判断是否需要核对实例
+     */
+    private String owner = "";
+
+    /**
+     * 到期时间(毫秒时间戳),释放后为0
+     */
+    private long expiresAt;
+
+    /**
+     * 已经为该租户创建好的实例,没有时为null
+     */
+    private String completed;
+
+    public boolean isHeld(long now) {
+        return !owner.isEmpty() && expiresAt > now;
+    }
+
+    public Lease copy() {
+        return new Lease(owner, expiresAt, completed);
+    }
+}
@@ -0,0 +1,24 @@
+package com.doubledimple.ociserver.cluster;
+
+/**
+ * 租户归属变化的回调,由 {@link ClusterCoordinator} 在租约线程上调用
+ *
+ * @author doubleDimple
+ * @date 2024:10:19日 16:05
+ */
+public interface TenantLeaseListener {
+
+    /**
+     * 本节点拿到了租户的租约,可以开始尝试
+     *
+     * @param previous 拿到之前的租约内容,包括上一任持有者和已经创建好的实例
+     */
+    void onAcquired(String userName, Lease previous);
+
+    /**
+     * 租户要移交给其他节点: 停止新的尝试,进行中的尝试和跟踪可以继续
+     *
+     * @return 进行中的尝试和跟踪都已结束时返回true,之后才释放租约; 返回false时下一个周期再询问
+     */
+    boolean onReleasing(String userName);
+}
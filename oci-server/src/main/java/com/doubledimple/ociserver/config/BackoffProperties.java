@@ -0,0 +1,40 @@
+package com.doubledimple.ociserver.config;
+
+import com.doubledimple.ociserver.exception.ErrorCode;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 重试间隔配置,按失败原因分别设置下限和上限,例如:
+ * <pre>
+ * oci.backoff.fast-retries=1
+ * oci.backoff.bounds.capacity.floor-seconds=30
+ * oci.backoff.bounds.too-many-requests.ceiling-seconds=900
+ * </pre>
+ * 没有配置的项使用 {@link com.doubledimple.ociserver.schedule.DecorrelatedJitterBackoffPolicy} 中的默认值
+ *
+ * @author doubleDimple
+ * @date 2024:10:16日 10:05
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "oci.backoff")
+public class BackoffProperties {
+
+    /**
+     * 网络失败时不等待直接重试的次数
+     */
+    private int fastRetries = 1;
+
+    private Map<ErrorCode, Bounds> bounds = new HashMap<>();
+
+    @Data
+    public static class Bounds {
+        private Long floorSeconds;
+        private Long ceilingSeconds;
+    }
+}
@@ -1,25 +1,25 @@
 package com.doubledimple.ociserver.config;
 
 import com.doubledimple.ociserver.domain.User;
-import com.oracle.bmc.ConfigFileReader;
 import com.oracle.bmc.Region;
 import com.oracle.bmc.auth.*;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.DependsOn;
 import org.springframework.stereotype.Component;
-import org.springframework.stereotype.Service;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * @author doubleDimple
@@ -31,6 +31,13 @@ public class MultiUserAuthenticationDetailsProvider {
 
     private final OracleUsersConfig oracleUserConfig;
 
+    /**
+     * 按用户名缓存的鉴权信息,私钥文件只在 修改时间/指纹/用户配置 变化时重新读取
+     */
+    private final Map<String, CachedProvider> providerCache = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
     @Autowired
     public MultiUserAuthenticationDetailsProvider(@Qualifier("oracleUsersConfig")OracleUsersConfig oracleUserConfig) {
         this.oracleUserConfig = oracleUserConfig;
@@ -42,26 +49,90 @@ public class MultiUserAuthenticationDetailsProvider {
         for (Map.Entry<String, User> entry : oracleUserConfig.getUsers().entrySet()) {
             String userName = entry.getValue().getUserId();
             User user = entry.getValue();
-
-            SimpleAuthenticationDetailsProvider build = SimpleAuthenticationDetailsProvider.builder().
-                    userId(user.getUserId()).
-                    fingerprint(user.getFingerprint()).
-                    tenantId(user.getTenancy()).
-                    privateKeySupplier(() -> {
-                        try {
-                            return new FileInputStream(user.getKeyFile()); // 密钥文件路径
-                        } catch (FileNotFoundException e) {
-                            e.printStackTrace();
-                            return null;
-                        }
-                    }).
-                    region(Region.fromRegionId(user.getRegion()))
-                    .build();
-
-            providers.put(userName,build);
+            try {
+                providers.put(userName, getProvider(user));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
         }
 
         return providers;
     }
 
+    /**
+     * 获取单个用户的鉴权信息,命中缓存时只需要一次文件属性查询
+     */
+    public SimpleAuthenticationDetailsProvider getProvider(User user) {
+        Path keyFile = Paths.get(user.getKeyFile());
+        long lastModified;
+        try {
+            lastModified = Files.getLastModifiedTime(keyFile).toMillis();
+        } catch (IOException e) {
+            throw new UncheckedIOException("读取私钥文件失败: " + user.getKeyFile(), e);
+        }
+        String signature = signature(user);
+        CachedProvider cached = providerCache.get(user.getUserName());
+        if (cached != null && cached.lastModified == lastModified && cached.signature.equals(signature)) {
+            hits.increment();
+            return cached.provider;
+        }
+        misses.increment();
+        CachedProvider loaded = load(user, keyFile, lastModified, signature);
+        providerCache.put(user.getUserName(), loaded);
+        if (cached != null) {
+            log.info("用户:[{}] 私钥文件或鉴权配置发生变化,重新加载鉴权信息", user.getUserName());
+        }
+        return loaded.provider;
+    }
+
+    public void invalidate(String userName) {
+        providerCache.remove(userName);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private static CachedProvider load(User user, Path keyFile, long lastModified, String signature) {
+        byte[] privateKey;
+        try {
+            privateKey = Files.readAllBytes(keyFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("读取私钥文件失败: " + user.getKeyFile(), e);
+        }
+        String pem = new String(privateKey, StandardCharsets.US_ASCII);
+        if (!pem.contains("-----BEGIN") || !pem.contains("PRIVATE KEY-----")) {
+            throw new IllegalStateException("私钥文件不是PEM格式: " + user.getKeyFile());
+        }
+
+        SimpleAuthenticationDetailsProvider provider = SimpleAuthenticationDetailsProvider.builder().
+                userId(user.getUserId()).
+                fingerprint(user.getFingerprint()).
+                tenantId(user.getTenancy()).
+                privateKeySupplier(() -> new ByteArrayInputStream(privateKey)).
+                region(Region.fromRegionId(user.getRegion()))
+                .build();
+        return new CachedProvider(provider, lastModified, signature);
+    }
+
+    private static String signature(User user) {
+        return user.getUserId() + "|" + user.getTenancy() + "|" + user.getFingerprint() + "|" + user.getKeyFile() + "|" + user.getRegion();
+    }
+
+    private static final class CachedProvider {
+        private final SimpleAuthenticationDetailsProvider provider;
+        private final long lastModified;
+        private final String signature;
+
+        private CachedProvider(SimpleAuthenticationDetailsProvider provider, long lastModified, String signature) {
+            this.provider = provider;
+            this.lastModified = lastModified;
+            this.signature = signature;
+        }
+    }
+
 }
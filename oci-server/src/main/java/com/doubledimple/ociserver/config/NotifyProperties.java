@@ -0,0 +1,86 @@
+package com.doubledimple.ociserver.config;
+
+import com.doubledimple.ociserver.enums.MessageEnum;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 消息推送配置,例如:
+ * <pre>
+ * oci.notify.queue-size=1000
+ * oci.notify.read-timeout-millis=10000
+ * oci.notify.digest-seconds=10
+ * oci.notify.channels.ding-ding.permits=10
+ * oci.notify.channels.ding-ding.period-seconds=60
+ * oci.notify.error-channels=telegram
+ * </pre>
+ * 每个推送渠道有独立的队列和发送线程,没有配置速率的渠道使用 {@link MessageEnum} 中各平台公布的限制
+ *
+ * @author doubleDimple
+ * @date 2024:10:17日 17:10
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "oci.notify")
+public class NotifyProperties {
+
+    /**
+     * 每个渠道待发送消息队列的容量,队列满时丢弃新消息
+     */
+    private int queueSize = 1000;
+
+    /**
+     * 每个渠道的发送线程数
+     */
+    private int threads = 2;
+
+    private int connectTimeoutMillis = 5000;
+
+    private int readTimeoutMillis = 10000;
+
+    /**
+     * 单条消息发送失败后的最大重试次数
+     */
+    private int maxRetries = 3;
+
+    /**
+     * 第一次重试前的等待时间,之后每次翻倍
+     */
+    private long retryBaseMillis = 1000;
+
+    private long retryMaxMillis = 60000;
+
+    /**
+     * 错误消息的合并窗口,窗口内同一会话的错误消息合并成一条摘要
+     */
+    private long digestSeconds = 10;
+
+    /**
+     * 一条摘要中最多列出的不同错误数
+     */
+    private int digestMaxLines = 20;
+
+    /**
+     * 实例创建成功的消息推送到哪些渠道,为空时推送到所有已配置的渠道
+     */
+    private Set<MessageEnum> instanceChannels = EnumSet.noneOf(MessageEnum.class);
+
+    /**
+     * 错误消息推送到哪些渠道,为空时推送到所有已配置的渠道
+     */
+    private Set<MessageEnum> errorChannels = EnumSet.noneOf(MessageEnum.class);
+
+    private Map<MessageEnum, Channel> channels = new HashMap<>();
+
+    @Data
+    public static class Channel {
+        private Integer permits;
+        private Long periodSeconds;
+    }
+}
@@ -0,0 +1,54 @@
+package com.doubledimple.ociserver.config;
+
+import com.doubledimple.ociserver.client.ApiFamily;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 区域级限流配置,例如:
+ * <pre>
+ * oci.rate-limit.region-permits-per-second=20
+ * oci.rate-limit.families.launch.permits-per-second=1
+ * oci.rate-limit.families.compute-read.burst=20
+ * </pre>
+ * 没有配置的分组使用 {@link ApiFamily} 中的默认值
+ *
+ * @author doubleDimple
+ * @date 2024:10:16日 14:20
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "oci.rate-limit")
+public class RateLimitProperties {
+
+    private boolean enabled = true;
+
+    /**
+     * 同一区域所有租户、所有接口共享的总速率
+     */
+    private double regionPermitsPerSecond = 20;
+
+    private int regionBurst = 20;
+
+    /**
+     * 排队等待令牌的最长时间,超时后按429处理
+     */
+    private long maxWaitMillis = 30000;
+
+    /**
+     * 输出限流饱和度日志的间隔
+     */
+    private long reportMinutes = 5;
+
+    private Map<ApiFamily, Bucket> families = new HashMap<>();
+
+    @Data
+    public static class Bucket {
+        private Double permitsPerSecond;
+        private Integer burst;
+    }
+}
@@ -1,5 +1,6 @@
 package com.doubledimple.ociserver.domain;
 
+import com.doubledimple.ociserver.exception.ErrorCode;
 import lombok.Data;
 
 /**
@@ -13,4 +14,16 @@ public class OracleInstanceDetail {
     private String image;
     private String shape;
     private String userName;
+
+    /**
+     * 创建请求被接受后即可得到,公网IP由 WorkRequestTracker 异步补全
+     */
+    private String instanceId;
+    private String workRequestId;
+    private String compartmentId;
+
+    /**
+     * 没有创建成功时本次尝试的失败原因,用于决定下一次尝试的间隔
+     */
+    private ErrorCode errorCode;
 }
@@ -0,0 +1,478 @@
+package com.doubledimple.ociserver.engine;
+
+import com.doubledimple.ociserver.cache.ComputeCatalog;
+import com.doubledimple.ociserver.cache.TenancyTopology;
+import com.doubledimple.ociserver.cache.TenancyTopologyCache;
+import com.doubledimple.ociserver.client.ApiFamily;
+import com.doubledimple.ociserver.client.OciAsync;
+import com.doubledimple.ociserver.client.OciAsyncClients;
+import com.doubledimple.ociserver.client.OciClientRegistry;
+import com.doubledimple.ociserver.client.OciClients;
+import com.doubledimple.ociserver.client.RegionRateLimiter;
+import com.doubledimple.ociserver.config.MultiUserAuthenticationDetailsProvider;
+import com.doubledimple.ociserver.constant.SystemScriptShell;
+import com.doubledimple.ociserver.domain.OracleInstanceDetail;
+import com.doubledimple.ociserver.domain.User;
+import com.doubledimple.ociserver.exception.ErrorClassifier;
+import com.doubledimple.ociserver.exception.ErrorCode;
+import com.doubledimple.ociserver.exception.OciException;
+import com.doubledimple.ociserver.metrics.AvailabilityDomainMetrics;
+import com.doubledimple.ociserver.metrics.OciMetrics;
+import com.doubledimple.ociserver.metrics.OciOperation;
+import com.doubledimple.ociserver.metrics.ProvisioningContext;
+import com.doubledimple.ociserver.metrics.FlightRecording;
+import com.doubledimple.ociserver.metrics.ProvisioningPhaseEvent.Phase;
+import com.doubledimple.ociserver.network.NetworkScaffolding;
+import com.doubledimple.ociserver.network.NetworkScaffoldingResolver;
+import com.doubledimple.ociserver.schedule.CapacityBoard;
+import com.doubledimple.ociserver.service.OracleCloudService;
+import com.doubledimple.ociserver.state.AttemptStateStore;
+import com.doubledimple.ociserver.util.DaemonThreads;
+import com.oracle.bmc.auth.AuthenticationDetailsProvider;
+import com.oracle.bmc.core.ComputeAsyncClient;
+import com.oracle.bmc.core.model.Image;
+import com.oracle.bmc.core.model.LaunchInstanceDetails;
+import com.oracle.bmc.core.model.Shape;
+import com.oracle.bmc.core.requests.LaunchInstanceRequest;
+import com.oracle.bmc.identity.IdentityAsyncClient;
+import com.oracle.bmc.identity.model.AvailabilityDomain;
+import com.oracle.bmc.identity.requests.ListAvailabilityDomainsRequest;
+import com.oracle.bmc.model.BmcException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static com.doubledimple.ociserver.exception.ErrorCode.*;
+
+/**
+ * 异步引擎: 基于OCI异步客户端,用CompletableFuture串联整个创建流程,网络往返期间不占用线程.
+ * 一个很小的事件循环线程池即可同时驱动大量租户的创建尝试; 创建请求被接受后即返回,后续由 WorkRequestTracker 跟踪.
+ * <p>
+ * 规格/镜像目录与网络基础设施只在缓存未命中时才需要加载,这部分沿用同步实现,放在独立的冷路径线程池中执行
+ *
+ * @author doubleDimple
+ * @date 2024:10:15日 21:30
+ */
+@Component
+@Slf4j
+@ConditionalOnProperty(name = "oci.engine", havingValue = "async")
+public class AsyncProvisioningEngine implements ProvisioningEngine {
+
+    @Autowired
+    private MultiUserAuthenticationDetailsProvider multiUserAuthenticationDetailsProvider;
+
+    @Autowired
+    private OciClientRegistry ociClientRegistry;
+
+    @Autowired
+    private TenancyTopologyCache tenancyTopologyCache;
+
+    @Autowired
+    private ComputeCatalog computeCatalog;
+
+    @Autowired
+    private NetworkScaffoldingResolver networkScaffoldingResolver;
+
+    @Autowired
+    private AvailabilityDomainMetrics availabilityDomainMetrics;
+
+    @Autowired
+    private OciMetrics ociMetrics;
+
+    @Autowired
+    private RegionRateLimiter regionRateLimiter;
+
+    @Autowired
+    private CapacityBoard capacityBoard;
+
+    @Autowired
+    private AttemptStateStore attemptStateStore;
+
+    @Autowired
+    private LaunchReconciler launchReconciler;
+
+    /**
+     * 事件循环线程数,只用于执行回调
+     */
+    @Value("${oci.engine.async-threads:2}")
+    private int asyncThreads = 2;
+
+    /**
+     * 冷路径线程数,用于首次加载目录和网络基础设施
+     */
+    @Value("${oci.engine.cold-path-threads:4}")
+    private int coldPathThreads = 4;
+
+    private ExecutorService loop;
+    private ExecutorService coldPath;
+
+    @PostConstruct
+    public void start() {
+        loop = Executors.newFixedThreadPool(asyncThreads, DaemonThreads.named("provision-loop"));
+        coldPath = Executors.newFixedThreadPool(coldPathThreads, DaemonThreads.named("provision-cold"));
+        log.info("异步创建引擎启动,事件循环线程数:[{}],冷路径线程数:[{}]", asyncThreads, coldPathThreads);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        loop.shutdownNow();
+        coldPath.shutdownNow();
+    }
+
+    @Override
+    public CompletableFuture<OracleInstanceDetail> provision(User user) {
+        OciAsyncClients asyncClients;
+        OciClients ociClients;
+        try {
+            AuthenticationDetailsProvider provider = multiUserAuthenticationDetailsProvider.getProvider(user);
+            asyncClients = ociClientRegistry.getAsync(user, provider);
+            ociClients = ociClientRegistry.get(user, provider);
+        } catch (Exception e) {
+            return failed(e);
+        }
+        ProvisioningContext topologyContext = new ProvisioningContext(user.getUserName(), user.getRegion(), null);
+        long topologyStart = System.nanoTime();
+        return topology(user, asyncClients.getIdentityClient())
+                .whenComplete((topology, error) -> {
+                    FlightRecording.phase(Phase.TOPOLOGY, topologyContext, topologyStart, error == null ? "OK" : "Error", error);
+                    if (error != null) {
+                        Throwable cause = OciAsync.unwrap(error);
+                        ociClientRegistry.reportFailure(user, cause);
+                        tenancyTopologyCache.invalidateIfStale(user, cause);
+                    }
+                })
+                .thenComposeAsync(topology -> {
+                    // 上一次创建请求结果未知时,用相同的尝试次数和token在同一个可用域重发
+                    LaunchRequest replay = launchReconciler.pendingReplay(user.getUserName());
+                    if (replay != null) {
+                        log.info("用户:[{}] 重发第[{}]次尝试中结果未知的创建请求......", user.getUserName(), replay.getAttempt());
+                        return launchAll(user, replay.getAttempt(), ociClients, asyncClients, topology.getRootCompartmentId(),
+                                Collections.singletonList(replay.getAvailabilityDomain()), replay);
+                    }
+                    return reconcile(user, ociClients, topology).thenCompose(reconciled -> {
+                        if (reconciled != null) {
+                            return CompletableFuture.completedFuture(reconciled);
+                        }
+                        long attempt = attemptStateStore.nextAttempt(user.getUserName());
+                        log.info("用户:[{}] 开始执行第[{}]次创建实例操作......", user.getUserName(), attempt);
+                        return launchAll(user, attempt, ociClients, asyncClients, topology.getRootCompartmentId(),
+                                topology.getAvailabilityDomains(), null);
+                    });
+                }, loop);
+    }
+
+    /**
+     * 拓扑缓存命中时直接返回,否则用异步身份客户端加载后写回缓存
+     */
+    private CompletableFuture<TenancyTopology> topology(User user, IdentityAsyncClient identityClient) {
+        TenancyTopology cached = tenancyTopologyCache.peek(user);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return limited(user, ApiFamily.IDENTITY,
+                () -> OciAsync.call(identityClient::listCompartments, TenancyTopologyCache.listCompartmentsRequest(user.getTenancy())))
+                .thenCompose(compartments -> {
+                    String compartmentId = TenancyTopologyCache.rootCompartmentOf(compartments.getItems(), user.getTenancy());
+                    return limited(user, ApiFamily.IDENTITY, () -> OciAsync.call(identityClient::listAvailabilityDomains,
+                                    ListAvailabilityDomainsRequest.builder().compartmentId(compartmentId).build()))
+                            .thenApply(availabilityDomains -> {
+                                TenancyTopology topology = new TenancyTopology(compartmentId,
+                                        availabilityDomains.getItems(), System.currentTimeMillis());
+                                tenancyTopologyCache.put(user, topology);
+                                return topology;
+                            });
+                });
+    }
+
+    /**
+     * 有只知道尝试次数的未知创建请求时先在冷路径上核对实例列表,大多数尝试不需要核对,直接返回
+     */
+    private CompletableFuture<OracleInstanceDetail> reconcile(User user, OciClients ociClients, TenancyTopology topology) {
+        if (!launchReconciler.isUncertain(user.getUserName())) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.supplyAsync(
+                () -> launchReconciler.reconcile(user, ociClients, topology.getRootCompartmentId()), coldPath);
+    }
+
+    /**
+     * 所有可用域并发尝试,创建请求按顺序发出,第一个被接受的可用域胜出,其余可用域在发起创建前取消
+     *
+     * @param replay 需要原样重发的创建请求,此时只有它所在的可用域; 没有时为null
+     */
+    private CompletableFuture<OracleInstanceDetail> launchAll(User user, long attempt, OciClients ociClients,
+                                                              OciAsyncClients asyncClients, String compartmentId,
+                                                              List<AvailabilityDomain> availabilityDomains,
+                                                              LaunchRequest replay) {
+        LaunchGate gate = new LaunchGate(availabilityDomains.size());
+        List<CompletableFuture<OracleInstanceDetail>> futures = new ArrayList<>();
+        for (AvailabilityDomain availabilityDomain : availabilityDomains) {
+            futures.add(launchInAvailabilityDomain(user, attempt, ociClients, asyncClients,
+                    compartmentId, availabilityDomain, gate, replay));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .handle((ignored, error) -> {
+                    OracleInstanceDetail oracleInstanceDetail = new OracleInstanceDetail();
+                    OciException limitExceeded = null;
+                    for (CompletableFuture<OracleInstanceDetail> future : futures) {
+                        try {
+                            OracleInstanceDetail detail = future.join();
+                            if (detail != null) {
+                                oracleInstanceDetail = detail;
+                            }
+                        } catch (CompletionException e) {
+                            Throwable cause = OciAsync.unwrap(e);
+                            if (cause instanceof OciException) {
+                                limitExceeded = (OciException) cause;
+                            } else {
+                                log.warn("出现错误了,原因为:{}", cause.getMessage());
+                            }
+                        }
+                    }
+                    if (!gate.clientFailed) {
+                        ociClientRegistry.reportSuccess(user);
+                    }
+                    if (oracleInstanceDetail.getInstanceId() == null && limitExceeded != null) {
+                        throw limitExceeded;
+                    }
+                    if (oracleInstanceDetail.getInstanceId() == null) {
+                        oracleInstanceDetail.setErrorCode(gate.errorCode == null ? NO_PUBLIC_IP : gate.errorCode);
+                    }
+                    return oracleInstanceDetail;
+                });
+    }
+
+    private CompletableFuture<OracleInstanceDetail> launchInAvailabilityDomain(User user, long attempt, OciClients ociClients,
+                                                                               OciAsyncClients asyncClients,
+                                                                               String compartmentId,
+                                                                               AvailabilityDomain availabilityDomain,
+                                                                               LaunchGate gate, LaunchRequest replay) {
+        long start = System.currentTimeMillis();
+        AtomicReference<AvailabilityDomainMetrics.Outcome> outcome =
+                new AtomicReference<>(AvailabilityDomainMetrics.Outcome.SKIPPED);
+        AtomicReference<LaunchRequest> launching = new AtomicReference<>();
+        ComputeAsyncClient computeClient = asyncClients.getComputeClient();
+        ProvisioningContext context = new ProvisioningContext(user.getUserName(), user.getRegion(), availabilityDomain.getName());
+        long phaseStart = System.nanoTime();
+        CompletableFuture<LaunchRequest> prepared = replay != null ? CompletableFuture.completedFuture(replay)
+                : CompletableFuture.supplyAsync(() -> prepare(user, attempt, ociClients, compartmentId, availabilityDomain, context), coldPath);
+        return prepared
+                .thenCompose(request -> {
+                    if (request == null) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    if (replay == null && !capacityBoard.shouldAttempt(user.getRegion(), availabilityDomain.getName(), request.getShape())) {
+                        gate.record(CAPACITY);
+                        log.info("用户:[{}] 可用域:[{}] 规格:[{}] 近期容量不足,跳过本次尝试", user.getUserName(),
+                                availabilityDomain.getName(), request.getShape());
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    launching.set(request);
+                    log.info("current user:[{}] and region:[{}] Instance is being created via image and KMS key ...",
+                            user.getUserName(), user.getRegion());
+                    context.setShape(request.getShape());
+                    long launchStart = System.nanoTime();
+                    return gate.launch(() -> limited(user, ApiFamily.LAUNCH, () -> ociMetrics.timed(OciOperation.LAUNCH_INSTANCE, context,
+                                    () -> OciAsync.call(computeClient::launchInstance,
+                                            LaunchInstanceRequest.builder()
+                                                    .launchInstanceDetails(request.getDetails())
+                                                    .opcRetryToken(launchReconciler.retryToken(user, request.getAttempt(), availabilityDomain.getName()))
+                                                    .build()))))
+                            .whenComplete((launched, error) ->
+                                    FlightRecording.phase(Phase.LAUNCH, context, launchStart,
+                                            error != null ? "Error" : launched == null ? "Empty" : "OK", error))
+                            .thenApply(launched -> {
+                                if (launched == null) {
+                                    outcome.set(AvailabilityDomainMetrics.Outcome.CANCELLED);
+                                    log.info("用户:[{}] 其他可用域已创建成功,取消可用域:[{}]", user.getUserName(), availabilityDomain.getName());
+                                    return null;
+                                }
+                                launchReconciler.onLaunchReturned(user.getUserName(), request.getAttempt());
+                                outcome.set(AvailabilityDomainMetrics.Outcome.LAUNCHED);
+                                capacityBoard.recordSuccess(user.getRegion(), availabilityDomain.getName(),
+                                        request.getShape(), user.getUserName());
+                                OracleInstanceDetail detail = new OracleInstanceDetail();
+                                detail.setInstanceId(launched.getInstance().getId());
+                                detail.setWorkRequestId(launched.getOpcWorkRequestId());
+                                detail.setCompartmentId(compartmentId);
+                                detail.setImage(request.getImageId());
+                                detail.setUserName(user.getUserName());
+                                detail.setShape(request.getShape());
+                                log.info("用户:[{}] 可用域:[{}] 创建请求已被接受,实例:[{}] 工作请求:[{}]", user.getUserName(),
+                                        availabilityDomain.getName(), detail.getInstanceId(), detail.getWorkRequestId());
+                                return detail;
+                            });
+                })
+                .handle((detail, error) -> {
+                    try {
+                        if (error == null) {
+                            return detail;
+                        }
+                        if (launching.get() != null) {
+                            launchReconciler.onLaunchFailed(user, launching.get(), OciAsync.unwrap(error));
+                        }
+                        outcome.set(onError(user, compartmentId, availabilityDomain, launching.get(), gate,
+                                OciAsync.unwrap(error)));
+                        if (outcome.get() == AvailabilityDomainMetrics.Outcome.LIMIT_EXCEEDED) {
+                            throw new OciException(LIMIT_EXCEEDED);
+                        }
+                        return null;
+                    } finally {
+                        availabilityDomainMetrics.record(user.getRegion(), availabilityDomain.getName(), outcome.get(),
+                                System.currentTimeMillis() - start);
+                        FlightRecording.phase(Phase.AVAILABILITY_DOMAIN, context, phaseStart, outcome.get().name(), error);
+                    }
+                });
+    }
+
+    /**
+     * 冷路径: 选出可用域下第一个有镜像和网络的规格,并准备好创建参数; 缓存命中时只是内存查询
+     */
+    private LaunchRequest prepare(User user, long attempt, OciClients ociClients, String compartmentId, AvailabilityDomain availabilityDomain,
+                              ProvisioningContext context) {
+        try (ProvisioningContext.Scope ignored = context.bind()) {
+            List<Shape> shapes = FlightRecording.time(Phase.CATALOG, context,
+                    () -> computeCatalog.getShapes(user, ociClients.getComputeClient(), compartmentId, availabilityDomain));
+            for (Shape shape : shapes) {
+                context.setShape(shape.getShape());
+                Image image = FlightRecording.time(Phase.CATALOG, context,
+                        () -> computeCatalog.getImage(user, ociClients.getComputeClient(), compartmentId, shape));
+                if (image == null) continue;
+
+                NetworkScaffolding network = FlightRecording.time(Phase.NETWORK, context,
+                        () -> networkScaffoldingResolver.resolve(user, ociClients.getVirtualNetworkClient(), compartmentId, availabilityDomain));
+                if (null == network) {
+                    continue;
+                }
+                String cloudInitScript = SystemScriptShell.getShell(user.getRootPassword());
+                LaunchInstanceDetails details = OracleCloudService.createLaunchInstanceDetails(
+                        compartmentId, availabilityDomain,
+                        shape, image,
+                        network.getSubnet(), network.getNetworkSecurityGroup(),
+                        cloudInitScript, user, attempt);
+                return new LaunchRequest(attempt, availabilityDomain, shape.getShape(), image.getId(), details);
+            }
+            return null;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * 与同步引擎相同的错误分类: 客户端健康、缓存失效、容量不足与配额超限
+     */
+    private AvailabilityDomainMetrics.Outcome onError(User user, String compartmentId, AvailabilityDomain availabilityDomain,
+                                                      LaunchRequest launching, LaunchGate gate, Throwable e) {
+        if (gate.recordError(e) == TOO_MANY_REQUESTS) {
+            regionRateLimiter.onThrottled(user.getRegion(), e);
+        }
+        if (ociClientRegistry.reportFailure(user, e)) {
+            gate.clientFailed = true;
+        }
+        tenancyTopologyCache.invalidateIfStale(user, e);
+        networkScaffoldingResolver.invalidateIfNetworkError(user, e);
+        if (e instanceof BmcException) {
+            BmcException error = (BmcException) e;
+            if (error.getStatusCode() == 500 &&
+                    (error.getMessage().contains(CAPACITY.getErrorType()) || error.getMessage().contains(CAPACITY_HOST.getErrorType()))) {
+                if (launching != null) {
+                    capacityBoard.recordCapacityFailure(user.getRegion(), availabilityDomain.getName(), launching.getShape());
+                }
+                if (gate.remaining.decrementAndGet() > 0) {
+                    log.warn("可用域:[{}]容量不足,其他可用域继续执行....,具体原因为:[{}]", availabilityDomain.getName(), e.getMessage());
+                } else {
+                    log.warn("所有区域都容量不足,稍后重试,具体原因为:[{}]", e.getMessage());
+                }
+                return AvailabilityDomainMetrics.Outcome.CAPACITY;
+            }
+            if (error.getStatusCode() == 400 && error.getMessage().contains(LIMIT_EXCEEDED.getErrorType())) {
+                log.warn("当前区间:[{}]无法创建实例.配额已经超过限制,具体原因为:[{}]", compartmentId, error.getMessage());
+                return AvailabilityDomainMetrics.Outcome.LIMIT_EXCEEDED;
+            }
+        }
+        log.warn("出现错误了,原因为:{}", e.getMessage());
+        return AvailabilityDomainMetrics.Outcome.ERROR;
+    }
+
+    /**
+     * 异步客户端没有注册限流拦截器,发起请求前先异步排队取得区域令牌
+     */
+    private <T> CompletableFuture<T> limited(User user, ApiFamily family, Supplier<CompletableFuture<T>> call) {
+        return regionRateLimiter.acquireAsync(user.getRegion(), family).thenCompose(ignored -> call.get());
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * 一次尝试内各可用域共享的状态; 创建请求排队依次发出,前一个被接受后后续请求直接取消
+     */
+    private static final class LaunchGate {
+        private CompletableFuture<?> tail = CompletableFuture.completedFuture(null);
+        private volatile boolean launched;
+        private volatile boolean uncertain;
+        private volatile boolean clientFailed;
+        private ErrorCode errorCode;
+        private final AtomicInteger remaining;
+
+        private LaunchGate(int availabilityDomains) {
+            this.remaining = new AtomicInteger(availabilityDomains);
+        }
+
+        /**
+         * 记录可用域的失败原因,多个可用域失败时保留最需要放慢重试的那个
+         *
+         * @return 本次失败的原因
+         */
+        private ErrorCode recordError(Throwable e) {
+            return record(ErrorClassifier.classify(e));
+        }
+
+        private synchronized ErrorCode record(ErrorCode current) {
+            errorCode = ErrorClassifier.worse(errorCode, current);
+            return current;
+        }
+
+        /**
+         * 创建请求超时或网络失败时不知道是否已被接受,本次尝试的其他可用域不再发起创建
+         *
+         * @return 其他可用域已经创建成功,或者有结果未知的创建请求时结果为null
+         */
+        private synchronized <T> CompletableFuture<T> launch(Supplier<CompletableFuture<T>> request) {
+            CompletableFuture<T> next = tail
+                    .handle((ignored, error) -> null)
+                    .thenCompose(ignored -> {
+                        if (launched || uncertain) {
+                            return CompletableFuture.<T>completedFuture(null);
+                        }
+                        return request.get().whenComplete((response, error) -> {
+                            if (error != null && ErrorClassifier.classify(OciAsync.unwrap(error)) == NETWORK) {
+                                uncertain = true;
+                            }
+                        }).thenApply(response -> {
+                            launched = true;
+                            return response;
+                        });
+                    });
+            tail = next;
+            return next;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.doubledimple.ociserver.engine;
+
+import com.doubledimple.ociserver.domain.OracleInstanceDetail;
+import com.doubledimple.ociserver.domain.User;
+import com.doubledimple.ociserver.service.OracleCloudService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 同步引擎: 在调用线程上执行 {@link OracleCloudService#createInstanceData(User)},返回已完成的future
+ *
+ * @author doubleDimple
+ * @date 2024:10:15日 21:05
+ */
+@Component
+@ConditionalOnProperty(name = "oci.engine", havingValue = "blocking", matchIfMissing = true)
+public class BlockingProvisioningEngine implements ProvisioningEngine {
+
+    @Autowired
+    private OracleCloudService oracleCloudService;
+
+    @Override
+    public CompletableFuture<OracleInstanceDetail> provision(User user) {
+        CompletableFuture<OracleInstanceDetail> future = new CompletableFuture<>();
+        try {
+            future.complete(oracleCloudService.createInstanceData(user));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
@@ -0,0 +1,242 @@
+package com.doubledimple.ociserver.engine;
+
+import com.doubledimple.ociserver.client.OciClients;
+import com.doubledimple.ociserver.cluster.ClusterCoordinator;
+import com.doubledimple.ociserver.domain.OracleInstanceDetail;
+import com.doubledimple.ociserver.domain.User;
+import com.doubledimple.ociserver.exception.ErrorClassifier;
+import com.doubledimple.ociserver.exception.ErrorCode;
+import com.doubledimple.ociserver.metrics.OciMetrics;
+import com.doubledimple.ociserver.metrics.OciOperation;
+import com.oracle.bmc.core.model.Instance;
+import com.oracle.bmc.core.requests.ListInstancesRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 创建请求的幂等保护.
+ * <p>
+ * 每个创建请求带上由 (租户, 节点, 尝试次数, 可用域) 算出的固定 opc-retry-token,以及标明租户和尝试次数的自由标签.
+ * 创建请求超时或网络失败时无法确定服务端是否已经接受,下一次尝试不分配新的尝试次数,而是用相同的参数和token
+ * 在同一个可用域重发,服务端已经接受过时直接返回原来的实例; 重发得到明确结果后才清除未知状态.
+ * 重启或接手租户时没有保存请求参数,只能按标签查一次近期创建的实例:找到就当作已被接受交给跟踪器,找不到才重新创建.
+ * 这样客户端超时可以设得很短,重试也不会多创建实例
+ *
+ * @author doubleDimple
+ * @date 2024:10:19日 14:30
+ */
+@Component
+@Slf4j
+public class LaunchReconciler {
+
+    public static final String TENANT_TAG = "oci-start-tenant";
+    public static final String ATTEMPT_TAG = "oci-start-attempt";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    @Autowired
+    private OciMetrics ociMetrics;
+
+    @Autowired
+    private ClusterCoordinator clusterCoordinator;
+
+    /**
+     * 按标签核对时只查这段时间内创建的实例,与 opc-retry-token 的有效期一致
+     */
+    @Value("${oci.reconcile.lookback-hours:24}")
+    private long lookbackHours = 24;
+
+    /**
+     * 租户 -> 结果未知的最早一次创建请求
+     */
+    private final Map<String, Uncertain> uncertain = new ConcurrentHashMap<>();
+
+    /**
+     * 同一次尝试在同一个可用域的请求(包括SDK自身的重试和结果未知后的重发)使用相同的token,服务端只会创建一次.
+     * 集群中各节点的尝试次数各自累加,token里带上节点标识,租户换节点后不会和上一任节点的token重复
+     */
+    public String retryToken(User user, long attempt, String availabilityDomain) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((user.getTenancy() + "|" + user.getUserName() + "|" + clusterCoordinator.getNodeId()
+                    + "|" + attempt + "|" + availabilityDomain).getBytes(StandardCharsets.UTF_8));
+            char[] token = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                token[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+                token[i * 2 + 1] = HEX[hash[i] & 0xF];
+            }
+            return new String(token);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static Map<String, String> freeformTags(User user, long attempt) {
+        Map<String, String> tags = new HashMap<>();
+        tags.put(TENANT_TAG, user.getUserName());
+        tags.put(ATTEMPT_TAG, String.valueOf(attempt));
+        return tags;
+    }
+
+    /**
+     * 创建请求失败后调用: 网络失败或超时时保存请求,下一次尝试原样重发; 其余错误说明请求已有明确结果
+     */
+    public void onLaunchFailed(User user, LaunchRequest request, Throwable e) {
+        if (ErrorClassifier.classify(e) != ErrorCode.NETWORK) {
+            onLaunchReturned(user.getUserName(), request.getAttempt());
+            return;
+        }
+        uncertain.merge(user.getUserName(), new Uncertain(request.getAttempt(), request), Uncertain::earlier);
+        log.warn("租户:[{}] 第[{}]次尝试的创建请求结果未知,下一次尝试用相同的token在可用域:[{}]重发",
+                user.getUserName(), request.getAttempt(), request.getAvailabilityDomain().getName());
+    }
+
+    /**
+     * 创建请求得到明确结果(被接受或被拒绝)后调用,清除该次尝试的未知状态
+     */
+    public void onLaunchReturned(String userName, long attempt) {
+        uncertain.computeIfPresent(userName, (key, current) -> current.attempt == attempt ? null : current);
+    }
+
+    /**
+     * 标记该次及之后的尝试结果未知但没有请求参数,例如重启前最后一次尝试,下一次尝试前按标签核对
+     */
+    public void markUncertain(String userName, long attempt) {
+        uncertain.merge(userName, new Uncertain(attempt, null), Uncertain::earlier);
+    }
+
+    /**
+     * @return 需要用相同token重发的创建请求,没有时返回null
+     */
+    public LaunchRequest pendingReplay(String userName) {
+        Uncertain current = uncertain.get(userName);
+        return current == null ? null : current.request;
+    }
+
+    /**
+     * @return 结果未知(等待重发或核对)的最早一次尝试,没有时返回 Long.MAX_VALUE; 这次及之后的尝试创建的实例可能仍会被采用
+     */
+    public long uncertainSince(String userName) {
+        Uncertain current = uncertain.get(userName);
+        return current == null ? Long.MAX_VALUE : current.attempt;
+    }
+
+    /**
+     * @return 是否有只知道尝试次数、需要按标签核对的创建请求
+     */
+    public boolean isUncertain(String userName) {
+        Uncertain current = uncertain.get(userName);
+        return current != null && current.request == null;
+    }
+
+    /**
+     * 有只知道尝试次数的创建请求时,按标签查找这些请求创建出的实例. 实例按创建时间倒序列出,
+     * 早于核对范围的实例不可能是这些请求创建的,遇到后不再翻页
+     *
+     * @return 找到的实例,视为创建请求已被接受; 没有需要核对的请求或者没有找到时返回null
+     */
+    public OracleInstanceDetail reconcile(User user, OciClients ociClients, String compartmentId) {
+        Uncertain current = uncertain.get(user.getUserName());
+        if (current == null || current.request != null) {
+            return null;
+        }
+        long since = current.attempt;
+        long notBefore = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(lookbackHours);
+        OracleInstanceDetail found = null;
+        long start = ociMetrics.startOperation();
+        Throwable error = null;
+        try {
+            for (Instance instance : ociClients.getComputeClient().getPaginators()
+                    .listInstancesRecordIterator(ListInstancesRequest.builder()
+                            .compartmentId(compartmentId)
+                            .sortBy(ListInstancesRequest.SortBy.Timecreated)
+                            .sortOrder(ListInstancesRequest.SortOrder.Desc)
+                            .build())) {
+                if (instance.getTimeCreated() != null && instance.getTimeCreated().getTime() < notBefore) {
+                    break;
+                }
+                if (matches(user, since, instance)) {
+                    found = new OracleInstanceDetail();
+                    found.setInstanceId(instance.getId());
+                    found.setCompartmentId(compartmentId);
+                    found.setImage(instance.getImageId());
+                    found.setShape(instance.getShape());
+                    found.setUserName(user.getUserName());
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            ociMetrics.endOperation(OciOperation.LIST_INSTANCES, start, error);
+        }
+        uncertain.remove(user.getUserName(), current);
+        if (found != null) {
+            log.info("租户:[{}] 结果未知的创建请求实际已被接受,实例:[{}],不再重复创建", user.getUserName(), found.getInstanceId());
+        }
+        return found;
+    }
+
+    /**
+     * @return 实例是否由本工具为该租户创建
+     */
+    public static boolean isTenantInstance(User user, Instance instance) {
+        Map<String, String> tags = instance.getFreeformTags();
+        return tags != null && user.getUserName().equals(tags.get(TENANT_TAG));
+    }
+
+    /**
+     * @return 创建实例的尝试次数,没有尝试标签时返回-1
+     */
+    public static long attemptOf(Instance instance) {
+        Map<String, String> tags = instance.getFreeformTags();
+        if (tags == null || tags.get(ATTEMPT_TAG) == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(tags.get(ATTEMPT_TAG));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean matches(User user, long since, Instance instance) {
+        if (!isTenantInstance(user, instance)) {
+            return false;
+        }
+        Instance.LifecycleState state = instance.getLifecycleState();
+        if (state == Instance.LifecycleState.Terminating || state == Instance.LifecycleState.Terminated) {
+            return false;
+        }
+        return attemptOf(instance) >= since;
+    }
+
+    private static final class Uncertain {
+        private final long attempt;
+
+        /**
+         * 请求参数,重启或接手租户时为null
+         */
+        private final LaunchRequest request;
+
+        private Uncertain(long attempt, LaunchRequest request) {
+            this.attempt = attempt;
+            this.request = request;
+        }
+
+        private static Uncertain earlier(Uncertain current, Uncertain next) {
+            return current.attempt <= next.attempt ? current : next;
+        }
+    }
+}
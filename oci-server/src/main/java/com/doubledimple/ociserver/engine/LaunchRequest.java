@@ -0,0 +1,31 @@
+package com.doubledimple.ociserver.engine;
+
+import com.oracle.bmc.core.model.LaunchInstanceDetails;
+import com.oracle.bmc.identity.model.AvailabilityDomain;
+import lombok.Getter;
+
+/**
+ * 一次创建请求的参数: 所属尝试、可用域、规格、镜像和完整的创建参数.
+ * 请求结果未知时原样保存,下一次尝试用相同的参数和 opc-retry-token 重发,服务端不会重复创建
+ *
+ * @author doubleDimple
+ * @date 2024:10:21日 09:40
+ */
+@Getter
+public class LaunchRequest {
+
+    private final long attempt;
+    private final AvailabilityDomain availabilityDomain;
+    private final String shape;
+    private final String imageId;
+    private final LaunchInstanceDetails details;
+
+    public LaunchRequest(long attempt, AvailabilityDomain availabilityDomain, String shape, String imageId,
+                         LaunchInstanceDetails details) {
+        this.attempt = attempt;
+        this.availabilityDomain = availabilityDomain;
+        this.shape = shape;
+        this.imageId = imageId;
+        this.details = details;
+    }
+}
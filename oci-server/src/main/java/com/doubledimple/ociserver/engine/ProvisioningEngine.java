@@ -0,0 +1,22 @@
+package com.doubledimple.ociserver.engine;
+
+import com.doubledimple.ociserver.domain.OracleInstanceDetail;
+import com.doubledimple.ociserver.domain.User;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 创建实例引擎,通过 oci.engine 选择实现: blocking(默认) 或 async
+ *
+ * @author doubleDimple
+ * @date 2024:10:15日 21:02
+ */
+public interface ProvisioningEngine {
+
+    /**
+     * 对租户执行一次创建尝试
+     *
+     * @return 创建成功时结果中带有公网IP; 配额超限时以 OciException 异常结束
+     */
+    CompletableFuture<OracleInstanceDetail> provision(User user);
+}
@@ -0,0 +1,272 @@
+package com.doubledimple.ociserver.engine;
+
+import com.doubledimple.ociserver.client.OciClientRegistry;
+import com.doubledimple.ociserver.client.OciClients;
+import com.doubledimple.ociserver.config.MultiUserAuthenticationDetailsProvider;
+import com.doubledimple.ociserver.domain.OracleInstanceDetail;
+import com.doubledimple.ociserver.domain.User;
+import com.doubledimple.ociserver.metrics.OciMetrics;
+import com.doubledimple.ociserver.metrics.OciOperation;
+import com.doubledimple.ociserver.metrics.ProvisioningContext;
+import com.doubledimple.ociserver.util.DaemonThreads;
+import com.oracle.bmc.core.model.Instance;
+import com.oracle.bmc.core.model.Vnic;
+import com.oracle.bmc.core.model.VnicAttachment;
+import com.oracle.bmc.core.requests.GetInstanceRequest;
+import com.oracle.bmc.core.requests.GetVnicRequest;
+import com.oracle.bmc.core.requests.ListVnicAttachmentsRequest;
+import com.oracle.bmc.model.BmcException;
+import com.oracle.bmc.workrequests.model.WorkRequest;
+import com.oracle.bmc.workrequests.model.WorkRequestError;
+import com.oracle.bmc.workrequests.requests.GetWorkRequestRequest;
+import com.oracle.bmc.workrequests.requests.ListWorkRequestErrorsRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 跟踪已被接受的创建请求,直到实例拿到公网IP.
+ * <p>
+ * 引擎在创建请求被接受后立即返回,所有租户未完成的实例都交给这里的单个线程定时轮询:
+ * 每个实例按ID依次经过 工作请求完成 -> 实例Running -> VNIC有公网IP 三个阶段,
+ * 全部完成后才完成该实例的future
+ *
+ * @author doubleDimple
+ * @date 2024:10:17日 15:20
+ */
+@Component
+@Slf4j
+public class WorkRequestTracker {
+
+    @Value("${oci.tracker.poll-seconds:5}")
+    private long pollSeconds = 5;
+
+    /**
+     * 创建请求被接受后超过该时间仍未拿到公网IP时放弃跟踪
+     */
+    @Value("${oci.tracker.timeout-minutes:20}")
+    private long timeoutMinutes = 20;
+
+    @Autowired
+    private MultiUserAuthenticationDetailsProvider multiUserAuthenticationDetailsProvider;
+
+    @Autowired
+    private OciClientRegistry ociClientRegistry;
+
+    @Autowired
+    private OciMetrics ociMetrics;
+
+    /**
+     * 实例ID -> 跟踪状态
+     */
+    private final Map<String, Tracked> outstanding = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("work-request-tracker"));
+
+    @PostConstruct
+    public void start() {
+        poller.scheduleWithFixedDelay(this::poll, pollSeconds, pollSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        poller.shutdownNow();
+        for (Tracked tracked : outstanding.values()) {
+            tracked.future.completeExceptionally(new CancellationException("服务关闭,停止跟踪实例:[" + tracked.detail.getInstanceId() + "]"));
+        }
+        outstanding.clear();
+    }
+
+    /**
+     * 开始跟踪一个已被接受的创建请求
+     *
+     * @return 拿到公网IP时完成; 工作请求失败、实例终止或超时时异常完成
+     */
+    public CompletableFuture<OracleInstanceDetail> track(User user, OracleInstanceDetail detail) {
+        Tracked tracked = new Tracked(user, detail,
+                System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(timeoutMinutes));
+        outstanding.put(detail.getInstanceId(), tracked);
+        log.info("用户:[{}] 开始跟踪实例:[{}],当前跟踪中的实例数:[{}]", user.getUserName(), detail.getInstanceId(), outstanding.size());
+        return tracked.future;
+    }
+
+    public int getOutstanding() {
+        return outstanding.size();
+    }
+
+    private void poll() {
+        try {
+            Map<String, List<Tracked>> groups = new HashMap<>();
+            for (Tracked tracked : outstanding.values()) {
+                groups.computeIfAbsent(tracked.user.getUserName() + "|" + tracked.detail.getCompartmentId(),
+                        key -> new ArrayList<>()).add(tracked);
+            }
+            for (List<Tracked> group : groups.values()) {
+                User user = group.get(0).user;
+                try (ProvisioningContext.Scope ignored =
+                             new ProvisioningContext(user.getUserName(), user.getRegion(), null).bind()) {
+                    pollGroup(user, group.get(0).detail.getCompartmentId(), group);
+                } catch (Exception e) {
+                    ociClientRegistry.reportFailure(user, e);
+                    log.warn("用户:[{}] 查询实例创建进度失败,下次继续,原因为:[{}]", user.getUserName(), e.getMessage());
+                }
+            }
+            long now = System.currentTimeMillis();
+            for (Tracked tracked : outstanding.values()) {
+                if (now > tracked.deadline) {
+                    fail(tracked, new TimeoutException("等待实例:[" + tracked.detail.getInstanceId() + "] 获取公网IP超时,最后阶段:" + tracked.phase));
+                }
+            }
+        } catch (Exception e) {
+            log.warn("跟踪实例创建进度出现错误,原因为:[{}]", e.getMessage());
+        }
+    }
+
+    /**
+     * 同一租户同一区间的实例一起推进; 每个实例只按ID查询自己的工作请求、实例和VNIC挂载,
+     * 请求数与跟踪中的实例数成正比,与租户下已有的实例和工作请求数量无关
+     */
+    private void pollGroup(User user, String compartmentId, List<Tracked> group) throws Exception {
+        OciClients ociClients = ociClientRegistry.get(user, multiUserAuthenticationDetailsProvider.getProvider(user));
+        for (Tracked tracked : inPhase(group, Phase.WORK_REQUEST)) {
+            pollWorkRequest(ociClients, tracked);
+        }
+        for (Tracked tracked : inPhase(group, Phase.INSTANCE)) {
+            pollInstance(ociClients, tracked);
+        }
+        for (Tracked tracked : inPhase(group, Phase.VNIC)) {
+            pollVnic(ociClients, compartmentId, tracked);
+        }
+    }
+
+    private void pollWorkRequest(OciClients ociClients, Tracked tracked) throws Exception {
+        String workRequestId = tracked.detail.getWorkRequestId();
+        WorkRequest workRequest;
+        try {
+            workRequest = ociMetrics.timed(OciOperation.GET_WORK_REQUEST, () -> ociClients.getWorkRequestClient()
+                    .getWorkRequest(GetWorkRequestRequest.builder().workRequestId(workRequestId).build())
+                    .getWorkRequest());
+        } catch (BmcException e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+            // 查不到的工作请求直接以实例状态为准
+            tracked.phase = Phase.INSTANCE;
+            return;
+        }
+        WorkRequest.Status status = workRequest.getStatus();
+        if (status == WorkRequest.Status.Succeeded) {
+            tracked.phase = Phase.INSTANCE;
+        } else if (status == WorkRequest.Status.Failed || status == WorkRequest.Status.Canceled) {
+            fail(tracked, new IllegalStateException("工作请求:[" + workRequestId + "] 状态为:" + status
+                    + ",原因为:" + firstError(ociClients, workRequestId)));
+        } else {
+            log.debug("工作请求:[{}] 状态:[{}] 进度:[{}]%", workRequestId, status, workRequest.getPercentComplete());
+        }
+    }
+
+    private void pollInstance(OciClients ociClients, Tracked tracked) throws Exception {
+        String instanceId = tracked.detail.getInstanceId();
+        Instance instance;
+        try {
+            instance = ociMetrics.timed(OciOperation.GET_INSTANCE, () -> ociClients.getComputeClient()
+                    .getInstance(GetInstanceRequest.builder().instanceId(instanceId).build())
+                    .getInstance());
+        } catch (BmcException e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+            // 刚创建的实例可能还查不到,下次继续
+            return;
+        }
+        Instance.LifecycleState state = instance.getLifecycleState();
+        if (state == Instance.LifecycleState.Running) {
+            log.info("Launched Instance: " + instanceId);
+            tracked.phase = Phase.VNIC;
+        } else if (state == Instance.LifecycleState.Terminating || state == Instance.LifecycleState.Terminated) {
+            fail(tracked, new IllegalStateException("实例:[" + instanceId + "] 启动失败,当前状态为:" + state));
+        }
+    }
+
+    private void pollVnic(OciClients ociClients, String compartmentId, Tracked tracked) throws Exception {
+        String instanceId = tracked.detail.getInstanceId();
+        List<VnicAttachment> attachments = ociMetrics.timed(OciOperation.LIST_VNIC_ATTACHMENTS, () -> ociClients.getComputeClient()
+                .listVnicAttachments(ListVnicAttachmentsRequest.builder()
+                        .compartmentId(compartmentId)
+                        .instanceId(instanceId)
+                        .build())
+                .getItems());
+        for (VnicAttachment attachment : attachments) {
+            if (attachment.getLifecycleState() != VnicAttachment.LifecycleState.Attached) {
+                continue;
+            }
+            Vnic vnic = ociMetrics.timed(OciOperation.GET_VNIC, () -> ociClients.getVirtualNetworkClient()
+                    .getVnic(GetVnicRequest.builder().vnicId(attachment.getVnicId()).build())
+                    .getVnic());
+            if (vnic.getPublicIp() == null) {
+                continue;
+            }
+            log.info("Virtual Network Interface Card :" + vnic.getId());
+            log.info("Public IP :" + vnic.getPublicIp());
+            log.info("Private IP :" + vnic.getPrivateIp());
+            tracked.detail.setPublicIp(vnic.getPublicIp());
+            if (outstanding.remove(instanceId, tracked)) {
+                tracked.future.complete(tracked.detail);
+            }
+            return;
+        }
+    }
+
+    private static String firstError(OciClients ociClients, String workRequestId) {
+        try {
+            for (WorkRequestError error : ociClients.getWorkRequestClient().getPaginators()
+                    .listWorkRequestErrorsRecordIterator(ListWorkRequestErrorsRequest.builder().workRequestId(workRequestId).build())) {
+                return error.getMessage();
+            }
+            return "未知";
+        } catch (Exception e) {
+            return e.getMessage();
+        }
+    }
+
+    private List<Tracked> inPhase(List<Tracked> group, Phase phase) {
+        List<Tracked> matched = new ArrayList<>();
+        for (Tracked tracked : group) {
+            if (tracked.phase == phase && !tracked.future.isDone()) {
+                matched.add(tracked);
+            }
+        }
+        return matched;
+    }
+
+    private void fail(Tracked tracked, Exception e) {
+        if (outstanding.remove(tracked.detail.getInstanceId(), tracked)) {
+            tracked.future.completeExceptionally(e);
+        }
+    }
+
+    private enum Phase {
+        WORK_REQUEST, INSTANCE, VNIC
+    }
+
+    private static final class Tracked {
+        private final User user;
+        private final OracleInstanceDetail detail;
+        private final long deadline;
+        private final CompletableFuture<OracleInstanceDetail> future = new CompletableFuture<>();
+        private Phase phase;
+
+        private Tracked(User user, OracleInstanceDetail detail, long deadline) {
+            this.user = user;
+            this.detail = detail;
+            this.deadline = deadline;
+            // 没有工作请求ID时直接看实例状态
+            this.phase = detail.getWorkRequestId() == null ? Phase.INSTANCE : Phase.WORK_REQUEST;
+        }
+    }
+}
@@ -46,4 +46,12 @@ public enum ArchitectureEnum {
         }
         return null;
     }
+
+    /**
+     * 未配置或配置错误时默认为ARM
+     */
+    public static ArchitectureEnum getTypeOrDefault(String type){
+        ArchitectureEnum value = getType(type);
+        return value == null ? ARM : value;
+    }
 }
@@ -8,20 +8,42 @@ import static com.oracle.bmc.core.model.Shape.BillingType.LimitedFree;
 public enum MessageEnum {
 
 
-    TELEGRAM("TELEGRAM"),
+    /**
+     * Telegram机器人接口限制为每秒30条
+     */
+    TELEGRAM("TELEGRAM", 30, 1),
 
-    DING_DING("DING_DING"),
+    /**
+     * 钉钉自定义机器人限制为每分钟20条
+     */
+    DING_DING("DING_DING", 20, 60),
 
     ;
 
-    MessageEnum(String type){
+    MessageEnum(String type, int permits, long periodSeconds){
         this.type = type;
+        this.permits = permits;
+        this.periodSeconds = periodSeconds;
     }
     private String type;
 
+    /**
+     * 每个周期内允许发送的消息数,可以通过 oci.notify.channels 覆盖
+     */
+    private int permits;
+    private long periodSeconds;
+
 
     public String getType(){
         return type;
     }
 
+    public int getPermits(){
+        return permits;
+    }
+
+    public long getPeriodSeconds(){
+        return periodSeconds;
+    }
+
 }
@@ -0,0 +1,78 @@
+package com.doubledimple.ociserver.exception;
+
+import com.oracle.bmc.model.BmcException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static com.doubledimple.ociserver.exception.ErrorCode.*;
+
+/**
+ * 把一次尝试中出现的异常归类到 {@link ErrorCode},用于决定下一次尝试的间隔
+ *
+ * @author doubleDimple
+ * @date 2024:10:16日 09:40
+ */
+public final class ErrorClassifier {
+
+    /**
+     * 同一次尝试中多个可用域失败原因不同时,按此顺序取最需要放慢的那个
+     */
+    private static final List<ErrorCode> SEVERITY = Arrays.asList(
+            TOO_MANY_REQUESTS, CAPACITY, TRANSIENT, NETWORK, NO_PUBLIC_IP);
+
+    private ErrorClassifier() {
+    }
+
+    public static ErrorCode classify(Throwable e) {
+        if (e instanceof OciException && LIMIT_EXCEEDED.getMessage().equals(e.getMessage())) {
+            return LIMIT_EXCEEDED;
+        }
+        if (e instanceof BmcException) {
+            BmcException error = (BmcException) e;
+            String message = String.valueOf(error.getMessage());
+            if (error.getStatusCode() == 429) {
+                return TOO_MANY_REQUESTS;
+            }
+            if (message.contains(CAPACITY.getErrorType()) || message.contains(CAPACITY_HOST.getErrorType())) {
+                return CAPACITY;
+            }
+            if (error.getStatusCode() == 400 && message.contains(LIMIT_EXCEEDED.getErrorType())) {
+                return LIMIT_EXCEEDED;
+            }
+            if (error.isClientSide() || error.isTimeout()) {
+                return NETWORK;
+            }
+            return TRANSIENT;
+        }
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException || cause instanceof TimeoutException) {
+                return NETWORK;
+            }
+        }
+        return TRANSIENT;
+    }
+
+    /**
+     * @return 两个失败原因中更需要放慢重试的那个
+     */
+    public static ErrorCode worse(ErrorCode current, ErrorCode candidate) {
+        if (current == null) {
+            return candidate;
+        }
+        if (candidate == null) {
+            return current;
+        }
+        int currentIndex = SEVERITY.indexOf(current);
+        int candidateIndex = SEVERITY.indexOf(candidate);
+        if (currentIndex < 0) {
+            return candidate;
+        }
+        if (candidateIndex < 0) {
+            return current;
+        }
+        return candidateIndex < currentIndex ? candidate : current;
+    }
+}
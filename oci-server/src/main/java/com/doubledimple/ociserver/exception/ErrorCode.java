@@ -5,6 +5,10 @@ public enum ErrorCode {
     LIMIT_EXCEEDED(400,"LimitExceeded", "无法创建 always free 机器.配额已经超过免费额度"),
     CAPACITY(500,"Out of capacity", "Out of capacity"),
     CAPACITY_HOST(500,"Out of host capacity", "Out of host capacity"),
+    TOO_MANY_REQUESTS(429,"TooManyRequests", "请求过于频繁,已被限流"),
+    TRANSIENT(500,"InternalError", "服务端临时错误"),
+    NETWORK(-1,"Network", "网络连接失败或超时"),
+    NO_PUBLIC_IP(200,"NoPublicIp", "本次尝试没有获得公网IP"),
 
     ;
 
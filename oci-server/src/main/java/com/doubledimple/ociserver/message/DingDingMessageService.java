@@ -1,17 +1,34 @@
 package com.doubledimple.ociserver.message;
 
+import com.doubledimple.ociserver.config.NotifyProperties;
 import com.doubledimple.ociserver.domain.OracleInstanceDetail;
 import com.doubledimple.ociserver.enums.MessageEnum;
+import com.doubledimple.ociserver.message.dispatch.NotificationDispatcher;
+import com.doubledimple.ociserver.message.dispatch.WebhookClient;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
 
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
+ * 钉钉自定义机器人推送,配置了加签密钥时每次请求按钉钉的规则签名
+ *
  * @author doubleDimple
  * @date 2024:09:22日 16:01
  */
@@ -19,11 +36,38 @@ import java.net.URLEncoder;
 @Slf4j
 public class DingDingMessageService implements MessageService {
 
-    private static final String DING_DING_URL="https://api.telegram.org/bot%s/sendMessage?chat_id=%s&text=%s";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    /**
+     * 钉钉返回的发送过快错误码
+     */
+    private static final int SEND_TOO_FAST = 130101;
+
+    /**
+     * 机器人的Webhook地址,形如 https://oapi.dingtalk.com/robot/send?access_token=xxx
+     */
+    @Value("${dingding.webhook:}")
+    private String webhook = "";
+
+    /**
+     * 机器人安全设置中的加签密钥,没有开启加签时留空
+     */
+    @Value("${dingding.secret:}")
+    private String secret = "";
+
+    private final NotificationDispatcher notificationDispatcher;
+    private final WebhookClient webhookClient;
+
+    @Autowired
+    public DingDingMessageService(NotificationDispatcher notificationDispatcher, NotifyProperties notifyProperties) {
+        this.notificationDispatcher = notificationDispatcher;
+        this.webhookClient = new WebhookClient(notifyProperties.getConnectTimeoutMillis(), notifyProperties.getReadTimeoutMillis());
+    }
 
     @Override
     public void sendMessage(OracleInstanceDetail instanceData) {
-       log.info("推送钉钉消息开始.....");
+        log.info("推送钉钉消息开始.....");
+        notificationDispatcher.submit(MessageEnum.DING_DING, robotKey(), formatMessage(instanceData), this::doSend);
     }
 
     @Override
@@ -33,6 +77,66 @@ public class DingDingMessageService implements MessageService {
 
     @Override
     public void sendErrorMessage(String s) {
+        notificationDispatcher.submitDigest(MessageEnum.DING_DING, robotKey(), s, this::doSend);
+    }
 
+    @Override
+    public boolean isEnabled() {
+        return StringUtils.hasText(webhook);
     }
+
+    public String formatMessage(OracleInstanceDetail instanceData) {
+        String currentTime = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        return String.format(MESSAGE_TEMPLATE, currentTime, instanceData.getPublicIp(), instanceData.getUserName());
+    }
+
+    private String robotKey() {
+        return MessageEnum.DING_DING.getType() + ":" + webhook.hashCode();
+    }
+
+    /**
+     * 钉钉不论成功与否都返回200,实际结果在响应体的errcode中,这里换算成对应的HTTP状态交给重试判断
+     */
+    private WebhookClient.Response doSend(String message) throws IOException {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("msgtype", "text");
+        body.put("text", Collections.singletonMap("content", message));
+        WebhookClient.Response response = webhookClient.postJson(signedUrl(), OBJECT_MAPPER.writeValueAsBytes(body));
+        if (!response.isSuccess()) {
+            return response;
+        }
+        JsonNode result = OBJECT_MAPPER.readTree(response.getBody());
+        int errcode = result.path("errcode").asInt(0);
+        if (errcode == 0) {
+            log.info("钉钉消息发送成功");
+            return response;
+        }
+        log.info("钉钉消息发送失败,错误码:[{}] 原因:[{}]", errcode, result.path("errmsg").asText());
+        return WebhookClient.Response.of(errcode == SEND_TOO_FAST ? 429 : 400, response.getBody(), 0);
+    }
+
+    private String signedUrl() throws IOException {
+        if (!StringUtils.hasText(secret)) {
+            return webhook;
+        }
+        long timestamp = System.currentTimeMillis();
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            byte[] signature = mac.doFinal((timestamp + "\n" + secret).getBytes(StandardCharsets.UTF_8));
+            String sign = URLEncoder.encode(Base64.getEncoder().encodeToString(signature), "UTF-8");
+            return webhook + (webhook.contains("?") ? "&" : "?") + "timestamp=" + timestamp + "&sign=" + sign;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("钉钉消息签名失败", e);
+        }
+    }
+
+    private static final String MESSAGE_TEMPLATE =
+            "🚀 New Instance Deployed Successfully\n\n" +
+                    "Timestamp: %s\n\n" +
+                    "Instance Details:\n" +
+                    "   IP: %s\n" +
+                    "   USER: %s\n\n" +
+                    "The source code address is:(https://github.com/doubleDimple)\n\n" +
+                    "Powered by oci-start";
 }
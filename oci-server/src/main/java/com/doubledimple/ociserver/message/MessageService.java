@@ -11,4 +11,11 @@ public interface MessageService {
     MessageEnum getMessageType();
 
     void sendErrorMessage(String s);
+
+    /**
+     * 是否已配置,未配置的渠道不参与推送
+     */
+    default boolean isEnabled() {
+        return true;
+    }
 }
@@ -0,0 +1,71 @@
+package com.doubledimple.ociserver.message;
+
+import com.doubledimple.ociserver.config.NotifyProperties;
+import com.doubledimple.ociserver.domain.OracleInstanceDetail;
+import com.doubledimple.ociserver.enums.MessageEnum;
+import com.doubledimple.ociserver.message.factory.MessageFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * 消息总线: 把每条消息同时投递到配置的所有推送渠道.
+ * 各渠道只是放进自己的发送队列,投递本身不会阻塞,也不会因为某个渠道失败而漏掉其他渠道
+ *
+ * @author doubleDimple
+ * @date 2024:10:17日 20:10
+ */
+@Component
+@Slf4j
+public class NotificationBus {
+
+    private final MessageFactory messageFactory;
+    private final NotifyProperties notifyProperties;
+
+    @Autowired
+    public NotificationBus(MessageFactory messageFactory, NotifyProperties notifyProperties) {
+        this.messageFactory = messageFactory;
+        this.notifyProperties = notifyProperties;
+    }
+
+    public void publishInstance(OracleInstanceDetail instanceData) {
+        publish(notifyProperties.getInstanceChannels(), service -> service.sendMessage(instanceData));
+    }
+
+    public void publishError(String message) {
+        publish(notifyProperties.getErrorChannels(), service -> service.sendErrorMessage(message));
+    }
+
+    /**
+     * @return 当前会推送的渠道
+     */
+    public List<MessageEnum> activeChannels(Set<MessageEnum> routes) {
+        List<MessageEnum> channels = new ArrayList<>();
+        for (MessageService service : messageFactory.getAll()) {
+            if (service.isEnabled() && (routes.isEmpty() || routes.contains(service.getMessageType()))) {
+                channels.add(service.getMessageType());
+            }
+        }
+        return channels;
+    }
+
+    private void publish(Set<MessageEnum> routes, Consumer<MessageService> send) {
+        List<MessageEnum> channels = activeChannels(routes);
+        if (channels.isEmpty()) {
+            log.warn("没有可用的消息推送渠道,请检查推送配置");
+            return;
+        }
+        for (MessageEnum channel : channels) {
+            try {
+                send.accept(messageFactory.getType(channel));
+            } catch (Exception e) {
+                log.warn("渠道:[{}] 投递消息失败,原因为:[{}]", channel, e.getMessage());
+            }
+        }
+    }
+}
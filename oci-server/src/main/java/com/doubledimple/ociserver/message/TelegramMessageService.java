@@ -1,17 +1,25 @@
 package com.doubledimple.ociserver.message;
 
+import com.doubledimple.ociserver.config.NotifyProperties;
 import com.doubledimple.ociserver.domain.OracleInstanceDetail;
 import com.doubledimple.ociserver.enums.MessageEnum;
+import com.doubledimple.ociserver.message.dispatch.NotificationDispatcher;
+import com.doubledimple.ociserver.message.dispatch.WebhookClient;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
 
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
+import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author doubleDimple
@@ -21,18 +29,31 @@ import java.time.format.DateTimeFormatter;
 @Slf4j
 public class TelegramMessageService implements MessageService {
 
-    private static final String TG_URL="https://api.telegram.org/bot%s/sendMessage?chat_id=%s&text=%s";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
     @Value("${telegram.chatId}")
     private String chatId;
 
     @Value("${telegram.token}")
     private String botToken;
 
+    @Value("${telegram.api-url:https://api.telegram.org}")
+    private String apiUrl = "https://api.telegram.org";
+
+    private final NotificationDispatcher notificationDispatcher;
+    private final WebhookClient webhookClient;
+
+    @Autowired
+    public TelegramMessageService(NotificationDispatcher notificationDispatcher, NotifyProperties notifyProperties) {
+        this.notificationDispatcher = notificationDispatcher;
+        this.webhookClient = new WebhookClient(notifyProperties.getConnectTimeoutMillis(), notifyProperties.getReadTimeoutMillis());
+    }
+
     @Override
     public void sendMessage(OracleInstanceDetail instanceData) {
         log.info("推送TG消息开始...");
         String message = formatMessage(instanceData);
-        doSend(message);
+        notificationDispatcher.submit(MessageEnum.TELEGRAM, chatKey(), message, this::doSend);
     }
 
     @Override
@@ -42,7 +63,7 @@ public class TelegramMessageService implements MessageService {
 
     @Override
     public void sendErrorMessage(String s) {
-        doSend(s);
+        notificationDispatcher.submitDigest(MessageEnum.TELEGRAM, chatKey(), s, this::doSend);
     }
 
 
@@ -56,27 +77,46 @@ public class TelegramMessageService implements MessageService {
     }
 
 
-    private void doSend(String message){
+    @Override
+    public boolean isEnabled() {
+        return StringUtils.hasText(botToken) && StringUtils.hasText(chatId);
+    }
+
+    private String chatKey() {
+        return MessageEnum.TELEGRAM.getType() + ":" + chatId;
+    }
+
+    /**
+     * 消息放在POST请求体中,不再拼到URL里,长消息和特殊字符都不受URL长度和编码的限制.
+     * 被限流时Telegram把等待秒数放在响应体的 parameters.retry_after 中,这里换算成等待时间交给重试判断
+     */
+    private WebhookClient.Response doSend(String message) throws IOException {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("chat_id", chatId);
+        body.put("text", message);
+        WebhookClient.Response response = webhookClient.postJson(apiUrl + "/bot" + botToken + "/sendMessage",
+                OBJECT_MAPPER.writeValueAsBytes(body));
+        if (response.isSuccess()) {
+            log.info("Message sent successfully!");
+            return response;
+        }
+        log.info("Failed to send message, response code: [{}]", response.getStatus());
+        long retryAfterMillis = retryAfterMillis(response.getBody());
+        if (retryAfterMillis <= response.getRetryAfterMillis()) {
+            return response;
+        }
+        return WebhookClient.Response.of(response.getStatus(), response.getBody(), retryAfterMillis);
+    }
+
+    /**
+     * @return 响应体中要求的等待时间,没有或不是JSON时为0
+     */
+    private static long retryAfterMillis(String responseBody) {
         try {
-            String encodedMessage = URLEncoder.encode(message, "UTF-8");
-            String urlString = String.format(TG_URL,
-                    botToken, chatId, encodedMessage);
-
-            URL url = new URL(urlString);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-            connection.connect();
-
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                log.info("Message sent successfully!");
-            } else {
-                log.info("Failed to send message, response code: [{}]",responseCode);
-            }
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        } catch (Exception e) {
-            e.printStackTrace();
+            JsonNode result = OBJECT_MAPPER.readTree(responseBody);
+            return result == null ? 0 : TimeUnit.SECONDS.toMillis(result.path("parameters").path("retry_after").asLong(0));
+        } catch (JsonProcessingException e) {
+            return 0;
         }
     }
 
@@ -0,0 +1,377 @@
+package com.doubledimple.ociserver.message.dispatch;
+
+import com.doubledimple.ociserver.config.NotifyProperties;
+import com.doubledimple.ociserver.enums.MessageEnum;
+import com.doubledimple.ociserver.metrics.LatencyHistogram;
+import com.doubledimple.ociserver.util.DaemonThreads;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 异步消息推送: 调用方只把消息放进有界队列,由独立的发送线程推送,推送接口卡住也不会拖慢创建实例的线程.
+ * <p>
+ * 每个推送渠道有自己的队列、发送线程和速率限制,按平台公布的限制匀速发送,一个渠道变慢不会影响其他渠道.
+ * 发送失败时按指数退避重试(服务端返回Retry-After时以其为准); 错误消息在合并窗口内按会话合并成一条摘要,
+ * 避免短时间内大量失败把推送接口刷到限流
+ *
+ * @author doubleDimple
+ * @date 2024:10:17日 17:40
+ */
+@Component
+@Slf4j
+public class NotificationDispatcher {
+
+    private final NotifyProperties notifyProperties;
+    private final Map<MessageEnum, Lane> lanes = new EnumMap<>(MessageEnum.class);
+    private final Map<String, Digest> digests = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("notify-timer"));
+    private volatile boolean running = true;
+
+    @Getter
+    private final Stats stats = new Stats();
+
+    /**
+     * 实际发送一条消息,由各推送渠道提供
+     */
+    @FunctionalInterface
+    public interface Delivery {
+        WebhookClient.Response deliver(String text) throws IOException;
+    }
+
+    @Autowired
+    public NotificationDispatcher(NotifyProperties notifyProperties) {
+        this.notifyProperties = notifyProperties;
+    }
+
+    /**
+     * 关闭前立即发出未到期的摘要,并给队列中的消息留一点发送时间
+     */
+    @PreDestroy
+    public void shutdown() {
+        for (String key : digests.keySet()) {
+            flushDigest(key);
+        }
+        running = false;
+        timer.shutdownNow();
+        synchronized (lanes) {
+            for (Lane lane : lanes.values()) {
+                lane.senders.shutdown();
+            }
+            for (Lane lane : lanes.values()) {
+                try {
+                    if (!lane.senders.awaitTermination(5, TimeUnit.SECONDS)) {
+                        lane.senders.shutdownNow();
+                    }
+                } catch (InterruptedException e) {
+                    lane.senders.shutdownNow();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * 立即排队发送
+     *
+     * @return 队列已满被丢弃时返回false
+     */
+    public boolean submit(MessageEnum channel, String key, String text, Delivery delivery) {
+        stats.submitted.increment();
+        return enqueue(new Task(channel, key, text, delivery, 0));
+    }
+
+    /**
+     * 放入该会话的合并窗口,窗口结束时把期间的所有消息合并成一条发送
+     */
+    public void submitDigest(MessageEnum channel, String key, String text, Delivery delivery) {
+        stats.submitted.increment();
+        boolean[] opened = {false};
+        digests.compute(key, (k, digest) -> {
+            if (digest == null) {
+                digest = new Digest(channel, delivery);
+                opened[0] = true;
+            }
+            digest.add(text);
+            return digest;
+        });
+        if (opened[0]) {
+            try {
+                timer.schedule(() -> flushDigest(key), notifyProperties.getDigestSeconds(), TimeUnit.SECONDS);
+            } catch (RejectedExecutionException e) {
+                flushDigest(key);
+            }
+        }
+    }
+
+    public int getQueued() {
+        synchronized (lanes) {
+            int queued = 0;
+            for (Lane lane : lanes.values()) {
+                queued += lane.queue.size();
+            }
+            return queued;
+        }
+    }
+
+    /**
+     * @return 渠道 -> 排队中的消息数
+     */
+    public Map<MessageEnum, Integer> queuedByChannel() {
+        Map<MessageEnum, Integer> queued = new EnumMap<>(MessageEnum.class);
+        synchronized (lanes) {
+            lanes.forEach((channel, lane) -> queued.put(channel, lane.queue.size()));
+        }
+        return queued;
+    }
+
+    /**
+     * @return 渠道 -> 单次推送请求的耗时分布
+     */
+    public Map<MessageEnum, LatencyHistogram> sendLatencyByChannel() {
+        Map<MessageEnum, LatencyHistogram> latency = new EnumMap<>(MessageEnum.class);
+        synchronized (lanes) {
+            lanes.forEach((channel, lane) -> latency.put(channel, lane.sendLatency));
+        }
+        return latency;
+    }
+
+    private void flushDigest(String key) {
+        Digest digest = digests.remove(key);
+        if (digest != null) {
+            stats.coalesced.add(digest.total - 1);
+            enqueue(new Task(digest.channel, key,
+                    digest.render(notifyProperties.getDigestSeconds(), notifyProperties.getDigestMaxLines()),
+                    digest.delivery, 0));
+        }
+    }
+
+    private boolean enqueue(Task task) {
+        if (lane(task.channel).queue.offer(task)) {
+            return true;
+        }
+        stats.dropped.increment();
+        log.warn("渠道:[{}] 消息队列已满,丢弃消息:[{}]", task.channel, task.key);
+        return false;
+    }
+
+    /**
+     * 渠道第一次发送时才创建队列和发送线程,没有配置的渠道不占用线程
+     */
+    private Lane lane(MessageEnum channel) {
+        synchronized (lanes) {
+            Lane lane = lanes.get(channel);
+            if (lane == null) {
+                lane = new Lane(channel);
+                lanes.put(channel, lane);
+            }
+            return lane;
+        }
+    }
+
+    private void drainQueue(Lane lane) {
+        while (running || !lane.queue.isEmpty()) {
+            Task task;
+            try {
+                task = lane.queue.poll(1, TimeUnit.SECONDS);
+                if (task != null) {
+                    lane.bucket.acquire();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (task != null) {
+                deliver(lane, task);
+            }
+        }
+    }
+
+    private void deliver(Lane lane, Task task) {
+        WebhookClient.Response response = null;
+        String reason;
+        long start = System.nanoTime();
+        try {
+            response = task.delivery.deliver(task.text);
+            lane.sendLatency.recordSince(start);
+            if (response.isSuccess()) {
+                stats.delivered.increment();
+                return;
+            }
+            reason = "HTTP " + response.getStatus() + " " + response.getBody();
+        } catch (IOException e) {
+            lane.sendLatency.recordSince(start);
+            reason = e.getMessage();
+        } catch (RuntimeException e) {
+            lane.sendLatency.recordSince(start);
+            stats.failed.increment();
+            log.warn("渠道:[{}] 消息:[{}] 发送出现异常,已放弃,原因为:[{}]", task.channel, task.key, e.getMessage());
+            return;
+        }
+        boolean retryable = response == null || response.isRetryable();
+        if (retryable && task.attempt < notifyProperties.getMaxRetries()) {
+            long delay = Math.max(response == null ? 0 : response.getRetryAfterMillis(), backoff(task.attempt));
+            stats.retried.increment();
+            log.info("渠道:[{}] 消息:[{}] 第[{}]次发送失败,[{}]ms后重试,原因为:[{}]",
+                    task.channel, task.key, task.attempt + 1, delay, reason);
+            try {
+                timer.schedule(() -> enqueue(task.next()), delay, TimeUnit.MILLISECONDS);
+                return;
+            } catch (RejectedExecutionException ignored) {
+                // 正在关闭,不再重试
+            }
+        }
+        stats.failed.increment();
+        log.warn("渠道:[{}] 消息:[{}] 发送失败,已放弃,原因为:[{}]", task.channel, task.key, reason);
+    }
+
+    private long backoff(int attempt) {
+        long ceiling = Math.min(notifyProperties.getRetryMaxMillis(),
+                notifyProperties.getRetryBaseMillis() << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    private Bucket newBucket(MessageEnum channel) {
+        NotifyProperties.Channel configured = notifyProperties.getChannels().get(channel);
+        int permits = configured != null && configured.getPermits() != null ? configured.getPermits() : channel.getPermits();
+        long periodSeconds = configured != null && configured.getPeriodSeconds() != null
+                ? configured.getPeriodSeconds() : channel.getPeriodSeconds();
+        return new Bucket(permits, periodSeconds);
+    }
+
+    /**
+     * 单个渠道的队列、发送线程和速率限制
+     */
+    private final class Lane {
+        private final BlockingQueue<Task> queue = new ArrayBlockingQueue<>(Math.max(1, notifyProperties.getQueueSize()));
+        private final Bucket bucket;
+        private final ExecutorService senders;
+        private final LatencyHistogram sendLatency = LatencyHistogram.forRequests();
+
+        private Lane(MessageEnum channel) {
+            this.bucket = newBucket(channel);
+            int threads = Math.max(1, notifyProperties.getThreads());
+            this.senders = Executors.newFixedThreadPool(threads,
+                    DaemonThreads.named("notify-" + channel.getType().toLowerCase()));
+            for (int i = 0; i < threads; i++) {
+                senders.execute(() -> drainQueue(this));
+            }
+        }
+    }
+
+    /**
+     * 令牌桶,桶容量等于一个周期内的允许条数,拿不到令牌时发送线程等待
+     */
+    private static final class Bucket {
+        private final double capacity;
+        private final double nanosPerToken;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        private Bucket(int permits, long periodSeconds) {
+            this.capacity = Math.max(1, permits);
+            this.nanosPerToken = (double) TimeUnit.SECONDS.toNanos(Math.max(1, periodSeconds)) / capacity;
+            this.tokens = capacity;
+        }
+
+        private void acquire() throws InterruptedException {
+            while (true) {
+                long wait;
+                synchronized (this) {
+                    long now = System.nanoTime();
+                    tokens = Math.min(capacity, tokens + (now - lastRefill) / nanosPerToken);
+                    lastRefill = now;
+                    if (tokens >= 1) {
+                        tokens -= 1;
+                        return;
+                    }
+                    wait = (long) ((1 - tokens) * nanosPerToken);
+                }
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+
+    private static final class Task {
+        private final MessageEnum channel;
+        private final String key;
+        private final String text;
+        private final Delivery delivery;
+        private final int attempt;
+
+        private Task(MessageEnum channel, String key, String text, Delivery delivery, int attempt) {
+            this.channel = channel;
+            this.key = key;
+            this.text = text;
+            this.delivery = delivery;
+            this.attempt = attempt;
+        }
+
+        private Task next() {
+            return new Task(channel, key, text, delivery, attempt + 1);
+        }
+    }
+
+    /**
+     * 一个会话在合并窗口内收到的错误消息,相同内容只计数
+     */
+    private static final class Digest {
+        private final MessageEnum channel;
+        private final Delivery delivery;
+        private final Map<String, Integer> counts = new LinkedHashMap<>();
+        private int total;
+
+        private Digest(MessageEnum channel, Delivery delivery) {
+            this.channel = channel;
+            this.delivery = delivery;
+        }
+
+        private void add(String text) {
+            counts.merge(text, 1, Integer::sum);
+            total++;
+        }
+
+        private String render(long windowSeconds, int maxLines) {
+            if (total == 1) {
+                return counts.keySet().iterator().next();
+            }
+            StringBuilder builder = new StringBuilder();
+            builder.append("最近").append(windowSeconds).append("秒内共").append(total).append("条错误消息:\n");
+            int lines = 0;
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                if (lines++ == maxLines) {
+                    builder.append("...另有").append(counts.size() - maxLines).append("种错误未列出\n");
+                    break;
+                }
+                builder.append(entry.getKey());
+                if (entry.getValue() > 1) {
+                    builder.append(" (x").append(entry.getValue()).append(')');
+                }
+                builder.append('\n');
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * 推送统计
+     */
+    @Getter
+    public static final class Stats {
+        private final LongAdder submitted = new LongAdder();
+        private final LongAdder delivered = new LongAdder();
+        private final LongAdder retried = new LongAdder();
+        private final LongAdder coalesced = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+    }
+}
@@ -0,0 +1,118 @@
+package com.doubledimple.ociserver.message.dispatch;
+
+import lombok.Getter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 以POST方式推送JSON消息的HTTP客户端,带连接和读取超时.
+ * <p>
+ * 每次请求都完整读取并关闭响应,底层连接回到JDK的keep-alive连接池,同一地址的后续请求直接复用,不再重新建立TLS连接
+ *
+ * @author doubleDimple
+ * @date 2024:10:17日 17:20
+ */
+public class WebhookClient {
+
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    public WebhookClient(int connectTimeoutMillis, int readTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public Response postJson(String url, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+        // 不使用定长流模式: 消息体很小,缓冲后与请求头一起写出,避免复用连接时请求头和请求体分成两个包触发延迟确认
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        int status;
+        try {
+            status = connection.getResponseCode();
+        } catch (IOException e) {
+            drain(connection.getErrorStream());
+            throw e;
+        }
+        String responseBody = drain(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+        return new Response(status, responseBody, retryAfterMillis(connection.getHeaderField("Retry-After")));
+    }
+
+    /**
+     * 读完响应体再关闭,连接才会被放回keep-alive连接池
+     */
+    private static String drain(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static long retryAfterMillis(String retryAfter) {
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Getter
+    public static final class Response {
+        private final int status;
+        private final String body;
+
+        /**
+         * 服务端通过Retry-After要求的等待时间,没有时为0
+         */
+        private final long retryAfterMillis;
+
+        private Response(int status, String body, long retryAfterMillis) {
+            this.status = status;
+            this.body = body;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        /**
+         * 供HTTP状态码总是200、在响应体中返回错误码的平台换算出实际结果
+         */
+        public static Response of(int status, String body, long retryAfterMillis) {
+            return new Response(status, body, retryAfterMillis);
+        }
+
+        public boolean isSuccess() {
+            return status >= 200 && status < 300;
+        }
+
+        /**
+         * 429和5xx可以重试,其他4xx重试也不会成功
+         */
+        public boolean isRetryable() {
+            return status == 429 || status >= 500;
+        }
+    }
+}
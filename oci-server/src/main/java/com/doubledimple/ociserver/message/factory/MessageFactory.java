@@ -5,9 +5,11 @@ import com.doubledimple.ociserver.message.MessageService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author doubleDimple
@@ -17,7 +19,7 @@ import java.util.concurrent.ConcurrentHashMap;
 public class MessageFactory {
 
 
-    private final Map<MessageEnum, MessageService> MAP = new ConcurrentHashMap<>();
+    private final Map<MessageEnum, MessageService> MAP = new EnumMap<>(MessageEnum.class);
 
     @Autowired
     public MessageFactory(List<MessageService> serviceList){
@@ -29,4 +31,8 @@ public class MessageFactory {
         return MAP.get(type);
     }
 
+    public Collection<MessageService> getAll(){
+        return Collections.unmodifiableCollection(MAP.values());
+    }
+
 }
@@ -0,0 +1,63 @@
+package com.doubledimple.ociserver.metrics;
+
+import com.doubledimple.ociserver.exception.ErrorCode;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * 租户一次完整创建尝试的JFR事件,从调度执行开始到引擎返回结果结束; 只在有录制时由 {@link FlightRecording} 创建
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 10:50
+ */
+@Name("com.doubledimple.oci.Attempt")
+@Label("Provisioning Attempt")
+@Category({"OCI Start", "Provisioning"})
+@Description("租户的一次创建实例尝试")
+@StackTrace(false)
+public final class AttemptEvent extends Event {
+
+    @Label("Tenant")
+    String tenant;
+
+    @Label("Region")
+    String region;
+
+    @Label("Shape")
+    String shape;
+
+    @Label("Elapsed")
+    @Timespan
+    long elapsed;
+
+    @Label("Outcome")
+    @Description("Launched表示创建请求被接受,其他为错误类型")
+    String outcome;
+
+    @Label("HTTP Status")
+    @Description("有异常时取OCI返回的状态码,否则取错误类型对应的状态码")
+    int httpStatus;
+
+    static void emit(String tenant, String region, String shape, long durationNanos, ErrorCode errorCode, Throwable error) {
+        AttemptEvent event = new AttemptEvent();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.tenant = tenant;
+        event.region = region;
+        event.shape = shape;
+        event.elapsed = durationNanos;
+        event.outcome = errorCode == null ? "Launched" : errorCode.getErrorType();
+        if (error != null) {
+            event.httpStatus = FlightRecording.httpStatus(error);
+        } else {
+            event.httpStatus = errorCode == null ? 200 : errorCode.getCode();
+        }
+        event.commit();
+    }
+}
@@ -0,0 +1,91 @@
+package com.doubledimple.ociserver.metrics;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按 区域+可用域 统计创建实例的耗时和结果,用于观察哪个可用域真正能分配到容量
+ *
+ * @author doubleDimple
+ * @date 2024:10:14日 16:10
+ */
+@Component
+@Slf4j
+public class AvailabilityDomainMetrics {
+
+    public enum Outcome {
+        /**
+         * 创建请求已被接受
+         */
+        LAUNCHED,
+        /**
+         * 容量不足
+         */
+        CAPACITY,
+        /**
+         * 配额超过限制
+         */
+        LIMIT_EXCEEDED,
+        /**
+         * 其他可用域已经创建成功,本可用域在创建前被取消
+         */
+        CANCELLED,
+        /**
+         * 没有匹配的规格/镜像/子网
+         */
+        SKIPPED,
+        ERROR
+    }
+
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    public void record(String region, String availabilityDomain, Outcome outcome, long latencyMillis) {
+        Stats stat = stats.computeIfAbsent(region + "|" + availabilityDomain, key -> new Stats());
+        stat.outcomes.get(outcome).increment();
+        stat.totalLatencyMillis.add(latencyMillis);
+        stat.maxLatencyMillis.accumulate(latencyMillis);
+        if (log.isDebugEnabled()) {
+            log.debug("区域:[{}] 可用域:[{}] 结果:[{}] 耗时:[{}]ms", region, availabilityDomain, outcome, latencyMillis);
+        }
+    }
+
+    /**
+     * key为 区域|可用域
+     */
+    public Map<String, Stats> snapshot() {
+        return Collections.unmodifiableMap(stats);
+    }
+
+    @Getter
+    public static class Stats {
+        private final Map<Outcome, LongAdder> outcomes = new EnumMap<>(Outcome.class);
+        private final LongAdder totalLatencyMillis = new LongAdder();
+        private final LongAccumulator maxLatencyMillis = new LongAccumulator(Math::max, 0);
+
+        Stats() {
+            for (Outcome outcome : Outcome.values()) {
+                outcomes.put(outcome, new LongAdder());
+            }
+        }
+
+        public long count(Outcome outcome) {
+            return outcomes.get(outcome).sum();
+        }
+
+        public long total() {
+            long total = 0;
+            for (LongAdder adder : outcomes.values()) {
+                total += adder.sum();
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.doubledimple.ociserver.metrics;
+
+import com.doubledimple.ociserver.exception.ErrorCode;
+import com.oracle.bmc.model.BmcException;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * JFR事件的统一入口. 启动时只检查一次 {@link FlightRecorder#isAvailable()},之后通过监听录制状态维护一个开关:
+ * 没有正在进行的录制时所有方法只读一次volatile字段,不创建事件对象.
+ * <p>
+ * 事件类只在这里引用,运行在没有JFR的Java 8上时不会加载,也就不会出现 NoClassDefFoundError.
+ * 事件在操作结束时一次性提交,耗时写在事件的Elapsed字段中
+ *
+ * @author doubleDimple
+ * @date 2024:10:22日 10:10
+ */
+@Slf4j
+public final class FlightRecording {
+
+    private static final boolean AVAILABLE = available();
+
+    private static volatile boolean recording;
+
+    static {
+        if (AVAILABLE) {
+            watchRecordings();
+        }
+    }
+
+    private FlightRecording() {
+    }
+
+    /**
+     * @return 是否有正在进行的JFR录制
+     */
+    public static boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * 记录一次OCI接口调用
+     */
+    static void call(OciOperation operation, ProvisioningContext context, long durationNanos, Throwable error) {
+        if (recording) {
+            OciCallEvent.emit(operation, context, durationNanos, error);
+        }
+    }
+
+    /**
+     * 记录创建实例的一个阶段
+     *
+     * @param startNanos 阶段开始时的 System.nanoTime()
+     * @param error      阶段失败时的异常,用于记录HTTP状态码
+     */
+    public static void phase(ProvisioningPhaseEvent.Phase phase, ProvisioningContext context, long startNanos,
+                             String outcome, Throwable error) {
+        if (recording) {
+            ProvisioningPhaseEvent.emit(phase, context, System.nanoTime() - startNanos, outcome, error);
+        }
+    }
+
+    /**
+     * 同步执行一个阶段并记录,阶段返回null时结果记为Empty
+     */
+    public static <T> T time(ProvisioningPhaseEvent.Phase phase, ProvisioningContext context, Callable<T> body) throws Exception {
+        long startNanos = System.nanoTime();
+        try {
+            T result = body.call();
+            phase(phase, context, startNanos, result == null ? "Empty" : "OK", null);
+            return result;
+        } catch (Exception e) {
+            phase(phase, context, startNanos, "Error", e);
+            throw e;
+        }
+    }
+
+    /**
+     * 记录租户的一次完整创建尝试
+     *
+     * @param startNanos 调度执行开始时的 System.nanoTime()
+     * @param errorCode  失败原因,创建请求被接受时为null
+     * @param error      引擎抛出的异常,没有时为null
+     */
+    public static void attempt(String tenant, String region, String shape, long startNanos,
+                               ErrorCode errorCode, Throwable error) {
+        if (recording) {
+            AttemptEvent.emit(tenant, region, shape, System.nanoTime() - startNanos, errorCode, error);
+        }
+    }
+
+    /**
+     * 从异常中取出OCI返回的HTTP状态码
+     */
+    static int httpStatus(Throwable error) {
+        if (error == null) {
+            return 200;
+        }
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof BmcException ? ((BmcException) cause).getStatusCode() : 0;
+    }
+
+    private static boolean available() {
+        try {
+            return FlightRecorder.isAvailable();
+        } catch (Throwable e) {
+            log.info("当前JVM不支持JFR,不记录JFR事件");
+            return false;
+        }
+    }
+
+    /**
+     * 通过 -XX:StartFlightRecording 启动的录制在监听注册前已经开始,注册后先按现有录制设置一次开关
+     */
+    private static void watchRecordings() {
+        try {
+            FlightRecorder.addListener(new FlightRecorderListener() {
+                @Override
+                public void recordingStateChanged(Recording changed) {
+                    refresh();
+                }
+            });
+            if (FlightRecorder.isInitialized()) {
+                refresh();
+            }
+        } catch (Throwable e) {
+            log.warn("监听JFR录制状态失败,不记录JFR事件,原因为:[{}]", e.getMessage());
+        }
+    }
+
+    private static void refresh() {
+        boolean running = false;
+        for (Recording current : FlightRecorder.getFlightRecorder().getRecordings()) {
+            if (current.getState() == RecordingState.RUNNING) {
+                running = true;
+                break;
+            }
+        }
+        recording = running;
+    }
+}
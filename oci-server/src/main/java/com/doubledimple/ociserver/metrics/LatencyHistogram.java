@@ -0,0 +1,91 @@
+package com.doubledimple.ociserver.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定分桶的耗时直方图,记录时只做数组查找和LongAdder累加,不分配对象,可以放在热路径上
+ *
+ * @author doubleDimple
+ * @date 2024:10:17日 21:30
+ */
+public final class LatencyHistogram {
+
+    /**
+     * OCI接口和消息推送的耗时分桶(秒)
+     */
+    static final double[] REQUEST_BOUNDS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300};
+
+    /**
+     * 等待容量这类以分钟到天计的耗时分桶(秒)
+     */
+    static final double[] WAIT_BOUNDS = {60, 300, 900, 1800, 3600, 3 * 3600, 6 * 3600, 12 * 3600, 86400, 3 * 86400, 7 * 86400};
+
+    private final double[] boundsSeconds;
+    private final long[] boundsNanos;
+
+    /**
+     * 每个桶只统计落在该区间的次数,导出时再累加成Prometheus要求的累计值; 最后一个桶为+Inf
+     */
+    private final LongAdder[] buckets;
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram(double[] boundsSeconds) {
+        this.boundsSeconds = boundsSeconds;
+        this.boundsNanos = new long[boundsSeconds.length];
+        this.buckets = new LongAdder[boundsSeconds.length + 1];
+        for (int i = 0; i < boundsSeconds.length; i++) {
+            boundsNanos[i] = (long) (boundsSeconds[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public static LatencyHistogram forRequests() {
+        return new LatencyHistogram(REQUEST_BOUNDS);
+    }
+
+    public static LatencyHistogram forWaits() {
+        return new LatencyHistogram(WAIT_BOUNDS);
+    }
+
+    public void recordNanos(long nanos) {
+        int index = 0;
+        while (index < boundsNanos.length && nanos > boundsNanos[index]) {
+            index++;
+        }
+        buckets[index].increment();
+        sumNanos.add(nanos);
+    }
+
+    public void recordSince(long startNanos) {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * 以Prometheus histogram格式输出 name_bucket / name_sum / name_count
+     *
+     * @param labels 已经格式化好的标签,例如 operation="LaunchInstance",没有标签时为空字符串
+     */
+    void write(PrometheusWriter writer, String name, String labels) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < boundsSeconds.length; i++) {
+            cumulative += buckets[i].sum();
+            writer.sample(name + "_bucket", prefix + "le=\"" + boundsSeconds[i] + "\"", cumulative);
+        }
+        cumulative += buckets[boundsSeconds.length].sum();
+        writer.sample(name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+        writer.sample(name + "_sum", labels, sumNanos.sum() / 1e9);
+        writer.sample(name + "_count", labels, cumulative);
+    }
+}
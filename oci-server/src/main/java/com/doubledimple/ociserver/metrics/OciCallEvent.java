@@ -0,0 +1,67 @@
+package com.doubledimple.ociserver.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * 单次OCI接口调用的JFR事件,只在有录制时由 {@link FlightRecording} 在调用结束后创建并提交
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 10:30
+ */
+@Name("com.doubledimple.oci.Call")
+@Label("OCI Call")
+@Category({"OCI Start", "OCI"})
+@Description("一次OCI接口调用")
+@StackTrace(false)
+public final class OciCallEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Tenant")
+    String tenant;
+
+    @Label("Region")
+    String region;
+
+    @Label("Availability Domain")
+    String availabilityDomain;
+
+    @Label("Shape")
+    String shape;
+
+    @Label("Elapsed")
+    @Timespan
+    long elapsed;
+
+    @Label("HTTP Status")
+    @Description("成功时为200,没有HTTP响应的错误为0")
+    int httpStatus;
+
+    @Label("Success")
+    boolean success;
+
+    static void emit(OciOperation type, ProvisioningContext context, long durationNanos, Throwable error) {
+        OciCallEvent event = new OciCallEvent();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.operation = type.getApiName();
+        if (context != null) {
+            event.tenant = context.getTenant();
+            event.region = context.getRegion();
+            event.availabilityDomain = context.getAvailabilityDomain();
+            event.shape = context.getShape();
+        }
+        event.elapsed = durationNanos;
+        event.httpStatus = FlightRecording.httpStatus(error);
+        event.success = error == null;
+        event.commit();
+    }
+}
@@ -0,0 +1,198 @@
+package com.doubledimple.ociserver.metrics;
+
+import com.doubledimple.ociserver.exception.ErrorCode;
+import lombok.Getter;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * OCI调用和租户维度的统计: 每个OCI接口的耗时分布和失败次数,每个租户的尝试次数、按错误码区分的结果,
+ * 以及租户从开始重试到创建请求被接受所花的时间.
+ * <p>
+ * SDK没有提供响应回调,耗时在各调用处记录; 计数全部使用LongAdder,记录时不分配对象.
+ * 有JFR录制时每次调用同时通过 {@link FlightRecording} 提交一个事件,可以用 jfr print --events com.doubledimple.oci.Call 离线分析;
+ * 没有录制时不创建事件对象
+ *
+ * @author doubleDimple
+ * @date 2024:10:17日 21:50
+ */
+@Component
+public class OciMetrics {
+
+    private final Map<OciOperation, Operation> operations = new EnumMap<>(OciOperation.class);
+    private final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+
+    /**
+     * 所有租户的等待容量时间分布
+     */
+    @Getter
+    private final LatencyHistogram timeToCapacity = LatencyHistogram.forWaits();
+
+    public OciMetrics() {
+        for (OciOperation operation : OciOperation.values()) {
+            operations.put(operation, new Operation());
+        }
+    }
+
+    /**
+     * 开始一次OCI调用,必须与 {@link #endOperation} 成对使用:
+     * <pre>
+     * long start = ociMetrics.startOperation();
+     * Throwable error = null;
+     * try {
+     *     ...
+     * } catch (RuntimeException e) {
+     *     error = e;
+     *     throw e;
+     * } finally {
+     *     ociMetrics.endOperation(OciOperation.LIST_SHAPES, start, error);
+     * }
+     * </pre>
+     *
+     * @return 开始时间(System.nanoTime)
+     */
+    public long startOperation() {
+        return System.nanoTime();
+    }
+
+    /**
+     * JFR事件带上当前线程绑定的 {@link ProvisioningContext}
+     *
+     * @param startNanos {@link #startOperation()} 的返回值
+     * @param error      调用失败时的异常,成功时为null
+     */
+    public void endOperation(OciOperation operation, long startNanos, Throwable error) {
+        endOperation(operation, startNanos, FlightRecording.isRecording() ? ProvisioningContext.current() : null, error);
+    }
+
+    /**
+     * 异步调用在其他线程上完成,由调用方显式传入上下文
+     */
+    public void endOperation(OciOperation operation, long startNanos, ProvisioningContext context, Throwable error) {
+        long elapsed = System.nanoTime() - startNanos;
+        Operation stat = operations.get(operation);
+        stat.latency.recordNanos(elapsed);
+        if (error != null) {
+            stat.errors.increment();
+        }
+        FlightRecording.call(operation, context, elapsed, error);
+    }
+
+    /**
+     * 同步调用计时; 列表接口通过分页迭代器逐页请求时,耗时按整次遍历统计
+     */
+    public <T> T timed(OciOperation operation, Callable<T> request) throws Exception {
+        long start = startOperation();
+        Throwable error = null;
+        try {
+            return request.call();
+        } catch (Exception e) {
+            error = e;
+            throw e;
+        } finally {
+            endOperation(operation, start, error);
+        }
+    }
+
+    /**
+     * 异步调用从真正发出请求开始计时,不包含排队等待令牌的时间
+     */
+    public <T> CompletableFuture<T> timed(OciOperation operation, ProvisioningContext context,
+                                          Supplier<CompletableFuture<T>> call) {
+        long start = startOperation();
+        return call.get().whenComplete((result, error) -> endOperation(operation, start, context, error));
+    }
+
+    /**
+     * 记录租户的一次创建尝试
+     *
+     * @param errorCode 失败原因,创建请求被接受时为null
+     */
+    public void recordAttempt(String userName, ErrorCode errorCode) {
+        Tenant tenant = tenant(userName);
+        tenant.attempts.increment();
+        if (errorCode == null) {
+            tenant.launched.increment();
+        } else {
+            tenant.outcomes.get(errorCode).increment();
+        }
+    }
+
+    /**
+     * 租户开始重试,已经在等待中时保持原来的开始时间
+     */
+    public void tenantStarted(String userName) {
+        Tenant tenant = tenant(userName);
+        if (tenant.waitingSince == 0) {
+            tenant.waitingSince = System.nanoTime();
+        }
+    }
+
+    /**
+     * 租户的创建请求被接受,记录本轮等待容量的时间
+     */
+    public void capacityAcquired(String userName) {
+        Tenant tenant = tenant(userName);
+        long since = tenant.waitingSince;
+        if (since == 0) {
+            return;
+        }
+        tenant.waitingSince = 0;
+        long waited = System.nanoTime() - since;
+        timeToCapacity.recordNanos(waited);
+        tenant.lastTimeToCapacityNanos = waited;
+    }
+
+    public Map<OciOperation, Operation> operations() {
+        return Collections.unmodifiableMap(operations);
+    }
+
+    /**
+     * key为租户名
+     */
+    public Map<String, Tenant> tenants() {
+        return Collections.unmodifiableMap(tenants);
+    }
+
+    private Tenant tenant(String userName) {
+        Tenant tenant = tenants.get(userName);
+        return tenant != null ? tenant : tenants.computeIfAbsent(userName, key -> new Tenant());
+    }
+
+    @Getter
+    public static final class Operation {
+        private final LatencyHistogram latency = LatencyHistogram.forRequests();
+        private final LongAdder errors = new LongAdder();
+    }
+
+    @Getter
+    public static final class Tenant {
+        private final LongAdder attempts = new LongAdder();
+        private final LongAdder launched = new LongAdder();
+        private final Map<ErrorCode, LongAdder> outcomes = new EnumMap<>(ErrorCode.class);
+
+        /**
+         * 本轮开始等待的时间(System.nanoTime),不在等待时为0
+         */
+        private volatile long waitingSince;
+
+        /**
+         * 最近一次等待容量的时长,还没有成功过时为0
+         */
+        private volatile long lastTimeToCapacityNanos;
+
+        Tenant() {
+            for (ErrorCode errorCode : ErrorCode.values()) {
+                outcomes.put(errorCode, new LongAdder());
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.doubledimple.ociserver.metrics;
+
+/**
+ * 需要统计耗时的OCI操作,名称与OCI接口名保持一致
+ *
+ * @author doubleDimple
+ * @date 2024:10:17日 21:45
+ */
+public enum OciOperation {
+    LIST_SHAPES("ListShapes"),
+    LIST_IMAGES("ListImages"),
+    CREATE_VCN("CreateVcn"),
+    CREATE_INTERNET_GATEWAY("CreateInternetGateway"),
+    UPDATE_ROUTE_TABLE("UpdateRouteTable"),
+    CREATE_SUBNET("CreateSubnet"),
+    /**
+     * 等待网络资源进入目标状态的waiter,包含多次轮询
+     */
+    NETWORK_WAITER("NetworkWaiter"),
+    LAUNCH_INSTANCE("LaunchInstance"),
+    GET_WORK_REQUEST("GetWorkRequest"),
+    LIST_INSTANCES("ListInstances"),
+    GET_INSTANCE("GetInstance"),
+    LIST_VNIC_ATTACHMENTS("ListVnicAttachments"),
+    GET_VNIC("GetVnic"),
+    /**
+     * 清理任务删除遗留资源,只发起删除不等待完成
+     */
+    TERMINATE_INSTANCE("TerminateInstance"),
+    DELETE_SUBNET("DeleteSubnet"),
+    DELETE_INTERNET_GATEWAY("DeleteInternetGateway"),
+    DELETE_VCN("DeleteVcn"),
+    ;
+
+    private final String apiName;
+
+    OciOperation(String apiName) {
+        this.apiName = apiName;
+    }
+
+    public String getApiName() {
+        return apiName;
+    }
+}
@@ -0,0 +1,267 @@
+package com.doubledimple.ociserver.metrics;
+
+import com.doubledimple.ociserver.client.RegionRateLimiter;
+import com.doubledimple.ociserver.engine.WorkRequestTracker;
+import com.doubledimple.ociserver.enums.MessageEnum;
+import com.doubledimple.ociserver.exception.ErrorCode;
+import com.doubledimple.ociserver.message.dispatch.NotificationDispatcher;
+import com.doubledimple.ociserver.schedule.AttemptScheduler;
+import com.doubledimple.ociserver.schedule.CapacityBoard;
+import com.doubledimple.ociserver.schedule.TenantBackoff;
+import com.doubledimple.ociserver.util.DaemonThreads;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 以Prometheus文本格式导出运行指标,使用JDK自带的HttpServer,不引入Web容器.
+ * <p>
+ * 采集时才读取各组件的计数,平时不产生任何额外开销; 默认只监听本机地址
+ *
+ * @author doubleDimple
+ * @date 2024:10:17日 22:10
+ */
+@Component
+@Slf4j
+public class PrometheusExporter {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Value("${oci.metrics.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${oci.metrics.host:127.0.0.1}")
+    private String host = "127.0.0.1";
+
+    @Value("${oci.metrics.port:9464}")
+    private int port = 9464;
+
+    @Autowired
+    private OciMetrics ociMetrics;
+
+    @Autowired
+    private AvailabilityDomainMetrics availabilityDomainMetrics;
+
+    @Autowired
+    private AttemptScheduler attemptScheduler;
+
+    @Autowired
+    private RegionRateLimiter regionRateLimiter;
+
+    @Autowired
+    private TenantBackoff tenantBackoff;
+
+    @Autowired
+    private CapacityBoard capacityBoard;
+
+    @Autowired
+    private WorkRequestTracker workRequestTracker;
+
+    @Autowired
+    private NotificationDispatcher notificationDispatcher;
+
+    private HttpServer server;
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        } catch (IOException e) {
+            log.warn("指标端口:[{}:{}] 监听失败,不导出指标,原因为:[{}]", host, port, e.getMessage());
+            return;
+        }
+        server.createContext("/metrics", this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(DaemonThreads.named("metrics-exporter")));
+        server.start();
+        log.info("指标导出已启动,地址:[http://{}:{}/metrics]", host, port);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (RuntimeException e) {
+            log.warn("生成指标失败,原因为:[{}]", e.getMessage());
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    String scrape() {
+        PrometheusWriter writer = new PrometheusWriter();
+        writeOperations(writer);
+        writeTenants(writer);
+        writeAvailabilityDomains(writer);
+        writeScheduler(writer);
+        writeRateLimiter(writer);
+        writeCapacityBoard(writer);
+        writeNotifications(writer);
+        return writer.toString();
+    }
+
+    private void writeOperations(PrometheusWriter writer) {
+        Map<OciOperation, OciMetrics.Operation> operations = ociMetrics.operations();
+        writer.family("oci_operation_duration_seconds", "histogram", "OCI接口调用耗时");
+        operations.forEach((operation, stat) -> stat.getLatency().write(writer, "oci_operation_duration_seconds",
+                PrometheusWriter.labels("operation", operation.getApiName())));
+        writer.family("oci_operation_errors_total", "counter", "OCI接口调用失败次数");
+        operations.forEach((operation, stat) -> writer.sample("oci_operation_errors_total",
+                PrometheusWriter.labels("operation", operation.getApiName()), stat.getErrors().sum()));
+    }
+
+    private void writeTenants(PrometheusWriter writer) {
+        Map<String, OciMetrics.Tenant> tenants = ociMetrics.tenants();
+        writer.family("oci_tenant_attempts_total", "counter", "租户创建实例的尝试次数");
+        tenants.forEach((user, tenant) -> writer.sample("oci_tenant_attempts_total",
+                PrometheusWriter.labels("user", user), tenant.getAttempts().sum()));
+        writer.family("oci_tenant_outcomes_total", "counter", "租户每次尝试的结果,launched表示创建请求被接受");
+        tenants.forEach((user, tenant) -> {
+            writer.sample("oci_tenant_outcomes_total",
+                    PrometheusWriter.labels("user", user, "outcome", "launched"), tenant.getLaunched().sum());
+            tenant.getOutcomes().forEach((errorCode, count) -> writer.sample("oci_tenant_outcomes_total",
+                    PrometheusWriter.labels("user", user, "outcome", errorCode.getErrorType()), count.sum()));
+        });
+        Map<String, TenantBackoff.Spacing> spacings = tenantBackoff.snapshot();
+        writer.family("oci_tenant_consecutive_failures", "gauge", "租户当前连续失败次数");
+        spacings.forEach((user, spacing) -> writer.sample("oci_tenant_consecutive_failures",
+                spacingLabels(user, spacing), spacing.getConsecutiveFailures()));
+        writer.family("oci_tenant_next_delay_seconds", "gauge", "租户下一次尝试的间隔");
+        spacings.forEach((user, spacing) -> writer.sample("oci_tenant_next_delay_seconds",
+                spacingLabels(user, spacing), spacing.getLastDelayMillis() / 1000.0));
+        writer.family("oci_tenant_time_to_capacity_seconds", "gauge", "租户最近一次从开始重试到创建请求被接受的时间");
+        tenants.forEach((user, tenant) -> {
+            if (tenant.getLastTimeToCapacityNanos() > 0) {
+                writer.sample("oci_tenant_time_to_capacity_seconds", PrometheusWriter.labels("user", user),
+                        tenant.getLastTimeToCapacityNanos() / 1e9);
+            }
+        });
+        writer.family("oci_time_to_capacity_seconds", "histogram", "所有租户从开始重试到创建请求被接受的时间分布");
+        ociMetrics.getTimeToCapacity().write(writer, "oci_time_to_capacity_seconds", "");
+        writer.family("oci_launches_tracking", "gauge", "已被接受、正在等待公网IP的实例数");
+        writer.sample("oci_launches_tracking", "", workRequestTracker.getOutstanding());
+    }
+
+    private void writeAvailabilityDomains(PrometheusWriter writer) {
+        Map<String, AvailabilityDomainMetrics.Stats> snapshot = availabilityDomainMetrics.snapshot();
+        writer.family("oci_ad_attempts_total", "counter", "按区域和可用域统计的尝试结果");
+        snapshot.forEach((key, stats) -> {
+            String labels = regionLabels(key, "ad");
+            for (AvailabilityDomainMetrics.Outcome outcome : AvailabilityDomainMetrics.Outcome.values()) {
+                writer.sample("oci_ad_attempts_total", labels + ",outcome=\"" + outcome.name().toLowerCase() + "\"",
+                        stats.count(outcome));
+            }
+        });
+        writer.family("oci_ad_attempt_seconds_total", "counter", "按区域和可用域统计的尝试总耗时");
+        snapshot.forEach((key, stats) -> writer.sample("oci_ad_attempt_seconds_total",
+                regionLabels(key, "ad"), stats.getTotalLatencyMillis().sum() / 1000.0));
+        writer.family("oci_ad_attempt_seconds_max", "gauge", "按区域和可用域统计的单次尝试最大耗时");
+        snapshot.forEach((key, stats) -> writer.sample("oci_ad_attempt_seconds_max",
+                regionLabels(key, "ad"), stats.getMaxLatencyMillis().get() / 1000.0));
+    }
+
+    private void writeScheduler(PrometheusWriter writer) {
+        writer.family("oci_scheduler_in_flight", "gauge", "正在执行的尝试数");
+        writer.sample("oci_scheduler_in_flight", "", attemptScheduler.getInFlight());
+        writer.family("oci_scheduler_max_in_flight", "gauge", "允许同时执行的最大尝试数");
+        writer.sample("oci_scheduler_max_in_flight", "", attemptScheduler.getMaxInFlight());
+        writer.family("oci_scheduler_queued", "gauge", "到期后等待空闲线程的尝试数,持续大于0说明线程池已饱和");
+        writer.sample("oci_scheduler_queued", "", attemptScheduler.getQueued());
+    }
+
+    private void writeRateLimiter(PrometheusWriter writer) {
+        Map<String, RegionRateLimiter.Stats> snapshot = regionRateLimiter.snapshot();
+        writer.family("oci_rate_limit_permits_total", "counter", "按区域和接口分组统计的限流结果");
+        snapshot.forEach((key, stats) -> {
+            String labels = regionLabels(key, "family");
+            writer.sample("oci_rate_limit_permits_total", labels + ",result=\"acquired\"", stats.getAcquired().sum());
+            writer.sample("oci_rate_limit_permits_total", labels + ",result=\"delayed\"", stats.getDelayed().sum());
+            writer.sample("oci_rate_limit_permits_total", labels + ",result=\"rejected\"", stats.getRejected().sum());
+        });
+        writer.family("oci_rate_limit_wait_seconds_total", "counter", "等待令牌的总时间");
+        snapshot.forEach((key, stats) -> writer.sample("oci_rate_limit_wait_seconds_total", regionLabels(key, "family"),
+                stats.getWaitNanos().sum() / (double) TimeUnit.SECONDS.toNanos(1)));
+        writer.family("oci_rate_limit_waiting", "gauge", "正在等待令牌的请求数");
+        snapshot.forEach((key, stats) -> writer.sample("oci_rate_limit_waiting", regionLabels(key, "family"),
+                stats.getWaiting().get()));
+    }
+
+    private void writeCapacityBoard(PrometheusWriter writer) {
+        writer.family("oci_capacity_signals_total", "counter", "按区域、可用域和规格统计的容量信号");
+        capacityBoard.snapshot().forEach((key, signal) -> {
+            String[] parts = key.split("\\|", 3);
+            long failures;
+            long successes;
+            long skipped;
+            synchronized (signal) {
+                failures = signal.getFailures();
+                successes = signal.getSuccesses();
+                skipped = signal.getSkipped();
+            }
+            writer.sample("oci_capacity_signals_total", PrometheusWriter.labels("region", parts[0], "ad", parts[1],
+                    "shape", parts[2], "signal", "capacity_failure"), failures);
+            writer.sample("oci_capacity_signals_total", PrometheusWriter.labels("region", parts[0], "ad", parts[1],
+                    "shape", parts[2], "signal", "success"), successes);
+            writer.sample("oci_capacity_signals_total", PrometheusWriter.labels("region", parts[0], "ad", parts[1],
+                    "shape", parts[2], "signal", "skipped"), skipped);
+        });
+    }
+
+    private void writeNotifications(PrometheusWriter writer) {
+        NotificationDispatcher.Stats stats = notificationDispatcher.getStats();
+        writer.family("oci_notify_messages_total", "counter", "消息推送统计");
+        writer.sample("oci_notify_messages_total", PrometheusWriter.labels("result", "submitted"), stats.getSubmitted().sum());
+        writer.sample("oci_notify_messages_total", PrometheusWriter.labels("result", "delivered"), stats.getDelivered().sum());
+        writer.sample("oci_notify_messages_total", PrometheusWriter.labels("result", "retried"), stats.getRetried().sum());
+        writer.sample("oci_notify_messages_total", PrometheusWriter.labels("result", "coalesced"), stats.getCoalesced().sum());
+        writer.sample("oci_notify_messages_total", PrometheusWriter.labels("result", "dropped"), stats.getDropped().sum());
+        writer.sample("oci_notify_messages_total", PrometheusWriter.labels("result", "failed"), stats.getFailed().sum());
+        writer.family("oci_notify_queued", "gauge", "各推送渠道排队中的消息数");
+        for (Map.Entry<MessageEnum, Integer> entry : notificationDispatcher.queuedByChannel().entrySet()) {
+            writer.sample("oci_notify_queued", PrometheusWriter.labels("channel", entry.getKey().getType()), entry.getValue());
+        }
+        writer.family("oci_notify_send_duration_seconds", "histogram", "单次推送请求的耗时");
+        notificationDispatcher.sendLatencyByChannel().forEach((channel, latency) -> latency.write(writer,
+                "oci_notify_send_duration_seconds", PrometheusWriter.labels("channel", channel.getType())));
+    }
+
+    /**
+     * 把 区域|xxx 形式的key拆成 region 和另一个标签
+     */
+    private static String regionLabels(String key, String second) {
+        String[] parts = key.split("\\|", 2);
+        return PrometheusWriter.labels("region", parts[0], second, parts.length > 1 ? parts[1] : "");
+    }
+
+    private static String spacingLabels(String user, TenantBackoff.Spacing spacing) {
+        ErrorCode lastErrorCode = spacing.getLastErrorCode();
+        return PrometheusWriter.labels("user", user, "last_error", lastErrorCode == null ? "" : lastErrorCode.getErrorType());
+    }
+}
@@ -0,0 +1,59 @@
+package com.doubledimple.ociserver.metrics;
+
+/**
+ * 拼装Prometheus文本格式(0.0.4)
+ *
+ * @author doubleDimple
+ * @date 2024:10:17日 21:40
+ */
+final class PrometheusWriter {
+
+    private final StringBuilder out = new StringBuilder(16 * 1024);
+
+    PrometheusWriter family(String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    PrometheusWriter sample(String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+        return this;
+    }
+
+    /**
+     * 按 name="value" 成对拼出标签
+     */
+    static String labels(String... pairs) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i + 1 < pairs.length; i += 2) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(pairs[i]).append("=\"").append(escape(pairs[i + 1])).append('"');
+        }
+        return builder.toString();
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+}
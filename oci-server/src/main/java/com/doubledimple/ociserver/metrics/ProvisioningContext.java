@@ -0,0 +1,61 @@
+package com.doubledimple.ociserver.metrics;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * 一次创建尝试所处的租户、区域、可用域和规格,供JFR事件打标签.
+ * <p>
+ * 同步代码通过 {@link #bind()} 绑定到当前线程,调用处无需层层传参; 异步回调在其他线程执行,需要显式传入
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 10:20
+ */
+@Getter
+public final class ProvisioningContext {
+
+    private static final ThreadLocal<ProvisioningContext> CURRENT = new ThreadLocal<>();
+
+    private final String tenant;
+    private final String region;
+    private final String availabilityDomain;
+
+    /**
+     * 选定规格后才有值
+     */
+    @Setter
+    private volatile String shape;
+
+    public ProvisioningContext(String tenant, String region, String availabilityDomain) {
+        this.tenant = tenant;
+        this.region = region;
+        this.availabilityDomain = availabilityDomain;
+    }
+
+    /**
+     * @return 当前线程绑定的上下文,没有时为null
+     */
+    public static ProvisioningContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * 绑定到当前线程,关闭时恢复之前的上下文
+     */
+    public Scope bind() {
+        ProvisioningContext previous = CURRENT.get();
+        CURRENT.set(this);
+        return () -> {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,90 @@
+package com.doubledimple.ociserver.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * 创建实例各阶段的JFR事件,用来区分一次尝试的时间花在了哪个阶段; 只在有录制时由 {@link FlightRecording} 创建
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 10:40
+ */
+@Name("com.doubledimple.oci.ProvisioningPhase")
+@Label("Provisioning Phase")
+@Category({"OCI Start", "Provisioning"})
+@Description("创建实例的一个阶段")
+@StackTrace(false)
+public final class ProvisioningPhaseEvent extends Event {
+
+    public enum Phase {
+        /**
+         * 获取根区间和可用域,缓存命中时几乎不耗时
+         */
+        TOPOLOGY,
+        /**
+         * 查询规格和镜像
+         */
+        CATALOG,
+        /**
+         * 校验或创建VCN、网关、路由、安全组和子网
+         */
+        NETWORK,
+        /**
+         * 发起创建请求,包含等待闸门和限流令牌的时间
+         */
+        LAUNCH,
+        /**
+         * 单个可用域的完整尝试
+         */
+        AVAILABILITY_DOMAIN
+    }
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Tenant")
+    String tenant;
+
+    @Label("Region")
+    String region;
+
+    @Label("Availability Domain")
+    String availabilityDomain;
+
+    @Label("Shape")
+    String shape;
+
+    @Label("Elapsed")
+    @Timespan
+    long elapsed;
+
+    @Label("Outcome")
+    String outcome;
+
+    @Label("HTTP Status")
+    @Description("阶段失败时OCI返回的HTTP状态码,没有失败或没有HTTP响应时为0")
+    int httpStatus;
+
+    static void emit(Phase type, ProvisioningContext context, long durationNanos, String outcome, Throwable error) {
+        ProvisioningPhaseEvent event = new ProvisioningPhaseEvent();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.phase = type.name();
+        if (context != null) {
+            event.tenant = context.getTenant();
+            event.region = context.getRegion();
+            event.availabilityDomain = context.getAvailabilityDomain();
+            event.shape = context.getShape();
+        }
+        event.elapsed = durationNanos;
+        event.outcome = outcome;
+        event.httpStatus = error == null ? 0 : FlightRecording.httpStatus(error);
+        event.commit();
+    }
+}
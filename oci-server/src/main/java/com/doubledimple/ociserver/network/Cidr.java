@@ -0,0 +1,102 @@
+package com.doubledimple.ociserver.network;
+
+import java.util.Collection;
+
+/**
+ * IPv4地址段,用于在VCN地址段内为各可用域划分互不重叠的子网
+ *
+ * @author doubleDimple
+ * @date 2024:10:21日 11:20
+ */
+final class Cidr {
+
+    /**
+     * 子网最小为/28,OCI每个子网保留3个地址
+     */
+    private static final int MAX_SUBNET_PREFIX = 28;
+
+    private final long address;
+    private final int prefix;
+
+    private Cidr(long address, int prefix) {
+        this.address = address;
+        this.prefix = prefix;
+    }
+
+    static Cidr parse(String cidr) {
+        int slash = cidr.indexOf('/');
+        if (slash < 0) {
+            throw new IllegalArgumentException("不是CIDR格式: " + cidr);
+        }
+        String[] octets = cidr.substring(0, slash).split("\\.");
+        if (octets.length != 4) {
+            throw new IllegalArgumentException("不是IPv4地址段: " + cidr);
+        }
+        long address = 0;
+        for (String octet : octets) {
+            int value = Integer.parseInt(octet);
+            if (value < 0 || value > 255) {
+                throw new IllegalArgumentException("不是IPv4地址段: " + cidr);
+            }
+            address = (address << 8) | value;
+        }
+        int prefix = Integer.parseInt(cidr.substring(slash + 1));
+        if (prefix < 0 || prefix > 32) {
+            throw new IllegalArgumentException("掩码长度不正确: " + cidr);
+        }
+        return new Cidr(address & mask(prefix), prefix);
+    }
+
+    /**
+     * 把地址段按每个可用域一个子网划分: /16 划成 /24,更小的地址段按比例缩小,最小 /28
+     *
+     * @param preferred 优先使用的序号(可用域序号),被占用时使用第一个空闲的子网
+     * @param used      已有子网的地址段
+     * @return 没有空闲的子网时返回null
+     */
+    Cidr freeSubnet(int preferred, Collection<Cidr> used) {
+        int subnetPrefix = Math.max(prefix, Math.min(prefix + 8, MAX_SUBNET_PREFIX));
+        long count = 1L << (subnetPrefix - prefix);
+        if (preferred >= 0 && preferred < count) {
+            Cidr candidate = subnet(subnetPrefix, preferred);
+            if (!overlapsAny(candidate, used)) {
+                return candidate;
+            }
+        }
+        for (long index = 0; index < count; index++) {
+            Cidr candidate = subnet(subnetPrefix, index);
+            if (!overlapsAny(candidate, used)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    boolean overlaps(Cidr other) {
+        int shorter = Math.min(prefix, other.prefix);
+        return (address & mask(shorter)) == (other.address & mask(shorter));
+    }
+
+    private Cidr subnet(int subnetPrefix, long index) {
+        return new Cidr(address + (index << (32 - subnetPrefix)), subnetPrefix);
+    }
+
+    private static boolean overlapsAny(Cidr candidate, Collection<Cidr> used) {
+        for (Cidr cidr : used) {
+            if (candidate.overlaps(cidr)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long mask(int prefix) {
+        return prefix == 0 ? 0 : (0xFFFFFFFFL << (32 - prefix)) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public String toString() {
+        return ((address >> 24) & 0xFF) + "." + ((address >> 16) & 0xFF) + "." + ((address >> 8) & 0xFF) + "."
+                + (address & 0xFF) + "/" + prefix;
+    }
+}
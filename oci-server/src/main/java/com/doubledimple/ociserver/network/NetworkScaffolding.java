@@ -0,0 +1,32 @@
+package com.doubledimple.ociserver.network;
+
+import com.oracle.bmc.core.model.InternetGateway;
+import com.oracle.bmc.core.model.NetworkSecurityGroup;
+import com.oracle.bmc.core.model.Subnet;
+import com.oracle.bmc.core.model.Vcn;
+import lombok.Getter;
+
+/**
+ * 创建实例所需的网络基础设施: VCN、互联网网关(已加入默认路由表)、网络安全组以及可用域下的子网
+ *
+ * @author doubleDimple
+ * @date 2024:10:13日 19:40
+ */
+@Getter
+public class NetworkScaffolding {
+
+    private final String cidrBlock;
+    private final Vcn vcn;
+    private final InternetGateway internetGateway;
+    private final NetworkSecurityGroup networkSecurityGroup;
+    private final Subnet subnet;
+
+    public NetworkScaffolding(String cidrBlock, Vcn vcn, InternetGateway internetGateway,
+                              NetworkSecurityGroup networkSecurityGroup, Subnet subnet) {
+        this.cidrBlock = cidrBlock;
+        this.vcn = vcn;
+        this.internetGateway = internetGateway;
+        this.networkSecurityGroup = networkSecurityGroup;
+        this.subnet = subnet;
+    }
+}
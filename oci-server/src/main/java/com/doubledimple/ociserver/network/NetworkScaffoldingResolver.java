@@ -0,0 +1,529 @@
+package com.doubledimple.ociserver.network;
+
+import com.doubledimple.ociserver.domain.User;
+import com.doubledimple.ociserver.metrics.OciMetrics;
+import com.doubledimple.ociserver.metrics.OciOperation;
+import com.doubledimple.ociserver.util.DaemonThreads;
+import com.oracle.bmc.core.VirtualNetworkClient;
+import com.oracle.bmc.core.model.*;
+import com.oracle.bmc.core.requests.*;
+import com.oracle.bmc.core.responses.*;
+import com.oracle.bmc.identity.model.AvailabilityDomain;
+import com.oracle.bmc.model.BmcException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 网络基础设施解析器: VCN、互联网网关、路由规则、安全组和子网只在第一次使用时校验或创建,
+ * 之后缓存复用,只有在创建实例出现网络相关错误后才重新校验.
+ * <p>
+ * 第一次校验按依赖图执行: VCN完成后互联网网关(及路由规则)、安全组和子网并发创建,耗时接近关键路径;
+ * 任一步骤失败时删除本次新建的资源,下次重新校验
+ *
+ * @author doubleDimple
+ * @date 2024:10:13日 19:52
+ */
+@Component
+@Slf4j
+public class NetworkScaffoldingResolver {
+
+    public static final String VCN_NAME = "java-sdk-example-vcn";
+    public static final String INTERNET_GATEWAY_NAME = "java-sdk-example-internet-gateway";
+    public static final String SUBNET_NAME = "java-sdk-example-subnet";
+
+    /**
+     * 租户下还没有任何VCN时新建VCN使用的地址段
+     */
+    static final String DEFAULT_CIDR_BLOCK = "10.0.0.0/16";
+
+    private static final String[] NETWORK_KEYWORDS = {"subnet", "vcn", "vnic", "networksecuritygroup", "nsg", "routetable", "internetgateway"};
+
+    private final NetworkSecurityGroupReconciler networkSecurityGroupReconciler;
+    private final OciMetrics ociMetrics;
+
+    /**
+     * 租户级别: 用户名|区域 -> VCN、互联网网关与安全组(子网为空).
+     * 同一个租户的多个可用域并发解析时只有第一个线程执行校验,其余线程等待同一个结果,不会重复创建
+     */
+    private final Map<String, CompletableFuture<NetworkScaffolding>> vcns = new ConcurrentHashMap<>();
+
+    /**
+     * 可用域级别: 用户名|区域|可用域 -> 子网
+     */
+    private final Map<String, CompletableFuture<Subnet>> subnets = new ConcurrentHashMap<>();
+
+    /**
+     * 执行依赖图中的步骤,只在冷路径上使用; 每个图最多三个步骤并发,线程数受调用方线程数限制
+     */
+    private final ExecutorService executor = Executors.newCachedThreadPool(DaemonThreads.named("network-scaffolding"));
+
+    @Autowired
+    public NetworkScaffoldingResolver(NetworkSecurityGroupReconciler networkSecurityGroupReconciler, OciMetrics ociMetrics) {
+        this.networkSecurityGroupReconciler = networkSecurityGroupReconciler;
+        this.ociMetrics = ociMetrics;
+    }
+
+    /**
+     * 获取可用域下的网络基础设施,可用域下没有可用子网时返回null
+     */
+    public NetworkScaffolding resolve(User user, VirtualNetworkClient virtualNetworkClient,
+                                      String compartmentId, AvailabilityDomain availabilityDomain) throws Exception {
+        String tenantKey = user.getUserName() + "|" + user.getRegion();
+        String subnetKey = tenantKey + "|" + availabilityDomain.getName();
+        NetworkScaffolding base = singleFlight(vcns, tenantKey,
+                () -> resolveBase(user, virtualNetworkClient, compartmentId, availabilityDomain, subnetKey));
+        Subnet subnet = singleFlight(subnets, subnetKey, () -> {
+            ResourceGraph graph = new ResourceGraph("租户:[" + user.getUserName() + "]", executor);
+            ResourceGraph.Step<Subnet> createdSubnet = graph.step("subnet", step -> createSubnet(virtualNetworkClient,
+                    compartmentId, availabilityDomain, base.getVcn(), step));
+            graph.execute();
+            return createdSubnet.get();
+        });
+        if (subnet == null) {
+            return null;
+        }
+        return new NetworkScaffolding(base.getCidrBlock(), base.getVcn(), base.getInternetGateway(),
+                base.getNetworkSecurityGroup(), subnet);
+    }
+
+    /**
+     * 按依赖图校验租户级别的网络资源; 当前可用域的子网还没有其他线程在解析时一起放进图里并发创建
+     */
+    private NetworkScaffolding resolveBase(User user, VirtualNetworkClient virtualNetworkClient, String compartmentId,
+                                           AvailabilityDomain availabilityDomain, String subnetKey) throws Exception {
+        CompletableFuture<Subnet> claimed = new CompletableFuture<>();
+        boolean withSubnet = subnets.putIfAbsent(subnetKey, claimed) == null;
+        try {
+            long start = System.currentTimeMillis();
+            ResourceGraph graph = new ResourceGraph("租户:[" + user.getUserName() + "]", executor);
+            ResourceGraph.Step<String> cidr = graph.step("cidr", step -> getCidr(virtualNetworkClient, compartmentId));
+            ResourceGraph.Step<Vcn> vcn = graph.step("vcn",
+                    step -> createVcn(virtualNetworkClient, compartmentId, cidr.get(), step), cidr);
+            ResourceGraph.Step<InternetGateway> internetGateway = graph.step("internetGateway",
+                    step -> createInternetGateway(virtualNetworkClient, compartmentId, vcn.get(), step), vcn);
+            graph.step("routeTable", step -> {
+                addInternetGatewayToDefaultRouteTable(virtualNetworkClient, vcn.get(), internetGateway.get(), step);
+                return null;
+            }, internetGateway);
+            ResourceGraph.Step<NetworkSecurityGroup> networkSecurityGroup = graph.step("networkSecurityGroup",
+                    step -> networkSecurityGroupReconciler.reconcile(virtualNetworkClient, compartmentId, vcn.get(), cidr.get(), step),
+                    vcn);
+            ResourceGraph.Step<Subnet> createdSubnet = !withSubnet ? null : graph.step("subnet",
+                    step -> createSubnet(virtualNetworkClient, compartmentId, availabilityDomain, vcn.get(), step),
+                    vcn);
+            graph.execute();
+
+            log.info("租户:[{}] 网络基础设施校验完成,VCN:[{}],耗时:[{}]ms",
+                    user.getUserName(), vcn.get().getId(), System.currentTimeMillis() - start);
+            if (createdSubnet != null) {
+                if (createdSubnet.get() == null) {
+                    subnets.remove(subnetKey, claimed);
+                }
+                claimed.complete(createdSubnet.get());
+            }
+            return new NetworkScaffolding(cidr.get(), vcn.get(), internetGateway.get(), networkSecurityGroup.get(), null);
+        } catch (Exception | Error e) {
+            if (withSubnet) {
+                subnets.remove(subnetKey, claimed);
+                claimed.completeExceptionally(e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 创建实例因网络资源(子网/VCN/VNIC等)失败时清除缓存,下次重新校验
+     *
+     * @return 是否清除了缓存
+     */
+    public boolean invalidateIfNetworkError(User user, Throwable e) {
+        if (!isNetworkError(e)) {
+            return false;
+        }
+        log.info("租户:[{}] 出现网络相关错误,下次重新校验网络基础设施,原因为:[{}]", user.getUserName(), e.getMessage());
+        invalidate(user.getUserName());
+        return true;
+    }
+
+    public void invalidate(String userName) {
+        vcns.keySet().removeIf(key -> key.startsWith(userName + "|"));
+        subnets.keySet().removeIf(key -> key.startsWith(userName + "|"));
+    }
+
+    /**
+     * 同一个key同时只有一个线程执行加载,其余线程等待它的结果; 加载失败或结果为null时不缓存,下次重新加载
+     */
+    private static <T> T singleFlight(Map<String, CompletableFuture<T>> cache, String key, Callable<T> loader)
+            throws Exception {
+        CompletableFuture<T> future = cache.get(key);
+        if (future == null) {
+            CompletableFuture<T> created = new CompletableFuture<>();
+            future = cache.putIfAbsent(key, created);
+            if (future == null) {
+                try {
+                    T value = loader.call();
+                    if (value == null) {
+                        cache.remove(key, created);
+                    }
+                    created.complete(value);
+                    return value;
+                } catch (Exception | Error e) {
+                    cache.remove(key, created);
+                    created.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    static boolean isNetworkError(Throwable e) {
+        if (!(e instanceof BmcException)) {
+            return false;
+        }
+        BmcException error = (BmcException) e;
+        if (error.getStatusCode() != 400 && error.getStatusCode() != 404 && error.getStatusCode() != 409) {
+            return false;
+        }
+        String message = String.valueOf(error.getMessage()).toLowerCase(Locale.ROOT);
+        for (String keyword : NETWORK_KEYWORDS) {
+            if (message.contains(keyword)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getCidr(VirtualNetworkClient virtualNetworkClient, String compartmentId) {
+        // 创建列出 VCN 的请求
+        ListVcnsRequest listVcnsRequest = ListVcnsRequest.builder()
+                .compartmentId(compartmentId)
+                .build();
+
+        // 发送请求并获取响应
+        ListVcnsResponse listVcnsResponse = virtualNetworkClient.listVcns(listVcnsRequest);
+
+        if (log.isDebugEnabled()) {
+            // 遍历所有 VCN 并打印其 CIDR 块,有多个 CIDR 块时一并打印
+            for (Vcn vcn : listVcnsResponse.getItems()) {
+                log.debug("VCN Name: [{}] VCN ID: [{}] CIDR Block: [{}] Additional CIDR Blocks: {}",
+                        vcn.getDisplayName(), vcn.getId(), vcn.getCidrBlock(), vcn.getCidrBlocks());
+            }
+        }
+        if (listVcnsResponse.getItems().isEmpty()) {
+            return DEFAULT_CIDR_BLOCK;
+        }
+        return listVcnsResponse.getItems().get(0).getCidrBlock();
+    }
+
+    private Vcn createVcn(
+            VirtualNetworkClient virtualNetworkClient, String compartmentId, String cidrBlock,
+            ResourceGraph.Step<?> step)
+            throws Exception {
+        String vcnName = VCN_NAME;
+        ListVcnsRequest build = ListVcnsRequest.builder().compartmentId(compartmentId)
+                .displayName(vcnName)
+                .build();
+
+        ListVcnsResponse listVcnsResponse = virtualNetworkClient.listVcns(build);
+        Vcn existing = primaryVcn(listVcnsResponse.getItems());
+        if (existing != null) {
+            return existing;
+        }
+        CreateVcnDetails createVcnDetails =
+                CreateVcnDetails.builder()
+                        .cidrBlock(cidrBlock)
+                        .compartmentId(compartmentId)
+                        .displayName(vcnName)
+                        .build();
+
+        CreateVcnRequest createVcnRequest =
+                CreateVcnRequest.builder().createVcnDetails(createVcnDetails).build();
+        CreateVcnResponse createVcnResponse =
+                ociMetrics.timed(OciOperation.CREATE_VCN, () -> virtualNetworkClient.createVcn(createVcnRequest));
+
+        GetVcnRequest getVcnRequest =
+                GetVcnRequest.builder().vcnId(createVcnResponse.getVcn().getId()).build();
+        step.onRollback(() -> {
+            ociMetrics.timed(OciOperation.DELETE_VCN, () -> virtualNetworkClient.deleteVcn(
+                    DeleteVcnRequest.builder().vcnId(getVcnRequest.getVcnId()).build()));
+            ociMetrics.timed(OciOperation.NETWORK_WAITER, () -> virtualNetworkClient.getWaiters()
+                    .forVcn(getVcnRequest, Vcn.LifecycleState.Terminated).execute());
+            log.info("回滚: 已删除Vcn: [{}]", getVcnRequest.getVcnId());
+        });
+        GetVcnResponse getVcnResponse = ociMetrics.timed(OciOperation.NETWORK_WAITER, () ->
+                virtualNetworkClient
+                        .getWaiters()
+                        .forVcn(getVcnRequest, Vcn.LifecycleState.Available)
+                        .execute());
+        Vcn vcn = getVcnResponse.getVcn();
+
+        log.info("Created Vcn: [{}]", vcn.getId());
+
+        return vcn;
+    }
+
+    private InternetGateway createInternetGateway(
+            VirtualNetworkClient virtualNetworkClient, String compartmentId, Vcn vcn,
+            ResourceGraph.Step<?> step)
+            throws Exception {
+        String internetGatewayName = INTERNET_GATEWAY_NAME;
+
+        //查询网关是否存在,不存在再创建
+        ListInternetGatewaysRequest build = ListInternetGatewaysRequest.builder()
+                .compartmentId(compartmentId)
+                .displayName(internetGatewayName)
+                .build();
+
+        ListInternetGatewaysResponse listInternetGatewaysResponse = virtualNetworkClient.listInternetGateways(build);
+        if (listInternetGatewaysResponse.getItems().size() > 0) {
+            return listInternetGatewaysResponse.getItems().get(0);
+        }
+
+        CreateInternetGatewayDetails createInternetGatewayDetails =
+                CreateInternetGatewayDetails.builder()
+                        .compartmentId(compartmentId)
+                        .displayName(internetGatewayName)
+                        .isEnabled(true)
+                        .vcnId(vcn.getId())
+                        .build();
+        CreateInternetGatewayRequest createInternetGatewayRequest =
+                CreateInternetGatewayRequest.builder()
+                        .createInternetGatewayDetails(createInternetGatewayDetails)
+                        .build();
+        CreateInternetGatewayResponse createInternetGatewayResponse = ociMetrics.timed(OciOperation.CREATE_INTERNET_GATEWAY,
+                () -> virtualNetworkClient.createInternetGateway(createInternetGatewayRequest));
+
+        GetInternetGatewayRequest getInternetGatewayRequest =
+                GetInternetGatewayRequest.builder()
+                        .igId(createInternetGatewayResponse.getInternetGateway().getId())
+                        .build();
+        step.onRollback(() -> {
+            ociMetrics.timed(OciOperation.DELETE_INTERNET_GATEWAY, () -> virtualNetworkClient.deleteInternetGateway(
+                    DeleteInternetGatewayRequest.builder().igId(getInternetGatewayRequest.getIgId()).build()));
+            ociMetrics.timed(OciOperation.NETWORK_WAITER, () -> virtualNetworkClient.getWaiters()
+                    .forInternetGateway(getInternetGatewayRequest, InternetGateway.LifecycleState.Terminated).execute());
+            log.info("回滚: 已删除Internet Gateway: [{}]", getInternetGatewayRequest.getIgId());
+        });
+        GetInternetGatewayResponse getInternetGatewayResponse = ociMetrics.timed(OciOperation.NETWORK_WAITER, () ->
+                virtualNetworkClient
+                        .getWaiters()
+                        .forInternetGateway(
+                                getInternetGatewayRequest, InternetGateway.LifecycleState.Available)
+                        .execute());
+        InternetGateway internetGateway = getInternetGatewayResponse.getInternetGateway();
+
+        log.info("Created Internet Gateway: [{}]", internetGateway.getId());
+
+        return internetGateway;
+    }
+
+    private void addInternetGatewayToDefaultRouteTable(
+            VirtualNetworkClient virtualNetworkClient, Vcn vcn, InternetGateway internetGateway,
+            ResourceGraph.Step<?> step)
+            throws Exception {
+        GetRouteTableRequest getRouteTableRequest =
+                GetRouteTableRequest.builder().rtId(vcn.getDefaultRouteTableId()).build();
+        GetRouteTableResponse getRouteTableResponse =
+                virtualNetworkClient.getRouteTable(getRouteTableRequest);
+
+        List<RouteRule> routeRules = getRouteTableResponse.getRouteTable().getRouteRules();
+
+        log.debug("Current Route Rules in Default Route Table: {}", routeRules);
+
+
+        // 检查是否已有相同的路由规则
+        boolean ruleExists = routeRules.stream()
+                .anyMatch(rule -> "0.0.0.0/0".equals(rule.getDestination())
+                        && rule.getDestinationType() == RouteRule.DestinationType.CidrBlock);
+
+        if (ruleExists) {
+            log.info("The route rule for destination 0.0.0.0/0 already exists.");
+            return; // 退出方法，不添加新的规则
+        }
+
+        // 创建新的路由规则
+        RouteRule internetAccessRoute =
+                RouteRule.builder()
+                        .destination("0.0.0.0/0")
+                        .destinationType(RouteRule.DestinationType.CidrBlock)
+                        .networkEntityId(internetGateway.getId())
+                        .build();
+
+        // 将新的规则添加到新的列表中
+        List<RouteRule> updatedRouteRules = new ArrayList<>(routeRules);
+        updatedRouteRules.add(internetAccessRoute);
+
+        UpdateRouteTableDetails updateRouteTableDetails =
+                UpdateRouteTableDetails.builder().routeRules(updatedRouteRules).build();
+        UpdateRouteTableRequest updateRouteTableRequest =
+                UpdateRouteTableRequest.builder()
+                        .updateRouteTableDetails(updateRouteTableDetails)
+                        .rtId(vcn.getDefaultRouteTableId())
+                        .build();
+
+        ociMetrics.timed(OciOperation.UPDATE_ROUTE_TABLE, () -> virtualNetworkClient.updateRouteTable(updateRouteTableRequest));
+        // 回滚时恢复原有规则,指向网关的规则不删除则网关无法删除
+        List<RouteRule> originalRouteRules = routeRules;
+        step.onRollback(() -> {
+            ociMetrics.timed(OciOperation.UPDATE_ROUTE_TABLE, () -> virtualNetworkClient.updateRouteTable(UpdateRouteTableRequest.builder()
+                    .rtId(vcn.getDefaultRouteTableId())
+                    .updateRouteTableDetails(UpdateRouteTableDetails.builder().routeRules(originalRouteRules).build())
+                    .build()));
+            ociMetrics.timed(OciOperation.NETWORK_WAITER, () -> virtualNetworkClient.getWaiters()
+                    .forRouteTable(getRouteTableRequest, RouteTable.LifecycleState.Available).execute());
+        });
+
+        // 等待路由表更新完成
+        getRouteTableResponse = ociMetrics.timed(OciOperation.NETWORK_WAITER, () ->
+                virtualNetworkClient
+                        .getWaiters()
+                        .forRouteTable(getRouteTableRequest, RouteTable.LifecycleState.Available)
+                        .execute());
+        routeRules = getRouteTableResponse.getRouteTable().getRouteRules();
+
+        log.debug("Updated Route Rules in Default Route Table: {}", routeRules);
+
+    }
+
+    /**
+     * 每个可用域一个子网: 已有时直接使用,否则在VCN地址段内按可用域序号划出一段不重叠的地址创建
+     *
+     * @return VCN地址段已经没有空闲的子网时返回null
+     */
+    private Subnet createSubnet(
+            VirtualNetworkClient virtualNetworkClient,
+            String compartmentId,
+            AvailabilityDomain availabilityDomain,
+            Vcn vcn,
+            ResourceGraph.Step<?> step)
+            throws Exception {
+        String subnetName = SUBNET_NAME;
+        //检查子网是否存在
+        ListSubnetsRequest listRequest = ListSubnetsRequest.builder()
+                .compartmentId(compartmentId)
+                .vcnId(vcn.getId())
+                .build();
+        ListSubnetsResponse listResponse = virtualNetworkClient.listSubnets(listRequest);
+        List<Cidr> used = new ArrayList<>();
+        for (Subnet subnetOld : listResponse.getItems()) {
+            if (subnetOld.getLifecycleState() == Subnet.LifecycleState.Terminated) {
+                continue;
+            }
+            if (availabilityDomain.getName().equals(subnetOld.getAvailabilityDomain()) && subnetName.equals(subnetOld.getDisplayName())
+                    && subnetOld.getLifecycleState() != Subnet.LifecycleState.Terminating) {
+                return subnetOld;
+            }
+            if (subnetOld.getCidrBlock() != null) {
+                used.add(Cidr.parse(subnetOld.getCidrBlock()));
+            }
+        }
+        Cidr cidrBlock = Cidr.parse(vcn.getCidrBlock()).freeSubnet(availabilityDomainIndex(availabilityDomain), used);
+        if (cidrBlock == null) {
+            log.warn("VCN:[{}] 地址段:[{}]已没有空闲的子网,可用域:[{}]无法创建子网", vcn.getId(), vcn.getCidrBlock(),
+                    availabilityDomain.getName());
+            return null;
+        }
+
+        CreateSubnetDetails createSubnetDetails =
+                CreateSubnetDetails.builder()
+                        .availabilityDomain(availabilityDomain.getName())
+                        .compartmentId(compartmentId)
+                        .displayName(subnetName)
+                        .cidrBlock(cidrBlock.toString())
+                        .vcnId(vcn.getId())
+                        .routeTableId(vcn.getDefaultRouteTableId())
+                        .build();
+        CreateSubnetRequest createSubnetRequest =
+                CreateSubnetRequest.builder().createSubnetDetails(createSubnetDetails).build();
+        CreateSubnetResponse createSubnetResponse =
+                ociMetrics.timed(OciOperation.CREATE_SUBNET, () -> virtualNetworkClient.createSubnet(createSubnetRequest));
+
+        GetSubnetRequest getSubnetRequest =
+                GetSubnetRequest.builder()
+                        .subnetId(createSubnetResponse.getSubnet().getId())
+                        .build();
+        step.onRollback(() -> {
+            ociMetrics.timed(OciOperation.DELETE_SUBNET, () -> virtualNetworkClient.deleteSubnet(
+                    DeleteSubnetRequest.builder().subnetId(getSubnetRequest.getSubnetId()).build()));
+            ociMetrics.timed(OciOperation.NETWORK_WAITER, () -> virtualNetworkClient.getWaiters()
+                    .forSubnet(getSubnetRequest, Subnet.LifecycleState.Terminated).execute());
+            log.info("回滚: 已删除Subnet: [{}]", getSubnetRequest.getSubnetId());
+        });
+        GetSubnetResponse getSubnetResponse = ociMetrics.timed(OciOperation.NETWORK_WAITER, () ->
+                virtualNetworkClient
+                        .getWaiters()
+                        .forSubnet(getSubnetRequest, Subnet.LifecycleState.Available)
+                        .execute());
+        Subnet subnet = getSubnetResponse.getSubnet();
+
+        log.info("Created Subnet: [{}]", subnet.getId());
+        log.debug("subnet: [{}]", subnet);
+        return subnet;
+    }
+
+    /**
+     * 可用域名称形如 "xxxx:AP-TOKYO-1-AD-1",取末尾的序号(从0开始),无法识别时为0
+     */
+    private static int availabilityDomainIndex(AvailabilityDomain availabilityDomain) {
+        String name = availabilityDomain.getName();
+        int index = name.lastIndexOf("AD-");
+        if (index < 0) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(name.substring(index + 3)) - 1);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 同名VCN有多个时(手动创建或旧版本遗留)固定使用最早创建的可用VCN;
+     * 都不可用时沿用列表中的第一个
+     *
+     * @return 列表为空时返回null
+     */
+    private static Vcn primaryVcn(List<Vcn> vcns) {
+        Vcn primary = null;
+        for (Vcn vcn : vcns) {
+            if (vcn.getLifecycleState() != Vcn.LifecycleState.Available) {
+                continue;
+            }
+            if (primary == null || (vcn.getTimeCreated() != null && primary.getTimeCreated() != null
+                    && vcn.getTimeCreated().before(primary.getTimeCreated()))) {
+                primary = vcn;
+            }
+        }
+        return primary == null && !vcns.isEmpty() ? vcns.get(0) : primary;
+    }
+}
@@ -0,0 +1,264 @@
+package com.doubledimple.ociserver.network;
+
+import com.doubledimple.ociserver.util.DaemonThreads;
+import com.oracle.bmc.core.VirtualNetworkClient;
+import com.oracle.bmc.core.model.*;
+import com.oracle.bmc.core.requests.*;
+import com.oracle.bmc.core.responses.*;
+import com.oracle.bmc.model.BmcException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * 网络安全组维护: 每个VCN只使用一个固定名称的安全组,安全规则按期望状态做差异同步.
+ * 本工具添加的规则在描述前加 {@link #RULE_DESCRIPTION_PREFIX},只有带该前缀的规则才会被删除,用户手动添加的规则保持不变.
+ * 同时一次性清理历史版本按时间戳命名、每次重试都会新建而泄漏的安全组
+ *
+ * @author doubleDimple
+ * @date 2024:10:14日 09:30
+ */
+@Component
+@Slf4j
+public class NetworkSecurityGroupReconciler {
+
+    public static final String NETWORK_SECURITY_GROUP_NAME = "oci-start-nsg";
+
+    /**
+     * 本工具添加的安全规则的描述前缀
+     */
+    static final String RULE_DESCRIPTION_PREFIX = "[oci-start] ";
+
+    /**
+     * 历史版本的安全组名称: System.currentTimeMillis() + "-nsg"
+     */
+    private static final Pattern LEAKED_NAME = Pattern.compile("^\\d{13}-nsg$");
+
+    private final Set<String> cleanedVcns = ConcurrentHashMap.newKeySet();
+    private final ExecutorService cleaner = Executors.newSingleThreadExecutor(DaemonThreads.named("nsg-cleaner"));
+
+    /**
+     * 获取(不存在则创建)VCN下固定名称的安全组,并同步安全规则
+     *
+     * @param step 所在的依赖图步骤,新建的安全组在图回滚时删除
+     */
+    public NetworkSecurityGroup reconcile(VirtualNetworkClient virtualNetworkClient, String compartmentId,
+                                          Vcn vcn, String networkCidrBlock, ResourceGraph.Step<?> step) {
+        NetworkSecurityGroup networkSecurityGroup = findOrCreate(virtualNetworkClient, compartmentId, vcn, step);
+        reconcileRules(virtualNetworkClient, networkSecurityGroup, desiredRules(networkCidrBlock));
+        if (cleanedVcns.add(vcn.getId())) {
+            cleaner.execute(() -> cleanupLeakedGroups(virtualNetworkClient, compartmentId, vcn.getId()));
+        }
+        return networkSecurityGroup;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        cleaner.shutdownNow();
+    }
+
+    private static NetworkSecurityGroup findOrCreate(VirtualNetworkClient virtualNetworkClient, String compartmentId, Vcn vcn,
+                                                     ResourceGraph.Step<?> step) {
+        ListNetworkSecurityGroupsRequest build = ListNetworkSecurityGroupsRequest.builder().
+                compartmentId(compartmentId).
+                displayName(NETWORK_SECURITY_GROUP_NAME).vcnId(vcn.getId()).build();
+        ListNetworkSecurityGroupsResponse listNetworkSecurityGroupsResponse = virtualNetworkClient.listNetworkSecurityGroups(build);
+        for (NetworkSecurityGroup existing : listNetworkSecurityGroupsResponse.getItems()) {
+            if (existing.getLifecycleState() == NetworkSecurityGroup.LifecycleState.Available) {
+                return existing;
+            }
+        }
+
+        CreateNetworkSecurityGroupDetails createNetworkSecurityGroupDetails =
+                CreateNetworkSecurityGroupDetails.builder()
+                        .compartmentId(compartmentId)
+                        .displayName(NETWORK_SECURITY_GROUP_NAME)
+                        .vcnId(vcn.getId())
+                        .build();
+        CreateNetworkSecurityGroupRequest createNetworkSecurityGroupRequest =
+                CreateNetworkSecurityGroupRequest.builder()
+                        .createNetworkSecurityGroupDetails(createNetworkSecurityGroupDetails)
+                        .build();
+        CreateNetworkSecurityGroupResponse createNetworkSecurityGroupResponse =
+                virtualNetworkClient.createNetworkSecurityGroup(createNetworkSecurityGroupRequest);
+
+        GetNetworkSecurityGroupRequest getNetworkSecurityGroupRequest =
+                GetNetworkSecurityGroupRequest.builder()
+                        .networkSecurityGroupId(
+                                createNetworkSecurityGroupResponse
+                                        .getNetworkSecurityGroup()
+                                        .getId())
+                        .build();
+        step.onRollback(() -> {
+            virtualNetworkClient.deleteNetworkSecurityGroup(DeleteNetworkSecurityGroupRequest.builder()
+                    .networkSecurityGroupId(getNetworkSecurityGroupRequest.getNetworkSecurityGroupId())
+                    .build());
+            virtualNetworkClient.getWaiters()
+                    .forNetworkSecurityGroup(getNetworkSecurityGroupRequest, NetworkSecurityGroup.LifecycleState.Terminated)
+                    .execute();
+            log.info("回滚: 已删除Network Security Group: [{}]", getNetworkSecurityGroupRequest.getNetworkSecurityGroupId());
+        });
+        NetworkSecurityGroup networkSecurityGroup;
+        try {
+            networkSecurityGroup = virtualNetworkClient
+                    .getWaiters()
+                    .forNetworkSecurityGroup(
+                            getNetworkSecurityGroupRequest,
+                            NetworkSecurityGroup.LifecycleState.Available)
+                    .execute()
+                    .getNetworkSecurityGroup();
+        } catch (Exception e) {
+            throw new IllegalStateException("等待安全组可用失败: " + e.getMessage(), e);
+        }
+
+        log.info("Created Network Security Group: [{}]", networkSecurityGroup.getId());
+        return networkSecurityGroup;
+    }
+
+    static List<AddSecurityRuleDetails> desiredRules(String networkCidrBlock) {
+        AddSecurityRuleDetails addSecurityRuleDetails =
+                AddSecurityRuleDetails.builder()
+                        .description(RULE_DESCRIPTION_PREFIX + "Incoming HTTP connections")
+                        .direction(AddSecurityRuleDetails.Direction.Ingress)
+                        .protocol("6")
+                        .source(networkCidrBlock)
+                        .sourceType(AddSecurityRuleDetails.SourceType.CidrBlock)
+                        .tcpOptions(
+                                TcpOptions.builder()
+                                        .destinationPortRange(
+                                                PortRange.builder().min(80).max(80).build())
+                                        .build())
+                        .build();
+        return Collections.singletonList(addSecurityRuleDetails);
+    }
+
+    /**
+     * 对比期望规则与现有规则: 只添加缺少的,只删除本工具添加且不再需要的,规则一致时不做任何修改
+     */
+    private static void reconcileRules(VirtualNetworkClient virtualNetworkClient,
+                                       NetworkSecurityGroup networkSecurityGroup,
+                                       List<AddSecurityRuleDetails> desiredRules) {
+        ListNetworkSecurityGroupSecurityRulesRequest listNetworkSecurityGroupSecurityRulesRequest =
+                ListNetworkSecurityGroupSecurityRulesRequest.builder()
+                        .networkSecurityGroupId(networkSecurityGroup.getId())
+                        .build();
+        List<SecurityRule> existingRules = virtualNetworkClient.listNetworkSecurityGroupSecurityRules(
+                listNetworkSecurityGroupSecurityRulesRequest).getItems();
+
+        List<AddSecurityRuleDetails> missing = new ArrayList<>();
+        for (AddSecurityRuleDetails desired : desiredRules) {
+            boolean present = existingRules.stream().anyMatch(existing -> sameRule(existing, desired));
+            if (!present) {
+                missing.add(desired);
+            }
+        }
+        List<String> extra = new ArrayList<>();
+        for (SecurityRule existing : existingRules) {
+            if (!ownRule(existing)) {
+                continue;
+            }
+            boolean wanted = desiredRules.stream().anyMatch(desired -> sameRule(existing, desired));
+            if (!wanted) {
+                extra.add(existing.getId());
+            }
+        }
+
+        if (!extra.isEmpty()) {
+            virtualNetworkClient.removeNetworkSecurityGroupSecurityRules(
+                    RemoveNetworkSecurityGroupSecurityRulesRequest.builder()
+                            .networkSecurityGroupId(networkSecurityGroup.getId())
+                            .removeNetworkSecurityGroupSecurityRulesDetails(
+                                    RemoveNetworkSecurityGroupSecurityRulesDetails.builder()
+                                            .securityRuleIds(extra)
+                                            .build())
+                            .build());
+            log.info("安全组:[{}] 删除多余规则:[{}]条", networkSecurityGroup.getId(), extra.size());
+        }
+        if (!missing.isEmpty()) {
+            virtualNetworkClient.addNetworkSecurityGroupSecurityRules(
+                    AddNetworkSecurityGroupSecurityRulesRequest.builder()
+                            .networkSecurityGroupId(networkSecurityGroup.getId())
+                            .addNetworkSecurityGroupSecurityRulesDetails(
+                                    AddNetworkSecurityGroupSecurityRulesDetails.builder()
+                                            .securityRules(missing)
+                                            .build())
+                            .build());
+            log.info("安全组:[{}] 添加缺少的规则:[{}]条", networkSecurityGroup.getId(), missing.size());
+        }
+    }
+
+    static boolean sameRule(SecurityRule existing, AddSecurityRuleDetails desired) {
+        if (existing.getDirection() == null || desired.getDirection() == null
+                || !existing.getDirection().getValue().equals(desired.getDirection().getValue())) {
+            return false;
+        }
+        if (!Objects.equals(existing.getProtocol(), desired.getProtocol())
+                || !Objects.equals(existing.getSource(), desired.getSource())
+                || !sourceType(existing.getSourceType() == null ? null : existing.getSourceType().getValue())
+                .equals(sourceType(desired.getSourceType() == null ? null : desired.getSourceType().getValue()))) {
+            return false;
+        }
+        return Objects.equals(portRange(existing.getTcpOptions()), portRange(desired.getTcpOptions()));
+    }
+
+    static boolean ownRule(SecurityRule existing) {
+        return existing.getDescription() != null && existing.getDescription().startsWith(RULE_DESCRIPTION_PREFIX);
+    }
+
+    /**
+     * 未指定来源类型时OCI按CIDR处理
+     */
+    private static String sourceType(String value) {
+        return value == null ? AddSecurityRuleDetails.SourceType.CidrBlock.getValue() : value;
+    }
+
+    private static String portRange(TcpOptions tcpOptions) {
+        if (tcpOptions == null || tcpOptions.getDestinationPortRange() == null) {
+            return null;
+        }
+        PortRange range = tcpOptions.getDestinationPortRange();
+        return range.getMin() + "-" + range.getMax();
+    }
+
+    /**
+     * 删除VCN下历史版本泄漏的安全组; 仍绑定在实例网卡上的安全组会删除失败,直接跳过
+     */
+    private static void cleanupLeakedGroups(VirtualNetworkClient virtualNetworkClient, String compartmentId, String vcnId) {
+        int deleted = 0;
+        try {
+            ListNetworkSecurityGroupsRequest request = ListNetworkSecurityGroupsRequest.builder()
+                    .compartmentId(compartmentId)
+                    .vcnId(vcnId)
+                    .build();
+            for (NetworkSecurityGroup group : virtualNetworkClient.getPaginators().listNetworkSecurityGroupsRecordIterator(request)) {
+                if (group.getDisplayName() == null || !LEAKED_NAME.matcher(group.getDisplayName()).matches()
+                        || group.getLifecycleState() != NetworkSecurityGroup.LifecycleState.Available) {
+                    continue;
+                }
+                try {
+                    virtualNetworkClient.deleteNetworkSecurityGroup(DeleteNetworkSecurityGroupRequest.builder()
+                            .networkSecurityGroupId(group.getId())
+                            .build());
+                    deleted++;
+                } catch (BmcException e) {
+                    log.info("安全组:[{}] 删除失败(可能仍在使用),跳过,原因为:[{}]", group.getDisplayName(), e.getServiceCode());
+                }
+            }
+        } catch (Exception e) {
+            log.warn("清理VCN:[{}] 泄漏的安全组失败,原因为:[{}]", vcnId, e.getMessage());
+        }
+        if (deleted > 0) {
+            log.info("VCN:[{}] 已清理泄漏的安全组:[{}]个", vcnId, deleted);
+        }
+    }
+}
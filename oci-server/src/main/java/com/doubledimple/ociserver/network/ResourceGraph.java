@@ -0,0 +1,210 @@
+package com.doubledimple.ociserver.network;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 资源操作的依赖图: 步骤的依赖全部完成后立即提交到线程池,互不依赖的步骤(包括各自的等待)并发执行,
+ * 总耗时接近关键路径.
+ * <p>
+ * 任一步骤失败后不再启动新的步骤,等正在执行的步骤结束,再按结束顺序的相反顺序执行各步骤登记的回滚操作
+ * (包括失败的步骤在失败前登记的),依赖方先于被依赖方回滚. 一个图只执行一次
+ *
+ * @author doubleDimple
+ * @date 2024:10:20日 10:30
+ */
+@Slf4j
+public final class ResourceGraph {
+
+    private final String name;
+    private final Executor executor;
+    private final List<Step<?>> steps = new ArrayList<>();
+
+    /**
+     * 已结束(成功或失败)的步骤,按结束顺序
+     */
+    private final List<Step<?>> finished = new ArrayList<>();
+    private int running;
+    private Throwable failure;
+
+    /**
+     * @param name 日志中的名称,例如租户
+     */
+    public ResourceGraph(String name, Executor executor) {
+        this.name = name;
+        this.executor = executor;
+    }
+
+    /**
+     * 添加步骤
+     *
+     * @param dependencies 之前添加到本图的步骤,全部成功后才执行
+     */
+    public <T> Step<T> step(String stepName, Action<T> action, Step<?>... dependencies) {
+        Step<T> step = new Step<>(stepName, action, dependencies.length);
+        for (Step<?> dependency : dependencies) {
+            if (!steps.contains(dependency)) {
+                throw new IllegalArgumentException("依赖的步骤不属于当前图: " + dependency.name);
+            }
+            dependency.dependents.add(step);
+        }
+        steps.add(step);
+        return step;
+    }
+
+    /**
+     * 执行所有步骤并等待结束; 有步骤失败时回滚后抛出第一个失败原因,其余失败原因附加在其中
+     */
+    public void execute() throws Exception {
+        boolean interrupted = false;
+        synchronized (this) {
+            for (Step<?> step : steps) {
+                if (step.remaining == 0) {
+                    submit(step);
+                }
+            }
+            // 被中断时也要等正在执行的步骤结束,否则它们创建的资源无法回滚
+            while (running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    fail(e);
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure == null) {
+            return;
+        }
+        rollback();
+        if (failure instanceof Exception) {
+            throw (Exception) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new IllegalStateException(failure);
+    }
+
+    private void submit(Step<?> step) {
+        running++;
+        try {
+            executor.execute(() -> run(step));
+        } catch (RejectedExecutionException e) {
+            running--;
+            fail(e);
+        }
+    }
+
+    private <T> void run(Step<T> step) {
+        T value = null;
+        Throwable error = null;
+        try {
+            value = step.action.run(step);
+        } catch (Throwable e) {
+            error = e;
+        }
+        synchronized (this) {
+            running--;
+            finished.add(step);
+            if (error != null) {
+                log.warn("{} 步骤:[{}]失败,原因为:[{}]", name, step.name, error.getMessage());
+                fail(error);
+            } else {
+                step.value = value;
+                step.done = true;
+                if (failure == null) {
+                    for (Step<?> dependent : step.dependents) {
+                        if (--dependent.remaining == 0) {
+                            submit(dependent);
+                        }
+                    }
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    private void fail(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        } else if (failure != e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * 此时所有步骤都已结束,在调用线程中逐个回滚; 回滚失败只记录日志,继续回滚其余步骤
+     */
+    private void rollback() {
+        List<Step<?>> order = new ArrayList<>(finished);
+        Collections.reverse(order);
+        for (Step<?> step : order) {
+            for (Compensation compensation : step.compensations) {
+                try {
+                    compensation.run();
+                } catch (Exception e) {
+                    log.warn("{} 回滚步骤:[{}]失败,原因为:[{}]", name, step.name, e.getMessage());
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface Action<T> {
+
+        /**
+         * @param step 当前步骤,创建资源后通过 {@link Step#onRollback(Compensation)} 登记删除操作
+         */
+        T run(Step<T> step) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface Compensation {
+        void run() throws Exception;
+    }
+
+    public static final class Step<T> {
+
+        private final String name;
+        private final Action<T> action;
+        private final List<Step<?>> dependents = new ArrayList<>();
+        private final Deque<Compensation> compensations = new ArrayDeque<>();
+        private int remaining;
+        private volatile T value;
+        private volatile boolean done;
+
+        private Step(String name, Action<T> action, int remaining) {
+            this.name = name;
+            this.action = action;
+            this.remaining = remaining;
+        }
+
+        /**
+         * @return 步骤的结果,只能在依赖它的步骤中或图执行成功后读取
+         */
+        public T get() {
+            if (!done) {
+                throw new IllegalStateException("步骤未完成: " + name);
+            }
+            return value;
+        }
+
+        /**
+         * 登记回滚操作,同一步骤的多个回滚操作按登记的相反顺序执行
+         */
+        public void onRollback(Compensation compensation) {
+            compensations.push(compensation);
+        }
+    }
+}
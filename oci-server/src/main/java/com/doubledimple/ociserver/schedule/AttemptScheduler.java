@@ -0,0 +1,160 @@
+package com.doubledimple.ociserver.schedule;
+
+import com.doubledimple.ociserver.util.DaemonThreads;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 租户重试调度器: 每次尝试都是一个独立任务,执行完后由任务自己决定下一次的延迟.
+ * 等待期间不占用线程,所有租户共享一个固定大小的工作线程池. 每次尝试从开始到返回的future结束都持有一个许可,
+ * 异步引擎的尝试立即归还线程,但在完成前仍然计入最大并发尝试数
+ *
+ * @author doubleDimple
+ * @date 2024:10:15日 10:20
+ */
+@Component
+@Slf4j
+public class AttemptScheduler {
+
+    @Value("${oci.scheduler.max-in-flight:8}")
+    private int maxInFlight = 8;
+
+    private final Set<String> active = ConcurrentHashMap.newKeySet();
+    private final Map<String, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+    private final Map<String, Supplier<CompletableFuture<?>>> attempts = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private Semaphore permits;
+
+    private ScheduledExecutorService timer;
+    private ThreadPoolExecutor workers;
+
+    @PostConstruct
+    public void start() {
+        permits = new Semaphore(maxInFlight);
+        timer = Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("attempt-timer"));
+        workers = new ThreadPoolExecutor(maxInFlight, maxInFlight, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), DaemonThreads.named("attempt-worker"));
+        log.info("重试调度器启动,最大并发尝试数:[{}]", maxInFlight);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        active.clear();
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * 注册租户,只有注册过的租户才会被调度
+     */
+    public boolean register(String key) {
+        return active.add(key);
+    }
+
+    public boolean isRegistered(String key) {
+        return active.contains(key);
+    }
+
+    /**
+     * 在指定延迟后执行一次尝试; 同一租户只保留最新的一次调度
+     *
+     * @param attempt 返回尝试完成的future,结束前一直占用一个并发许可
+     */
+    public void schedule(String key, Supplier<CompletableFuture<?>> attempt, long delay, TimeUnit unit) {
+        if (!active.contains(key)) {
+            return;
+        }
+        attempts.put(key, attempt);
+        ScheduledFuture<?> future = timer.schedule(() -> dispatch(key, attempt), delay, unit);
+        ScheduledFuture<?> previous = pending.put(key, future);
+        if (previous != null && previous != future) {
+            previous.cancel(false);
+        }
+    }
+
+    /**
+     * 取消租户: 清除等待中的调度,正在执行的尝试结束后不会再次调度
+     */
+    public void cancel(String key) {
+        active.remove(key);
+        attempts.remove(key);
+        ScheduledFuture<?> future = pending.remove(key);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * 把租户正在等待的下一次尝试提前到现在执行; 尝试正在执行或者没有等待中的调度时不做处理
+     *
+     * @return 是否提前了调度
+     */
+    public boolean wake(String key) {
+        ScheduledFuture<?> future = pending.get(key);
+        Supplier<CompletableFuture<?>> attempt = attempts.get(key);
+        if (future == null || attempt == null || future.getDelay(TimeUnit.MILLISECONDS) <= 0) {
+            return false;
+        }
+        if (!future.cancel(false)) {
+            return false;
+        }
+        schedule(key, attempt, 0, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getQueued() {
+        return workers.getQueue().size();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    private void dispatch(String key, Supplier<CompletableFuture<?>> attempt) {
+        workers.execute(() -> {
+            if (!active.contains(key)) {
+                return;
+            }
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!active.contains(key)) {
+                permits.release();
+                return;
+            }
+            inFlight.incrementAndGet();
+            CompletableFuture<?> done;
+            try {
+                done = attempt.get();
+            } catch (Exception e) {
+                done = new CompletableFuture<>();
+                done.completeExceptionally(e);
+            }
+            done.whenComplete((ignored, error) -> {
+                inFlight.decrementAndGet();
+                permits.release();
+                if (error != null) {
+                    log.error("租户:[{}] 执行尝试出现未处理的异常,原因为:[{}]", key, error.getMessage(), error);
+                }
+            });
+        });
+    }
+
+}
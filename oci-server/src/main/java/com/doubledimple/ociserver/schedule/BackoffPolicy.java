@@ -0,0 +1,21 @@
+package com.doubledimple.ociserver.schedule;
+
+import com.doubledimple.ociserver.domain.User;
+import com.doubledimple.ociserver.exception.ErrorCode;
+
+/**
+ * 重试间隔策略,根据失败原因和上一次的间隔计算下一次尝试前的等待时间.
+ * 默认实现为 {@link DecorrelatedJitterBackoffPolicy},声明一个 @Primary 的实现即可替换
+ *
+ * @author doubleDimple
+ * @date 2024:10:16日 10:12
+ */
+public interface BackoffPolicy {
+
+    /**
+     * @param previousDelayMillis 上一次的等待时间,首次失败时为0
+     * @param consecutiveFailures 包括本次在内的连续失败次数
+     * @return 下一次尝试前的等待时间(毫秒)
+     */
+    long nextDelayMillis(User user, ErrorCode errorCode, long previousDelayMillis, int consecutiveFailures);
+}
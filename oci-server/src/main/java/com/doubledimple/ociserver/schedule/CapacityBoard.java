@@ -0,0 +1,143 @@
+package com.doubledimple.ociserver.schedule;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 跨租户共享的容量看板,按 (区域, 可用域, 规格) 记录最近的容量不足和创建成功.
+ * <p>
+ * 某个租户遇到容量不足后,衰减窗口内其他租户跳过该可用域,每个探测间隔只放行一个租户去探测;
+ * 任何租户在该处创建成功时立即通知监听者,唤醒同区域同规格的其他租户.
+ * 这样N个各自轮询的租户变成一个协作的探测者. 所有记录同时写入 {@link CapacityHeatmap} 作为历史数据
+ *
+ * @author doubleDimple
+ * @date 2024:10:16日 19:30
+ */
+@Component
+@Slf4j
+public class CapacityBoard {
+
+    /**
+     * 容量不足的记录在多长时间内有效
+     */
+    @Value("${oci.capacity.decay-seconds:120}")
+    private long decaySeconds = 120;
+
+    /**
+     * 衰减窗口内每隔多久放行一个租户探测
+     */
+    @Value("${oci.capacity.probe-seconds:20}")
+    private long probeSeconds = 20;
+
+    @Autowired
+    private CapacityHeatmap capacityHeatmap;
+
+    private final Map<String, Signal> signals = new ConcurrentHashMap<>();
+    private final List<CapacityListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * 监听某处出现容量的事件
+     */
+    @FunctionalInterface
+    public interface CapacityListener {
+        void onCapacityAvailable(String region, String availabilityDomain, String shape, String userName);
+    }
+
+    public void addListener(CapacityListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * 是否应该在该处发起创建: 没有近期容量不足记录时直接放行,否则每个探测间隔只放行一个调用方
+     */
+    public boolean shouldAttempt(String region, String availabilityDomain, String shape) {
+        Signal signal = signals.get(key(region, availabilityDomain, shape));
+        if (signal == null) {
+            return true;
+        }
+        return signal.tryProbe(System.currentTimeMillis(), TimeUnit.SECONDS.toMillis(decaySeconds),
+                TimeUnit.SECONDS.toMillis(probeSeconds));
+    }
+
+    public void recordCapacityFailure(String region, String availabilityDomain, String shape) {
+        signals.computeIfAbsent(key(region, availabilityDomain, shape), k -> new Signal())
+                .failed(System.currentTimeMillis(), TimeUnit.SECONDS.toMillis(probeSeconds));
+        capacityHeatmap.record(region, availabilityDomain, shape, false);
+    }
+
+    public void recordSuccess(String region, String availabilityDomain, String shape, String userName) {
+        Signal signal = signals.computeIfAbsent(key(region, availabilityDomain, shape), k -> new Signal());
+        signal.succeeded(System.currentTimeMillis());
+        capacityHeatmap.record(region, availabilityDomain, shape, true);
+        log.info("区域:[{}] 可用域:[{}] 规格:[{}] 租户:[{}] 创建成功,通知其他租户", region, availabilityDomain, shape, userName);
+        for (CapacityListener listener : listeners) {
+            try {
+                listener.onCapacityAvailable(region, availabilityDomain, shape, userName);
+            } catch (Exception e) {
+                log.warn("通知容量事件失败,原因为:[{}]", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return 区域|可用域|规格 -> 容量信号
+     */
+    public Map<String, Signal> snapshot() {
+        return Collections.unmodifiableMap(signals);
+    }
+
+    private static String key(String region, String availabilityDomain, String shape) {
+        return region + "|" + availabilityDomain + "|" + shape;
+    }
+
+    /**
+     * 单个 (区域, 可用域, 规格) 的容量信号
+     */
+    @Getter
+    public static final class Signal {
+        private long lastFailureAt;
+        private long lastSuccessAt;
+        private long nextProbeAt;
+        private long failures;
+        private long successes;
+        private long skipped;
+
+        private synchronized void failed(long now, long probeMillis) {
+            lastFailureAt = now;
+            nextProbeAt = now + probeMillis;
+            failures++;
+        }
+
+        private synchronized void succeeded(long now) {
+            lastSuccessAt = now;
+            nextProbeAt = 0;
+            successes++;
+        }
+
+        private synchronized boolean tryProbe(long now, long decayMillis, long probeMillis) {
+            if (!isExhausted(now, decayMillis)) {
+                return true;
+            }
+            if (now >= nextProbeAt) {
+                nextProbeAt = now + probeMillis;
+                return true;
+            }
+            skipped++;
+            return false;
+        }
+
+        public synchronized boolean isExhausted(long now, long decayMillis) {
+            return lastFailureAt > lastSuccessAt && now - lastFailureAt < decayMillis;
+        }
+    }
+}
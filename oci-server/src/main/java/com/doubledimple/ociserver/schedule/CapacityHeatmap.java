@@ -0,0 +1,219 @@
+package com.doubledimple.ociserver.schedule;
+
+import com.doubledimple.ociserver.util.DaemonThreads;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 容量热力图: 按 (区域, 可用域, 规格, 一周中的小时) 记录每次创建的结果,
+ * 统计各时段的成功率,用来调节重试频率: 容量容易释放的时段加快,其余时段放慢.
+ * <p>
+ * 数据定期写入本地文件,重启后继续累积; 单个时段的次数过大时减半,较新的数据权重更高
+ *
+ * @author doubleDimple
+ * @date 2024:10:17日 09:50
+ */
+@Component
+@Slf4j
+public class CapacityHeatmap {
+
+    static final int HOURS_OF_WEEK = 7 * 24;
+    private static final int FILE_VERSION = 1;
+    private static final int HALVE_THRESHOLD = 1 << 16;
+
+    @Value("${oci.heatmap.file:data/capacity-heatmap.bin}")
+    private String file = "data/capacity-heatmap.bin";
+
+    @Value("${oci.heatmap.flush-minutes:5}")
+    private long flushMinutes = 5;
+
+    /**
+     * 时段的尝试次数少于该值时不调节
+     */
+    @Value("${oci.heatmap.min-samples:20}")
+    private int minSamples = 20;
+
+    /**
+     * 热门时段的间隔最多缩短到原来的该比例
+     */
+    @Value("${oci.heatmap.min-factor:0.25}")
+    private double minFactor = 0.25;
+
+    /**
+     * 冷门时段的间隔最多放大到原来的该倍数
+     */
+    @Value("${oci.heatmap.max-factor:4}")
+    private double maxFactor = 4;
+
+    /**
+     * 区域|可用域|规格 -> 每小时的统计
+     */
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("heatmap-flusher"));
+    private volatile boolean dirty;
+
+    @PostConstruct
+    public void start() {
+        load();
+        flusher.scheduleWithFixedDelay(this::flush, flushMinutes, flushMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdownNow();
+        flush();
+    }
+
+    public void record(String region, String availabilityDomain, String shape, boolean success) {
+        histograms.computeIfAbsent(region + "|" + availabilityDomain + "|" + shape, key -> new Histogram())
+                .record(hourOfWeek(ZonedDateTime.now(ZoneOffset.UTC)), success);
+        dirty = true;
+    }
+
+    /**
+     * 根据当前时段的成功率调节等待时间: 成功率高于该区域该规格的平均水平时缩短,低于时放大.
+     * 样本不足时原样返回
+     */
+    public long modulate(String region, String shape, long delayMillis) {
+        int hour = hourOfWeek(ZonedDateTime.now(ZoneOffset.UTC));
+        long hourAttempts = 0, hourSuccesses = 0, totalAttempts = 0, totalSuccesses = 0;
+        String prefix = region + "|";
+        String suffix = "|" + shape;
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            if (!entry.getKey().startsWith(prefix) || !entry.getKey().endsWith(suffix)) {
+                continue;
+            }
+            Histogram histogram = entry.getValue();
+            synchronized (histogram) {
+                hourAttempts += histogram.attempts[hour];
+                hourSuccesses += histogram.successes[hour];
+                for (int i = 0; i < HOURS_OF_WEEK; i++) {
+                    totalAttempts += histogram.attempts[i];
+                    totalSuccesses += histogram.successes[i];
+                }
+            }
+        }
+        if (hourAttempts < minSamples || totalAttempts == 0) {
+            return delayMillis;
+        }
+        // 加一平滑,避免没有成功记录的时段概率为0
+        double hourRate = (hourSuccesses + 1d) / (hourAttempts + 2d);
+        double averageRate = (totalSuccesses + 1d) / (totalAttempts + 2d);
+        double factor = Math.max(minFactor, Math.min(maxFactor, averageRate / hourRate));
+        return (long) (delayMillis * factor);
+    }
+
+    /**
+     * @return 区域|可用域|规格 -> 168个时段的成功率,没有记录的时段为-1
+     */
+    public Map<String, double[]> snapshot() {
+        Map<String, double[]> snapshot = new HashMap<>();
+        histograms.forEach((key, histogram) -> snapshot.put(key, histogram.rates()));
+        return snapshot;
+    }
+
+    static int hourOfWeek(ZonedDateTime time) {
+        return (time.getDayOfWeek().getValue() - 1) * 24 + time.getHour();
+    }
+
+    private void load() {
+        Path path = Paths.get(file);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != FILE_VERSION) {
+                log.warn("容量热力图文件:[{}] 版本不兼容,重新开始统计", path);
+                return;
+            }
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                String key = in.readUTF();
+                Histogram histogram = new Histogram();
+                for (int hour = 0; hour < HOURS_OF_WEEK; hour++) {
+                    histogram.attempts[hour] = in.readInt();
+                    histogram.successes[hour] = in.readInt();
+                }
+                histograms.put(key, histogram);
+            }
+            log.info("加载容量热力图:[{}],共[{}]条记录", path, size);
+        } catch (IOException e) {
+            log.warn("加载容量热力图:[{}] 失败,重新开始统计,原因为:[{}]", path, e.getMessage());
+        }
+    }
+
+    /**
+     * 先写临时文件再原子替换,进程中途退出也不会留下损坏的文件
+     */
+    private synchronized void flush() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        Path path = Paths.get(file).toAbsolutePath();
+        try {
+            Files.createDirectories(path.getParent());
+            Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                Map<String, Histogram> copy = new HashMap<>(histograms);
+                out.writeInt(FILE_VERSION);
+                out.writeInt(copy.size());
+                for (Map.Entry<String, Histogram> entry : copy.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    Histogram histogram = entry.getValue();
+                    synchronized (histogram) {
+                        for (int hour = 0; hour < HOURS_OF_WEEK; hour++) {
+                            out.writeInt(histogram.attempts[hour]);
+                            out.writeInt(histogram.successes[hour]);
+                        }
+                    }
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            log.warn("保存容量热力图:[{}] 失败,原因为:[{}]", path, e.getMessage());
+        }
+    }
+
+    private static final class Histogram {
+        private final int[] attempts = new int[HOURS_OF_WEEK];
+        private final int[] successes = new int[HOURS_OF_WEEK];
+
+        private synchronized void record(int hour, boolean success) {
+            attempts[hour]++;
+            if (success) {
+                successes[hour]++;
+            }
+            if (attempts[hour] >= HALVE_THRESHOLD) {
+                attempts[hour] /= 2;
+                successes[hour] /= 2;
+            }
+        }
+
+        private synchronized double[] rates() {
+            double[] rates = new double[HOURS_OF_WEEK];
+            for (int hour = 0; hour < HOURS_OF_WEEK; hour++) {
+                rates[hour] = attempts[hour] == 0 ? -1 : (double) successes[hour] / attempts[hour];
+            }
+            return rates;
+        }
+    }
+}
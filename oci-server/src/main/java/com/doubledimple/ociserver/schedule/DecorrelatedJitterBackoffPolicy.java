@@ -0,0 +1,82 @@
+package com.doubledimple.ociserver.schedule;
+
+import com.doubledimple.ociserver.config.BackoffProperties;
+import com.doubledimple.ociserver.domain.User;
+import com.doubledimple.ociserver.exception.ErrorCode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.doubledimple.ociserver.exception.ErrorCode.*;
+
+/**
+ * 去相关抖动: 下一次等待时间在 [下限, min(上限, 上一次*3)] 之间随机取值,
+ * 相同间隔的租户不会再同时发起请求. 每类失败原因有各自的下限和上限,网络失败先立即重试
+ *
+ * @author doubleDimple
+ * @date 2024:10:16日 10:20
+ */
+@Component
+public class DecorrelatedJitterBackoffPolicy implements BackoffPolicy {
+
+    private static final Map<ErrorCode, long[]> DEFAULT_BOUNDS = new EnumMap<>(ErrorCode.class);
+
+    static {
+        DEFAULT_BOUNDS.put(CAPACITY, new long[]{30, 180});
+        DEFAULT_BOUNDS.put(TOO_MANY_REQUESTS, new long[]{60, 600});
+        DEFAULT_BOUNDS.put(TRANSIENT, new long[]{10, 120});
+        DEFAULT_BOUNDS.put(NETWORK, new long[]{2, 60});
+        DEFAULT_BOUNDS.put(NO_PUBLIC_IP, new long[]{30, 180});
+    }
+
+    private final BackoffProperties backoffProperties;
+
+    @Autowired
+    public DecorrelatedJitterBackoffPolicy(BackoffProperties backoffProperties) {
+        this.backoffProperties = backoffProperties;
+    }
+
+    @Override
+    public long nextDelayMillis(User user, ErrorCode errorCode, long previousDelayMillis, int consecutiveFailures) {
+        ErrorCode key = errorCode == CAPACITY_HOST ? CAPACITY : errorCode;
+        if (!DEFAULT_BOUNDS.containsKey(key)) {
+            key = TRANSIENT;
+        }
+        if (key == NETWORK && consecutiveFailures <= backoffProperties.getFastRetries()) {
+            return 0;
+        }
+        long floor = TimeUnit.SECONDS.toMillis(floorSeconds(user, key));
+        long ceiling = Math.max(floor, TimeUnit.SECONDS.toMillis(ceilingSeconds(key)));
+        long upper = Math.min(ceiling, Math.max(previousDelayMillis, floor) * 3);
+        if (upper <= floor) {
+            return floor;
+        }
+        return ThreadLocalRandom.current().nextLong(floor, upper + 1);
+    }
+
+    /**
+     * 容量不足是最常见的情况,租户配置了 interval 时沿用它作为下限
+     */
+    private long floorSeconds(User user, ErrorCode key) {
+        if ((key == CAPACITY || key == NO_PUBLIC_IP) && user.getInterval() > 0) {
+            return user.getInterval();
+        }
+        BackoffProperties.Bounds bounds = backoffProperties.getBounds().get(key);
+        if (bounds != null && bounds.getFloorSeconds() != null) {
+            return bounds.getFloorSeconds();
+        }
+        return DEFAULT_BOUNDS.get(key)[0];
+    }
+
+    private long ceilingSeconds(ErrorCode key) {
+        BackoffProperties.Bounds bounds = backoffProperties.getBounds().get(key);
+        if (bounds != null && bounds.getCeilingSeconds() != null) {
+            return bounds.getCeilingSeconds();
+        }
+        return DEFAULT_BOUNDS.get(key)[1];
+    }
+}
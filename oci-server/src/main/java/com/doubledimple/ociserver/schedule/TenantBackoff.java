@@ -0,0 +1,122 @@
+package com.doubledimple.ociserver.schedule;
+
+import com.doubledimple.ociserver.domain.User;
+import com.doubledimple.ociserver.enums.ArchitectureEnum;
+import com.doubledimple.ociserver.exception.ErrorCode;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按租户记录每次尝试的失败原因和实际间隔,由 {@link BackoffPolicy} 计算下一次尝试的等待时间.
+ * 容量类失败的等待时间再按 {@link CapacityHeatmap} 中当前时段的成功率调节,
+ * 最后受全局尝试预算约束: 每分钟内安排的尝试数超过预算时顺延到后面的分钟
+ *
+ * @author doubleDimple
+ * @date 2024:10:16日 10:40
+ */
+@Component
+@Slf4j
+public class TenantBackoff {
+
+    private final BackoffPolicy backoffPolicy;
+    private final CapacityHeatmap capacityHeatmap;
+    private final Map<String, Spacing> spacings = new ConcurrentHashMap<>();
+
+    /**
+     * 所有租户每分钟最多安排的尝试次数,0表示不限制
+     */
+    @Value("${oci.scheduler.max-attempts-per-minute:120}")
+    private int maxAttemptsPerMinute = 120;
+
+    /**
+     * 分钟序号 -> 已安排在该分钟内的尝试数
+     */
+    private final Map<Long, Integer> budget = new HashMap<>();
+
+    @Autowired
+    public TenantBackoff(BackoffPolicy backoffPolicy, CapacityHeatmap capacityHeatmap) {
+        this.backoffPolicy = backoffPolicy;
+        this.capacityHeatmap = capacityHeatmap;
+    }
+
+    /**
+     * 记录一次失败的尝试
+     *
+     * @return 下一次尝试前的等待时间(毫秒)
+     */
+    public long onFailure(User user, ErrorCode errorCode) {
+        Spacing spacing = spacings.computeIfAbsent(user.getUserName(), key -> new Spacing());
+        synchronized (spacing) {
+            int consecutiveFailures = errorCode == spacing.lastErrorCode ? spacing.consecutiveFailures + 1 : 1;
+            long delay = backoffPolicy.nextDelayMillis(user, errorCode, spacing.lastDelayMillis, consecutiveFailures);
+            if (errorCode == ErrorCode.CAPACITY || errorCode == ErrorCode.NO_PUBLIC_IP) {
+                String shape = ArchitectureEnum.getTypeOrDefault(user.getArchitecture()).getShapeDetail();
+                delay = capacityHeatmap.modulate(user.getRegion(), shape, delay);
+            }
+            delay = withinBudget(delay);
+            spacing.lastErrorCode = errorCode;
+            spacing.consecutiveFailures = consecutiveFailures;
+            spacing.lastDelayMillis = delay;
+            spacing.lastAttemptAt = System.currentTimeMillis();
+            spacing.attempts++;
+            log.info("租户:[{}] 失败原因:[{}],连续[{}]次,[{}]ms后重试", user.getUserName(), errorCode,
+                    consecutiveFailures, delay);
+            return delay;
+        }
+    }
+
+    /**
+     * 找到第一个还有预算的分钟; 顺延时在该分钟内随机取一个时间点,避免顺延的租户再次同时发起
+     */
+    private synchronized long withinBudget(long delay) {
+        if (maxAttemptsPerMinute <= 0) {
+            return delay;
+        }
+        long now = System.currentTimeMillis();
+        long minuteMillis = TimeUnit.MINUTES.toMillis(1);
+        budget.keySet().removeIf(key -> key < now / minuteMillis);
+        long target = (now + delay) / minuteMillis;
+        long minute = target;
+        while (budget.getOrDefault(minute, 0) >= maxAttemptsPerMinute) {
+            minute++;
+        }
+        budget.merge(minute, 1, Integer::sum);
+        if (minute == target) {
+            return delay;
+        }
+        return minute * minuteMillis - now + ThreadLocalRandom.current().nextLong(minuteMillis);
+    }
+
+    /**
+     * 创建成功或者租户结束时清除记录
+     */
+    public void reset(String userName) {
+        spacings.remove(userName);
+    }
+
+    public Map<String, Spacing> snapshot() {
+        return Collections.unmodifiableMap(spacings);
+    }
+
+    /**
+     * 租户当前的重试间隔状态
+     */
+    @Getter
+    public static final class Spacing {
+        private volatile ErrorCode lastErrorCode;
+        private volatile int consecutiveFailures;
+        private volatile long lastDelayMillis;
+        private volatile long lastAttemptAt;
+        private volatile long attempts;
+    }
+}
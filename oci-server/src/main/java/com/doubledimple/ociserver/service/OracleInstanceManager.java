@@ -1,20 +1,42 @@
 package com.doubledimple.ociserver.service;
 
+import com.doubledimple.ociserver.client.OciAsync;
+import com.doubledimple.ociserver.client.OciClientRegistry;
+import com.doubledimple.ociserver.cluster.ClusterCoordinator;
+import com.doubledimple.ociserver.cluster.Lease;
+import com.doubledimple.ociserver.cluster.TenantLeaseListener;
 import com.doubledimple.ociserver.config.OracleUsersConfig;
 import com.doubledimple.ociserver.domain.OracleInstanceDetail;
 import com.doubledimple.ociserver.domain.User;
-import com.doubledimple.ociserver.enums.MessageEnum;
+import com.doubledimple.ociserver.engine.LaunchReconciler;
+import com.doubledimple.ociserver.engine.ProvisioningEngine;
+import com.doubledimple.ociserver.engine.WorkRequestTracker;
+import com.doubledimple.ociserver.enums.ArchitectureEnum;
+import com.doubledimple.ociserver.exception.ErrorClassifier;
+import com.doubledimple.ociserver.exception.ErrorCode;
 import com.doubledimple.ociserver.exception.OciException;
-import com.doubledimple.ociserver.message.factory.MessageFactory;
+import com.doubledimple.ociserver.message.NotificationBus;
+import com.doubledimple.ociserver.metrics.FlightRecording;
+import com.doubledimple.ociserver.metrics.OciMetrics;
+import com.doubledimple.ociserver.schedule.AttemptScheduler;
+import com.doubledimple.ociserver.schedule.CapacityBoard;
+import com.doubledimple.ociserver.schedule.TenantBackoff;
+import com.doubledimple.ociserver.state.AttemptStateStore;
 import com.oracle.bmc.model.BmcException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.DependsOn;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.doubledimple.ociserver.exception.ErrorCode.LIMIT_EXCEEDED;
 
@@ -24,81 +46,289 @@ import static com.doubledimple.ociserver.exception.ErrorCode.LIMIT_EXCEEDED;
 @Service
 @Slf4j
 @DependsOn("simpleAuthenticationDetailsProvider")
-public class OracleInstanceManager {
+public class OracleInstanceManager implements TenantLeaseListener {
 
-    private final OracleCloudService oracleCloudService;
     private final OracleUsersConfig oracleUsersConfig;
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
-    private final Map<String, CompletableFuture<Void>> accountTasks = new ConcurrentHashMap<>();
 
     @Autowired
-    MessageFactory messageFactory;
+    NotificationBus notificationBus;
 
     @Autowired
-    public OracleInstanceManager(OracleCloudService oracleCloudService, OracleUsersConfig oracleUsersConfig) throws Exception {
-        this.oracleCloudService = oracleCloudService;
+    OciClientRegistry ociClientRegistry;
+
+    @Autowired
+    AttemptScheduler attemptScheduler;
+
+    @Autowired
+    ProvisioningEngine provisioningEngine;
+
+    @Autowired
+    TenantBackoff tenantBackoff;
+
+    @Autowired
+    CapacityBoard capacityBoard;
+
+    @Autowired
+    WorkRequestTracker workRequestTracker;
+
+    @Autowired
+    OciMetrics ociMetrics;
+
+    @Autowired
+    AttemptStateStore attemptStateStore;
+
+    @Autowired
+    LaunchReconciler launchReconciler;
+
+    @Autowired
+    ClusterCoordinator clusterCoordinator;
+
+    /**
+     * 上次运行已经为租户创建过实例时,重启后不再为该租户创建
+     */
+    @Value("${oci.state.skip-completed:true}")
+    private boolean skipCompleted = true;
+
+    /**
+     * 正在调度中的租户,用于在其他租户创建成功时唤醒同区域同规格的租户
+     */
+    private final Map<String, User> activeUsers = new ConcurrentHashMap<>();
+
+    /**
+     * 租户进行中的尝试和跟踪数量,集群模式下全部结束后才把租户移交给其他节点
+     */
+    private final Map<String, Integer> busy = new ConcurrentHashMap<>();
+
+    private final Map<String, User> usersByName = new ConcurrentHashMap<>();
+
+    @Autowired
+    public OracleInstanceManager(OracleUsersConfig oracleUsersConfig) throws Exception {
         this.oracleUsersConfig = oracleUsersConfig;
     }
 
     @PostConstruct
     public void init() {
+        capacityBoard.addListener(this::wakeTenants);
         Map<String, User> users = oracleUsersConfig.getUsers();
         for (User user : users.values()) {
+            usersByName.put(user.getUserName(), user);
+        }
+        if (clusterCoordinator.isEnabled()) {
+            // 集群模式下租户由租约分配,拿到租约时再恢复
+            clusterCoordinator.join(usersByName.keySet(), this);
+            return;
+        }
+        for (User user : users.values()) {
+            resume(user);
+        }
+    }
+
+    @Override
+    public void onAcquired(String userName, Lease previous) {
+        User user = usersByName.get(userName);
+        if (user == null) {
+            return;
+        }
+        if (skipCompleted && previous.getCompleted() != null) {
+            log.info("租户: [{}] 已由节点:[{}]创建实例:[{}],不再重复创建", userName, previous.getOwner(), previous.getCompleted());
+            return;
+        }
+        if (!previous.getOwner().isEmpty() && !previous.getOwner().equals(clusterCoordinator.getNodeId())) {
+            // 上一任节点的创建请求可能已被接受,第一次尝试前先按标签核对该租户的所有实例
+            launchReconciler.markUncertain(userName, 1);
+        }
+        resume(user);
+    }
+
+    @Override
+    public boolean onReleasing(String userName) {
+        finish(userName);
+        return !busy.containsKey(userName);
+    }
+
+    /**
+     * 按上次运行保存的状态恢复租户: 已有实例的跳过,创建请求已被接受的继续跟踪,其余从头开始尝试
+     */
+    private void resume(User user) {
+        OracleInstanceDetail completed = attemptStateStore.getCompleted(user.getUserName());
+        if (skipCompleted && completed != null) {
+            log.info("租户: [{}] 上次运行已创建实例:[{}],不再重复创建", user.getUserName(), completed.getInstanceId());
+            return;
+        }
+        List<OracleInstanceDetail> inFlight = attemptStateStore.getInFlight(user.getUserName());
+        if (inFlight.isEmpty()) {
+            long attempts = attemptStateStore.getAttempts(user.getUserName());
+            if (attempts > 0) {
+                // 重启前最后一次尝试的创建请求可能已被接受但还没来得及记录,第一次尝试前先核对
+                launchReconciler.markUncertain(user.getUserName(), attempts);
+            }
             addUser2(user);
+            return;
+        }
+        for (OracleInstanceDetail instanceData : inFlight) {
+            log.info("租户: [{}] 上次运行的创建请求已被接受,继续跟踪实例:[{}]", user.getUserName(), instanceData.getInstanceId());
+            instanceData.setUserName(user.getUserName());
+            track(user, instanceData);
         }
     }
 
 
     public void removeUser(String userId) {
-        CompletableFuture<Void> remove = accountTasks.remove(userId);
-        if (remove != null) {
-            remove.cancel(false);
-            System.out.println("停止账户 " + userId + " 的任务");
+        if (attemptScheduler.isRegistered(userId)) {
+            attemptScheduler.cancel(userId);
+            tenantBackoff.reset(userId);
+            activeUsers.remove(userId);
+            log.info("停止账户:[{}] 的任务", userId);
         }
+        ociClientRegistry.close(userId);
     }
 
     private void sendNotification(String userName, OracleInstanceDetail instanceData) {
         instanceData.setUserName(userName);
-        messageFactory.getType(MessageEnum.TELEGRAM).sendMessage(instanceData);
+        notificationBus.publishInstance(instanceData);
     }
 
 
     public void addUser2(User user) {
-        if (!accountTasks.containsKey(user.getUserName())) {
-            CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
-                while (true) {
-                    OracleInstanceDetail instanceData = null;
+        if (!clusterCoordinator.owns(user.getUserName())) {
+            log.info("租户: [{}] 由集群中的其他节点负责,本节点不启动", user.getUserName());
+            return;
+        }
+        if (attemptScheduler.register(user.getUserName())) {
+            activeUsers.put(user.getUserName(), user);
+            ociMetrics.tenantStarted(user.getUserName());
+            attemptScheduler.schedule(user.getUserName(), () -> attempt(user), 0, TimeUnit.SECONDS);
+            log.info("租户 " + user.getUserName() + " 的任务已启动,重试间隔根据失败原因自动调整");
+        }
+    }
+
+    /**
+     * 执行一次创建尝试,失败时重新调度下一次尝试,创建请求被接受或配额超限时结束.
+     * 同步引擎在当前线程上完成尝试,异步引擎在尝试完成时回调; 返回的future在结果处理完后结束,调度器据此归还并发许可
+     */
+    private CompletableFuture<Void> attempt(User user) {
+        enter(user.getUserName());
+        if (!clusterCoordinator.owns(user.getUserName())) {
+            // 租约续期延迟,等续期后再尝试; 租户已移交时调度已被取消,这里不会再执行
+            leave(user.getUserName());
+            attemptScheduler.schedule(user.getUserName(), () -> attempt(user),
+                    clusterCoordinator.getHeartbeatMillis(), TimeUnit.MILLISECONDS);
+            return CompletableFuture.completedFuture(null);
+        }
+        long attemptStart = System.nanoTime();
+        return provisioningEngine.provision(user)
+                .handle((instanceData, error) -> {
                     try {
-                        instanceData = oracleCloudService.createInstanceData(user);
-                    } catch (Exception e) {
-                        if (e instanceof OciException) {
-                            OciException error = (OciException) e;
-                            if (error.getCode() == 400 && error.getMessage().equals(LIMIT_EXCEEDED.getMessage())) {
-                                handleException(user, error);
-                                break;
-                            }
-                        }
+                        onAttemptFinished(user, attemptStart, instanceData, error);
+                    } finally {
+                        leave(user.getUserName());
                     }
-                    if (null != instanceData && null != instanceData.getPublicIp()) {
-                        sendNotification(user.getUserName(), instanceData);
-                        break; // 成功时退出循环
-                    } else {
-                        log.info("租户: [{}] 创建实例失败，[{}] 秒后重试", user.getUserName(), user.getInterval());
-                        try {
-                            TimeUnit.SECONDS.sleep(user.getInterval());
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            break;
-                        }
+                    return null;
+                });
+    }
+
+    private void onAttemptFinished(User user, long attemptStart, OracleInstanceDetail instanceData, Throwable error) {
+        ErrorCode errorCode;
+        if (error != null) {
+            Throwable e = OciAsync.unwrap(error);
+            errorCode = ErrorClassifier.classify(e);
+            recordAttempt(user, attemptStart, errorCode, e);
+            if (errorCode == LIMIT_EXCEEDED && e instanceof OciException) {
+                handleException(user, (OciException) e);
+                finish(user.getUserName());
+                return;
+            }
+            log.warn("租户: [{}] 创建实例出现错误,原因为:[{}]", user.getUserName(), e.getMessage());
+        } else if (null != instanceData && null != instanceData.getInstanceId()) {
+            recordAttempt(user, attemptStart, null, null);
+            ociMetrics.capacityAcquired(user.getUserName());
+            attemptStateStore.launched(user.getUserName(), instanceData);
+            finish(user.getUserName()); // 创建请求被接受时结束重试,等待公网IP由跟踪器完成
+            track(user, instanceData);
+            return;
+        } else {
+            errorCode = instanceData == null || instanceData.getErrorCode() == null
+                    ? ErrorCode.NO_PUBLIC_IP : instanceData.getErrorCode();
+            recordAttempt(user, attemptStart, errorCode, null);
+        }
+        long delay = tenantBackoff.onFailure(user, errorCode);
+        attemptScheduler.schedule(user.getUserName(), () -> attempt(user), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void recordAttempt(User user, long attemptStart, ErrorCode errorCode, Throwable error) {
+        ociMetrics.recordAttempt(user.getUserName(), errorCode);
+        FlightRecording.attempt(user.getUserName(), user.getRegion(),
+                ArchitectureEnum.getTypeOrDefault(user.getArchitecture()).getShapeDetail(), attemptStart, errorCode, error);
+    }
+
+    private void track(User user, OracleInstanceDetail instanceData) {
+        enter(user.getUserName());
+        workRequestTracker.track(user, instanceData)
+                .whenComplete((launched, trackError) -> {
+                    try {
+                        onLaunchTracked(user, instanceData, trackError);
+                    } finally {
+                        leave(user.getUserName());
                     }
-                }
-            }, scheduler);
+                });
+    }
+
+    private void enter(String userName) {
+        busy.merge(userName, 1, Integer::sum);
+    }
 
-            accountTasks.put(user.getUserName(), future);
-            log.info("租户 " + user.getUserName() + " 的任务，每隔 " + user.getInterval() + " 秒执行一次");
+    private void leave(String userName) {
+        busy.computeIfPresent(userName, (key, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * 实例拿到公网IP后发送通知; 实例启动失败时重新开始该租户的重试,等待超时则只提醒,避免重复创建.
+     * 服务关闭导致的取消不记录结果,下次启动时继续跟踪
+     */
+    private void onLaunchTracked(User user, OracleInstanceDetail instanceData, Throwable error) {
+        if (error == null) {
+            attemptStateStore.completed(user.getUserName(), instanceData);
+            clusterCoordinator.completed(user.getUserName(), instanceData.getInstanceId());
+            sendNotification(user.getUserName(), instanceData);
+            return;
         }
+        if (error instanceof CancellationException) {
+            log.info("租户: [{}] 停止跟踪实例:[{}],下次启动时继续", user.getUserName(), instanceData.getInstanceId());
+            return;
+        }
+        log.warn("租户: [{}] 实例创建后未能就绪,原因为:[{}]", user.getUserName(), error.getMessage());
+        sendErrorMessage(user.getUserName(), error.getMessage());
+        if (error instanceof TimeoutException) {
+            attemptStateStore.completed(user.getUserName(), instanceData);
+            clusterCoordinator.completed(user.getUserName(), instanceData.getInstanceId());
+        } else {
+            attemptStateStore.failed(user.getUserName(), instanceData.getInstanceId());
+            addUser2(user);
+        }
+    }
+
+    private void finish(String userName) {
+        attemptScheduler.cancel(userName);
+        tenantBackoff.reset(userName);
+        activeUsers.remove(userName);
     }
 
+    /**
+     * 某个租户在区域内创建成功,说明该规格刚刚有了容量,立即唤醒同区域同规格的其他租户
+     */
+    private void wakeTenants(String region, String availabilityDomain, String shape, String userName) {
+        for (User user : activeUsers.values()) {
+            String userShape = ArchitectureEnum.getTypeOrDefault(user.getArchitecture()).getShapeDetail();
+            if (user.getUserName().equals(userName) || !region.equals(user.getRegion()) || !shape.equals(userShape)) {
+                continue;
+            }
+            if (attemptScheduler.wake(user.getUserName())) {
+                log.info("租户: [{}] 区域:[{}] 可用域:[{}] 刚有租户创建成功,提前执行下一次尝试", user.getUserName(), region, availabilityDomain);
+            }
+        }
+    }
+
+
     private void handleException(User user, Exception e) {
         if (e instanceof BmcException) {
             BmcException bmcException = (BmcException) e;
@@ -113,6 +343,6 @@ public class OracleInstanceManager {
     }
 
     private void sendErrorMessage(String userName, String originalMessage) {
-        messageFactory.getType(MessageEnum.TELEGRAM).sendErrorMessage("用户: " + userName + "===>" + " " + originalMessage);
+        notificationBus.publishError("用户: " + userName + "===>" + " " + originalMessage);
     }
 }
@@ -0,0 +1,486 @@
+package com.doubledimple.ociserver.state;
+
+import com.doubledimple.ociserver.domain.OracleInstanceDetail;
+import com.doubledimple.ociserver.util.DaemonThreads;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 租户尝试状态的本地存储: 尝试次数、创建请求已被接受但还没拿到公网IP的实例、已完成的实例.
+ * <p>
+ * 每次变更先更新内存,再以 长度+CRC32+内容 的记录追加到日志文件. 单个写线程把排队的记录一起写入后只fsync一次,
+ * 两次fsync之间至少间隔 oci.state.fsync-millis,调用方不等待落盘. 写入失败时截掉这一批写出的部分,稍后整批重写.
+ * 启动时顺序回放日志恢复状态,末尾写了一半的记录直接截掉; 过期记录太多时把当前状态重写成新文件
+ *
+ * @author doubleDimple
+ * @date 2024:10:19日 10:20
+ */
+@Component
+@Slf4j
+public class AttemptStateStore {
+
+    private static final int FILE_MAGIC = 0x4F435331;
+    private static final int HEADER_BYTES = 4;
+    private static final int FRAME_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 1 << 16;
+
+    /**
+     * 写入失败后重写的间隔
+     */
+    private static final long RETRY_MILLIS = 1000;
+
+    private static final byte ATTEMPT = 1;
+    private static final byte LAUNCHED = 2;
+    private static final byte COMPLETED = 3;
+    private static final byte FAILED = 4;
+
+    @Value("${oci.state.file:data/attempt-state.log}")
+    private String file = "data/attempt-state.log";
+
+    /**
+     * 两次fsync的最小间隔,期间的变更合并到同一批写入
+     */
+    @Value("${oci.state.fsync-millis:50}")
+    private long fsyncMillis = 50;
+
+    /**
+     * 日志记录数超过该值,并且超过当前状态所需记录数的4倍时重写日志
+     */
+    @Value("${oci.state.compact-records:10000}")
+    private long compactRecords = 10000;
+
+    private final Map<String, TenantState> tenants = new ConcurrentHashMap<>();
+    private final BlockingQueue<byte[]> pending = new LinkedBlockingQueue<>();
+    private final Thread writer = DaemonThreads.named("attempt-state-writer").newThread(this::writeLoop);
+    private volatile boolean running;
+    private FileChannel channel;
+    /**
+     * 日志文件中的记录数,只在写线程中访问
+     */
+    private long records;
+    /**
+     * 最后一批完整写入并fsync后的文件长度,只在写线程中访问
+     */
+    private long committed;
+
+    @PostConstruct
+    public void start() throws IOException {
+        Path path = Paths.get(file).toAbsolutePath();
+        Files.createDirectories(path.getParent());
+        long start = System.nanoTime();
+        long size = replay(path);
+        log.info("回放租户状态:[{}] 共[{}]个租户,[{}]条记录,耗时[{}]ms", path, tenants.size(), records,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        if (size < 0 || shouldCompact()) {
+            compact(path);
+        } else {
+            channel = FileChannel.open(path, StandardOpenOption.WRITE);
+            channel.truncate(size);
+            channel.position(size);
+            committed = size;
+        }
+        running = true;
+        writer.start();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+        closeQuietly();
+    }
+
+    /**
+     * 记录一次新的尝试
+     *
+     * @return 该租户的累计尝试次数,重启后继续累加
+     */
+    public long nextAttempt(String userName) {
+        TenantState state = state(userName);
+        synchronized (state) {
+            state.attempts++;
+            append(encode(ATTEMPT, userName, out -> out.writeLong(state.attempts)));
+            return state.attempts;
+        }
+    }
+
+    /**
+     * 创建请求已被接受,重启后继续跟踪而不是重新创建
+     */
+    public void launched(String userName, OracleInstanceDetail detail) {
+        TenantState state = state(userName);
+        synchronized (state) {
+            state.inFlight.put(detail.getInstanceId(), copy(detail));
+            append(encode(LAUNCHED, userName, out -> writeDetail(out, detail)));
+        }
+    }
+
+    /**
+     * 租户已经有了实例(拿到公网IP,或者等待超时后放弃跟踪),重启后不再为该租户创建
+     */
+    public void completed(String userName, OracleInstanceDetail detail) {
+        TenantState state = state(userName);
+        synchronized (state) {
+            state.inFlight.remove(detail.getInstanceId());
+            state.completed = copy(detail);
+            append(encode(COMPLETED, userName, out -> writeDetail(out, detail)));
+        }
+    }
+
+    /**
+     * 实例启动失败,租户重新开始尝试
+     */
+    public void failed(String userName, String instanceId) {
+        TenantState state = state(userName);
+        synchronized (state) {
+            state.inFlight.remove(instanceId);
+            append(encode(FAILED, userName, out -> out.writeUTF(instanceId)));
+        }
+    }
+
+    public long getAttempts(String userName) {
+        TenantState state = tenants.get(userName);
+        if (state == null) {
+            return 0;
+        }
+        synchronized (state) {
+            return state.attempts;
+        }
+    }
+
+    /**
+     * @return 创建请求已被接受、还没有结果的实例
+     */
+    public List<OracleInstanceDetail> getInFlight(String userName) {
+        List<OracleInstanceDetail> inFlight = new ArrayList<>();
+        TenantState state = tenants.get(userName);
+        if (state != null) {
+            synchronized (state) {
+                for (OracleInstanceDetail detail : state.inFlight.values()) {
+                    inFlight.add(copy(detail));
+                }
+            }
+        }
+        return inFlight;
+    }
+
+    /**
+     * @return 该租户已完成的实例,没有时返回null
+     */
+    public OracleInstanceDetail getCompleted(String userName) {
+        TenantState state = tenants.get(userName);
+        if (state == null) {
+            return null;
+        }
+        synchronized (state) {
+            return state.completed == null ? null : copy(state.completed);
+        }
+    }
+
+    private TenantState state(String userName) {
+        return tenants.computeIfAbsent(userName, key -> new TenantState());
+    }
+
+    private void append(byte[] record) {
+        if (record != null) {
+            pending.add(record);
+        }
+    }
+
+    /**
+     * 组提交: 取出当前排队的所有记录一次写入并fsync,写入期间新来的记录留给下一批.
+     * 写入失败的一批保留在队首,和之后排队的记录一起按原顺序重写
+     */
+    private void writeLoop() {
+        List<byte[]> batch = new ArrayList<>();
+        while (running || !pending.isEmpty() || !batch.isEmpty()) {
+            try {
+                if (batch.isEmpty()) {
+                    byte[] first = pending.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                }
+                long start = System.currentTimeMillis();
+                pending.drainTo(batch);
+                write(batch);
+                batch.clear();
+                if (shouldCompact()) {
+                    compact(Paths.get(file).toAbsolutePath());
+                }
+                long elapsed = System.currentTimeMillis() - start;
+                if (running && elapsed < fsyncMillis) {
+                    Thread.sleep(fsyncMillis - elapsed);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                if (!running) {
+                    log.error("写入租户状态:[{}] 失败,服务正在关闭,丢弃[{}]条记录,原因为:[{}]", file, batch.size(), e.getMessage());
+                    return;
+                }
+                log.error("写入租户状态:[{}] 失败,[{}]条记录[{}]ms后重写,原因为:[{}]", file, batch.size(), RETRY_MILLIS, e.getMessage());
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void write(List<byte[]> batch) throws IOException {
+        if (channel.size() > committed) {
+            // 上一批写入失败留下了不完整的记录,不截掉的话回放时会丢弃之后所有的记录
+            channel.truncate(committed);
+        }
+        int length = 0;
+        for (byte[] record : batch) {
+            length += record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] record : batch) {
+            buffer.put(record);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        committed = channel.size();
+        records += batch.size();
+    }
+
+    private boolean shouldCompact() {
+        if (records <= compactRecords) {
+            return false;
+        }
+        long live = 0;
+        for (TenantState state : tenants.values()) {
+            synchronized (state) {
+                live += 1 + state.inFlight.size() + (state.completed == null ? 0 : 1);
+            }
+        }
+        return records > live * 4;
+    }
+
+    /**
+     * 把当前状态写入临时文件,fsync后原子替换日志. 快照之后才排队的变更会再追加一次,回放时重复应用结果不变
+     */
+    private void compact(Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        long count = 0;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeInt(FILE_MAGIC);
+            for (Map.Entry<String, TenantState> entry : tenants.entrySet()) {
+                String userName = entry.getKey();
+                TenantState state = entry.getValue();
+                synchronized (state) {
+                    long attempts = state.attempts;
+                    bytes.write(encode(ATTEMPT, userName, o -> o.writeLong(attempts)));
+                    count++;
+                    for (OracleInstanceDetail detail : state.inFlight.values()) {
+                        bytes.write(encode(LAUNCHED, userName, o -> writeDetail(o, detail)));
+                        count++;
+                    }
+                    if (state.completed != null) {
+                        OracleInstanceDetail completed = state.completed;
+                        bytes.write(encode(COMPLETED, userName, o -> writeDetail(o, completed)));
+                        count++;
+                    }
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        closeQuietly();
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // 替换失败时重新打开原来的日志继续追加
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            committed = channel.size();
+        }
+        log.info("重写租户状态:[{}],记录数 [{}] -> [{}]", path, records, count);
+        records = count;
+    }
+
+    /**
+     * @return 最后一条完整记录之后的位置; 文件不存在或头部不对时返回-1,需要重新生成文件
+     */
+    private long replay(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return -1;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != FILE_MAGIC) {
+            log.warn("租户状态文件:[{}] 格式不正确,重新开始记录", path);
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= FRAME_BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > MAX_RECORD_BYTES || length > buffer.remaining()) {
+                return truncated(path, start, buffer.capacity());
+            }
+            crc.reset();
+            crc.update(buffer.array(), buffer.position(), length);
+            if ((int) crc.getValue() != checksum) {
+                return truncated(path, start, buffer.capacity());
+            }
+            apply(new DataInputStream(new ByteArrayInputStream(buffer.array(), buffer.position(), length)));
+            buffer.position(buffer.position() + length);
+            records++;
+        }
+        return buffer.remaining() == 0 ? buffer.position() : truncated(path, buffer.position(), buffer.capacity());
+    }
+
+    private static long truncated(Path path, int position, int size) {
+        log.warn("租户状态文件:[{}] 末尾 [{}] 字节不完整(上次退出时正在写入),已忽略", path, size - position);
+        return position;
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        TenantState state = state(in.readUTF());
+        switch (type) {
+            case ATTEMPT:
+                state.attempts = Math.max(state.attempts, in.readLong());
+                break;
+            case LAUNCHED: {
+                OracleInstanceDetail detail = readDetail(in);
+                state.inFlight.put(detail.getInstanceId(), detail);
+                break;
+            }
+            case COMPLETED: {
+                OracleInstanceDetail detail = readDetail(in);
+                state.inFlight.remove(detail.getInstanceId());
+                state.completed = detail;
+                break;
+            }
+            case FAILED:
+                state.inFlight.remove(in.readUTF());
+                break;
+            default:
+                log.warn("租户状态文件中有未知的记录类型:[{}],已忽略", type);
+        }
+    }
+
+    private static byte[] encode(byte type, String userName, Body body) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeByte(type);
+            out.writeUTF(userName);
+            body.write(out);
+            ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            int length = record.capacity() - FRAME_BYTES;
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), FRAME_BYTES, length);
+            record.putInt(0, length);
+            record.putInt(4, (int) crc.getValue());
+            return record.array();
+        } catch (IOException e) {
+            log.warn("租户:[{}] 状态记录编码失败,原因为:[{}]", userName, e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeDetail(DataOutputStream out, OracleInstanceDetail detail) throws IOException {
+        out.writeUTF(detail.getInstanceId());
+        writeNullable(out, detail.getWorkRequestId());
+        writeNullable(out, detail.getCompartmentId());
+        writeNullable(out, detail.getImage());
+        writeNullable(out, detail.getShape());
+        writeNullable(out, detail.getPublicIp());
+    }
+
+    private static OracleInstanceDetail readDetail(DataInputStream in) throws IOException {
+        OracleInstanceDetail detail = new OracleInstanceDetail();
+        detail.setInstanceId(in.readUTF());
+        detail.setWorkRequestId(readNullable(in));
+        detail.setCompartmentId(readNullable(in));
+        detail.setImage(readNullable(in));
+        detail.setShape(readNullable(in));
+        detail.setPublicIp(readNullable(in));
+        return detail;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static OracleInstanceDetail copy(OracleInstanceDetail detail) {
+        OracleInstanceDetail copy = new OracleInstanceDetail();
+        copy.setInstanceId(detail.getInstanceId());
+        copy.setWorkRequestId(detail.getWorkRequestId());
+        copy.setCompartmentId(detail.getCompartmentId());
+        copy.setImage(detail.getImage());
+        copy.setShape(detail.getShape());
+        copy.setPublicIp(detail.getPublicIp());
+        copy.setUserName(detail.getUserName());
+        return copy;
+    }
+
+    private void closeQuietly() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            log.warn("关闭租户状态文件:[{}] 失败,原因为:[{}]", file, e.getMessage());
+        }
+    }
+
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static final class TenantState {
+        private long attempts;
+        private final Map<String, OracleInstanceDetail> inFlight = new LinkedHashMap<>();
+        private OracleInstanceDetail completed;
+    }
+}
@@ -0,0 +1,28 @@
+package com.doubledimple.ociserver.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 后台线程池共用的线程工厂: 守护线程,不阻止进程退出
+ *
+ * @author doubleDimple
+ * @date 2024:10:22日 14:30
+ */
+public final class DaemonThreads {
+
+    private DaemonThreads() {
+    }
+
+    /**
+     * @param prefix 线程名前缀,线程名为 prefix-序号
+     */
+    public static ThreadFactory named(String prefix) {
+        AtomicInteger index = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + "-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -4,6 +4,8 @@ JAR_PATH="/root/oci-start/oci-start-release.jar"
 CONFIG_FILE="/root/oci-start/oci-start.properties"
 LOG_FILE="/dev/null"
 PID_FILE="oci-start.pid"
+# 设置后开启持续的JFR录制(默认配置,开销很低),事件分析: jfr print --events com.doubledimple.oci.Call <文件>
+JFR_DIR="${JFR_DIR:-}"
 
 # 检查JAR包是否存在
 if [ ! -f "$JAR_PATH" ]; then
@@ -21,8 +23,14 @@ start() {
     fi
   fi
 
+  JAVA_OPTS=""
+  if [ -n "$JFR_DIR" ]; then
+    mkdir -p "$JFR_DIR"
+    JAVA_OPTS="-XX:StartFlightRecording=settings=default,disk=true,maxage=24h,dumponexit=true,filename=$JFR_DIR/oci-start.jfr"
+  fi
+
   # 启动JAR包，指定外部配置文件，并将输出重定向到日志文件
-  nohup java -jar "$JAR_PATH" --spring.config.location="file:$CONFIG_FILE" > "$LOG_FILE" 2>&1 &
+  nohup java $JAVA_OPTS -jar "$JAR_PATH" --spring.config.location="file:$CONFIG_FILE" > "$LOG_FILE" 2>&1 &
 
   # 获取PID并输出
   PID=$!
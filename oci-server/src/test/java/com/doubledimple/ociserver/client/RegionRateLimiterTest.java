@@ -0,0 +1,48 @@
+package com.doubledimple.ociserver.client;
+
+import com.doubledimple.ociserver.config.RateLimitProperties;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 创建实例的优先级: 大量创建请求在等待自身令牌桶时,读接口不应被区域总桶的预留挡住
+ *
+ * @author doubleDimple
+ * @date 2024:10:23日 10:20
+ */
+class RegionRateLimiterTest {
+
+    private static final String REGION = "ap-tokyo-1";
+
+    @Test
+    void queuedLaunchesDoNotStarveReads() throws Exception {
+        RateLimitProperties properties = new RateLimitProperties();
+        properties.setMaxWaitMillis(2000);
+        RateLimitProperties.Bucket launch = new RateLimitProperties.Bucket();
+        launch.setPermitsPerSecond(0.01);
+        launch.setBurst(1);
+        properties.getFamilies().put(ApiFamily.LAUNCH, launch);
+        RegionRateLimiter limiter = new RegionRateLimiter(properties);
+        try {
+            List<CompletableFuture<Void>> launches = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                launches.add(limiter.acquireAsync(REGION, ApiFamily.LAUNCH));
+            }
+            assertTrue(launches.get(0).isDone());
+            assertEquals(29, limiter.snapshot().get(REGION + "|" + ApiFamily.LAUNCH).getWaiting().get());
+
+            long start = System.nanoTime();
+            limiter.acquire(REGION, ApiFamily.COMPUTE_READ);
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+            assertEquals(0, limiter.snapshot().get(REGION + "|" + ApiFamily.COMPUTE_READ).getRejected().sum());
+        } finally {
+            limiter.shutdown();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.doubledimple.ociserver.cluster;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 同一进程内的多个节点共用一个目录: 节点加入和离开时租户重新分配,任何时刻一个租户只属于一个节点;
+ * 有进行中请求的租户等请求结束后才移交; 节点异常退出后租约到期由其他节点接手;
+ * 同一工作目录下以默认标识启动的第二个进程拒绝启动
+ *
+ * @author doubleDimple
+ * @date 2024:10:19日 17:20
+ */
+class ClusterCoordinatorTest {
+
+    private static final int TENANTS = 20;
+
+    @TempDir
+    Path workDir;
+
+    private final Map<String, String> owners = new ConcurrentHashMap<>();
+    private final List<String> violations = new CopyOnWriteArrayList<>();
+
+    @Test
+    void ringMovesOnlyTenantsOfChangedNode() {
+        HashRing before = new HashRing(Arrays.asList("a", "b"), 128);
+        HashRing after = new HashRing(Arrays.asList("a", "b", "c"), 128);
+        int moved = 0;
+        for (int i = 0; i < 3000; i++) {
+            String key = "tenant-" + i;
+            if (!before.owner(key).equals(after.owner(key))) {
+                assertEquals("c", after.owner(key));
+                moved++;
+            }
+        }
+        assertTrue(moved > 600 && moved < 1500, "新节点应接手约三分之一的租户: " + moved);
+    }
+
+    @Test
+    void tenantsRebalanceWhenNodesJoinAndLeave() throws Exception {
+        Node a = new Node("a");
+        Node b = new Node("b");
+        ClusterCoordinator coordinatorA = start(a);
+        try {
+            awaitTrue("节点a接手所有租户", () -> a.owned.size() == TENANTS);
+            ClusterCoordinator coordinatorB = start(b);
+            awaitTrue("租户分到两个节点", () -> !a.owned.isEmpty() && !b.owned.isEmpty()
+                    && a.owned.size() + b.owned.size() == TENANTS);
+            for (String userName : b.owned) {
+                assertFalse(coordinatorA.owns(userName));
+                assertTrue(coordinatorB.owns(userName));
+            }
+            coordinatorB.shutdown();
+            awaitTrue("节点b离开后节点a接回所有租户", () -> a.owned.size() == TENANTS);
+        } finally {
+            coordinatorA.shutdown();
+        }
+        assertTrue(violations.isEmpty(), violations.toString());
+    }
+
+    @Test
+    void busyTenantIsHandedOverAfterRequestsFinish() throws Exception {
+        Node a = new Node("a");
+        Node b = new Node("b");
+        ClusterCoordinator coordinatorA = start(a);
+        ClusterCoordinator coordinatorB = null;
+        try {
+            awaitTrue("节点a接手所有租户", () -> a.owned.size() == TENANTS);
+            a.idle = false;
+            coordinatorB = start(b);
+            TimeUnit.MILLISECONDS.sleep(2000);
+            assertTrue(b.owned.isEmpty(), "节点a还有进行中的请求,租户不能移交");
+            assertEquals(TENANTS, a.owned.size());
+            a.idle = true;
+            awaitTrue("请求结束后租户移交给节点b", () -> !b.owned.isEmpty() && a.owned.size() + b.owned.size() == TENANTS);
+        } finally {
+            coordinatorA.shutdown();
+            if (coordinatorB != null) {
+                coordinatorB.shutdown();
+            }
+        }
+        assertTrue(violations.isEmpty(), violations.toString());
+    }
+
+    @Test
+    void crashedNodeLeasesExpire() throws Exception {
+        Node a = new Node("a");
+        Node b = new Node("b");
+        ClusterCoordinator coordinatorA = start(a);
+        ClusterCoordinator coordinatorB = start(b);
+        try {
+            awaitTrue("租户分到两个节点", () -> !a.owned.isEmpty() && !b.owned.isEmpty()
+                    && a.owned.size() + b.owned.size() == TENANTS);
+            // 节点a停止心跳和续期,也不释放租约
+            ((ScheduledExecutorService) ReflectionTestUtils.getField(coordinatorA, "timer")).shutdownNow();
+            for (String userName : a.owned) {
+                owners.remove(userName, "a");
+            }
+            awaitTrue("节点a的租约到期后节点b接手所有租户", () -> b.owned.size() == TENANTS);
+        } finally {
+            coordinatorB.shutdown();
+        }
+        assertTrue(violations.isEmpty(), violations.toString());
+    }
+
+    @Test
+    void secondProcessWithSameNodeIdRefusesToStart() throws Exception {
+        Path cluster = workDir.resolve("cluster");
+        Path nodeDir = Files.createDirectories(workDir.resolve("node"));
+        Process first = member(cluster, nodeDir, "first.log");
+        try {
+            FileLeaseStore leaseStore = new FileLeaseStore(cluster);
+            awaitTrue("第一个进程接手租户", () -> leaseStore.read("tenant-0").isHeld(System.currentTimeMillis()));
+            String owner = leaseStore.read("tenant-0").getOwner();
+
+            Process second = member(cluster, nodeDir, "second.log");
+            assertTrue(second.waitFor(30, TimeUnit.SECONDS), "第二个进程应拒绝启动并退出");
+            assertEquals(Member.REFUSED, second.exitValue());
+            assertTrue(first.isAlive());
+            assertEquals(owner, leaseStore.read("tenant-0").getOwner());
+            assertEquals(1, leaseStore.liveMembers(System.currentTimeMillis()).size());
+        } finally {
+            first.destroyForcibly().waitFor();
+        }
+    }
+
+    private ClusterCoordinator start(Node node) {
+        ClusterCoordinator coordinator = new ClusterCoordinator();
+        ReflectionTestUtils.setField(coordinator, "enabled", true);
+        ReflectionTestUtils.setField(coordinator, "dir", workDir.toString());
+        ReflectionTestUtils.setField(coordinator, "nodeId", node.id);
+        ReflectionTestUtils.setField(coordinator, "heartbeatMillis", 100L);
+        ReflectionTestUtils.setField(coordinator, "leaseMillis", 1000L);
+        coordinator.init();
+        List<String> tenants = new ArrayList<>();
+        for (int i = 0; i < TENANTS; i++) {
+            tenants.add("tenant-" + i);
+        }
+        coordinator.join(tenants, node);
+        return coordinator;
+    }
+
+    /**
+     * 在同一工作目录下启动一个使用默认节点标识的进程
+     */
+    private Process member(Path cluster, Path nodeDir, String logName) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Member.class.getName(), cluster.toString());
+        builder.directory(nodeDir.toFile());
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(workDir.resolve(logName).toFile());
+        return builder.start();
+    }
+
+    private static void awaitTrue(String description, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("等待超时: " + description);
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * 记录每个租户当前由哪个节点负责,同一租户被第二个节点接手时记为冲突
+     */
+    private final class Node implements TenantLeaseListener {
+
+        private final String id;
+        private final Set<String> owned = ConcurrentHashMap.newKeySet();
+        private volatile boolean idle = true;
+
+        private Node(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public void onAcquired(String userName, Lease previous) {
+            String other = owners.putIfAbsent(userName, id);
+            if (other != null) {
+                violations.add(userName + " 同时属于 " + other + " 和 " + id);
+            }
+            owned.add(userName);
+        }
+
+        @Override
+        public boolean onReleasing(String userName) {
+            if (!idle) {
+                return false;
+            }
+            if (owned.remove(userName)) {
+                owners.remove(userName, id);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 两进程测试中的一个节点: 不配置节点标识,按默认的 主机名:工作目录 加入集群,直到被父进程结束
+     */
+    static final class Member {
+
+        static final int REFUSED = 3;
+
+        private Member() {
+        }
+
+        public static void main(String[] args) throws Exception {
+            ClusterCoordinator coordinator = new ClusterCoordinator();
+            ReflectionTestUtils.setField(coordinator, "enabled", true);
+            ReflectionTestUtils.setField(coordinator, "dir", args[0]);
+            ReflectionTestUtils.setField(coordinator, "heartbeatMillis", 100L);
+            ReflectionTestUtils.setField(coordinator, "leaseMillis", 1000L);
+            try {
+                coordinator.init();
+            } catch (IllegalStateException e) {
+                System.exit(REFUSED);
+            }
+            List<String> tenants = new ArrayList<>();
+            for (int i = 0; i < TENANTS; i++) {
+                tenants.add("tenant-" + i);
+            }
+            coordinator.join(tenants, new TenantLeaseListener() {
+                @Override
+                public void onAcquired(String userName, Lease previous) {
+                }
+
+                @Override
+                public boolean onReleasing(String userName) {
+                    return true;
+                }
+            });
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+}
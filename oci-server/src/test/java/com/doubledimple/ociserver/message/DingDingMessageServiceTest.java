@@ -0,0 +1,204 @@
+package com.doubledimple.ociserver.message;
+
+import com.doubledimple.ociserver.config.NotifyProperties;
+import com.doubledimple.ociserver.domain.OracleInstanceDetail;
+import com.doubledimple.ociserver.enums.MessageEnum;
+import com.doubledimple.ociserver.message.dispatch.NotificationDispatcher;
+import com.doubledimple.ociserver.message.factory.MessageFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 用本地的钉钉桩服务验证: 消息格式和加签、发送过快时重试、按渠道限速,以及一个渠道卡住时其他渠道照常推送
+ *
+ * @author doubleDimple
+ * @date 2024:10:17日 20:40
+ */
+class DingDingMessageServiceTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final String SECRET = "SEC-test";
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private final List<JsonNode> received = new CopyOnWriteArrayList<>();
+    private final List<Long> receivedAt = new CopyOnWriteArrayList<>();
+    private final List<String> queries = new CopyOnWriteArrayList<>();
+    private final AtomicInteger tooFast = new AtomicInteger();
+    private final CountDownLatch telegramRelease = new CountDownLatch(1);
+
+    private NotifyProperties notifyProperties;
+    private NotificationDispatcher dispatcher;
+    private DingDingMessageService service;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/robot/send", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                JsonNode body = OBJECT_MAPPER.readTree(in);
+                String result;
+                if (tooFast.getAndDecrement() > 0) {
+                    result = "{\"errcode\":130101,\"errmsg\":\"send too fast\"}";
+                } else {
+                    received.add(body);
+                    receivedAt.add(System.nanoTime());
+                    queries.add(exchange.getRequestURI().getRawQuery());
+                    result = "{\"errcode\":0,\"errmsg\":\"ok\"}";
+                }
+                byte[] response = result.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(response);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.createContext("/bothung/sendMessage", exchange -> {
+            try {
+                telegramRelease.await(10, TimeUnit.SECONDS);
+                exchange.sendResponseHeaders(200, -1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(8);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        notifyProperties = new NotifyProperties();
+        notifyProperties.setRetryBaseMillis(20);
+        notifyProperties.setDigestSeconds(0);
+        dispatcher = new NotificationDispatcher(notifyProperties);
+        service = new DingDingMessageService(dispatcher, notifyProperties);
+        ReflectionTestUtils.setField(service, "webhook", baseUrl() + "/robot/send?access_token=test");
+        ReflectionTestUtils.setField(service, "secret", SECRET);
+    }
+
+    @AfterEach
+    void tearDown() {
+        telegramRelease.countDown();
+        dispatcher.shutdown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    void sendsSignedTextMessage() throws Exception {
+        OracleInstanceDetail detail = new OracleInstanceDetail();
+        detail.setPublicIp("10.0.0.1");
+        detail.setUserName("user1");
+        service.sendMessage(detail);
+        awaitReceived(1);
+
+        JsonNode body = received.get(0);
+        assertEquals("text", body.get("msgtype").asText());
+        assertTrue(body.get("text").get("content").asText().contains("10.0.0.1"));
+
+        Map<String, String> query = parseQuery(queries.get(0));
+        assertEquals("test", query.get("access_token"));
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        String expected = Base64.getEncoder().encodeToString(
+                mac.doFinal((query.get("timestamp") + "\n" + SECRET).getBytes(StandardCharsets.UTF_8)));
+        assertEquals(expected, query.get("sign"));
+    }
+
+    @Test
+    void retriesWhenSendingTooFast() throws Exception {
+        tooFast.set(2);
+        service.sendErrorMessage("用户: test===> InternalError");
+        awaitReceived(1);
+
+        assertEquals(2, dispatcher.getStats().getRetried().sum());
+        assertEquals("用户: test===> InternalError", received.get(0).get("text").get("content").asText());
+    }
+
+    @Test
+    void pacesMessagesAtChannelRate() throws Exception {
+        NotifyProperties.Channel channel = new NotifyProperties.Channel();
+        channel.setPermits(5);
+        channel.setPeriodSeconds(1L);
+        notifyProperties.getChannels().put(MessageEnum.DING_DING, channel);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            OracleInstanceDetail detail = new OracleInstanceDetail();
+            detail.setPublicIp("10.0.0." + i);
+            service.sendMessage(detail);
+        }
+        awaitReceived(10);
+
+        // 前5条用掉桶内的令牌立即发出,后5条按每200ms一条匀速发出
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(receivedAt.get(9) - start);
+        assertTrue(elapsedMillis >= 800, "elapsed " + elapsedMillis + "ms");
+    }
+
+    @Test
+    void slowChannelDoesNotDelayOthers() throws Exception {
+        notifyProperties.setReadTimeoutMillis(10000);
+        TelegramMessageService telegram = new TelegramMessageService(dispatcher, notifyProperties);
+        ReflectionTestUtils.setField(telegram, "chatId", "42");
+        ReflectionTestUtils.setField(telegram, "botToken", "hung");
+        ReflectionTestUtils.setField(telegram, "apiUrl", baseUrl());
+        NotificationBus bus = new NotificationBus(
+                new MessageFactory(Arrays.asList(telegram, service)), notifyProperties);
+        assertEquals(Arrays.asList(MessageEnum.TELEGRAM, MessageEnum.DING_DING), bus.activeChannels(EnumSet.noneOf(MessageEnum.class)));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            OracleInstanceDetail detail = new OracleInstanceDetail();
+            detail.setPublicIp("10.0.0." + i);
+            bus.publishInstance(detail);
+        }
+        awaitReceived(5);
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        assertTrue(dispatcher.queuedByChannel().get(MessageEnum.TELEGRAM) > 0);
+    }
+
+    private String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        for (String pair : rawQuery.split("&")) {
+            int index = pair.indexOf('=');
+            query.put(pair.substring(0, index), URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+        }
+        return query;
+    }
+
+    private void awaitReceived(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (received.size() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("只收到" + received.size() + "条消息,期望" + count + "条");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
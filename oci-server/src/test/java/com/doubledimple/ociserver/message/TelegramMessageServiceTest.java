@@ -0,0 +1,251 @@
+package com.doubledimple.ociserver.message;
+
+import com.doubledimple.ociserver.config.NotifyProperties;
+import com.doubledimple.ociserver.domain.OracleInstanceDetail;
+import com.doubledimple.ociserver.enums.MessageEnum;
+import com.doubledimple.ociserver.message.dispatch.NotificationDispatcher;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 用本地的Telegram桩服务验证推送: 请求方式和格式、调用方不被阻塞、失败重试、错误消息合并,
+ * 并输出批量推送时的吞吐量和延迟分位数
+ *
+ * @author doubleDimple
+ * @date 2024:10:17日 18:30
+ */
+@Slf4j
+class TelegramMessageServiceTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final Pattern IP = Pattern.compile("IP: (\\S+)");
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    /**
+     * 桩服务中发现的格式问题,在测试线程中检查; 桩服务线程里抛出的断言错误不会让测试失败
+     */
+    private final List<String> violations = new CopyOnWriteArrayList<>();
+    private final List<JsonNode> received = new CopyOnWriteArrayList<>();
+    private final Map<String, Long> receivedAt = new ConcurrentHashMap<>();
+    private volatile Handler handler = exchange -> 200;
+
+    private NotifyProperties notifyProperties;
+    private NotificationDispatcher dispatcher;
+    private TelegramMessageService service;
+
+    @FunctionalInterface
+    private interface Handler {
+        int status(HttpExchange exchange) throws Exception;
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/bottest-token/sendMessage", exchange -> {
+            try {
+                if (!"POST".equals(exchange.getRequestMethod()) || exchange.getRequestURI().getQuery() != null) {
+                    violations.add("期望不带查询参数的POST请求,实际为: " + exchange.getRequestMethod() + " " + exchange.getRequestURI());
+                }
+                JsonNode body;
+                try (InputStream in = exchange.getRequestBody()) {
+                    body = OBJECT_MAPPER.readTree(in);
+                }
+                int status = handler.status(exchange);
+                if (status == 200) {
+                    received.add(body);
+                    receivedAt.put(ipOf(body.get("text").asText()), System.nanoTime());
+                }
+                if (status == 200) {
+                    // 成功时只看状态码,不带响应体: 响应头和响应体分两次写出时,复用连接的每个请求都要多等一次延迟确认
+                    exchange.sendResponseHeaders(status, -1);
+                    return;
+                }
+                // 与Telegram一致: 限流时等待秒数只在响应体中返回,没有Retry-After响应头
+                String json = status == 429
+                        ? "{\"ok\":false,\"error_code\":429,\"description\":\"Too Many Requests: retry after 1\","
+                        + "\"parameters\":{\"retry_after\":1}}"
+                        : "{\"ok\":false}";
+                byte[] response = json.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(status, response.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(response);
+                }
+            } catch (Exception e) {
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                exchange.close();
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverExecutor);
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        assertTrue(violations.isEmpty(), violations.toString());
+    }
+
+    private void startService(int queueSize, int readTimeoutMillis, long digestSeconds) {
+        notifyProperties = new NotifyProperties();
+        notifyProperties.setQueueSize(queueSize);
+        notifyProperties.setReadTimeoutMillis(readTimeoutMillis);
+        notifyProperties.setRetryBaseMillis(20);
+        notifyProperties.setDigestSeconds(digestSeconds);
+        // 度量的是推送链路本身,放开Telegram每秒30条的限制
+        NotifyProperties.Channel unlimited = new NotifyProperties.Channel();
+        unlimited.setPermits(100000);
+        notifyProperties.getChannels().put(MessageEnum.TELEGRAM, unlimited);
+        dispatcher = new NotificationDispatcher(notifyProperties);
+        service = new TelegramMessageService(dispatcher, notifyProperties);
+        ReflectionTestUtils.setField(service, "chatId", "42");
+        ReflectionTestUtils.setField(service, "botToken", "test-token");
+        ReflectionTestUtils.setField(service, "apiUrl", "http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    @Test
+    void sendsMessagesAsJsonPostAndReportsThroughput() throws Exception {
+        int messages = 2000;
+        startService(messages, 5000, 10);
+        Map<String, Long> submittedAt = new HashMap<>();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            OracleInstanceDetail detail = new OracleInstanceDetail();
+            detail.setPublicIp("10.0.0." + i);
+            detail.setUserName("user-" + i);
+            submittedAt.put(detail.getPublicIp(), System.nanoTime());
+            service.sendMessage(detail);
+        }
+        long submitNanos = System.nanoTime() - start;
+        awaitReceived(messages, 60);
+        long totalNanos = System.nanoTime() - start;
+
+        assertEquals("42", received.get(0).get("chat_id").asText());
+        long[] latencies = new long[messages];
+        int i = 0;
+        for (Map.Entry<String, Long> entry : submittedAt.entrySet()) {
+            latencies[i++] = receivedAt.get(entry.getKey()) - entry.getValue();
+        }
+        Arrays.sort(latencies);
+        log.info("messages={} submit={}ms throughput={} msg/s p50={}ms p99={}ms max={}ms",
+                messages, TimeUnit.NANOSECONDS.toMillis(submitNanos), (long) (messages / (totalNanos / 1e9)),
+                TimeUnit.NANOSECONDS.toMillis(latencies[messages / 2]), TimeUnit.NANOSECONDS.toMillis(latencies[messages * 99 / 100]),
+                TimeUnit.NANOSECONDS.toMillis(latencies[messages - 1]));
+        // 桩服务先记录消息再返回响应,发送线程读到响应后才计入已送达
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (dispatcher.getStats().getDelivered().sum() < messages && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(messages, dispatcher.getStats().getDelivered().sum());
+    }
+
+    @Test
+    void hungEndpointDoesNotBlockCaller() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        handler = exchange -> {
+            release.await(10, TimeUnit.SECONDS);
+            return 200;
+        };
+        startService(100, 200, 10);
+        notifyProperties.setMaxRetries(0);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            service.sendErrorMessage("error-" + i);
+            OracleInstanceDetail detail = new OracleInstanceDetail();
+            detail.setPublicIp("10.0.0." + i);
+            service.sendMessage(detail);
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        release.countDown();
+    }
+
+    @Test
+    void retriesServerErrors() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        handler = exchange -> calls.incrementAndGet() <= 2 ? 502 : 200;
+        startService(10, 5000, 0);
+
+        service.sendErrorMessage("boom");
+        awaitReceived(1, 10);
+        assertEquals(3, calls.get());
+        assertEquals(1, received.size());
+        assertEquals(2, dispatcher.getStats().getRetried().sum());
+    }
+
+    @Test
+    void waitsForRetryAfterFromResponseBody() throws Exception {
+        List<Long> callsAt = new CopyOnWriteArrayList<>();
+        handler = exchange -> {
+            callsAt.add(System.nanoTime());
+            return callsAt.size() == 1 ? 429 : 200;
+        };
+        startService(10, 5000, 0);
+
+        service.sendErrorMessage("slow down");
+        awaitReceived(1, 10);
+        assertEquals(2, callsAt.size());
+        // 退避基数为20ms,间隔达到1秒说明用的是响应体中的retry_after
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(callsAt.get(1) - callsAt.get(0)) >= 900);
+    }
+
+    @Test
+    void coalescesErrorBurstIntoOneDigest() throws Exception {
+        startService(10, 5000, 1);
+
+        for (int i = 0; i < 100; i++) {
+            service.sendErrorMessage("用户: test===> " + (i % 3 == 0 ? "TooManyRequests" : "InternalError"));
+        }
+        awaitReceived(1, 10);
+        Thread.sleep(500);
+
+        assertEquals(1, received.size());
+        String digest = received.get(0).get("text").asText();
+        assertTrue(digest.contains("共100条"), digest);
+        assertTrue(digest.contains("TooManyRequests (x34)"), digest);
+        assertTrue(digest.contains("InternalError (x66)"), digest);
+        assertEquals(99, dispatcher.getStats().getCoalesced().sum());
+    }
+
+    private static String ipOf(String text) {
+        Matcher matcher = IP.matcher(text);
+        return matcher.find() ? matcher.group(1) : text;
+    }
+
+    private void awaitReceived(int count, int timeoutSeconds) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        while (received.size() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("只收到" + received.size() + "条消息,期望" + count + "条");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
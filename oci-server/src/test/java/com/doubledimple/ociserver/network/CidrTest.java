@@ -0,0 +1,52 @@
+package com.doubledimple.ociserver.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 子网划分: 每个可用域在VCN地址段内得到互不重叠的子网
+ *
+ * @author doubleDimple
+ * @date 2024:10:21日 11:40
+ */
+class CidrTest {
+
+    @Test
+    void eachAvailabilityDomainGetsItsOwnBlock() {
+        Cidr vcn = Cidr.parse("10.0.0.0/16");
+        assertEquals("10.0.0.0/24", vcn.freeSubnet(0, Collections.emptyList()).toString());
+        assertEquals("10.0.1.0/24", vcn.freeSubnet(1, Collections.emptyList()).toString());
+        assertEquals("10.0.2.0/24", vcn.freeSubnet(2, Collections.emptyList()).toString());
+    }
+
+    @Test
+    void occupiedBlockFallsBackToFirstFree() {
+        Cidr vcn = Cidr.parse("10.0.0.0/16");
+        assertEquals("10.0.2.0/24", vcn.freeSubnet(1,
+                Arrays.asList(Cidr.parse("10.0.0.0/24"), Cidr.parse("10.0.1.0/25"))).toString());
+    }
+
+    @Test
+    void subnetCoveringWholeVcnLeavesNoBlock() {
+        Cidr vcn = Cidr.parse("10.0.0.0/16");
+        assertNull(vcn.freeSubnet(1, Collections.singletonList(Cidr.parse("10.0.0.0/16"))));
+    }
+
+    @Test
+    void smallVcnUsesSmallerBlocks() {
+        Cidr vcn = Cidr.parse("192.168.1.0/24");
+        assertEquals("192.168.1.16/28", vcn.freeSubnet(1, Collections.emptyList()).toString());
+        assertFalse(Cidr.parse("192.168.1.16/28").overlaps(Cidr.parse("192.168.1.32/28")));
+        assertTrue(Cidr.parse("192.168.1.16/28").overlaps(Cidr.parse("192.168.0.0/16")));
+    }
+
+    @Test
+    void rejectsMalformedCidr() {
+        assertThrows(IllegalArgumentException.class, () -> Cidr.parse("10.0.0.0"));
+        assertThrows(IllegalArgumentException.class, () -> Cidr.parse("10.0.0.300/16"));
+    }
+}
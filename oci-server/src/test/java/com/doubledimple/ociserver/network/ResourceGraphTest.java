@@ -0,0 +1,103 @@
+package com.doubledimple.ociserver.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 依赖图: 互不依赖的步骤并发执行; 失败后不再启动新步骤,已结束的步骤按相反顺序回滚
+ *
+ * @author doubleDimple
+ * @date 2024:10:20日 11:10
+ */
+class ResourceGraphTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<String> events = new CopyOnWriteArrayList<>();
+
+    @Test
+    void independentStepsRunConcurrently() throws Exception {
+        try {
+            // vcn 的三个依赖方互相等待,不能同时执行时等待超时,步骤失败
+            CountDownLatch started = new CountDownLatch(3);
+            ResourceGraph graph = new ResourceGraph("test", executor);
+            ResourceGraph.Step<String> vcn = graph.step("vcn", step -> create("vcn", step));
+            ResourceGraph.Step<String> internetGateway = graph.step("internetGateway",
+                    step -> createTogether("internetGateway-" + vcn.get(), started, step), vcn);
+            graph.step("routeTable", step -> create("routeTable-" + internetGateway.get(), step), internetGateway);
+            graph.step("networkSecurityGroup", step -> createTogether("networkSecurityGroup", started, step), vcn);
+            graph.step("subnet", step -> createTogether("subnet", started, step), vcn);
+
+            graph.execute();
+
+            assertEquals("internetGateway-vcn", internetGateway.get());
+            assertEquals(5, events.size());
+            assertEquals("create vcn", events.get(0));
+            assertTrue(events.indexOf("create routeTable-internetGateway-vcn") > events.indexOf("create internetGateway-vcn"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failureRollsBackFinishedStepsInReverseOrder() {
+        try {
+            // 每个步骤连同图内的结束处理执行完后计数: internetGateway 等 vcn 和 subnet 都结束(失败已记录)后才完成
+            CountDownLatch finished = new CountDownLatch(2);
+            Executor tracking = task -> executor.execute(() -> {
+                task.run();
+                finished.countDown();
+            });
+            ResourceGraph graph = new ResourceGraph("test", tracking);
+            ResourceGraph.Step<String> vcn = graph.step("vcn", step -> create("vcn", step));
+            ResourceGraph.Step<String> internetGateway = graph.step("internetGateway", step -> {
+                assertTrue(finished.await(5, TimeUnit.SECONDS));
+                return create("internetGateway", step);
+            }, vcn);
+            graph.step("routeTable", step -> create("routeTable", step), internetGateway);
+            graph.step("subnet", step -> {
+                events.add("create subnet");
+                step.onRollback(() -> events.add("delete subnet"));
+                throw new IllegalStateException("subnet waiter failed");
+            }, vcn);
+
+            IllegalStateException error = assertThrows(IllegalStateException.class, graph::execute);
+            assertEquals("subnet waiter failed", error.getMessage());
+            // subnet 创建后立即失败; 正在执行的 internetGateway 结束后一并回滚,routeTable 不再启动
+            assertEquals(Arrays.asList("create vcn", "create subnet", "create internetGateway",
+                    "delete internetGateway", "delete subnet", "delete vcn"), events);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void dependencyMustBelongToGraph() {
+        ResourceGraph other = new ResourceGraph("other", executor);
+        ResourceGraph.Step<String> foreign = other.step("vcn", step -> "vcn");
+        ResourceGraph graph = new ResourceGraph("test", executor);
+        assertThrows(IllegalArgumentException.class, () -> graph.step("subnet", step -> "subnet", foreign));
+        executor.shutdownNow();
+    }
+
+    private String create(String name, ResourceGraph.Step<?> step) {
+        events.add("create " + name);
+        step.onRollback(() -> events.add("delete " + name));
+        return name;
+    }
+
+    private String createTogether(String name, CountDownLatch started, ResourceGraph.Step<?> step) throws InterruptedException {
+        started.countDown();
+        assertTrue(started.await(5, TimeUnit.SECONDS), name + " 没有和其他步骤并发执行");
+        return create(name, step);
+    }
+}
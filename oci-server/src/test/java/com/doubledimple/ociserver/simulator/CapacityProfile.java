@@ -0,0 +1,65 @@
+package com.doubledimple.ociserver.simulator;
+
+import lombok.Data;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 模拟器的容量和限流行为,运行中修改立即生效,例如:
+ * <pre>
+ * profile.getOutOfCapacityRates().put("SIM:AP-TOKYO-1-AD-1", 0.95);
+ * profile.setThrottlePeriodMillis(60000);
+ * profile.setThrottleBurstMillis(5000);
+ * profile.setWriteLatency(Latency.logNormal(300, 2000));
+ * </pre>
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 10:25
+ */
+@Data
+public class CapacityProfile {
+
+    private volatile List<String> availabilityDomains = Arrays.asList("SIM:AD-1", "SIM:AD-2", "SIM:AD-3");
+
+    /**
+     * 各可用域创建实例返回 Out of host capacity 的概率,没有配置的可用域使用默认值
+     */
+    private final Map<String, Double> outOfCapacityRates = new ConcurrentHashMap<>();
+    private volatile double defaultOutOfCapacityRate = 0;
+
+    /**
+     * 每个租户最多创建的实例数,达到后返回 LimitExceeded
+     */
+    private volatile int instanceLimit = Integer.MAX_VALUE;
+    private volatile double limitExceededRate = 0;
+
+    /**
+     * 周期性的429: 每个周期开始的一段时间内所有请求都返回429; 另外每个请求按概率随机返回429
+     */
+    private volatile long throttlePeriodMillis = 0;
+    private volatile long throttleBurstMillis = 0;
+    private volatile double throttleRate = 0;
+
+    private volatile Latency readLatency = Latency.none();
+    private volatile Latency writeLatency = Latency.none();
+    private volatile Latency launchLatency = Latency.none();
+
+    /**
+     * 创建请求被接受后实例从 PROVISIONING 到 RUNNING 的时间,以及工作请求最终失败的概率
+     */
+    private volatile long provisionMillis = 1000;
+    private volatile double workRequestFailureRate = 0;
+
+    /**
+     * 创建请求已被接受、实例已经创建,但响应在返回前丢失(直接断开连接)的概率,模拟客户端超时
+     */
+    private volatile double lostLaunchResponseRate = 0;
+
+    public double outOfCapacityRate(String availabilityDomain) {
+        Double rate = outOfCapacityRates.get(availabilityDomain);
+        return rate == null ? defaultOutOfCapacityRate : rate;
+    }
+}
@@ -0,0 +1,43 @@
+package com.doubledimple.ociserver.simulator;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 集群测试中的一个节点进程: 以集群模式启动完整的应用,连接父进程中的模拟器,直到被父进程结束.
+ * <p>
+ * 参数: 模拟器地址 工作目录 节点标识 租户数; 各节点的私钥和本地状态放在 工作目录/节点标识 下,共享目录为 工作目录/cluster
+ *
+ * @author doubleDimple
+ * @date 2024:10:19日 17:40
+ */
+public final class ClusterNode {
+
+    private ClusterNode() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String endpoint = args[0];
+        Path workDir = Paths.get(args[1]);
+        String nodeId = args[2];
+        int tenants = Integer.parseInt(args[3]);
+
+        Path nodeDir = Files.createDirectories(workDir.resolve(nodeId));
+        Map<String, Object> properties = SimulatedTenants.properties(endpoint, tenants, 2, nodeDir);
+        properties.put("oci.cluster.enabled", "true");
+        properties.put("oci.cluster.dir", workDir.resolve("cluster").toString());
+        properties.put("oci.cluster.node-id", nodeId);
+        properties.put("oci.cluster.heartbeat-millis", "200");
+        properties.put("oci.cluster.lease-millis", "2000");
+        // 容量恢复后尽快重试,不跳过之前容量不足的可用域
+        properties.put("oci.capacity.decay-seconds", "0");
+        properties.put("oci.backoff.bounds.capacity.floor-seconds", "1");
+        properties.put("oci.backoff.bounds.capacity.ceiling-seconds", "2");
+        SimulatedTenants.start(properties);
+        // 应用的线程都是守护线程,主线程等待进程被结束
+        new CountDownLatch(1).await();
+    }
+}
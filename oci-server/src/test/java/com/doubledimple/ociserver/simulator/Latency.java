@@ -0,0 +1,61 @@
+package com.doubledimple.ociserver.simulator;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 模拟器的接口耗时分布: 固定值或对数正态分布(由中位数和P99确定)
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 10:20
+ */
+public final class Latency {
+
+    /**
+     * 标准正态分布的99分位点
+     */
+    private static final double Z_99 = 2.326;
+
+    private static final Latency NONE = new Latency(0, 0);
+
+    private final double medianMillis;
+    private final double sigma;
+
+    private Latency(double medianMillis, double sigma) {
+        this.medianMillis = medianMillis;
+        this.sigma = sigma;
+    }
+
+    public static Latency none() {
+        return NONE;
+    }
+
+    public static Latency fixed(long millis) {
+        return new Latency(millis, 0);
+    }
+
+    /**
+     * 真实OCI接口的耗时长尾明显,用对数正态分布近似
+     */
+    public static Latency logNormal(long medianMillis, long p99Millis) {
+        if (medianMillis <= 0 || p99Millis < medianMillis) {
+            throw new IllegalArgumentException("需要 0 < median <= p99");
+        }
+        return new Latency(medianMillis, Math.log((double) p99Millis / medianMillis) / Z_99);
+    }
+
+    public long sampleMillis() {
+        if (medianMillis <= 0) {
+            return 0;
+        }
+        if (sigma == 0) {
+            return (long) medianMillis;
+        }
+        return Math.round(medianMillis * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+    }
+
+    @Override
+    public String toString() {
+        return sigma == 0 ? medianMillis + "ms"
+                : String.format("median %.0fms p99 %.0fms", medianMillis, medianMillis * Math.exp(sigma * Z_99));
+    }
+}
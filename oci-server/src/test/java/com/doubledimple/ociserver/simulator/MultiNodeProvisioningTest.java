@@ -0,0 +1,112 @@
+package com.doubledimple.ociserver.simulator;
+
+import com.doubledimple.ociserver.cluster.FileLeaseStore;
+import com.doubledimple.ociserver.cluster.Lease;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 同一台机器上的三个节点进程共用一个集群目录和一个模拟器: 租户分到各个节点,一个节点被强制结束后
+ * 它的租户在租约到期后由其他节点接手,容量恢复后每个租户只创建一台实例
+ *
+ * @author doubleDimple
+ * @date 2024:10:19日 17:50
+ */
+class MultiNodeProvisioningTest {
+
+    private static final int NODES = 3;
+    private static final int TENANTS = 12;
+
+    @TempDir
+    Path workDir;
+
+    @Test
+    void tenantsAreShardedAcrossNodesWithoutDuplicates() throws Exception {
+        CapacityProfile profile = new CapacityProfile();
+        profile.setDefaultOutOfCapacityRate(1.0);
+        profile.setProvisionMillis(500);
+        List<Process> nodes = new ArrayList<>();
+        try (OciSimulator simulator = new OciSimulator(profile).start()) {
+            for (int i = 0; i < NODES; i++) {
+                nodes.add(startNode(simulator, "node-" + i));
+            }
+            FileLeaseStore leaseStore = new FileLeaseStore(workDir.resolve("cluster"));
+            awaitTrue("租户分到所有节点", () -> {
+                Map<String, String> owners = owners(leaseStore);
+                return owners.size() == TENANTS && new HashSet<>(owners.values()).size() == NODES;
+            });
+
+            nodes.get(0).destroyForcibly().waitFor();
+            awaitTrue("被结束节点的租户由其他节点接手", () -> {
+                Map<String, String> owners = owners(leaseStore);
+                return owners.size() == TENANTS && !owners.containsValue("node-0");
+            });
+
+            profile.setDefaultOutOfCapacityRate(0);
+            awaitTrue("所有租户都有一台运行中的实例", () -> {
+                for (int i = 0; i < TENANTS; i++) {
+                    if (simulator.runningInstances(SimulatedTenants.tenancy(i)) < 1) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+            // 给可能重复的创建请求留出时间
+            TimeUnit.SECONDS.sleep(3);
+            assertEquals(TENANTS, simulator.getLaunched().sum());
+            for (int i = 0; i < TENANTS; i++) {
+                assertEquals(1, simulator.runningInstances(SimulatedTenants.tenancy(i)));
+            }
+        } finally {
+            for (Process node : nodes) {
+                node.destroyForcibly();
+            }
+        }
+    }
+
+    private Process startNode(OciSimulator simulator, String nodeId) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                ClusterNode.class.getName(), simulator.getEndpoint(), workDir.toString(), nodeId, String.valueOf(TENANTS));
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(workDir.resolve(nodeId + ".log").toFile());
+        return builder.start();
+    }
+
+    /**
+     * @return 租约仍然有效的租户 -> 持有节点
+     */
+    private static Map<String, String> owners(FileLeaseStore leaseStore) {
+        long now = System.currentTimeMillis();
+        Map<String, String> owners = new HashMap<>();
+        for (int i = 0; i < TENANTS; i++) {
+            Lease lease = leaseStore.read(SimulatedTenants.userName(i));
+            if (lease.isHeld(now)) {
+                owners.put(SimulatedTenants.userName(i), lease.getOwner());
+            }
+        }
+        return owners;
+    }
+
+    private static void awaitTrue(String description, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(90);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("等待超时: " + description);
+            }
+            Thread.sleep(200);
+        }
+    }
+}
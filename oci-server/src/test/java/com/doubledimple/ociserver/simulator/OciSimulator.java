@@ -0,0 +1,809 @@
+package com.doubledimple.ociserver.simulator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Getter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 本地OCI控制面模拟器: 在127.0.0.1上实现 OracleCloudService、创建引擎和 WorkRequestTracker 用到的
+ * Identity/Compute/VirtualNetwork/WorkRequest 接口子集,数据只保存在内存中.
+ * <p>
+ * 所有服务共用一个地址(请求路径都以 /20160918 开头),把 oci.client.endpoint 指向 {@link #getEndpoint()} 即可;
+ * 不校验请求签名. 容量不足、配额超限、429和接口耗时由 {@link CapacityProfile} 控制.
+ * 每个HTTP请求都会计数,包括SDK自身的重试、waiter轮询和分页请求
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 10:40
+ */
+public class OciSimulator implements AutoCloseable {
+
+    private static final String API_VERSION = "/20160918";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Getter
+    private final CapacityProfile profile;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long startedAt = System.currentTimeMillis();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Map<String, Tenancy> tenancies = new ConcurrentHashMap<>();
+    private final Map<String, ObjectNode> vcns = new ConcurrentHashMap<>();
+    private final Map<String, ObjectNode> internetGateways = new ConcurrentHashMap<>();
+    private final Map<String, ObjectNode> routeTables = new ConcurrentHashMap<>();
+    private final Map<String, ObjectNode> subnets = new ConcurrentHashMap<>();
+    private final Map<String, ObjectNode> networkSecurityGroups = new ConcurrentHashMap<>();
+    private final Map<String, List<ObjectNode>> securityRules = new ConcurrentHashMap<>();
+    private final Map<String, SimInstance> instances = new ConcurrentHashMap<>();
+    private final Map<String, SimInstance> instancesByVnic = new ConcurrentHashMap<>();
+    private final Map<String, SimInstance> instancesByWorkRequest = new ConcurrentHashMap<>();
+    private final Map<String, SimInstance> instancesByRetryToken = new ConcurrentHashMap<>();
+
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+    @Getter
+    private final LongAdder throttled = new LongAdder();
+    @Getter
+    private final LongAdder outOfCapacity = new LongAdder();
+    @Getter
+    private final LongAdder limitExceeded = new LongAdder();
+    @Getter
+    private final LongAdder launched = new LongAdder();
+    @Getter
+    private final LongAdder lostLaunchResponses = new LongAdder();
+
+    public OciSimulator(CapacityProfile profile) throws IOException {
+        this(profile, 256);
+    }
+
+    /**
+     * @param threads 处理请求的线程数; 模拟耗时时线程会阻塞,线程数应不小于并发请求数
+     */
+    public OciSimulator(CapacityProfile profile, int threads) throws IOException {
+        this.profile = profile;
+        AtomicInteger index = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "oci-simulator-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        this.server.createContext(API_VERSION, this::handle);
+        this.server.setExecutor(executor);
+    }
+
+    public OciSimulator start() {
+        server.start();
+        return this;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return 各接口的请求次数,key形如 "POST /instances"、"GET /vcns/{id}"
+     */
+    public Map<String, Long> calls() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        calls.forEach((key, count) -> snapshot.put(key, count.sum()));
+        return snapshot;
+    }
+
+    public long totalCalls() {
+        long total = 0;
+        for (LongAdder count : calls.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * @return 租户(根区间)下已经RUNNING的实例数
+     */
+    public int runningInstances(String compartmentId) {
+        int running = 0;
+        long now = System.currentTimeMillis();
+        for (SimInstance instance : instances.values()) {
+            if (instance.compartmentId.equals(compartmentId) && "RUNNING".equals(instance.state(now))) {
+                running++;
+            }
+        }
+        return running;
+    }
+
+    /**
+     * 直接写入一台实例,模拟进程在记录状态之前退出等途径遗留的实例
+     *
+     * @param stuck 是否一直停在PROVISIONING,不会启动也没有网卡
+     * @return 实例ID
+     */
+    public String addInstance(String compartmentId, Map<String, String> freeformTags, boolean stuck) {
+        Tenancy tenancy = tenancy(compartmentId);
+        synchronized (tenancy) {
+            tenancy.instances++;
+        }
+        SimInstance instance = new SimInstance(compartmentId, profile.getAvailabilityDomains().get(0),
+                "VM.Standard.A1.Flex", "orphan", OBJECT_MAPPER.valueToTree(freeformTags), false);
+        instance.stuck = stuck;
+        instances.put(instance.id, instance);
+        instancesByVnic.put(instance.vnicId, instance);
+        return instance.id;
+    }
+
+    /**
+     * @return 实例当前状态,实例不存在时返回null
+     */
+    public String instanceState(String instanceId) {
+        SimInstance instance = instances.get(instanceId);
+        return instance == null ? null : instance.state(System.currentTimeMillis());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().substring(API_VERSION.length() + 1).split("/");
+            calls.computeIfAbsent(template(method, path), key -> new LongAdder()).increment();
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            JsonNode body = readBody(exchange);
+
+            sleep(latency(method, path).sampleMillis());
+            if (throttle()) {
+                throttled.increment();
+                error(exchange, 429, "TooManyRequests", "Too many requests for the tenancy");
+                return;
+            }
+            route(exchange, method, path, query, body);
+        } catch (Exception e) {
+            error(exchange, 500, "InternalError", String.valueOf(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void route(HttpExchange exchange, String method, String[] path, Map<String, String> query, JsonNode body) throws IOException {
+        String resource = path[0];
+        String id = path.length > 1 ? path[1] : null;
+        boolean post = "POST".equals(method);
+        boolean delete = "DELETE".equals(method);
+        switch (resource) {
+            case "compartments":
+                // 没有子区间,根区间回落为租户ID
+                ok(exchange, OBJECT_MAPPER.createArrayNode());
+                return;
+            case "availabilityDomains":
+                ok(exchange, listAvailabilityDomains(query.get("compartmentId")));
+                return;
+            case "shapes":
+                ok(exchange, listShapes());
+                return;
+            case "images":
+                ok(exchange, listImages(query));
+                return;
+            case "instances":
+                if (post) {
+                    launchInstance(exchange, body);
+                } else if (delete) {
+                    terminateInstance(exchange, id);
+                } else if (id == null) {
+                    ok(exchange, listInstances(query.get("compartmentId")));
+                } else {
+                    SimInstance instance = instances.get(id);
+                    found(exchange, instance == null ? null : instance.toJson(System.currentTimeMillis()));
+                }
+                return;
+            case "vnicAttachments":
+                ok(exchange, listVnicAttachments(query.get("compartmentId"), query.get("instanceId")));
+                return;
+            case "vnics":
+                SimInstance owner = instancesByVnic.get(id);
+                found(exchange, owner == null ? null : owner.vnicJson(System.currentTimeMillis()));
+                return;
+            case "vcns":
+                if (post) {
+                    ok(exchange, createVcn(body));
+                } else if (delete) {
+                    deleteVcn(exchange, id);
+                } else if (id == null) {
+                    ok(exchange, list(vcns.values(), query, "compartmentId", "displayName"));
+                } else {
+                    found(exchange, vcns.get(id));
+                }
+                return;
+            case "internetGateways":
+                if (post) {
+                    ok(exchange, create(internetGateways, "internetgateway", body, "compartmentId", "displayName", "vcnId", "isEnabled"));
+                } else if (delete) {
+                    deleteInternetGateway(exchange, id);
+                } else if (id == null) {
+                    ok(exchange, list(internetGateways.values(), query, "compartmentId", "displayName", "vcnId"));
+                } else {
+                    found(exchange, internetGateways.get(id));
+                }
+                return;
+            case "routeTables":
+                if ("PUT".equals(method) && routeTables.containsKey(id)) {
+                    routeTables.computeIfPresent(id, (key, table) -> {
+                        ObjectNode updated = table.deepCopy();
+                        updated.set("routeRules", body.path("routeRules"));
+                        return updated;
+                    });
+                }
+                found(exchange, routeTables.get(id));
+                return;
+            case "subnets":
+                if (post) {
+                    ok(exchange, create(subnets, "subnet", body,
+                            "compartmentId", "displayName", "vcnId", "availabilityDomain", "cidrBlock", "routeTableId"));
+                } else if (delete) {
+                    deleted(exchange, subnets.remove(id));
+                } else if (id == null) {
+                    ok(exchange, list(subnets.values(), query, "compartmentId", "vcnId", "displayName"));
+                } else {
+                    found(exchange, subnets.get(id));
+                }
+                return;
+            case "networkSecurityGroups":
+                networkSecurityGroup(exchange, method, path, query, body);
+                return;
+            case "workRequests":
+                if (id == null) {
+                    ok(exchange, listWorkRequests(query.get("compartmentId")));
+                } else if (path.length > 2 && "errors".equals(path[2])) {
+                    ok(exchange, workRequestErrors(id));
+                } else {
+                    SimInstance launching = instancesByWorkRequest.get(id);
+                    found(exchange, launching == null ? null : launching.workRequestJson(System.currentTimeMillis()));
+                }
+                return;
+            default:
+                error(exchange, 404, "NotAuthorizedOrNotFound", "Simulator does not implement " + method + " /" + resource);
+        }
+    }
+
+    // ---------------------------------------------------------------- compute
+
+    private void launchInstance(HttpExchange exchange, JsonNode details) throws IOException {
+        String compartmentId = details.path("compartmentId").asText();
+        String availabilityDomain = details.path("availabilityDomain").asText();
+        Tenancy tenancy = tenancy(compartmentId);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // 与OCI一致: 相同retry token的请求返回第一次创建的实例
+        String retryToken = exchange.getRequestHeaders().getFirst("opc-retry-token");
+        SimInstance existing = retryToken == null ? null : instancesByRetryToken.get(retryToken);
+        if (existing != null) {
+            exchange.getResponseHeaders().set("opc-work-request-id", existing.workRequestId);
+            ok(exchange, existing.toJson(System.currentTimeMillis()));
+            return;
+        }
+        synchronized (tenancy) {
+            if (tenancy.instances >= profile.getInstanceLimit() || random.nextDouble() < profile.getLimitExceededRate()) {
+                limitExceeded.increment();
+                error(exchange, 400, "LimitExceeded", "The following service limits were exceeded: standard-a1-core-count");
+                return;
+            }
+            if (random.nextDouble() < profile.outOfCapacityRate(availabilityDomain)) {
+                outOfCapacity.increment();
+                error(exchange, 500, "InternalError", "Out of host capacity.");
+                return;
+            }
+            tenancy.instances++;
+        }
+        SimInstance instance = new SimInstance(compartmentId, availabilityDomain,
+                details.path("shape").asText(), details.path("displayName").asText(), details.path("freeformTags"),
+                random.nextDouble() < profile.getWorkRequestFailureRate());
+        instances.put(instance.id, instance);
+        instancesByVnic.put(instance.vnicId, instance);
+        instancesByWorkRequest.put(instance.workRequestId, instance);
+        if (retryToken != null) {
+            instancesByRetryToken.put(retryToken, instance);
+        }
+        launched.increment();
+        if (random.nextDouble() < profile.getLostLaunchResponseRate()) {
+            lostLaunchResponses.increment();
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("opc-work-request-id", instance.workRequestId);
+        ok(exchange, instance.toJson(System.currentTimeMillis()));
+    }
+
+    private void terminateInstance(HttpExchange exchange, String instanceId) throws IOException {
+        SimInstance instance = instances.get(instanceId);
+        if (instance == null) {
+            found(exchange, null);
+            return;
+        }
+        Tenancy tenancy = tenancy(instance.compartmentId);
+        synchronized (tenancy) {
+            if (!instance.terminated) {
+                instance.terminated = true;
+                tenancy.instances--;
+            }
+        }
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private ArrayNode listInstances(String compartmentId) {
+        long now = System.currentTimeMillis();
+        List<SimInstance> owned = new ArrayList<>();
+        for (SimInstance instance : instances.values()) {
+            if (instance.compartmentId.equals(compartmentId)) {
+                owned.add(instance);
+            }
+        }
+        owned.sort(Comparator.comparingLong((SimInstance instance) -> instance.createdAt).reversed());
+        ArrayNode items = OBJECT_MAPPER.createArrayNode();
+        for (SimInstance instance : owned) {
+            items.add(instance.toJson(now));
+        }
+        return items;
+    }
+
+    private ArrayNode listVnicAttachments(String compartmentId, String instanceId) {
+        long now = System.currentTimeMillis();
+        ArrayNode items = OBJECT_MAPPER.createArrayNode();
+        for (SimInstance instance : instances.values()) {
+            if (instance.compartmentId.equals(compartmentId) && (instanceId == null || instance.id.equals(instanceId))
+                    && "RUNNING".equals(instance.state(now))) {
+                items.add(instance.attachmentJson());
+            }
+        }
+        return items;
+    }
+
+    private ArrayNode listShapes() {
+        ArrayNode items = OBJECT_MAPPER.createArrayNode();
+        items.add(OBJECT_MAPPER.createObjectNode()
+                .put("shape", "VM.Standard.A1.Flex")
+                .put("billingType", "LIMITED_FREE")
+                .put("ocpus", 4)
+                .put("memoryInGBs", 24));
+        items.add(OBJECT_MAPPER.createObjectNode()
+                .put("shape", "VM.Standard.E2.1.Micro")
+                .put("billingType", "ALWAYS_FREE")
+                .put("ocpus", 1)
+                .put("memoryInGBs", 1));
+        return items;
+    }
+
+    private ArrayNode listImages(Map<String, String> query) {
+        String operatingSystem = query.getOrDefault("operatingSystem", "Canonical Ubuntu");
+        String version = query.getOrDefault("operatingSystemVersion", "20.04");
+        String shape = query.getOrDefault("shape", "");
+        ArrayNode items = OBJECT_MAPPER.createArrayNode();
+        items.add(OBJECT_MAPPER.createObjectNode()
+                .put("id", "ocid1.image.oc1.sim." + Integer.toHexString((operatingSystem + version + shape).hashCode()))
+                .putNull("compartmentId")
+                .put("displayName", operatingSystem + "-" + version + "-sim")
+                .put("operatingSystem", operatingSystem)
+                .put("operatingSystemVersion", version)
+                .put("lifecycleState", "AVAILABLE")
+                .put("timeCreated", Instant.ofEpochMilli(startedAt).toString()));
+        return items;
+    }
+
+    // ---------------------------------------------------------------- network
+
+    private ObjectNode createVcn(JsonNode details) {
+        ObjectNode vcn = create(vcns, "vcn", details, "compartmentId", "displayName", "cidrBlock");
+        String routeTableId = ocid("routetable");
+        vcn.put("defaultRouteTableId", routeTableId);
+        vcn.putArray("cidrBlocks").add(vcn.path("cidrBlock").asText());
+        routeTables.put(routeTableId, OBJECT_MAPPER.createObjectNode()
+                .put("id", routeTableId)
+                .put("compartmentId", vcn.path("compartmentId").asText())
+                .put("vcnId", vcn.path("id").asText())
+                .put("displayName", "Default Route Table")
+                .put("lifecycleState", "AVAILABLE")
+                .set("routeRules", OBJECT_MAPPER.createArrayNode()));
+        return vcn;
+    }
+
+    /**
+     * 与OCI一致: VCN下还有子网、网关或安全组时不能删除
+     */
+    private void deleteVcn(HttpExchange exchange, String vcnId) throws IOException {
+        if (!vcns.containsKey(vcnId)) {
+            found(exchange, null);
+            return;
+        }
+        if (!list(subnets.values(), vcnQuery(vcnId), "vcnId").isEmpty()
+                || !list(internetGateways.values(), vcnQuery(vcnId), "vcnId").isEmpty()
+                || !list(networkSecurityGroups.values(), vcnQuery(vcnId), "vcnId").isEmpty()) {
+            error(exchange, 409, "Conflict", "The Vcn " + vcnId + " references the VNIC, subnet or gateway resources.");
+            return;
+        }
+        ObjectNode vcn = vcns.remove(vcnId);
+        routeTables.remove(vcn.path("defaultRouteTableId").asText());
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    /**
+     * 与OCI一致: 路由规则仍指向网关时不能删除
+     */
+    private void deleteInternetGateway(HttpExchange exchange, String internetGatewayId) throws IOException {
+        for (ObjectNode routeTable : routeTables.values()) {
+            for (JsonNode rule : routeTable.path("routeRules")) {
+                if (internetGatewayId.equals(rule.path("networkEntityId").asText())) {
+                    error(exchange, 409, "Conflict", "Internet gateway " + internetGatewayId + " is referenced by a route table.");
+                    return;
+                }
+            }
+        }
+        deleted(exchange, internetGateways.remove(internetGatewayId));
+    }
+
+    private static Map<String, String> vcnQuery(String vcnId) {
+        return Collections.singletonMap("vcnId", vcnId);
+    }
+
+    private void networkSecurityGroup(HttpExchange exchange, String method, String[] path,
+                                      Map<String, String> query, JsonNode body) throws IOException {
+        String id = path.length > 1 ? path[1] : null;
+        if (id == null) {
+            if ("POST".equals(method)) {
+                ObjectNode group = create(networkSecurityGroups, "networksecuritygroup", body, "compartmentId", "displayName", "vcnId");
+                securityRules.put(group.path("id").asText(), new CopyOnWriteArrayList<>());
+                ok(exchange, group);
+            } else {
+                ok(exchange, list(networkSecurityGroups.values(), query, "compartmentId", "displayName", "vcnId"));
+            }
+            return;
+        }
+        List<ObjectNode> rules = securityRules.get(id);
+        if (rules == null) {
+            found(exchange, null);
+            return;
+        }
+        if ("DELETE".equals(method)) {
+            networkSecurityGroups.remove(id);
+            securityRules.remove(id);
+            exchange.sendResponseHeaders(204, -1);
+        } else if (path.length == 2) {
+            found(exchange, networkSecurityGroups.get(id));
+        } else if ("securityRules".equals(path[2])) {
+            ArrayNode items = OBJECT_MAPPER.createArrayNode();
+            items.addAll(rules);
+            ok(exchange, items);
+        } else if (path.length > 3 && "addSecurityRules".equals(path[3])) {
+            ArrayNode added = OBJECT_MAPPER.createArrayNode();
+            for (JsonNode rule : body.path("securityRules")) {
+                ObjectNode stored = rule.deepCopy();
+                stored.put("id", Long.toHexString(sequence.incrementAndGet()));
+                stored.put("isValid", true);
+                rules.add(stored);
+                added.add(stored);
+            }
+            ObjectNode response = OBJECT_MAPPER.createObjectNode();
+            response.set("securityRules", added);
+            ok(exchange, response);
+        } else if (path.length > 3 && "removeSecurityRules".equals(path[3])) {
+            Set<String> removed = new HashSet<>();
+            body.path("securityRuleIds").forEach(ruleId -> removed.add(ruleId.asText()));
+            rules.removeIf(rule -> removed.contains(rule.path("id").asText()));
+            exchange.sendResponseHeaders(204, -1);
+        } else {
+            error(exchange, 404, "NotAuthorizedOrNotFound", "Unsupported network security group operation");
+        }
+    }
+
+    // ---------------------------------------------------------------- identity & work requests
+
+    private ArrayNode listAvailabilityDomains(String compartmentId) {
+        tenancy(compartmentId);
+        ArrayNode items = OBJECT_MAPPER.createArrayNode();
+        for (String name : profile.getAvailabilityDomains()) {
+            items.add(OBJECT_MAPPER.createObjectNode()
+                    .put("name", name)
+                    .put("id", "ocid1.availabilitydomain.oc1.sim." + name.replace(':', '-'))
+                    .put("compartmentId", compartmentId));
+        }
+        return items;
+    }
+
+    private ArrayNode listWorkRequests(String compartmentId) {
+        long now = System.currentTimeMillis();
+        List<SimInstance> owned = new ArrayList<>();
+        for (SimInstance instance : instancesByWorkRequest.values()) {
+            if (instance.compartmentId.equals(compartmentId)) {
+                owned.add(instance);
+            }
+        }
+        owned.sort(Comparator.comparingLong((SimInstance instance) -> instance.createdAt).reversed());
+        ArrayNode items = OBJECT_MAPPER.createArrayNode();
+        for (SimInstance instance : owned) {
+            items.add(instance.workRequestJson(now));
+        }
+        return items;
+    }
+
+    private ArrayNode workRequestErrors(String workRequestId) {
+        ArrayNode items = OBJECT_MAPPER.createArrayNode();
+        SimInstance instance = instancesByWorkRequest.get(workRequestId);
+        if (instance != null && instance.failed) {
+            items.add(OBJECT_MAPPER.createObjectNode()
+                    .put("code", "InternalError")
+                    .put("message", "Out of host capacity.")
+                    .put("timestamp", Instant.ofEpochMilli(instance.readyAt()).toString()));
+        }
+        return items;
+    }
+
+    /**
+     * 租户第一次访问时创建; 与新注册的租户一样没有任何网络资源,第一次尝试会从空租户开始创建VCN
+     */
+    private Tenancy tenancy(String compartmentId) {
+        return tenancies.computeIfAbsent(compartmentId, key -> new Tenancy());
+    }
+
+    // ---------------------------------------------------------------- helpers
+
+    private ObjectNode create(Map<String, ObjectNode> store, String type, JsonNode details, String... fields) {
+        ObjectNode resource = OBJECT_MAPPER.createObjectNode();
+        String id = ocid(type);
+        resource.put("id", id);
+        for (String field : fields) {
+            if (details.has(field)) {
+                resource.set(field, details.get(field));
+            }
+        }
+        resource.put("lifecycleState", "AVAILABLE");
+        resource.put("timeCreated", Instant.ofEpochMilli(System.currentTimeMillis()).toString());
+        store.put(id, resource);
+        return resource;
+    }
+
+    private static ArrayNode list(Collection<ObjectNode> resources, Map<String, String> query, String... filters) {
+        ArrayNode items = OBJECT_MAPPER.createArrayNode();
+        for (ObjectNode resource : resources) {
+            boolean matches = true;
+            for (String filter : filters) {
+                String expected = query.get(filter);
+                if (expected != null && !expected.equals(resource.path(filter).asText())) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                items.add(resource);
+            }
+        }
+        return items;
+    }
+
+    private String ocid(String type) {
+        return "ocid1." + type + ".oc1.sim." + Long.toHexString(startedAt) + "." + sequence.incrementAndGet();
+    }
+
+    private Latency latency(String method, String[] path) {
+        if ("GET".equals(method)) {
+            return profile.getReadLatency();
+        }
+        if ("POST".equals(method) && "instances".equals(path[0]) && path.length == 1) {
+            return profile.getLaunchLatency();
+        }
+        return profile.getWriteLatency();
+    }
+
+    private boolean throttle() {
+        long period = profile.getThrottlePeriodMillis();
+        if (period > 0 && (System.currentTimeMillis() - startedAt) % period < profile.getThrottleBurstMillis()) {
+            return true;
+        }
+        return ThreadLocalRandom.current().nextDouble() < profile.getThrottleRate();
+    }
+
+    private static String template(String method, String[] path) {
+        StringBuilder template = new StringBuilder(method).append(' ');
+        for (String segment : path) {
+            template.append('/').append(segment.startsWith("ocid1.") ? "{id}" : segment);
+        }
+        return template.toString();
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static JsonNode readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] bytes = readAll(in);
+            return bytes.length == 0 ? OBJECT_MAPPER.createObjectNode() : OBJECT_MAPPER.readTree(bytes);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int index = pair.indexOf('=');
+            if (index > 0) {
+                query.put(pair.substring(0, index), URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private static void found(HttpExchange exchange, JsonNode resource) throws IOException {
+        if (resource == null) {
+            error(exchange, 404, "NotAuthorizedOrNotFound", "Authorization failed or requested resource not found.");
+        } else {
+            ok(exchange, resource);
+        }
+    }
+
+    private static void deleted(HttpExchange exchange, JsonNode resource) throws IOException {
+        if (resource == null) {
+            found(exchange, null);
+        } else {
+            exchange.sendResponseHeaders(204, -1);
+        }
+    }
+
+    private static void ok(HttpExchange exchange, JsonNode body) throws IOException {
+        send(exchange, 200, body);
+    }
+
+    private static void error(HttpExchange exchange, int status, String code, String message) throws IOException {
+        send(exchange, status, OBJECT_MAPPER.createObjectNode().put("code", code).put("message", message));
+    }
+
+    private static void send(HttpExchange exchange, int status, JsonNode body) throws IOException {
+        byte[] response = OBJECT_MAPPER.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("opc-request-id", UUID.randomUUID().toString());
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    private static final class Tenancy {
+        private int instances;
+    }
+
+    /**
+     * 实例、工作请求、VNIC挂载和VNIC的状态都由创建时间推算,不需要后台线程推进
+     */
+    private final class SimInstance {
+        private final String id = ocid("instance");
+        private final String workRequestId = ocid("workrequest");
+        private final String attachmentId = ocid("vnicattachment");
+        private final String vnicId = ocid("vnic");
+        private final String compartmentId;
+        private final String availabilityDomain;
+        private final String shape;
+        private final String displayName;
+        private final JsonNode freeformTags;
+        private final boolean failed;
+        private final long createdAt = System.currentTimeMillis();
+        private final long provisionMillis = profile.getProvisionMillis();
+        private final long address = sequence.incrementAndGet();
+        private volatile boolean terminated;
+        private volatile boolean stuck;
+
+        private SimInstance(String compartmentId, String availabilityDomain, String shape, String displayName,
+                            JsonNode freeformTags, boolean failed) {
+            this.compartmentId = compartmentId;
+            this.availabilityDomain = availabilityDomain;
+            this.shape = shape;
+            this.displayName = displayName;
+            this.freeformTags = freeformTags.isObject() ? freeformTags : OBJECT_MAPPER.createObjectNode();
+            this.failed = failed;
+        }
+
+        private long readyAt() {
+            return createdAt + provisionMillis;
+        }
+
+        private String state(long now) {
+            if (terminated) {
+                return "TERMINATED";
+            }
+            if (stuck || now < readyAt()) {
+                return "PROVISIONING";
+            }
+            return failed ? "TERMINATED" : "RUNNING";
+        }
+
+        private ObjectNode toJson(long now) {
+            ObjectNode json = OBJECT_MAPPER.createObjectNode()
+                    .put("id", id)
+                    .put("compartmentId", compartmentId)
+                    .put("availabilityDomain", availabilityDomain)
+                    .put("displayName", displayName)
+                    .put("shape", shape)
+                    .put("region", "sim")
+                    .put("lifecycleState", state(now))
+                    .put("timeCreated", Instant.ofEpochMilli(createdAt).toString());
+            json.set("freeformTags", freeformTags);
+            return json;
+        }
+
+        private ObjectNode workRequestJson(long now) {
+            String status;
+            int percentComplete;
+            if (now < readyAt()) {
+                status = "IN_PROGRESS";
+                percentComplete = (int) (100 * (now - createdAt) / Math.max(1, provisionMillis));
+            } else {
+                status = failed ? "FAILED" : "SUCCEEDED";
+                percentComplete = 100;
+            }
+            return OBJECT_MAPPER.createObjectNode()
+                    .put("id", workRequestId)
+                    .put("operationType", "LaunchInstance")
+                    .put("status", status)
+                    .put("compartmentId", compartmentId)
+                    .put("percentComplete", percentComplete)
+                    .put("timeAccepted", Instant.ofEpochMilli(createdAt).toString());
+        }
+
+        private ObjectNode attachmentJson() {
+            return OBJECT_MAPPER.createObjectNode()
+                    .put("id", attachmentId)
+                    .put("availabilityDomain", availabilityDomain)
+                    .put("compartmentId", compartmentId)
+                    .put("instanceId", id)
+                    .put("vnicId", vnicId)
+                    .put("lifecycleState", "ATTACHED")
+                    .put("timeCreated", Instant.ofEpochMilli(readyAt()).toString());
+        }
+
+        private ObjectNode vnicJson(long now) {
+            ObjectNode vnic = OBJECT_MAPPER.createObjectNode()
+                    .put("id", vnicId)
+                    .put("availabilityDomain", availabilityDomain)
+                    .put("compartmentId", compartmentId)
+                    .put("isPrimary", true)
+                    .put("lifecycleState", "AVAILABLE")
+                    .put("privateIp", "10.0." + (address >> 8 & 0xff) + "." + (address & 0xff));
+            if ("RUNNING".equals(state(now))) {
+                vnic.put("publicIp", "198.18." + (address >> 8 & 0xff) + "." + (address & 0xff));
+            }
+            return vnic;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.doubledimple.ociserver.simulator;
+
+import com.doubledimple.ociserver.engine.LaunchReconciler;
+import com.doubledimple.ociserver.exception.ErrorCode;
+import com.doubledimple.ociserver.metrics.OciMetrics;
+import com.doubledimple.ociserver.schedule.AttemptScheduler;
+import com.doubledimple.ociserver.state.AttemptStateStore;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 完整的应用对接本地模拟器: 有容量时每个租户创建一台实例并拿到公网IP; 创建响应丢失时不重复创建; 配额超限时租户停止重试;
+ * 一直没有启动的遗留实例被清理(包括仍在重试的租户早于当前尝试的实例),租户的实例和已经运行的实例保留. 每个用例在同步和异步两个引擎上各运行一次
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 14:30
+ */
+class SimulatedProvisioningTest {
+
+    private static final int TENANTS = 4;
+
+    @TempDir
+    Path workDir;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "async"})
+    void everyTenantLaunchesOneInstance(String engine) throws Exception {
+        CapacityProfile profile = new CapacityProfile();
+        profile.setProvisionMillis(500);
+        try (OciSimulator simulator = new OciSimulator(profile).start();
+             ConfigurableApplicationContext context = SimulatedTenants.start(properties(simulator, engine))) {
+            OciMetrics ociMetrics = context.getBean(OciMetrics.class);
+            awaitTrue("所有租户都拿到公网IP", () -> {
+                for (int i = 0; i < TENANTS; i++) {
+                    if (simulator.runningInstances(SimulatedTenants.tenancy(i)) < 1) {
+                        return false;
+                    }
+                }
+                return ociMetrics.tenants().values().stream().allMatch(tenant -> tenant.getLaunched().sum() == 1);
+            });
+            assertEquals(TENANTS, simulator.getLaunched().sum());
+            assertEquals(0, simulator.getOutOfCapacity().sum());
+            // 各可用域并发解析网络时每个租户只创建一个VCN
+            assertEquals(TENANTS, simulator.calls().getOrDefault("POST /vcns", 0L).longValue());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "async"})
+    void lostLaunchResponsesDoNotDuplicateInstances(String engine) throws Exception {
+        CapacityProfile profile = new CapacityProfile();
+        profile.setProvisionMillis(500);
+        profile.setLostLaunchResponseRate(1.0);
+        try (OciSimulator simulator = new OciSimulator(profile).start();
+             ConfigurableApplicationContext context = SimulatedTenants.start(properties(simulator, engine))) {
+            OciMetrics ociMetrics = context.getBean(OciMetrics.class);
+            awaitTrue("所有租户都拿到公网IP", () -> {
+                for (int i = 0; i < TENANTS; i++) {
+                    if (simulator.runningInstances(SimulatedTenants.tenancy(i)) < 1) {
+                        return false;
+                    }
+                }
+                return ociMetrics.tenants().values().stream().allMatch(tenant -> tenant.getLaunched().sum() == 1);
+            });
+            assertTrue(simulator.getLostLaunchResponses().sum() >= TENANTS);
+            assertEquals(TENANTS, simulator.getLaunched().sum());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "async"})
+    void limitExceededStopsTenant(String engine) throws Exception {
+        CapacityProfile profile = new CapacityProfile();
+        profile.setInstanceLimit(0);
+        try (OciSimulator simulator = new OciSimulator(profile).start();
+             ConfigurableApplicationContext context = SimulatedTenants.start(properties(simulator, engine))) {
+            OciMetrics ociMetrics = context.getBean(OciMetrics.class);
+            AttemptScheduler attemptScheduler = context.getBean(AttemptScheduler.class);
+            awaitTrue("所有租户都因配额超限停止", () -> {
+                for (int i = 0; i < TENANTS; i++) {
+                    if (attemptScheduler.isRegistered(SimulatedTenants.userName(i))) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+            Map<String, OciMetrics.Tenant> tenants = ociMetrics.tenants();
+            for (int i = 0; i < TENANTS; i++) {
+                OciMetrics.Tenant tenant = tenants.get(SimulatedTenants.userName(i));
+                assertEquals(1, tenant.getOutcomes().get(ErrorCode.LIMIT_EXCEEDED).sum());
+                assertEquals(0, tenant.getLaunched().sum());
+            }
+            assertEquals(0, simulator.getLaunched().sum());
+            assertTrue(simulator.getLimitExceeded().sum() >= TENANTS);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "async"})
+    void abandonedInstancesAreReaped(String engine) throws Exception {
+        CapacityProfile profile = new CapacityProfile();
+        profile.setProvisionMillis(500);
+        try (OciSimulator simulator = new OciSimulator(profile).start()) {
+            Map<String, Object> properties = properties(simulator, engine);
+            properties.put("oci.reaper.enabled", "true");
+            properties.put("oci.reaper.interval-seconds", "1");
+            properties.put("oci.reaper.grace-seconds", "1");
+            // 每轮只检查一半租户,验证按批轮流
+            properties.put("oci.reaper.batch-size", String.valueOf(TENANTS / 2));
+            try (ConfigurableApplicationContext context = SimulatedTenants.start(properties)) {
+                AttemptStateStore attemptStateStore = context.getBean(AttemptStateStore.class);
+                awaitTrue("所有租户都创建完成", () -> {
+                    for (int i = 0; i < TENANTS; i++) {
+                        if (attemptStateStore.getCompleted(SimulatedTenants.userName(i)) == null) {
+                            return false;
+                        }
+                    }
+                    return true;
+                });
+                List<String> abandoned = new ArrayList<>();
+                List<String> strays = new ArrayList<>();
+                for (int i = 0; i < TENANTS; i++) {
+                    // 早于已接受尝试的实例: 一直没有启动的可以删除,已经运行的不能删除
+                    Map<String, String> tags = attemptTags(i, 0);
+                    abandoned.add(simulator.addInstance(SimulatedTenants.tenancy(i), tags, true));
+                    strays.add(simulator.addInstance(SimulatedTenants.tenancy(i), tags, false));
+                }
+                awaitTrue("被放弃的实例都已删除", () -> {
+                    for (int i = 0; i < TENANTS; i++) {
+                        if (!"TERMINATED".equals(simulator.instanceState(abandoned.get(i)))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                });
+                for (int i = 0; i < TENANTS; i++) {
+                    String instanceId = attemptStateStore.getCompleted(SimulatedTenants.userName(i)).getInstanceId();
+                    assertEquals("RUNNING", simulator.instanceState(instanceId));
+                    assertEquals("RUNNING", simulator.instanceState(strays.get(i)));
+                    assertEquals(2, simulator.runningInstances(SimulatedTenants.tenancy(i)));
+                }
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "async"})
+    void retryingTenantsAbandonedInstancesAreReaped(String engine) throws Exception {
+        CapacityProfile profile = new CapacityProfile();
+        profile.setDefaultOutOfCapacityRate(1.0);
+        try (OciSimulator simulator = new OciSimulator(profile).start()) {
+            Map<String, Object> properties = properties(simulator, engine);
+            properties.put("oci.reaper.enabled", "true");
+            properties.put("oci.reaper.interval-seconds", "1");
+            properties.put("oci.reaper.grace-seconds", "1");
+            properties.put("oci.backoff.bounds.capacity.floor-seconds", "1");
+            properties.put("oci.backoff.bounds.capacity.ceiling-seconds", "1");
+            try (ConfigurableApplicationContext ignored = SimulatedTenants.start(properties)) {
+                List<String> abandoned = new ArrayList<>();
+                List<String> current = new ArrayList<>();
+                for (int i = 0; i < TENANTS; i++) {
+                    // 租户一直容量不足在重试: 早于当前尝试的实例可以删除,当前及之后的尝试创建的实例保留
+                    abandoned.add(simulator.addInstance(SimulatedTenants.tenancy(i), attemptTags(i, 1), true));
+                    current.add(simulator.addInstance(SimulatedTenants.tenancy(i), attemptTags(i, Long.MAX_VALUE), true));
+                }
+                awaitTrue("重试中租户被放弃的实例都已删除", () -> {
+                    for (int i = 0; i < TENANTS; i++) {
+                        if (!"TERMINATED".equals(simulator.instanceState(abandoned.get(i)))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                });
+                for (int i = 0; i < TENANTS; i++) {
+                    assertNotEquals("TERMINATED", simulator.instanceState(current.get(i)));
+                }
+                assertEquals(0, simulator.getLaunched().sum());
+            }
+        }
+    }
+
+    private static Map<String, String> attemptTags(int tenant, long attempt) {
+        Map<String, String> tags = new HashMap<>();
+        tags.put(LaunchReconciler.TENANT_TAG, SimulatedTenants.userName(tenant));
+        tags.put(LaunchReconciler.ATTEMPT_TAG, String.valueOf(attempt));
+        return tags;
+    }
+
+    private Map<String, Object> properties(OciSimulator simulator, String engine) throws Exception {
+        Map<String, Object> properties = SimulatedTenants.properties(simulator, TENANTS, 2, workDir);
+        properties.put("oci.engine", engine);
+        return properties;
+    }
+
+    private static void awaitTrue(String description, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("等待超时: " + description);
+            }
+            Thread.sleep(100);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.doubledimple.ociserver.simulator;
+
+import com.doubledimple.ociserver.metrics.OciMetrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 压测驱动: 几百个模拟租户在容量紧张、周期性429和长尾耗时下持续重试,
+ * 输出 每秒尝试次数、每次尝试的API调用数(按接口拆分) 以及应用的线程使用情况.
+ * <p>
+ * 运行方式: mvn -pl oci-server test -Dtest=SimulatorLoadDriver -Doci.simulator.load=true
+ * [-Doci.simulator.tenants=300] [-Doci.simulator.seconds=60] [-Doci.simulator.regions=4] [-Doci.engine=async]
+ *
+ * @author doubleDimple
+ * @date 2024:10:18日 15:00
+ */
+@EnabledIfSystemProperty(named = "oci.simulator.load", matches = "true")
+class SimulatorLoadDriver {
+
+    private static final String SIMULATOR_THREAD = "oci-simulator-";
+
+    @TempDir
+    Path workDir;
+
+    @Test
+    void drive() throws Exception {
+        int tenants = Integer.getInteger("oci.simulator.tenants", 300);
+        int seconds = Integer.getInteger("oci.simulator.seconds", 60);
+        int regions = Integer.getInteger("oci.simulator.regions", 4);
+
+        CapacityProfile profile = new CapacityProfile();
+        profile.getOutOfCapacityRates().put("SIM:AD-1", 0.98);
+        profile.getOutOfCapacityRates().put("SIM:AD-2", 0.99);
+        profile.getOutOfCapacityRates().put("SIM:AD-3", 1.0);
+        profile.setInstanceLimit(1);
+        profile.setThrottlePeriodMillis(TimeUnit.SECONDS.toMillis(60));
+        profile.setThrottleBurstMillis(TimeUnit.SECONDS.toMillis(5));
+        profile.setThrottleRate(0.01);
+        profile.setReadLatency(Latency.logNormal(80, 600));
+        profile.setWriteLatency(Latency.logNormal(150, 1500));
+        profile.setLaunchLatency(Latency.logNormal(400, 3000));
+        profile.setProvisionMillis(TimeUnit.SECONDS.toMillis(5));
+
+        try (OciSimulator simulator = new OciSimulator(profile, 512).start()) {
+            Map<String, Object> properties = SimulatedTenants.properties(simulator, tenants, regions, workDir);
+            properties.put("oci.engine", System.getProperty("oci.engine", "blocking"));
+            properties.put("oci.backoff.bounds.capacity.floor-seconds", "5");
+            properties.put("oci.backoff.bounds.capacity.ceiling-seconds", "30");
+            properties.put("logging.level.com.doubledimple", "WARN");
+
+            ThreadSampler sampler = new ThreadSampler();
+            long start = System.nanoTime();
+            try (ConfigurableApplicationContext context = SimulatedTenants.start(properties)) {
+                OciMetrics ociMetrics = context.getBean(OciMetrics.class);
+                sampler.start();
+                TimeUnit.SECONDS.sleep(seconds);
+                sampler.stop();
+
+                double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+                long attempts = 0;
+                long launched = 0;
+                for (OciMetrics.Tenant tenant : ociMetrics.tenants().values()) {
+                    attempts += tenant.getAttempts().sum();
+                    launched += tenant.getLaunched().sum();
+                }
+                report(simulator, tenants, elapsedSeconds, attempts, launched, sampler);
+            }
+        }
+    }
+
+    private static void report(OciSimulator simulator, int tenants, double elapsedSeconds,
+                               long attempts, long launched, ThreadSampler sampler) {
+        long calls = simulator.totalCalls();
+        System.out.printf("tenants=%d elapsed=%.1fs engine=%s%n", tenants, elapsedSeconds, System.getProperty("oci.engine", "blocking"));
+        System.out.printf("attempts=%d (%.2f/s) launched=%d%n", attempts, attempts / elapsedSeconds, launched);
+        System.out.printf("api calls=%d (%.2f/s, %.2f per attempt) throttled=%d outOfCapacity=%d limitExceeded=%d%n",
+                calls, calls / elapsedSeconds, attempts == 0 ? 0 : (double) calls / attempts,
+                simulator.getThrottled().sum(), simulator.getOutOfCapacity().sum(), simulator.getLimitExceeded().sum());
+        for (Map.Entry<String, Long> entry : simulator.calls().entrySet()) {
+            System.out.printf("  %-55s %8d %8.2f/attempt%n", entry.getKey(), entry.getValue(),
+                    attempts == 0 ? 0 : (double) entry.getValue() / attempts);
+        }
+        System.out.printf("threads: peak=%d (excluding simulator) mean=%.1f%n", sampler.peak.get(), sampler.mean());
+        for (Map.Entry<String, Integer> entry : sampler.peakByPool.entrySet()) {
+            System.out.printf("  %-40s %5d%n", entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 每秒采样一次应用线程(不含模拟器的请求处理线程),按线程名去掉编号后分组记录各组峰值
+     */
+    private static final class ThreadSampler {
+
+        private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, SIMULATOR_THREAD + "sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final AtomicInteger peak = new AtomicInteger();
+        private final Map<String, Integer> peakByPool = new TreeMap<>();
+        private long samples;
+        private long total;
+
+        private void start() {
+            timer.scheduleAtFixedRate(this::sample, 0, 1, TimeUnit.SECONDS);
+        }
+
+        private void stop() throws InterruptedException {
+            timer.shutdown();
+            timer.awaitTermination(5, TimeUnit.SECONDS);
+        }
+
+        private synchronized void sample() {
+            Map<String, Integer> byPool = new TreeMap<>();
+            int count = 0;
+            for (ThreadInfo info : threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds())) {
+                if (info == null || info.getThreadName().startsWith(SIMULATOR_THREAD)) {
+                    continue;
+                }
+                count++;
+                byPool.merge(info.getThreadName().replaceAll("[-#]?\\d+$", ""), 1, Integer::sum);
+            }
+            peak.accumulateAndGet(count, Math::max);
+            byPool.forEach((pool, size) -> peakByPool.merge(pool, size, Math::max));
+            samples++;
+            total += count;
+        }
+
+        private synchronized double mean() {
+            return samples == 0 ? 0 : (double) total / samples;
+        }
+    }
+}
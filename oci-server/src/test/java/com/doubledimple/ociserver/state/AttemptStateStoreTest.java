@@ -0,0 +1,250 @@
+package com.doubledimple.ociserver.state;
+
+import com.doubledimple.ociserver.domain.OracleInstanceDetail;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 重启后回放: 尝试次数继续累加、未完成的实例继续跟踪、已完成的租户可以跳过; 写了一半的记录和日志重写不影响结果;
+ * 写入失败的一批记录截掉后重写,不影响之后的记录
+ *
+ * @author doubleDimple
+ * @date 2024:10:19日 11:10
+ */
+class AttemptStateStoreTest {
+
+    @TempDir
+    Path workDir;
+
+    @Test
+    void restartRestoresTenantState() throws Exception {
+        AttemptStateStore store = open(10000);
+        store.nextAttempt("a");
+        store.nextAttempt("a");
+        store.nextAttempt("b");
+        store.launched("a", detail("i-1", null));
+        store.launched("b", detail("i-2", null));
+        store.launched("b", detail("i-3", null));
+        store.failed("b", "i-2");
+        store.completed("b", detail("i-3", "1.2.3.4"));
+        store.shutdown();
+
+        AttemptStateStore reopened = open(10000);
+        assertEquals(2, reopened.getAttempts("a"));
+        assertEquals(3, reopened.nextAttempt("a"));
+        assertEquals(1, reopened.getAttempts("b"));
+        List<OracleInstanceDetail> inFlight = reopened.getInFlight("a");
+        assertEquals(1, inFlight.size());
+        assertEquals("i-1", inFlight.get(0).getInstanceId());
+        assertEquals("ocid1.workrequest.i-1", inFlight.get(0).getWorkRequestId());
+        assertNull(reopened.getCompleted("a"));
+        assertTrue(reopened.getInFlight("b").isEmpty());
+        assertEquals("1.2.3.4", reopened.getCompleted("b").getPublicIp());
+        reopened.shutdown();
+    }
+
+    @Test
+    void tornTailIsIgnored() throws Exception {
+        AttemptStateStore store = open(10000);
+        store.nextAttempt("a");
+        store.launched("a", detail("i-1", null));
+        store.shutdown();
+
+        Path file = workDir.resolve("attempt-state.log");
+        Files.write(file, new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        AttemptStateStore reopened = open(10000);
+        assertEquals(1, reopened.getAttempts("a"));
+        assertEquals(1, reopened.getInFlight("a").size());
+        reopened.completed("a", detail("i-1", "5.6.7.8"));
+        reopened.shutdown();
+
+        AttemptStateStore again = open(10000);
+        assertEquals("5.6.7.8", again.getCompleted("a").getPublicIp());
+        assertTrue(again.getInFlight("a").isEmpty());
+        again.shutdown();
+    }
+
+    @Test
+    void compactionKeepsLatestState() throws Exception {
+        AttemptStateStore store = open(100);
+        for (int i = 0; i < 1000; i++) {
+            store.nextAttempt("a");
+        }
+        store.launched("a", detail("i-1", null));
+        store.shutdown();
+
+        Path file = workDir.resolve("attempt-state.log");
+        AttemptStateStore reopened = open(100);
+        assertTrue(Files.size(file) < 1000 * 20, "日志应该已被重写");
+        assertEquals(1000, reopened.getAttempts("a"));
+        assertEquals("i-1", reopened.getInFlight("a").get(0).getInstanceId());
+        reopened.shutdown();
+    }
+
+    @Test
+    void failedWriteIsTruncatedAndRetried() throws Exception {
+        AttemptStateStore store = open(10000);
+        FlakyChannel flaky = new FlakyChannel((FileChannel) ReflectionTestUtils.getField(store, "channel"));
+        ReflectionTestUtils.setField(store, "channel", flaky);
+        store.nextAttempt("a");
+        store.launched("a", detail("i-1", null));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (flaky.written == 0) {
+            assertTrue(System.nanoTime() < deadline, "写入失败后应该重写");
+            Thread.sleep(50);
+        }
+        store.nextAttempt("a");
+        store.shutdown();
+
+        AttemptStateStore reopened = open(10000);
+        assertEquals(2, reopened.getAttempts("a"));
+        assertEquals("i-1", reopened.getInFlight("a").get(0).getInstanceId());
+        reopened.shutdown();
+    }
+
+    private AttemptStateStore open(long compactRecords) throws Exception {
+        AttemptStateStore store = new AttemptStateStore();
+        ReflectionTestUtils.setField(store, "file", workDir.resolve("attempt-state.log").toString());
+        ReflectionTestUtils.setField(store, "fsyncMillis", 1L);
+        ReflectionTestUtils.setField(store, "compactRecords", compactRecords);
+        store.start();
+        return store;
+    }
+
+    private static OracleInstanceDetail detail(String instanceId, String publicIp) {
+        OracleInstanceDetail detail = new OracleInstanceDetail();
+        detail.setInstanceId(instanceId);
+        detail.setWorkRequestId("ocid1.workrequest." + instanceId);
+        detail.setCompartmentId("ocid1.tenancy.oc1..test");
+        detail.setShape("VM.Standard.A1.Flex");
+        detail.setPublicIp(publicIp);
+        return detail;
+    }
+
+    /**
+     * 第一次写入只写出一半就失败,模拟磁盘写满时留下不完整的记录
+     */
+    private static final class FlakyChannel extends FileChannel {
+
+        private final FileChannel delegate;
+        private boolean failed;
+        private volatile int written;
+
+        private FlakyChannel(FileChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!failed) {
+                failed = true;
+                ByteBuffer half = src.duplicate();
+                half.limit(src.position() + src.remaining() / 2);
+                delegate.write(half);
+                throw new IOException("No space left on device");
+            }
+            int count = delegate.write(src);
+            written += count;
+            return count;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return delegate.write(srcs, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return delegate.write(src, position);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return delegate.transferFrom(src, position, count);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+}